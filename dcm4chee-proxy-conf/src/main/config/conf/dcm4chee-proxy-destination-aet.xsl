@@ -38,6 +38,8 @@
     
     ===== END LICENSE BLOCK ===== -->
 <xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" version="1.0">
+  <!-- the template only reads these attributes: pass only these and cache the result -->
+  <?dcm4chee-proxy cache-attributes="Modality"?>
   <xsl:output method="xml"/>
   <xsl:template match="/NativeDicomModel">
     <Result>
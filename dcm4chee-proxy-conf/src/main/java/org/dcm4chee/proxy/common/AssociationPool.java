@@ -0,0 +1,290 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.pdu.RoleSelection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of idle outbound associations, keyed by calling AET, called AET and
+ * the requested presentation contexts. An association taken from the pool is
+ * validated with C-ECHO, associations idle for longer than the idle timeout
+ * are released.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class AssociationPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AssociationPool.class);
+
+    private static final int MAX_PC_ID = 255;
+
+    private static final class Idle {
+        final Association as;
+        final long since;
+
+        Idle(Association as, long since) {
+            this.as = as;
+            this.since = since;
+        }
+    }
+
+    private volatile long idleTimeout;
+    private final HashMap<String, ArrayDeque<Idle>> idle = new HashMap<String, ArrayDeque<Idle>>();
+    private final HashMap<Association, String> keys = new HashMap<Association, String>();
+
+    /**
+     * @param idleTimeout
+     *            time in ms an association is kept open after use, 0 if
+     *            associations are not pooled
+     */
+    public AssociationPool(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Changes the idle timeout and releases idle associations which exceed
+     * the new timeout. Associations in use are not affected.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        closeIdle(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns a validated idle association for the request or opens a new
+     * one. Associations obtained from this method must be returned by
+     * {@link #release(Association)}.
+     */
+    public Association connect(ApplicationEntity ae, ApplicationEntity remote, AAssociateRQ rq)
+            throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
+        long idleTimeout = this.idleTimeout;
+        if (idleTimeout <= 0)
+            return ae.connect(remote, rq);
+
+        String key = keyOf(rq);
+        Idle entry;
+        while ((entry = poll(key)) != null) {
+            if (System.currentTimeMillis() - entry.since >= idleTimeout)
+                releaseQuietly(entry.as);
+            else if (validate(entry.as)) {
+                LOG.debug("{}: reuse pooled association", entry.as);
+                synchronized (this) {
+                    keys.put(entry.as, key);
+                }
+                return entry.as;
+            } else
+                entry.as.abort();
+        }
+        addVerificationContext(rq);
+        Association as = ae.connect(remote, rq);
+        synchronized (this) {
+            keys.put(as, key);
+        }
+        return as;
+    }
+
+    /**
+     * Returns the association to the pool, or releases it if it is not
+     * pooled or not ready for further data transfer.
+     */
+    public void release(Association as) throws IOException {
+        String key;
+        synchronized (this) {
+            key = keys.get(as);
+            if (key != null && idleTimeout > 0 && as.isReadyForDataTransfer()) {
+                ArrayDeque<Idle> queue = idle.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<Idle>();
+                    idle.put(key, queue);
+                }
+                queue.push(new Idle(as, System.currentTimeMillis()));
+                return;
+            }
+            keys.remove(as);
+        }
+        if (as.isReadyForDataTransfer())
+            as.release();
+    }
+
+    /**
+     * Releases associations idle for longer than the idle timeout.
+     */
+    public void closeIdle(long now) {
+        long idleTimeout = this.idleTimeout;
+        List<Association> expired = new ArrayList<Association>();
+        synchronized (this) {
+            for (Iterator<ArrayDeque<Idle>> queues = idle.values().iterator(); queues.hasNext();) {
+                ArrayDeque<Idle> queue = queues.next();
+                for (Iterator<Idle> iter = queue.iterator(); iter.hasNext();) {
+                    Idle entry = iter.next();
+                    if (now - entry.since >= idleTimeout || !entry.as.isReadyForDataTransfer()) {
+                        iter.remove();
+                        keys.remove(entry.as);
+                        expired.add(entry.as);
+                    }
+                }
+                if (queue.isEmpty())
+                    queues.remove();
+            }
+        }
+        for (Association as : expired)
+            releaseQuietly(as);
+    }
+
+    /**
+     * Releases all idle associations.
+     */
+    public void close() {
+        List<Association> all = new ArrayList<Association>();
+        synchronized (this) {
+            for (ArrayDeque<Idle> queue : idle.values())
+                for (Idle entry : queue) {
+                    keys.remove(entry.as);
+                    all.add(entry.as);
+                }
+            idle.clear();
+        }
+        for (Association as : all)
+            releaseQuietly(as);
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (ArrayDeque<Idle> queue : idle.values())
+            count += queue.size();
+        return count;
+    }
+
+    private synchronized Idle poll(String key) {
+        ArrayDeque<Idle> queue = idle.get(key);
+        if (queue == null)
+            return null;
+
+        Idle entry = queue.poll();
+        if (queue.isEmpty())
+            idle.remove(key);
+        keys.remove(entry.as);
+        return entry;
+    }
+
+    private boolean validate(Association as) {
+        if (!as.isReadyForDataTransfer())
+            return false;
+
+        if (as.getTransferSyntaxesFor(UID.VerificationSOPClass).isEmpty())
+            return true;
+
+        try {
+            DimseRSP rsp = as.cecho();
+            rsp.next();
+            return rsp.getCommand().getInt(Tag.Status, -1) == Status.Success;
+        } catch (Exception e) {
+            LOG.debug("{}: C-ECHO on pooled association failed: {}", as, e.getMessage());
+            return false;
+        }
+    }
+
+    private static void addVerificationContext(AAssociateRQ rq) {
+        int maxPCID = 0;
+        for (PresentationContext pc : rq.getPresentationContexts()) {
+            if (UID.VerificationSOPClass.equals(pc.getAbstractSyntax()))
+                return;
+            maxPCID = Math.max(maxPCID, pc.getPCID());
+        }
+        if (maxPCID + 2 <= MAX_PC_ID)
+            rq.addPresentationContext(new PresentationContext(maxPCID + 2, UID.VerificationSOPClass,
+                    UID.ImplicitVRLittleEndian));
+    }
+
+    private void releaseQuietly(Association as) {
+        try {
+            if (as.isReadyForDataTransfer())
+                as.release();
+        } catch (IOException e) {
+            LOG.debug("{}: failed to release pooled association: {}", as, e.getMessage());
+        }
+    }
+
+    private static String keyOf(AAssociateRQ rq) {
+        List<String> pcs = new ArrayList<String>();
+        for (PresentationContext pc : rq.getPresentationContexts()) {
+            StringBuilder sb = new StringBuilder(pc.getAbstractSyntax());
+            for (String ts : pc.getTransferSyntaxes())
+                sb.append(',').append(ts);
+            pcs.add(sb.toString());
+        }
+        Collections.sort(pcs);
+        // e.g. N-EVENT-REPORTs need the SCP role
+        List<String> roles = new ArrayList<String>();
+        for (RoleSelection rs : rq.getRoleSelections())
+            roles.add(rs.getSOPClassUID() + (rs.isSCU() ? ",SCU" : "") + (rs.isSCP() ? ",SCP" : ""));
+        Collections.sort(roles);
+        StringBuilder key = new StringBuilder();
+        key.append(rq.getCallingAET()).append('\\').append(rq.getCalledAET());
+        for (String pc : pcs)
+            key.append('\\').append(pc);
+        for (String role : roles)
+            key.append('\\').append(role);
+        return key.toString();
+    }
+}
@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers of a fixed size for writing spool files, so writing
+ * objects does not allocate a new buffer on the heap each time. Up to
+ * <code>maxBuffers</code> buffers are allocated; if all of them are in use, a
+ * heap buffer is allocated which is not returned to the pool.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private int allocated;
+    private int inUse;
+    private int maxInUse;
+    private long acquired;
+    private long misses;
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize: " + bufferSize);
+        if (maxBuffers < 0)
+            throw new IllegalArgumentException("maxBuffers: " + maxBuffers);
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    public synchronized ByteBuffer acquire() {
+        acquired++;
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            if (allocated < maxBuffers) {
+                buf = ByteBuffer.allocateDirect(bufferSize);
+                allocated++;
+            } else {
+                buf = ByteBuffer.allocate(bufferSize);
+                misses++;
+            }
+        }
+        if (++inUse > maxInUse)
+            maxInUse = inUse;
+        buf.clear();
+        return buf;
+    }
+
+    public synchronized void release(ByteBuffer buf) {
+        inUse--;
+        if (buf.isDirect() && buf.capacity() == bufferSize && free.size() < allocated)
+            free.push(buf);
+    }
+
+    /**
+     * Returns the number of direct buffers allocated by the pool.
+     */
+    public synchronized int getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * Returns the number of buffers currently in use, including heap buffers.
+     */
+    public synchronized int getInUse() {
+        return inUse;
+    }
+
+    public synchronized int getMaxInUse() {
+        return maxInUse;
+    }
+
+    public synchronized long getAcquired() {
+        return acquired;
+    }
+
+    /**
+     * Returns how often a heap buffer was allocated because all buffers of the
+     * pool were in use.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool[size=" + bufferSize + ", max=" + maxBuffers + ", allocated=" + allocated
+                + ", inUse=" + inUse + ", maxInUse=" + maxInUse + ", acquired=" + acquired + ", misses="
+                + misses + "]";
+    }
+}
@@ -0,0 +1,191 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.Random;
+
+/**
+ * Circuit breaker of a forward destination. After a number of consecutive
+ * connection failures the destination is considered down: no data is
+ * forwarded to it until a single probe succeeds. Probes are scheduled with an
+ * exponential backoff with jitter.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Random RANDOM = new Random();
+
+    private final String destination;
+    private int failureThreshold;
+    private long initialBackoff;
+    private long maxBackoff;
+    private State state = State.CLOSED;
+    private int failures;
+    private int probes;
+    private long openedTime;
+    private long nextProbeTime;
+    private String lastError;
+
+    /**
+     * @param failureThreshold
+     *            number of consecutive failures which open the breaker, 0 if
+     *            it never opens
+     * @param initialBackoff
+     *            delay of the first probe in ms
+     * @param maxBackoff
+     *            maximal delay between probes in ms
+     */
+    public CircuitBreaker(String destination, int failureThreshold, long initialBackoff, long maxBackoff) {
+        this.destination = destination;
+        configure(failureThreshold, initialBackoff, maxBackoff);
+    }
+
+    /**
+     * Applies new parameters, keeping the state of the breaker. The new
+     * backoff applies from the next scheduled probe. A breaker which never
+     * opens is closed.
+     */
+    public synchronized void configure(int failureThreshold, long initialBackoff, long maxBackoff) {
+        this.failureThreshold = failureThreshold;
+        this.initialBackoff = Math.max(1, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+        if (failureThreshold <= 0 && state != State.CLOSED)
+            recordSuccess();
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized long getOpenedTime() {
+        return openedTime;
+    }
+
+    public synchronized long getNextProbeTime() {
+        return nextProbeTime;
+    }
+
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Returns <code>true</code> if data may be forwarded to the destination.
+     */
+    public synchronized boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        probes = 0;
+        openedTime = 0;
+        nextProbeTime = 0;
+    }
+
+    /**
+     * Records a failed connection attempt.
+     * 
+     * @return <code>true</code> if the breaker was opened by this failure and
+     *         a probe has to be scheduled at {@link #getNextProbeTime()}
+     */
+    public synchronized boolean recordFailure(String error, long now) {
+        failures++;
+        lastError = error;
+        if (state != State.CLOSED || failureThreshold <= 0 || failures < failureThreshold)
+            return false;
+
+        state = State.OPEN;
+        openedTime = now;
+        nextProbeTime = now + nextBackoff();
+        return true;
+    }
+
+    /**
+     * Switches an open breaker, which is due to be probed, to half-open.
+     * 
+     * @return <code>true</code> if the caller shall probe the destination
+     */
+    public synchronized boolean startProbe(long now) {
+        if (state != State.OPEN || now < nextProbeTime)
+            return false;
+
+        state = State.HALF_OPEN;
+        return true;
+    }
+
+    /**
+     * Opens the breaker again after a failed probe, with the next probe
+     * scheduled at {@link #getNextProbeTime()}.
+     */
+    public synchronized void probeFailed(String error, long now) {
+        lastError = error;
+        state = State.OPEN;
+        nextProbeTime = now + nextBackoff();
+    }
+
+    private long nextBackoff() {
+        long backoff = Math.min(maxBackoff, initialBackoff << Math.min(probes++, 30));
+        if (backoff <= 0)
+            backoff = maxBackoff;
+        // equal jitter: at least half of the backoff
+        long half = backoff / 2;
+        return backoff - half + (long) (RANDOM.nextDouble() * half);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker[" + destination + ", state=" + state + ", failures=" + failures + ", lastError="
+                + lastError + ", nextProbeTime=" + nextProbeTime + "]";
+    }
+}
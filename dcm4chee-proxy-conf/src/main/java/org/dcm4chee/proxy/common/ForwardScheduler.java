@@ -0,0 +1,234 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules forwarding tasks on a bounded number of workers with a queue per
+ * destination. Workers are shared between destinations by stride scheduling
+ * in proportion to their weight, the number of tasks running concurrently for
+ * one destination is bounded, so a slow destination cannot occupy all
+ * workers. A task submitted with a key is dropped while a task with the same
+ * key is still queued for the destination.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ForwardScheduler.class);
+
+    private static final long STRIDE = 1 << 20;
+
+    private static final class Destination {
+        final String name;
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+        final HashSet<String> queuedKeys = new HashSet<String>();
+        int weight = 1;
+        int running;
+        long pass;
+
+        Destination(String name, long pass) {
+            this.name = name;
+            this.pass = pass;
+        }
+    }
+
+    private static final class Task {
+        final Destination destination;
+        final String key;
+        final Runnable runnable;
+
+        Task(Destination destination, String key, Runnable runnable) {
+            this.destination = destination;
+            this.key = key;
+            this.runnable = runnable;
+        }
+    }
+
+    private final Executor executor;
+    private int maxWorkers;
+    private int maxTasksPerDestination;
+    private final HashMap<String, Destination> destinations = new HashMap<String, Destination>();
+    private int workers;
+    private long pass;
+
+    private final Runnable worker = new Runnable() {
+
+        @Override
+        public void run() {
+            Task task;
+            while ((task = next()) != null)
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Unexpected error forwarding to {}: {}", task.destination.name, e.getMessage());
+                    if (LOG.isDebugEnabled())
+                        e.printStackTrace();
+                } finally {
+                    done(task);
+                }
+        }
+    };
+
+    public ForwardScheduler(Executor executor, int maxWorkers, int maxTasksPerDestination) {
+        this.executor = executor;
+        setLimits(maxWorkers, maxTasksPerDestination);
+    }
+
+    /**
+     * Changes the number of workers and the number of tasks running
+     * concurrently for one destination. Queued tasks are kept; running tasks
+     * exceeding lowered limits complete, but no further tasks are started
+     * until the tasks run within the limits.
+     */
+    public synchronized void setLimits(int maxWorkers, int maxTasksPerDestination) {
+        if (maxWorkers < 1)
+            throw new IllegalArgumentException("maxWorkers: " + maxWorkers);
+        if (maxTasksPerDestination < 1)
+            throw new IllegalArgumentException("maxTasksPerDestination: " + maxTasksPerDestination);
+        this.maxWorkers = maxWorkers;
+        this.maxTasksPerDestination = maxTasksPerDestination;
+        for (int i = runnableTasks(); i > 0 && workers < maxWorkers; i--)
+            startWorker();
+    }
+
+    public synchronized int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    public synchronized int getMaxTasksPerDestination() {
+        return maxTasksPerDestination;
+    }
+
+    /**
+     * Queues a task for the destination.
+     * 
+     * @param destination
+     *            AE title of the destination
+     * @param key
+     *            identifies equivalent tasks, <code>null</code> if the task
+     *            must not be dropped
+     * @param weight
+     *            share of the workers of the destination relative to others
+     * @return <code>false</code> if an equivalent task is already queued
+     */
+    public synchronized boolean execute(String destination, String key, int weight, Runnable runnable) {
+        Destination dest = destinations.get(destination);
+        if (dest == null) {
+            dest = new Destination(destination, pass);
+            destinations.put(destination, dest);
+        }
+        dest.weight = Math.max(1, weight);
+        if (key != null && !dest.queuedKeys.add(key)) {
+            LOG.debug("{} is already queued for {}", key, destination);
+            return false;
+        }
+
+        dest.tasks.add(new Task(dest, key, runnable));
+        if (workers < maxWorkers)
+            startWorker();
+        return true;
+    }
+
+    public synchronized int getQueueSize(String destination) {
+        Destination dest = destinations.get(destination);
+        return dest == null ? 0 : dest.tasks.size();
+    }
+
+    public synchronized int getRunning(String destination) {
+        Destination dest = destinations.get(destination);
+        return dest == null ? 0 : dest.running;
+    }
+
+    private void startWorker() {
+        workers++;
+        try {
+            executor.execute(worker);
+        } catch (RejectedExecutionException e) {
+            workers--;
+            LOG.warn("Failed to start forwarding worker: {}", e.getMessage());
+        }
+    }
+
+    private int runnableTasks() {
+        int count = 0;
+        for (Destination dest : destinations.values())
+            count += Math.max(0, Math.min(dest.tasks.size(), maxTasksPerDestination - dest.running));
+        return count;
+    }
+
+    private synchronized Task next() {
+        if (workers > maxWorkers) {
+            workers--;
+            return null;
+        }
+
+        Destination selected = null;
+        for (Destination dest : destinations.values())
+            if (!dest.tasks.isEmpty() && dest.running < maxTasksPerDestination
+                    && (selected == null || dest.pass < selected.pass))
+                selected = dest;
+        if (selected == null) {
+            workers--;
+            return null;
+        }
+
+        Task task = selected.tasks.poll();
+        if (task.key != null)
+            selected.queuedKeys.remove(task.key);
+        selected.running++;
+        pass = selected.pass;
+        selected.pass += STRIDE / selected.weight;
+        return task;
+    }
+
+    private synchronized void done(Task task) {
+        Destination dest = task.destination;
+        if (--dest.running == 0 && dest.tasks.isEmpty())
+            destinations.remove(dest.name);
+    }
+}
@@ -0,0 +1,249 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches fsync requests of concurrent writers. The first caller of a batch
+ * waits for the configured window, then forces the distinct files of all
+ * requests collected so far to disk: a file shared by several requests, like
+ * the spool journal, is forced only once per batch, and different files are
+ * forced in parallel. Callers arriving while a batch is being flushed are
+ * collected into the next one. Each caller returns only after its own files
+ * are durable.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class GroupCommit {
+
+    static final int MAX_PARALLEL_FORCES = 16;
+
+    private static final class Request {
+        final File[] files;
+        IOException exception;
+        boolean done;
+
+        Request(File[] files) {
+            this.files = files;
+        }
+    }
+
+    private volatile int window;
+    private List<Request> pending = new ArrayList<Request>();
+    private boolean flushing;
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param window
+     *            time in ms to wait for further requests before flushing a
+     *            batch. 0 flushes immediately, only grouping requests which
+     *            arrived while a previous flush was in progress.
+     */
+    public GroupCommit(int window) {
+        setWindow(window);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        if (window < 0)
+            throw new IllegalArgumentException("window cannot be negative");
+        this.window = window;
+    }
+
+    public void sync(File... files) throws IOException {
+        Request rq = new Request(files);
+        synchronized (this) {
+            pending.add(rq);
+            while (flushing && !rq.done)
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // a request already taken by the flushing thread is
+                    // completed without us
+                    pending.remove(rq);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(e.getMessage());
+                }
+            if (rq.done) {
+                if (rq.exception != null)
+                    throw rq.exception;
+                return;
+            }
+            flushing = true;
+        }
+        List<Request> batch = null;
+        try {
+            int window = this.window;
+            if (window > 0)
+                Thread.sleep(window);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                batch = pending;
+                pending = new ArrayList<Request>();
+            }
+            try {
+                flush(batch);
+            } finally {
+                synchronized (this) {
+                    for (Request each : batch)
+                        each.done = true;
+                    flushing = false;
+                    notifyAll();
+                }
+            }
+        }
+        if (rq.exception != null)
+            throw rq.exception;
+    }
+
+    private void flush(List<Request> batch) {
+        Map<File, List<Request>> requestsByFile = new LinkedHashMap<File, List<Request>>();
+        for (Request each : batch)
+            for (File file : each.files) {
+                File key = file.getAbsoluteFile();
+                List<Request> requests = requestsByFile.get(key);
+                if (requests == null)
+                    requestsByFile.put(key, requests = new ArrayList<Request>(1));
+                requests.add(each);
+            }
+        if (requestsByFile.isEmpty())
+            return;
+
+        List<Map.Entry<File, List<Request>>> entries = new ArrayList<Map.Entry<File, List<Request>>>(
+                requestsByFile.entrySet());
+        List<Future<IOException>> futures = new ArrayList<Future<IOException>>(entries.size());
+        for (int i = 1; i < entries.size(); i++)
+            futures.add(executor().submit(new ForceTask(entries.get(i).getKey())));
+        IOException first = new ForceTask(entries.get(0).getKey()).call();
+        if (first != null)
+            fail(entries.get(0).getValue(), first);
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            IOException e;
+            for (;;)
+                try {
+                    e = futures.get(i).get();
+                    break;
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                } catch (ExecutionException ee) {
+                    e = new IOException(ee.getCause());
+                    break;
+                }
+            if (e != null)
+                fail(entries.get(i + 1).getValue(), e);
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static void fail(List<Request> requests, IOException e) {
+        for (Request rq : requests)
+            if (rq.exception == null)
+                rq.exception = e;
+    }
+
+    private final class ForceTask implements Callable<IOException> {
+
+        private final File file;
+
+        ForceTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public IOException call() {
+            try {
+                force(file);
+                return null;
+            } catch (IOException e) {
+                return e;
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(MAX_PARALLEL_FORCES, MAX_PARALLEL_FORCES, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "GroupCommit");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Forces <code>file</code> to disk.
+     */
+    protected void force(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
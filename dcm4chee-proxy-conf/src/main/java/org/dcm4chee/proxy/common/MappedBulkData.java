@@ -0,0 +1,174 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+
+/**
+ * Bulk data of a spooled file which is written from a memory-mapped region
+ * of the file instead of re-opening the file by its URI and reading it
+ * through a small stream buffer.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class MappedBulkData extends BulkData {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> chunk = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    private final File file;
+    private final long position;
+    private final int size;
+
+    private MappedBulkData(BulkData bulkData, File file, long position, int size) {
+        super(null, bulkData.getURI(), bulkData.bigEndian());
+        this.file = file;
+        this.position = position;
+        this.size = size;
+    }
+
+    /**
+     * Replaces bulk data of at least <code>threshold</code> bytes, including
+     * fragments and bulk data of nested datasets, by memory-mapped bulk data.
+     * Does nothing if <code>threshold</code> is 0.
+     */
+    public static void map(Attributes attrs, final int threshold) {
+        if (threshold <= 0)
+            return;
+
+        try {
+            attrs.accept(new Attributes.Visitor() {
+
+                @Override
+                public boolean visit(Attributes attrs, int tag, VR vr, Object value) {
+                    if (value instanceof BulkData) {
+                        BulkData mapped = valueOf((BulkData) value, threshold);
+                        if (mapped != value)
+                            attrs.setValue(tag, vr, mapped);
+                    } else if (value instanceof Fragments) {
+                        Fragments fragments = (Fragments) value;
+                        for (int i = 0; i < fragments.size(); i++) {
+                            Object fragment = fragments.get(i);
+                            if (fragment instanceof BulkData)
+                                fragments.set(i, valueOf((BulkData) fragment, threshold));
+                        }
+                    }
+                    return true;
+                }
+            }, true);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static BulkData valueOf(BulkData bulkData, int threshold) {
+        if (bulkData instanceof MappedBulkData)
+            return bulkData;
+
+        String uri = bulkData.getURI();
+        int query = uri != null ? uri.indexOf('?') : -1;
+        if (query < 0 || !uri.startsWith("file:"))
+            return bulkData;
+
+        long offset = -1;
+        long length = -1;
+        for (String param : uri.substring(query + 1).split("&")) {
+            try {
+                if (param.startsWith("offset="))
+                    offset = Long.parseLong(param.substring(7));
+                else if (param.startsWith("length="))
+                    length = Long.parseLong(param.substring(7));
+            } catch (NumberFormatException e) {
+                return bulkData;
+            }
+        }
+        // odd lengths need padding, which is left to BulkData
+        if (offset < 0 || length < threshold || length > Integer.MAX_VALUE || (length & 1) != 0)
+            return bulkData;
+
+        try {
+            File file = new File(new URI(uri.substring(0, query)));
+            return new MappedBulkData(bulkData, file, offset, (int) length);
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return bulkData;
+        }
+    }
+
+    @Override
+    public void writeTo(DicomOutputStream out, VR vr) throws IOException {
+        if (bigEndian() != out.isBigEndian()) {
+            super.writeTo(out, vr);
+            return;
+        }
+
+        MappedByteBuffer buf;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            buf = channel.map(MapMode.READ_ONLY, position, size);
+        } finally {
+            channel.close();
+        }
+        byte[] b = chunk.get();
+        while (buf.hasRemaining()) {
+            int n = Math.min(b.length, buf.remaining());
+            buf.get(b, 0, n);
+            out.write(b, 0, n);
+        }
+    }
+}
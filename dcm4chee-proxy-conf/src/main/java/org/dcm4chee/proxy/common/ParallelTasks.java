@@ -0,0 +1,109 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks in parallel by an executor and the calling thread. The calling
+ * thread runs the first task and then each task no thread of the executor
+ * has started yet, so it never waits for a thread it may itself occupy, e.g.
+ * if the executor has no thread left.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ParallelTasks {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelTasks.class);
+
+    private static final class Task implements Runnable {
+
+        final Runnable runnable;
+        final AtomicBoolean started = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true))
+                return;
+
+            try {
+                runnable.run();
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks and returns when all of them are done.
+     */
+    public static void run(Executor executor, List<? extends Runnable> tasks) throws InterruptedException {
+        if (tasks.isEmpty())
+            return;
+
+        List<Task> others = new ArrayList<Task>(tasks.size() - 1);
+        for (Runnable runnable : tasks.subList(1, tasks.size())) {
+            Task task = new Task(runnable);
+            others.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Failed to start parallel task: {}", e.getMessage());
+            }
+        }
+        tasks.get(0).run();
+        for (Task task : others)
+            task.run();
+        for (Task task : others)
+            task.done.await();
+    }
+}
@@ -0,0 +1,79 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+
+/**
+ * A compiled template with a pool of reusable transformers and the tags of
+ * all attributes referenced by the template.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+class PooledTemplate {
+
+    final Templates compiled;
+    final int[] tags;
+    private final ConcurrentLinkedQueue<Transformer> pool = new ConcurrentLinkedQueue<Transformer>();
+
+    /**
+     * @param tags
+     *            the sorted tags of all attributes referenced by the template,
+     *            <code>null</code> if the template may reference other
+     *            attributes
+     */
+    PooledTemplate(Templates compiled, int[] tags) {
+        this.compiled = compiled;
+        this.tags = tags;
+    }
+
+    Transformer borrow() throws TransformerConfigurationException {
+        Transformer transformer = pool.poll();
+        return transformer != null ? transformer : compiled.newTransformer();
+    }
+
+    void release(Transformer transformer) {
+        transformer.reset();
+        pool.offer(transformer);
+    }
+}
@@ -0,0 +1,189 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Retry state of a spooled file, kept in its file info instead of being
+ * encoded in the file name. Records the number of attempts per error, the
+ * last error, the time the file becomes eligible for the next attempt and
+ * the recent history of failed attempts.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RetryRecord {
+
+    public static final String LAST_ERROR = "retry-last-error";
+    public static final String ATTEMPTS = "retry-attempts";
+    public static final String NEXT_ELIGIBLE_TIME = "retry-next-eligible-time";
+    public static final String HISTORY = "retry-history";
+
+    private static final int MAX_HISTORY = 10;
+
+    private final LinkedHashMap<String, Integer> attempts = new LinkedHashMap<String, Integer>();
+    private final ArrayList<String> history = new ArrayList<String>();
+    private String lastError;
+    private long nextEligibleTime;
+
+    public static RetryRecord valueOf(Properties prop) {
+        RetryRecord record = new RetryRecord();
+        record.lastError = prop.getProperty(LAST_ERROR);
+        if (record.lastError == null)
+            return record;
+
+        String s = prop.getProperty(ATTEMPTS);
+        if (s != null)
+            for (String attempt : s.split(",")) {
+                int eq = attempt.indexOf('=');
+                if (eq > 0)
+                    record.attempts.put(attempt.substring(0, eq), Integer.valueOf(attempt.substring(eq + 1)));
+            }
+        s = prop.getProperty(NEXT_ELIGIBLE_TIME);
+        if (s != null)
+            record.nextEligibleTime = Long.parseLong(s);
+        s = prop.getProperty(HISTORY);
+        if (s != null && !s.isEmpty())
+            Collections.addAll(record.history, s.split(","));
+        return record;
+    }
+
+    /**
+     * Removes the retry state from the file info.
+     * 
+     * @return <code>true</code> if the file info contained a retry state
+     */
+    public static boolean removeFrom(Properties prop) {
+        boolean removed = prop.remove(LAST_ERROR) != null;
+        prop.remove(ATTEMPTS);
+        prop.remove(NEXT_ELIGIBLE_TIME);
+        prop.remove(HISTORY);
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return lastError == null;
+    }
+
+    /**
+     * Returns the retry suffix of the {@link RetryObject} or the hex status
+     * of the response of the last failed attempt.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    public int getAttempts(String error) {
+        Integer count = attempts.get(error);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the number of failed attempts with the last error.
+     */
+    public int getAttempts() {
+        return lastError == null ? 0 : getAttempts(lastError);
+    }
+
+    public long getNextEligibleTime() {
+        return nextEligibleTime;
+    }
+
+    /**
+     * Returns the failed attempts as <code>&lt;time in ms&gt; &lt;error&gt;</code>,
+     * latest last.
+     */
+    public List<String> getHistory() {
+        return Collections.unmodifiableList(history);
+    }
+
+    /**
+     * Sets the number of attempts of an error without adding a history entry,
+     * e.g. when taking over the retries encoded in the file name by previous
+     * versions.
+     */
+    public void setAttempts(String error, int count) {
+        attempts.put(error, count);
+        if (lastError == null)
+            lastError = error;
+    }
+
+    public void failed(String error, long time, long nextEligibleTime) {
+        attempts.put(error, getAttempts(error) + 1);
+        lastError = error;
+        this.nextEligibleTime = nextEligibleTime;
+        history.add(time + " " + error);
+        if (history.size() > MAX_HISTORY)
+            history.remove(0);
+    }
+
+    public void storeTo(Properties prop) {
+        if (lastError == null) {
+            removeFrom(prop);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : attempts.entrySet()) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        prop.setProperty(LAST_ERROR, lastError);
+        prop.setProperty(ATTEMPTS, sb.toString());
+        prop.setProperty(NEXT_ELIGIBLE_TIME, Long.toString(nextEligibleTime));
+        sb.setLength(0);
+        for (String entry : history) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(entry);
+        }
+        prop.setProperty(HISTORY, sb.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "RetryRecord[lastError=" + lastError + ", attempts=" + attempts + ", nextEligibleTime="
+                + nextEligibleTime + "]";
+    }
+}
@@ -0,0 +1,429 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.StringUtils;
+
+/**
+ * Compiled rules for routing and attribute coercion which operate directly
+ * on the dataset, as alternative to XSLT templates for common cases. A rule
+ * set is referenced by <code>rules:&lt;uri&gt;</code> instead of the URI of a
+ * template in a forward rule or attribute coercion. Each line of the file
+ * holds one rule:
+ * 
+ * <pre>
+ * [else] [if &lt;condition&gt; {and &lt;condition&gt;} then] &lt;action&gt;
+ * 
+ * condition: &lt;path&gt; (= | != ) &lt;value&gt;{|&lt;value&gt;}
+ *          | &lt;path&gt; ~ &lt;regex&gt;
+ *          | &lt;path&gt; (&lt; | &gt;) &lt;number&gt;
+ *          | &lt;path&gt; (present | absent)
+ * path:      &lt;attribute&gt;{/&lt;attribute&gt;} | $callingAET | $calledAET
+ * action:    destination &lt;aet&gt;{, &lt;aet&gt;}
+ *          | set &lt;attribute&gt; = [&lt;value&gt;{\&lt;value&gt;}]
+ *          | copy &lt;path&gt; to &lt;attribute&gt;
+ *          | clear &lt;attribute&gt;
+ * </pre>
+ * 
+ * Attributes are given by keyword or by tag as 8 hex digits, a path selects
+ * an attribute in the first item of the preceding sequences. A rule starting
+ * with <code>else</code> only applies if the preceding rule of the chain did
+ * not. Lines starting with <code>#</code> are comments. Conditions and copied
+ * values always refer to the original dataset, coerced attributes are
+ * returned separately like the result of a coercion template.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RuleSet {
+
+    public static final String URI_PREFIX = "rules:";
+
+    private static final Pattern RULE = Pattern.compile("(else\\s+)?(?:if\\s+(.+?)\\s+then\\s+)?(.+)");
+    private static final Pattern AND = Pattern.compile("\\s+and\\s+");
+    private static final Pattern EXISTS = Pattern.compile("(\\$?[\\w/]+)\\s+(present|absent)");
+    private static final Pattern COMPARE = Pattern.compile("(\\$?[\\w/]+)\\s*(!=|=|~|<|>)\\s*(.*)");
+    private static final Pattern DESTINATION = Pattern.compile("destination\\s+(.+)");
+    private static final Pattern SET = Pattern.compile("set\\s+(\\w+)\\s*=\\s*(.*)");
+    private static final Pattern COPY = Pattern.compile("copy\\s+([\\w/]+)\\s+to\\s+(\\w+)");
+    private static final Pattern CLEAR = Pattern.compile("clear\\s+(\\w+)");
+
+    private final Rule[] rules;
+
+    private RuleSet(List<Rule> rules) {
+        this.rules = rules.toArray(new Rule[rules.size()]);
+    }
+
+    public static boolean isRuleSetURI(String uri) {
+        return uri.startsWith(URI_PREFIX);
+    }
+
+    /**
+     * Loads and compiles the rules of <code>systemId</code>, which is the URI
+     * following {@link #URI_PREFIX} with resolved system properties.
+     */
+    public static RuleSet load(String systemId) throws IOException {
+        return compile(systemId, TemplateRouter.read(systemId));
+    }
+
+    public static RuleSet compile(String name, String text) throws IOException {
+        List<Rule> rules = new ArrayList<Rule>();
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            try {
+                rules.add(compileRule(line, !rules.isEmpty()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(name + ":" + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return new RuleSet(rules);
+    }
+
+    /**
+     * Returns the destination AETs of all applying <code>destination</code>
+     * rules.
+     */
+    public List<String> route(Attributes data, String callingAET, String calledAET) {
+        Context ctx = new Context(data, callingAET, calledAET, null);
+        apply(ctx);
+        return Collections.unmodifiableList(ctx.destinations);
+    }
+
+    /**
+     * Adds the attributes set by all applying rules to <code>modify</code>.
+     */
+    public void coerce(Attributes data, String callingAET, String calledAET, Attributes modify) {
+        apply(new Context(data, callingAET, calledAET, modify));
+    }
+
+    private void apply(Context ctx) {
+        boolean applied = false;
+        for (Rule rule : rules) {
+            if (rule.otherwise && applied)
+                continue;
+
+            applied = rule.matches(ctx);
+            if (applied)
+                rule.action.apply(ctx);
+        }
+    }
+
+    private static Rule compileRule(String line, boolean hasPrevious) {
+        Matcher m = RULE.matcher(line);
+        if (!m.matches())
+            throw new IllegalArgumentException("invalid rule: " + line);
+
+        boolean otherwise = m.group(1) != null;
+        if (otherwise && !hasPrevious)
+            throw new IllegalArgumentException("else without preceding rule");
+
+        List<Condition> conditions = new ArrayList<Condition>();
+        if (m.group(2) != null)
+            for (String condition : AND.split(m.group(2)))
+                conditions.add(compileCondition(condition.trim()));
+        return new Rule(otherwise, conditions.toArray(new Condition[conditions.size()]),
+                compileAction(m.group(3).trim()));
+    }
+
+    private static Condition compileCondition(String s) {
+        Matcher m = EXISTS.matcher(s);
+        if (m.matches()) {
+            final Path path = compilePath(m.group(1));
+            final boolean present = m.group(2).equals("present");
+            return new Condition() {
+
+                @Override
+                public boolean matches(Context ctx) {
+                    return (path.values(ctx) != null) == present;
+                }
+            };
+        }
+        m = COMPARE.matcher(s);
+        if (!m.matches())
+            throw new IllegalArgumentException("invalid condition: " + s);
+
+        final Path path = compilePath(m.group(1));
+        String op = m.group(2);
+        String value = m.group(3).trim();
+        if (op.equals("~")) {
+            final Pattern pattern;
+            try {
+                pattern = Pattern.compile(value);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("invalid regular expression: " + value);
+            }
+            return new Condition() {
+
+                @Override
+                public boolean matches(Context ctx) {
+                    String[] values = path.values(ctx);
+                    if (values != null)
+                        for (String v : values)
+                            if (v != null && pattern.matcher(v).matches())
+                                return true;
+                    return false;
+                }
+            };
+        }
+        if (op.equals("<") || op.equals(">")) {
+            final double limit;
+            try {
+                limit = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid number: " + value);
+            }
+            final boolean less = op.equals("<");
+            return new Condition() {
+
+                @Override
+                public boolean matches(Context ctx) {
+                    String[] values = path.values(ctx);
+                    if (values == null || values.length == 0 || values[0] == null)
+                        return false;
+                    try {
+                        double d = Double.parseDouble(values[0].trim());
+                        return less ? d < limit : d > limit;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            };
+        }
+        final String[] expected = StringUtils.split(value, '|');
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = expected[i].trim();
+        final boolean equal = op.equals("=");
+        return new Condition() {
+
+            @Override
+            public boolean matches(Context ctx) {
+                String[] values = path.values(ctx);
+                if (values != null)
+                    for (String v : values)
+                        for (String e : expected)
+                            if (e.equals(v))
+                                return equal;
+                return !equal;
+            }
+        };
+    }
+
+    private static Action compileAction(String s) {
+        Matcher m = DESTINATION.matcher(s);
+        if (m.matches()) {
+            final String[] aets = StringUtils.split(m.group(1), ',');
+            for (int i = 0; i < aets.length; i++)
+                aets[i] = aets[i].trim();
+            return new Action() {
+
+                @Override
+                public void apply(Context ctx) {
+                    for (String aet : aets)
+                        if (!ctx.destinations.contains(aet))
+                            ctx.destinations.add(aet);
+                }
+            };
+        }
+        m = SET.matcher(s);
+        if (m.matches()) {
+            final int tag = toTag(m.group(1));
+            final VR vr = ElementDictionary.vrOf(tag, null);
+            final String[] values = m.group(2).isEmpty() ? null : StringUtils.split(m.group(2), '\\');
+            return new Action() {
+
+                @Override
+                public void apply(Context ctx) {
+                    ctx.set(tag, vr, values);
+                }
+            };
+        }
+        m = COPY.matcher(s);
+        if (m.matches()) {
+            final Path path = compilePath(m.group(1));
+            final int tag = toTag(m.group(2));
+            final VR vr = ElementDictionary.vrOf(tag, null);
+            return new Action() {
+
+                @Override
+                public void apply(Context ctx) {
+                    ctx.set(tag, vr, path.values(ctx));
+                }
+            };
+        }
+        m = CLEAR.matcher(s);
+        if (m.matches()) {
+            final int tag = toTag(m.group(1));
+            final VR vr = ElementDictionary.vrOf(tag, null);
+            return new Action() {
+
+                @Override
+                public void apply(Context ctx) {
+                    ctx.set(tag, vr, null);
+                }
+            };
+        }
+        throw new IllegalArgumentException("invalid action: " + s);
+    }
+
+    private static Path compilePath(String s) {
+        if (s.equals("$callingAET"))
+            return new Path() {
+
+                @Override
+                public String[] values(Context ctx) {
+                    return ctx.callingAET != null ? new String[] { ctx.callingAET } : null;
+                }
+            };
+        if (s.equals("$calledAET"))
+            return new Path() {
+
+                @Override
+                public String[] values(Context ctx) {
+                    return ctx.calledAET != null ? new String[] { ctx.calledAET } : null;
+                }
+            };
+
+        String[] keys = StringUtils.split(s, '/');
+        final int[] tags = new int[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            tags[i] = toTag(keys[i]);
+        final int last = tags.length - 1;
+        return new Path() {
+
+            @Override
+            public String[] values(Context ctx) {
+                Attributes item = ctx.data;
+                for (int i = 0; i < last && item != null; i++)
+                    item = item.getNestedDataset(tags[i]);
+                return item != null ? item.getStrings(tags[last]) : null;
+            }
+        };
+    }
+
+    private static int toTag(String s) {
+        int tag = -1;
+        if (s.length() == 8)
+            try {
+                tag = (int) Long.parseLong(s, 16);
+            } catch (NumberFormatException e) {
+            }
+        if (tag == -1)
+            tag = ElementDictionary.tagForKeyword(s, null);
+        if (tag == -1)
+            throw new IllegalArgumentException("unknown attribute: " + s);
+        return tag;
+    }
+
+    private interface Condition {
+        boolean matches(Context ctx);
+    }
+
+    private interface Action {
+        void apply(Context ctx);
+    }
+
+    private interface Path {
+        String[] values(Context ctx);
+    }
+
+    private static class Rule {
+
+        final boolean otherwise;
+        final Condition[] conditions;
+        final Action action;
+
+        Rule(boolean otherwise, Condition[] conditions, Action action) {
+            this.otherwise = otherwise;
+            this.conditions = conditions;
+            this.action = action;
+        }
+
+        boolean matches(Context ctx) {
+            for (Condition condition : conditions)
+                if (!condition.matches(ctx))
+                    return false;
+            return true;
+        }
+    }
+
+    private static class Context {
+
+        final Attributes data;
+        final String callingAET;
+        final String calledAET;
+        final Attributes modify;
+        final List<String> destinations = new ArrayList<String>(2);
+
+        Context(Attributes data, String callingAET, String calledAET, Attributes modify) {
+            this.data = data;
+            this.callingAET = callingAET;
+            this.calledAET = calledAET;
+            this.modify = modify;
+        }
+
+        void set(int tag, VR vr, String[] values) {
+            if (modify == null)
+                return;
+
+            if (values == null)
+                modify.setNull(tag, vr);
+            else
+                modify.setString(tag, vr, values);
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the meta information of spooled files, replacing the
+ * per-file .info properties. Entries are keyed by the directory of the spool
+ * file relative to the base directory of the journal and the file name up to
+ * the first '.', so renaming a file by its suffix keeps its entry.
+ * 
+ * The journal is replayed into memory on open, discarding a torn record at its
+ * end, and compacted in the background once it contains more obsolete than
+ * live records: a snapshot of the entries is written to a new file, which
+ * replaces the journal after the records appended in the meantime were added.
+ * Along with the entries it keeps track of the number and size of the spooled
+ * files per destination directory.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolJournal.class);
+
+    public static final String JOURNAL_FILE_NAME = "spool.journal";
+
+    private static final int PUT = 1;
+    private static final int REMOVE = 2;
+    private static final int MIN_COMPACT_RECORDS = 1000;
+
+    private static final ThreadPoolExecutor COMPACTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SpoolJournal-compact");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        COMPACTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final File baseDir;
+    private final String basePath;
+    private final File file;
+    private final HashMap<String, String[]> entries = new HashMap<String, String[]>();
+    private final HashMap<String, Long> sizes = new HashMap<String, Long>();
+    private final HashMap<String, Counter> counters = new HashMap<String, Counter>();
+    private final Counter total = new Counter();
+    private final Executor compactor;
+    private int obsoleteRecords;
+    private FileOutputStream out;
+    // records appended while a compaction is in progress, otherwise null
+    private ByteArrayOutputStream tail;
+    private boolean closed;
+
+    /**
+     * Number and size in bytes of spooled files.
+     */
+    public static final class Usage {
+        public final long objects;
+        public final long bytes;
+
+        Usage(long objects, long bytes) {
+            this.objects = objects;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return objects + " objects, " + bytes + " bytes";
+        }
+    }
+
+    private static final class Counter {
+        long objects;
+        long bytes;
+    }
+
+    public SpoolJournal(File baseDir) throws IOException {
+        this(baseDir, COMPACTOR);
+    }
+
+    SpoolJournal(File baseDir, Executor compactor) throws IOException {
+        this.baseDir = baseDir;
+        this.compactor = compactor;
+        this.basePath = baseDir.getAbsolutePath() + File.separatorChar;
+        this.file = new File(baseDir, JOURNAL_FILE_NAME);
+        replay();
+        initUsage();
+        out = new FileOutputStream(file, true);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public File getBaseDirectory() {
+        return baseDir;
+    }
+
+    public boolean covers(File spoolFile) {
+        return spoolFile.getAbsolutePath().startsWith(basePath);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the usage of the spool directory of the destination, or of the
+     * whole spool if <code>destination</code> is <code>null</code>. Files
+     * sharing their data by hard links are counted for each destination.
+     */
+    public synchronized Usage getUsage(String destination) {
+        Counter counter = destination == null ? total : counters.get(destination);
+        return counter == null ? new Usage(0, 0) : new Usage(counter.objects, counter.bytes);
+    }
+
+    public synchronized boolean contains(File spoolFile) {
+        return entries.containsKey(keyOf(spoolFile));
+    }
+
+    public synchronized Properties get(File spoolFile) {
+        String[] values = entries.get(keyOf(spoolFile));
+        if (values == null)
+            return null;
+
+        Properties prop = new Properties();
+        for (int i = 0; i < values.length; i += 2)
+            prop.setProperty(values[i], values[i + 1]);
+        return prop;
+    }
+
+    public synchronized void put(File spoolFile, Properties prop) throws IOException {
+        put(spoolFile, prop, spoolFile.length());
+    }
+
+    /**
+     * Puts the entry of a spool file of <code>size</code> bytes, e.g. if the
+     * data is renamed to <code>spoolFile</code> afterwards.
+     */
+    public synchronized void put(File spoolFile, Properties prop, long size) throws IOException {
+        String key = keyOf(spoolFile);
+        String[] values = new String[prop.size() * 2];
+        int i = 0;
+        for (Entry<Object, Object> entry : prop.entrySet()) {
+            values[i++] = (String) entry.getKey();
+            values[i++] = (String) entry.getValue();
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DataOutputStream dout = new DataOutputStream(bout);
+        writePut(dout, key, values);
+        dout.flush();
+        append(bout.toByteArray());
+        if (entries.put(key, values) != null)
+            obsoleteRecords++;
+        account(key, size);
+    }
+
+    public synchronized boolean remove(File spoolFile) throws IOException {
+        String key = keyOf(spoolFile);
+        if (entries.remove(key) == null)
+            return false;
+
+        account(key, -1L);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+        DataOutputStream dout = new DataOutputStream(bout);
+        dout.writeByte(REMOVE);
+        dout.writeUTF(key);
+        dout.flush();
+        append(bout.toByteArray());
+        obsoleteRecords += 2;
+        if (tail == null && obsoleteRecords > MIN_COMPACT_RECORDS && obsoleteRecords > entries.size())
+            startCompaction();
+        return true;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Waits until a compaction in progress has completed.
+     */
+    synchronized void awaitCompaction() throws InterruptedException {
+        while (tail != null)
+            wait();
+    }
+
+    private void append(byte[] record) throws IOException {
+        out.write(record);
+        if (tail != null)
+            tail.write(record);
+    }
+
+    private String keyOf(File spoolFile) {
+        String path = spoolFile.getAbsolutePath();
+        if (!path.startsWith(basePath))
+            throw new IllegalArgumentException(spoolFile + " is not located in " + baseDir);
+        int nameStart = path.lastIndexOf(File.separatorChar) + 1;
+        int dot = path.indexOf('.', nameStart);
+        return (dot < 0 ? path.substring(basePath.length()) : path.substring(basePath.length(), dot)).replace(
+                File.separatorChar, '/');
+    }
+
+    /*
+     * Sets the size of the file of the entry, -1 if the entry was removed.
+     */
+    private void account(String key, long size) {
+        Long prev = size < 0 ? sizes.remove(key) : sizes.put(key, size);
+        if (prev == null && size < 0)
+            return;
+
+        int slash = key.indexOf('/');
+        String destination = slash < 0 ? null : key.substring(0, slash);
+        Counter counter = null;
+        if (destination != null) {
+            counter = counters.get(destination);
+            if (counter == null) {
+                counter = new Counter();
+                counters.put(destination, counter);
+            }
+        }
+        long objects = prev == null ? 1 : size < 0 ? -1 : 0;
+        long bytes = Math.max(size, 0) - (prev == null ? 0 : prev);
+        total.objects += objects;
+        total.bytes += bytes;
+        if (counter != null) {
+            counter.objects += objects;
+            counter.bytes += bytes;
+            if (counter.objects == 0)
+                counters.remove(destination);
+        }
+    }
+
+    /*
+     * Determines the sizes of the files of the replayed entries, listing each
+     * spool directory once.
+     */
+    private void initUsage() {
+        HashMap<String, HashMap<String, Long>> dirs = new HashMap<String, HashMap<String, Long>>();
+        for (String key : entries.keySet()) {
+            int slash = key.lastIndexOf('/');
+            String dir = slash < 0 ? "" : key.substring(0, slash);
+            HashMap<String, Long> lengths = dirs.get(dir);
+            if (lengths == null) {
+                lengths = new HashMap<String, Long>();
+                File[] files = new File(baseDir, dir).listFiles();
+                if (files != null)
+                    for (File f : files) {
+                        String name = f.getName();
+                        int dot = name.indexOf('.');
+                        String baseName = dot < 0 ? name : name.substring(0, dot);
+                        Long length = lengths.get(baseName);
+                        if (f.isFile() && (length == null || length < f.length()))
+                            lengths.put(baseName, f.length());
+                    }
+                dirs.put(dir, lengths);
+            }
+            Long length = lengths.get(key.substring(slash + 1));
+            account(key, length != null ? length : 0L);
+        }
+        if (!entries.isEmpty())
+            LOG.info("Spool usage of {}: {}", baseDir, getUsage(null));
+    }
+
+    private static void writePut(DataOutputStream dout, String key, String[] values) throws IOException {
+        dout.writeByte(PUT);
+        dout.writeUTF(key);
+        dout.writeShort(values.length / 2);
+        for (String value : values)
+            dout.writeUTF(value);
+    }
+
+    private void replay() throws IOException {
+        if (!file.exists())
+            return;
+
+        CountingInputStream cin = new CountingInputStream(new FileInputStream(file));
+        DataInputStream din = new DataInputStream(cin);
+        long validLength = 0;
+        int records = 0;
+        try {
+            int op;
+            while ((op = din.read()) != -1) {
+                String key = din.readUTF();
+                switch (op) {
+                case PUT:
+                    String[] values = new String[din.readUnsignedShort() * 2];
+                    for (int i = 0; i < values.length; i++)
+                        values[i] = din.readUTF();
+                    entries.put(key, values);
+                    break;
+                case REMOVE:
+                    entries.remove(key);
+                    break;
+                default:
+                    throw new StreamCorruptedException("Invalid record type " + op);
+                }
+                records++;
+                validLength = cin.count;
+            }
+        } catch (EOFException | UTFDataFormatException | StreamCorruptedException e) {
+            // a record torn by a crash while it was appended
+            LOG.warn("Discard {} bytes of incomplete record at end of {}: {}", new Object[] {
+                    file.length() - validLength, file, e.toString() });
+        } finally {
+            din.close();
+        }
+        obsoleteRecords = records - entries.size();
+        if (validLength < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        LOG.info("Loaded {} entries from {}", entries.size(), file);
+    }
+
+    private void startCompaction() {
+        final HashMap<String, String[]> snapshot = new HashMap<String, String[]>(entries);
+        final int obsolete = obsoleteRecords;
+        tail = new ByteArrayOutputStream();
+        obsoleteRecords = 0;
+        compactor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    compact(snapshot, obsolete);
+                } catch (IOException e) {
+                    LOG.error("Failed to compact {}: {}", file, e.getMessage());
+                    if (LOG.isDebugEnabled())
+                        e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /*
+     * Writes the snapshot to a new file without holding the lock of the
+     * journal, then appends the records written meanwhile and replaces the
+     * journal by the new file.
+     */
+    private void compact(HashMap<String, String[]> snapshot, int obsolete) throws IOException {
+        File tmp = new File(baseDir, JOURNAL_FILE_NAME + ".tmp");
+        boolean compacted = false;
+        try {
+            FileOutputStream fout = new FileOutputStream(tmp);
+            try {
+                DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(fout));
+                for (Entry<String, String[]> entry : snapshot.entrySet())
+                    writePut(dout, entry.getKey(), entry.getValue());
+                dout.flush();
+            } finally {
+                fout.close();
+            }
+            synchronized (this) {
+                if (closed)
+                    return;
+
+                fout = new FileOutputStream(tmp, true);
+                try {
+                    tail.writeTo(fout);
+                    fout.getFD().sync();
+                } finally {
+                    fout.close();
+                }
+                out.close();
+                try {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    compacted = true;
+                } finally {
+                    out = new FileOutputStream(file, true);
+                }
+                LOG.debug("Compacted {} to {} entries", file, entries.size());
+            }
+        } finally {
+            synchronized (this) {
+                if (!compacted)
+                    obsoleteRecords += obsolete;
+                tail = null;
+                notifyAll();
+            }
+            tmp.delete();
+        }
+    }
+
+    private static final class CountingInputStream extends BufferedInputStream {
+
+        long count;
+
+        CountingInputStream(FileInputStream in) {
+            super(in, 8192);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count++;
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Layout of the C-STORE spool directory. The files of a destination are
+ * spread over two levels of subdirectories named by the hash of the file name
+ * up to its first dot, e.g. <code>cstore/&lt;calledAET&gt;/3f/a0/dcm123.dcm</code>,
+ * so all files sharing the base name are located in the same directory.
+ * Files directly in the destination directory were spooled by previous
+ * versions with a flat layout.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolLayout {
+
+    public static final int LEVELS = 2;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Returns the subdirectory of the destination directory for the file name.
+     */
+    public static File getShardDirectory(File destinationDir, String fileName) {
+        int dot = fileName.indexOf('.');
+        int h = (dot < 0 ? fileName : fileName.substring(0, dot)).hashCode();
+        h ^= h >>> 16;
+        return new File(new File(destinationDir, toHex(h >>> 8)), toHex(h));
+    }
+
+    private static String toHex(int b) {
+        return new String(new char[] { HEX[(b >>> 4) & 0xf], HEX[b & 0xf] });
+    }
+
+    /**
+     * Returns the destination directory of a file of the C-STORE spool
+     * directory, or <code>null</code> if the file is not located in a
+     * destination directory or one of its subdirectories.
+     */
+    public static File getDestinationDirectory(File cstoreDir, File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File parent = dir != null ? dir.getParentFile() : null;
+        if (parent == null)
+            return null;
+
+        File baseDir = cstoreDir.getAbsoluteFile();
+        if (baseDir.equals(parent))
+            return dir;
+
+        for (int i = 1; i < LEVELS; i++)
+            if ((parent = parent.getParentFile()) == null)
+                return null;
+
+        File destinationDir = parent;
+        return baseDir.equals(destinationDir.getParentFile()) ? destinationDir : null;
+    }
+
+    /**
+     * Returns <code>true</code> if the directory is one of the hash
+     * subdirectories of a destination directory.
+     */
+    public static boolean isShardDirectory(File cstoreDir, File dir) {
+        File baseDir = cstoreDir.getAbsoluteFile();
+        File parent = dir.getAbsoluteFile().getParentFile();
+        for (int i = 0; i < LEVELS && parent != null; i++) {
+            parent = parent.getParentFile();
+            if (baseDir.equals(parent))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the files of the destination directory and of its subdirectories
+     * to the list.
+     */
+    public static void listFiles(File destinationDir, List<File> files) {
+        listFiles(destinationDir, LEVELS, files);
+    }
+
+    private static void listFiles(File dir, int levels, List<File> files) {
+        File[] list = dir.listFiles();
+        if (list == null)
+            return;
+
+        for (File file : list)
+            if (!file.isDirectory())
+                files.add(file);
+            else if (levels > 0)
+                listFiles(file, levels - 1, files);
+    }
+
+}
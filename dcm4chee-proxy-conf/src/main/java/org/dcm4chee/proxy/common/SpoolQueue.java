@@ -0,0 +1,341 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the spooled files waiting to be forwarded. Files are
+ * queued per destination, ordered by the time they become eligible for
+ * (re-)sending, so the files which are ready can be taken without listing the
+ * spool directories. Ready files are taken in the order of their priority.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolQueue {
+
+    /**
+     * Notified whenever a file was added to the queue of a destination.
+     */
+    public interface Listener {
+        void queued(String destination, long eligibleTime);
+    }
+
+    /**
+     * Priority of a queued file, corresponding to the DICOM priorities HIGH,
+     * MEDIUM and LOW.
+     */
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_MEDIUM = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    private static final class Entry implements Comparable<Entry> {
+        final String destination;
+        final File file;
+        final long eligibleTime;
+        final long queuedTime;
+        final int priority;
+        final long seq;
+
+        Entry(String destination, File file, long eligibleTime, int priority, long seq) {
+            this.destination = destination;
+            this.file = file;
+            this.eligibleTime = eligibleTime;
+            this.queuedTime = Math.max(eligibleTime, System.currentTimeMillis());
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        /**
+         * Returns the priority raised by one level for each
+         * <code>agingTime</code> the file is waiting since it became
+         * eligible.
+         */
+        int priorityAt(long now, long agingTime) {
+            if (agingTime <= 0 || now <= queuedTime)
+                return priority;
+
+            return (int) Math.max(PRIORITY_HIGH, priority - (now - queuedTime) / agingTime);
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (eligibleTime != o.eligibleTime)
+                return eligibleTime < o.eligibleTime ? -1 : 1;
+            return seq < o.seq ? -1 : seq == o.seq ? 0 : 1;
+        }
+    }
+
+    /**
+     * Queue of one destination with the entries of each priority ordered by
+     * the time they become eligible.
+     */
+    private static final class DestinationQueue {
+        @SuppressWarnings("unchecked")
+        final TreeSet<Entry>[] levels = new TreeSet[PRIORITY_LOW + 1];
+        int size;
+
+        DestinationQueue() {
+            for (int i = 0; i < levels.length; i++)
+                levels[i] = new TreeSet<Entry>();
+        }
+
+        void add(Entry entry) {
+            if (levels[entry.priority].add(entry))
+                size++;
+        }
+
+        void remove(Entry entry) {
+            if (levels[entry.priority].remove(entry))
+                size--;
+        }
+
+        long getNextEligibleTime() {
+            long next = -1;
+            for (TreeSet<Entry> level : levels)
+                if (!level.isEmpty() && (next == -1 || level.first().eligibleTime < next))
+                    next = level.first().eligibleTime;
+            return next;
+        }
+
+        Entry nextReady(long now, long agingTime) {
+            Entry next = null;
+            int nextPriority = 0;
+            for (TreeSet<Entry> level : levels) {
+                if (level.isEmpty())
+                    continue;
+
+                Entry entry = level.first();
+                if (entry.eligibleTime >= now)
+                    continue;
+
+                int priority = entry.priorityAt(now, agingTime);
+                if (next == null || priority < nextPriority || priority == nextPriority
+                        && entry.queuedTime < next.queuedTime) {
+                    next = entry;
+                    nextPriority = priority;
+                }
+            }
+            return next;
+        }
+    }
+
+    private final HashMap<String, DestinationQueue> queues = new HashMap<String, DestinationQueue>();
+    private final HashMap<File, Entry> entries = new HashMap<File, Entry>();
+    private final HashSet<String> recovering = new HashSet<String>();
+    private long seq;
+    private boolean loaded;
+    private volatile Listener listener;
+
+    public Listener getListener() {
+        return listener;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a file with {@link #PRIORITY_MEDIUM} to the queue of the
+     * destination, replacing a previous entry of the same file.
+     */
+    public void add(String destination, File file, long eligibleTime) {
+        add(destination, file, eligibleTime, PRIORITY_MEDIUM);
+    }
+
+    /**
+     * Adds a file to the queue of the destination, replacing a previous entry
+     * of the same file.
+     */
+    public void add(String destination, File file, long eligibleTime, int priority) {
+        if (priority < PRIORITY_HIGH || priority > PRIORITY_LOW)
+            throw new IllegalArgumentException("priority: " + priority);
+
+        synchronized (this) {
+            remove(file);
+            Entry entry = new Entry(destination, file, eligibleTime, priority, seq++);
+            DestinationQueue queue = queues.get(destination);
+            if (queue == null) {
+                queue = new DestinationQueue();
+                queues.put(destination, queue);
+            }
+            queue.add(entry);
+            entries.put(file, entry);
+        }
+        Listener l = listener;
+        if (l != null)
+            l.queued(destination, eligibleTime);
+    }
+
+    public synchronized boolean remove(File file) {
+        Entry entry = entries.remove(file);
+        if (entry == null)
+            return false;
+
+        DestinationQueue queue = queues.get(entry.destination);
+        queue.remove(entry);
+        if (queue.size == 0)
+            queues.remove(entry.destination);
+        return true;
+    }
+
+    /**
+     * Removes and returns the files of the destination which became eligible
+     * before <code>now</code>, in the order of their priority.
+     */
+    public List<File> pollReady(String destination, long now) {
+        return pollReady(destination, now, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes and returns up to <code>maxFiles</code> files of the
+     * destination which became eligible before <code>now</code>, in the order
+     * of their priority. A file waiting for <code>agingTime</code> ms is
+     * treated as a file of the next higher priority, so files of low priority
+     * are not postponed forever; 0 disables aging.
+     */
+    public synchronized List<File> pollReady(String destination, long now, long agingTime, int maxFiles) {
+        DestinationQueue queue = queues.get(destination);
+        if (queue == null || recovering.contains(destination))
+            return new ArrayList<File>(0);
+
+        List<File> files = new ArrayList<File>();
+        Entry entry;
+        while (files.size() < maxFiles && (entry = queue.nextReady(now, agingTime)) != null) {
+            queue.remove(entry);
+            entries.remove(entry.file);
+            files.add(entry.file);
+        }
+        if (queue.size == 0)
+            queues.remove(destination);
+        return files;
+    }
+
+    /**
+     * Returns the time the next file of the destination becomes eligible or
+     * -1 if there is no file queued for the destination.
+     */
+    public synchronized long getNextEligibleTime(String destination) {
+        DestinationQueue queue = queues.get(destination);
+        return queue == null ? -1 : queue.getNextEligibleTime();
+    }
+
+    /**
+     * Notifies the listener about each destination with files which became
+     * eligible before <code>now</code>.
+     */
+    public void notifyReady(long now) {
+        Listener l = listener;
+        if (l == null)
+            return;
+
+        for (String destination : getDestinations()) {
+            long eligibleTime = getNextEligibleTime(destination);
+            if (eligibleTime != -1 && eligibleTime < now)
+                l.queued(destination, eligibleTime);
+        }
+    }
+
+    public synchronized Set<String> getDestinations() {
+        return new TreeSet<String>(queues.keySet());
+    }
+
+    public synchronized boolean contains(File file) {
+        return entries.containsKey(file);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int size(String destination) {
+        DestinationQueue queue = queues.get(destination);
+        return queue == null ? 0 : queue.size;
+    }
+
+    public synchronized void clear() {
+        queues.clear();
+        entries.clear();
+        recovering.clear();
+        loaded = false;
+    }
+
+    /**
+     * Marks the spool directories of the destinations as being recovered. The
+     * queue counts as loaded, files of the destinations are added while their
+     * directories are recovered but not polled before {@link #recovered}.
+     */
+    public synchronized void setRecovering(Collection<String> destinations) {
+        recovering.clear();
+        recovering.addAll(destinations);
+        loaded = true;
+    }
+
+    public synchronized void recovered(String destination) {
+        recovering.remove(destination);
+    }
+
+    /**
+     * Returns <code>true</code> while the spool directory of any destination
+     * is being recovered.
+     */
+    public synchronized boolean isRecovering() {
+        return !recovering.isEmpty();
+    }
+
+    /**
+     * Returns <code>true</code> once the queue was populated from the spool
+     * directory.
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized void setLoaded(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+}
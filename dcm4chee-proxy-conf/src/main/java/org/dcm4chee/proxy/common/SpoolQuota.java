@@ -0,0 +1,105 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.HashSet;
+
+import org.dcm4chee.proxy.common.SpoolJournal.Usage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides if the spool usage of an AE or of one of its destinations exceeds
+ * the configured quota. A quota is exceeded when the usage reaches the high
+ * watermark, and remains exceeded until the usage dropped to the low
+ * watermark again.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolQuota {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolQuota.class);
+
+    private static final long MB = 1024L * 1024L;
+
+    private final String aet;
+    private final HashSet<String> exceeded = new HashSet<String>();
+
+    public SpoolQuota(String aet) {
+        this.aet = aet;
+    }
+
+    /**
+     * @param destination
+     *            destination AET, or <code>null</code> for the whole spool of
+     *            the AE
+     * @param highWatermark
+     *            in MB, 0 for no limit
+     * @param lowWatermark
+     *            in MB, 0 for the high watermark
+     * @param highWatermarkObjects
+     *            0 for no limit
+     * @param lowWatermarkObjects
+     *            0 for the high watermark
+     */
+    public synchronized boolean isExceeded(String destination, Usage usage, int highWatermark, int lowWatermark,
+            int highWatermarkObjects, int lowWatermarkObjects) {
+        String scope = destination == null ? aet : aet + " -> " + destination;
+        if (highWatermark > 0 && usage.bytes >= highWatermark * MB || highWatermarkObjects > 0
+                && usage.objects >= highWatermarkObjects) {
+            if (exceeded.add(scope))
+                LOG.warn("{}: spool usage {} reached high watermark, refuse new data", scope, usage);
+            return true;
+        }
+        if (!exceeded.contains(scope))
+            return false;
+
+        if ((highWatermark <= 0 || usage.bytes <= orHigh(lowWatermark, highWatermark) * MB)
+                && (highWatermarkObjects <= 0 || usage.objects <= orHigh(lowWatermarkObjects, highWatermarkObjects))) {
+            exceeded.remove(scope);
+            LOG.info("{}: spool usage {} dropped to low watermark, accept new data", scope, usage);
+            return false;
+        }
+        return true;
+    }
+
+    private static long orHigh(int low, int high) {
+        return low > 0 && low < high ? low : high;
+    }
+}
@@ -0,0 +1,179 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.ContentHandlerAdapter;
+import org.dcm4chee.proxy.common.TemplateRouter.DatasetReader;
+import org.dcm4chee.proxy.common.TemplateRouter.RouteKey;
+import org.xml.sax.InputSource;
+
+/**
+ * Evaluates attribute coercion templates which return the attributes to be
+ * merged into the dataset. Transformers are pooled per template. If a
+ * template declares the attributes it reads, as described for
+ * {@link TemplateRouter}, only these attributes are passed to the template and
+ * the result is cached per template and values of these attributes. Otherwise
+ * the whole dataset is passed and nothing is cached.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class TemplateCoercer {
+
+    private static final int MAX_RESULTS = 10000;
+
+    private final ConcurrentHashMap<String, PooledTemplate> templates = new ConcurrentHashMap<String, PooledTemplate>();
+
+    private final LinkedHashMap<RouteKey, Attributes> results = new LinkedHashMap<RouteKey, Attributes>(16, 0.75f,
+            true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RouteKey, Attributes> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Returns the attributes to be merged into <code>data</code>. The returned
+     * attributes may be shared with other callers and must not be modified.
+     * 
+     * @param systemId
+     *            the URI of the template with resolved system properties
+     * @param compiled
+     *            the compiled template
+     */
+    public Attributes coerce(String systemId, Templates compiled, Attributes data) throws TransformerException,
+            IOException {
+        PooledTemplate template = getTemplate(systemId, compiled);
+        RouteKey key = null;
+        if (template.tags != null) {
+            data = new Attributes(data, template.tags);
+            key = new RouteKey(systemId, null, null, TemplateRouter.encode(data));
+            synchronized (results) {
+                Attributes result = results.get(key);
+                if (result != null) {
+                    hits++;
+                    return result;
+                }
+                misses++;
+            }
+        }
+        Attributes result = transform(template, data);
+        if (key != null)
+            synchronized (results) {
+                results.put(key, result);
+            }
+        return result;
+    }
+
+    /**
+     * Merges the coerced attributes into <code>attrs</code> if
+     * <code>inPlace</code> is <code>true</code>, otherwise into a copy of
+     * <code>attrs</code>. <code>modify</code> is not changed, so it may be a
+     * cached result.
+     * 
+     * @return <code>attrs</code> if <code>modify</code> is empty or
+     *         <code>inPlace</code> is <code>true</code>, otherwise the coerced
+     *         copy
+     */
+    public static Attributes merge(Attributes attrs, Attributes modify, boolean inPlace) {
+        if (modify.isEmpty())
+            return attrs;
+
+        Attributes result = inPlace ? attrs : new Attributes(attrs);
+        result.addAll(modify);
+        return result;
+    }
+
+    public void clear() {
+        templates.clear();
+        synchronized (results) {
+            results.clear();
+        }
+    }
+
+    public long getHits() {
+        synchronized (results) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (results) {
+            return misses;
+        }
+    }
+
+    private PooledTemplate getTemplate(String systemId, Templates compiled) {
+        PooledTemplate template = templates.get(systemId);
+        if (template == null || template.compiled != compiled) {
+            template = new PooledTemplate(compiled, TemplateRouter.cacheTags(systemId));
+            templates.put(systemId, template);
+        }
+        return template;
+    }
+
+    private static Attributes transform(PooledTemplate template, Attributes data) throws TransformerException {
+        Transformer transformer = template.borrow();
+        Attributes result = new Attributes();
+        try {
+            transformer.transform(new SAXSource(new DatasetReader(data, false), new InputSource()), new SAXResult(
+                    new ContentHandlerAdapter(result)));
+        } finally {
+            template.release(transformer);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,403 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.io.SAXWriter;
+import org.dcm4che3.util.SafeClose;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Evaluates forward rule templates which return the destination AETs as
+ * <code>&lt;Destination aet="..."/&gt;</code> elements. Transformers are
+ * pooled per template. A template may declare the attributes it reads by a
+ * processing instruction
+ * <code>&lt;?dcm4chee-proxy cache-attributes="Modality 00180050"?&gt;</code>
+ * listing keywords or tags. Then only these attributes are passed to the
+ * template and the destinations are cached per template, Calling AET, Called
+ * AET and values of these attributes. Otherwise the whole dataset is passed
+ * and nothing is cached.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class TemplateRouter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateRouter.class);
+
+    public static final String XSL_PARAMETER_CALLINGAET = "callingAET";
+    public static final String XSL_PARAMETER_CALLEDAET = "calledAET";
+
+    private static final int MAX_ROUTES = 10000;
+
+    private static final Pattern CACHE_ATTRIBUTES = Pattern
+            .compile("<\\?dcm4chee-proxy\\s+cache-attributes\\s*=\\s*(['\"])([^'\"]*)\\1\\s*\\?>");
+    private static final Pattern TAG = Pattern.compile("[0-9A-Fa-f]{8}");
+
+    private final ConcurrentHashMap<String, PooledTemplate> templates = new ConcurrentHashMap<String, PooledTemplate>();
+
+    private final LinkedHashMap<RouteKey, List<String>> routes = new LinkedHashMap<RouteKey, List<String>>(16,
+            0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RouteKey, List<String>> eldest) {
+            return size() > MAX_ROUTES;
+        }
+    };
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Returns the destination AETs of <code>data</code>.
+     * 
+     * @param systemId
+     *            the URI of the template with resolved system properties
+     * @param compiled
+     *            the compiled template
+     */
+    public List<String> route(String systemId, Templates compiled, Attributes data, String callingAET,
+            String calledAET) throws TransformerException, IOException {
+        PooledTemplate template = getTemplate(systemId, compiled);
+        RouteKey key = null;
+        if (template.tags != null) {
+            data = new Attributes(data, template.tags);
+            key = new RouteKey(systemId, callingAET, calledAET, encode(data));
+            synchronized (routes) {
+                List<String> result = routes.get(key);
+                if (result != null) {
+                    hits++;
+                    return result;
+                }
+                misses++;
+            }
+        }
+        List<String> result = transform(template, data, callingAET, calledAET);
+        if (key != null && !result.isEmpty())
+            synchronized (routes) {
+                routes.put(key, result);
+            }
+        return result;
+    }
+
+    public void clear() {
+        templates.clear();
+        synchronized (routes) {
+            routes.clear();
+        }
+    }
+
+    public long getHits() {
+        synchronized (routes) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (routes) {
+            return misses;
+        }
+    }
+
+    private PooledTemplate getTemplate(String systemId, Templates compiled) {
+        PooledTemplate template = templates.get(systemId);
+        if (template == null || template.compiled != compiled) {
+            template = new PooledTemplate(compiled, cacheTags(systemId));
+            templates.put(systemId, template);
+        }
+        return template;
+    }
+
+    /**
+     * Returns the sorted tags of the attributes declared by the
+     * <code>cache-attributes</code> processing instruction of the template,
+     * <code>null</code> if the template does not declare its attributes.
+     */
+    static int[] cacheTags(String systemId) {
+        String xsl;
+        try {
+            xsl = read(systemId);
+        } catch (IOException e) {
+            LOG.warn("Failed to read template {} ({}), pass all attributes", systemId, e.getMessage());
+            return null;
+        }
+        Matcher m = CACHE_ATTRIBUTES.matcher(xsl);
+        if (!m.find())
+            return null;
+
+        TreeSet<Integer> tags = new TreeSet<Integer>();
+        for (String attr : m.group(2).trim().split("\\s+")) {
+            if (attr.isEmpty())
+                continue;
+
+            int tag = TAG.matcher(attr).matches()
+                    ? (int) Long.parseLong(attr, 16)
+                    : ElementDictionary.tagForKeyword(attr, null);
+            if (tag == -1) {
+                LOG.warn("Template {} declares unknown attribute {}, pass all attributes", systemId, attr);
+                return null;
+            }
+            tags.add(tag);
+        }
+        int[] result = new int[tags.size()];
+        int i = 0;
+        for (Integer tag : tags)
+            result[i++] = tag;
+        LOG.debug("Cache results of template {} by {} attributes", systemId, result.length);
+        return result;
+    }
+
+    static String read(String systemId) throws IOException {
+        InputStream in;
+        try {
+            in = new URL(systemId).openStream();
+        } catch (MalformedURLException e) {
+            in = new FileInputStream(systemId);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) > 0)
+                out.write(buf, 0, read);
+            return out.toString("UTF-8");
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    static byte[] encode(Attributes attrs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DicomOutputStream dout = new DicomOutputStream(out, UID.ExplicitVRLittleEndian);
+        try {
+            dout.writeDataset(null, attrs);
+        } finally {
+            dout.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> transform(PooledTemplate template, Attributes data, String callingAET,
+            String calledAET) throws TransformerException {
+        Transformer transformer = template.borrow();
+        final List<String> result = new ArrayList<String>();
+        try {
+            if (callingAET != null)
+                transformer.setParameter(XSL_PARAMETER_CALLINGAET, callingAET);
+            if (calledAET != null)
+                transformer.setParameter(XSL_PARAMETER_CALLEDAET, calledAET);
+            transformer.transform(new SAXSource(new DatasetReader(data, true), new InputSource()), new SAXResult(
+                    new DefaultHandler() {
+
+                        @Override
+                        public void startElement(String uri, String localName, String qName,
+                                org.xml.sax.Attributes attributes) throws SAXException {
+                            if (qName.equals("Destination"))
+                                result.add(attributes.getValue("aet"));
+                        }
+                    }));
+        } finally {
+            template.release(transformer);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    static class RouteKey {
+
+        final String systemId;
+        final String callingAET;
+        final String calledAET;
+        final byte[] attrs;
+        final int hash;
+
+        RouteKey(String systemId, String callingAET, String calledAET, byte[] attrs) {
+            this.systemId = systemId;
+            this.callingAET = callingAET;
+            this.calledAET = calledAET;
+            this.attrs = attrs;
+            this.hash = Arrays.hashCode(new Object[] { systemId, callingAET, calledAET })
+                    * 31 + Arrays.hashCode(attrs);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RouteKey))
+                return false;
+
+            RouteKey other = (RouteKey) obj;
+            return hash == other.hash && systemId.equals(other.systemId)
+                    && equals(callingAET, other.callingAET) && equals(calledAET, other.calledAET)
+                    && Arrays.equals(attrs, other.attrs);
+        }
+
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+    }
+
+    /**
+     * Passes a dataset as SAX events of the Native DICOM Model to a
+     * {@link Transformer}.
+     */
+    static class DatasetReader implements XMLReader {
+
+        private final Attributes data;
+        private final boolean includeKeyword;
+        private ContentHandler contentHandler;
+        private DTDHandler dtdHandler;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+
+        DatasetReader(Attributes data, boolean includeKeyword) {
+            this.data = data;
+            this.includeKeyword = includeKeyword;
+        }
+
+        @Override
+        public boolean getFeature(String name) {
+            return false;
+        }
+
+        @Override
+        public void setFeature(String name, boolean value) {
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return null;
+        }
+
+        @Override
+        public void setProperty(String name, Object value) {
+        }
+
+        @Override
+        public void setEntityResolver(EntityResolver resolver) {
+            this.entityResolver = resolver;
+        }
+
+        @Override
+        public EntityResolver getEntityResolver() {
+            return entityResolver;
+        }
+
+        @Override
+        public void setDTDHandler(DTDHandler handler) {
+            this.dtdHandler = handler;
+        }
+
+        @Override
+        public DTDHandler getDTDHandler() {
+            return dtdHandler;
+        }
+
+        @Override
+        public void setContentHandler(ContentHandler handler) {
+            this.contentHandler = handler;
+        }
+
+        @Override
+        public ContentHandler getContentHandler() {
+            return contentHandler;
+        }
+
+        @Override
+        public void setErrorHandler(ErrorHandler handler) {
+            this.errorHandler = handler;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+
+        @Override
+        public void parse(InputSource input) throws SAXException {
+            SAXWriter w = new SAXWriter(contentHandler);
+            w.setIncludeKeyword(includeKeyword);
+            w.write(data);
+        }
+
+        @Override
+        public void parse(String systemId) throws SAXException {
+            parse(new InputSource(systemId));
+        }
+    }
+}
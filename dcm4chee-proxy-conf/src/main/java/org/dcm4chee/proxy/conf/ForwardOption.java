@@ -48,9 +48,16 @@ public class ForwardOption implements Serializable {
 
     private static final long serialVersionUID = 3546841067921034079L;
 
+    public static final int DEFAULT_MAX_PARALLEL_ASSOCIATIONS = 1;
+
     private Schedule schedule;
     private String description;
     private boolean convertEmf2Sf;
+    private int maxParallelAssociations = DEFAULT_MAX_PARALLEL_ASSOCIATIONS;
+    private int spoolHighWatermark;
+    private int spoolLowWatermark;
+    private int spoolHighWatermarkObjects;
+    private int spoolLowWatermarkObjects;
 
     public Schedule getSchedule() {
         return schedule;
@@ -70,5 +77,57 @@ public class ForwardOption implements Serializable {
     public void setConvertEmf2Sf(boolean convertEmf2Sf) {
         this.convertEmf2Sf = convertEmf2Sf;
     }
+    public int getMaxParallelAssociations() {
+        return maxParallelAssociations;
+    }
+    /**
+     * Number of associations used concurrently to send scheduled C-STORE data
+     * to the destination. Data is split between them by study.
+     */
+    public void setMaxParallelAssociations(int maxParallelAssociations) {
+        if (maxParallelAssociations < 1)
+            throw new IllegalArgumentException("MaxParallelAssociations must be greater than 0");
+        this.maxParallelAssociations = maxParallelAssociations;
+    }
+    public int getSpoolHighWatermark() {
+        return spoolHighWatermark;
+    }
+    /**
+     * Size in MB of the spooled data for the destination at which C-STOREs to
+     * the destination are refused, 0 if the size is not limited.
+     */
+    public void setSpoolHighWatermark(int spoolHighWatermark) {
+        if (spoolHighWatermark < 0)
+            throw new IllegalArgumentException("SpoolHighWatermark cannot be negative");
+        this.spoolHighWatermark = spoolHighWatermark;
+    }
+    public int getSpoolLowWatermark() {
+        return spoolLowWatermark;
+    }
+    /**
+     * Size in MB of the spooled data for the destination at which C-STOREs to
+     * the destination are accepted again, 0 if equal to the high watermark.
+     */
+    public void setSpoolLowWatermark(int spoolLowWatermark) {
+        if (spoolLowWatermark < 0)
+            throw new IllegalArgumentException("SpoolLowWatermark cannot be negative");
+        this.spoolLowWatermark = spoolLowWatermark;
+    }
+    public int getSpoolHighWatermarkObjects() {
+        return spoolHighWatermarkObjects;
+    }
+    public void setSpoolHighWatermarkObjects(int spoolHighWatermarkObjects) {
+        if (spoolHighWatermarkObjects < 0)
+            throw new IllegalArgumentException("SpoolHighWatermarkObjects cannot be negative");
+        this.spoolHighWatermarkObjects = spoolHighWatermarkObjects;
+    }
+    public int getSpoolLowWatermarkObjects() {
+        return spoolLowWatermarkObjects;
+    }
+    public void setSpoolLowWatermarkObjects(int spoolLowWatermarkObjects) {
+        if (spoolLowWatermarkObjects < 0)
+            throw new IllegalArgumentException("SpoolLowWatermarkObjects cannot be negative");
+        this.spoolLowWatermarkObjects = spoolLowWatermarkObjects;
+    }
 
 }
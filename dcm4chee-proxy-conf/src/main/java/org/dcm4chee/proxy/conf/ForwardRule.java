@@ -182,4 +182,9 @@ public class ForwardRule implements Serializable {
         this.description = description;
     }
 
+    @Override
+    public String toString() {
+        return commonName;
+    }
+
 }
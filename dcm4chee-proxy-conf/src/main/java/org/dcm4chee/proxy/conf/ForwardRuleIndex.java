@@ -0,0 +1,268 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.conf;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.dcm4che3.net.Dimse;
+
+/**
+ * Forward rules of an AE compiled for each Calling AET and hour of the week,
+ * so the forward rules of an association are looked up instead of being
+ * filtered from all forward rules. The rules of an association are further
+ * indexed by SOP Class and DIMSE, with the result of each combination
+ * computed on first use.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardRuleIndex {
+
+    private static final int HOURS_PER_WEEK = 7 * 24;
+    private static final long MILLIS_PER_HOUR = 3600 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+    // 1 Jan 1970 was a Thursday
+    private static final int EPOCH_DAY_OF_WEEK = 4;
+    private static final int OTHER_DIMSE = Dimse.values().length;
+    private static final String OTHER_SOP_CLASS = "*";
+
+    private final TimeZone timeZone = TimeZone.getDefault();
+    private final Rules[] anyCallingAET = new Rules[HOURS_PER_WEEK];
+    private final HashMap<String, Rules[]> byCallingAET = new HashMap<String, Rules[]>();
+    private final HashSet<String> destinationAETs = new HashSet<String>();
+
+    public ForwardRuleIndex(List<ForwardRule> forwardRules) {
+        HashMap<List<ForwardRule>, Rules> compiled = new HashMap<List<ForwardRule>, Rules>();
+        List<ForwardRule> anyCallingAETRules = new ArrayList<ForwardRule>();
+        LinkedHashMap<String, List<ForwardRule>> callingAETRules = new LinkedHashMap<String, List<ForwardRule>>();
+        for (ForwardRule rule : forwardRules) {
+            destinationAETs.addAll(rule.getDestinationAETitles());
+            if (rule.getCallingAETs().isEmpty()) {
+                anyCallingAETRules.add(rule);
+                continue;
+            }
+            for (String callingAET : rule.getCallingAETs()) {
+                List<ForwardRule> rules = callingAETRules.get(callingAET);
+                if (rules == null)
+                    callingAETRules.put(callingAET, rules = new ArrayList<ForwardRule>());
+                if (rules.isEmpty() || rules.get(rules.size() - 1) != rule)
+                    rules.add(rule);
+            }
+        }
+        for (int hourOfWeek = 0; hourOfWeek < HOURS_PER_WEEK; hourOfWeek++)
+            anyCallingAET[hourOfWeek] = compile(scheduled(anyCallingAETRules, hourOfWeek), compiled);
+        // rules with matching Calling AET replace rules for any Calling AET
+        for (Map.Entry<String, List<ForwardRule>> entry : callingAETRules.entrySet()) {
+            Rules[] rules = new Rules[HOURS_PER_WEEK];
+            for (int hourOfWeek = 0; hourOfWeek < HOURS_PER_WEEK; hourOfWeek++) {
+                List<ForwardRule> scheduled = scheduled(entry.getValue(), hourOfWeek);
+                rules[hourOfWeek] = scheduled.isEmpty() ? anyCallingAET[hourOfWeek] : compile(scheduled, compiled);
+            }
+            byCallingAET.put(entry.getKey(), rules);
+        }
+    }
+
+    private static List<ForwardRule> scheduled(List<ForwardRule> rules, int hourOfWeek) {
+        List<ForwardRule> scheduled = new ArrayList<ForwardRule>(rules.size());
+        for (ForwardRule rule : rules)
+            if (rule.getReceiveSchedule().contains(hourOfWeek / 24, hourOfWeek % 24))
+                scheduled.add(rule);
+        return scheduled;
+    }
+
+    private static Rules compile(List<ForwardRule> rules, HashMap<List<ForwardRule>, Rules> compiled) {
+        Rules result = compiled.get(rules);
+        if (result == null)
+            compiled.put(rules, result = new Rules(rules));
+        return result;
+    }
+
+    /**
+     * Returns the forward rules which apply to an association from
+     * <code>callingAET</code> received at the current time.
+     */
+    public List<ForwardRule> getForwardRules(String callingAET) {
+        return getForwardRules(callingAET, currentHourOfWeek());
+    }
+
+    /**
+     * Returns the forward rules which apply to an association from
+     * <code>callingAET</code> received at the time of <code>cal</code>.
+     */
+    public List<ForwardRule> getForwardRules(String callingAET, Calendar cal) {
+        return getForwardRules(callingAET,
+                (cal.get(Calendar.DAY_OF_WEEK) - 1) * 24 + cal.get(Calendar.HOUR_OF_DAY));
+    }
+
+    private List<ForwardRule> getForwardRules(String callingAET, int hourOfWeek) {
+        Rules[] rules = byCallingAET.get(callingAET);
+        return (rules != null ? rules : anyCallingAET)[hourOfWeek];
+    }
+
+    /**
+     * Returns if <code>aet</code> is a destination AET of any forward rule.
+     */
+    public boolean isDestinationAET(String aet) {
+        return destinationAETs.contains(aet);
+    }
+
+    private int currentHourOfWeek() {
+        long now = System.currentTimeMillis();
+        long local = now + timeZone.getOffset(now);
+        int dayOfWeek = (int) ((local / MILLIS_PER_DAY + EPOCH_DAY_OF_WEEK) % 7);
+        int hourOfDay = (int) (local % MILLIS_PER_DAY / MILLIS_PER_HOUR);
+        return dayOfWeek * 24 + hourOfDay;
+    }
+
+    /**
+     * Returns the forward rules which apply to a DIMSE RQ, using the index of
+     * <code>forwardRules</code> if they were returned by
+     * {@link #getForwardRules(String)}.
+     */
+    public static List<ForwardRule> filterOnDimseRQ(List<ForwardRule> forwardRules, String cuid, Dimse dimse) {
+        return forwardRules instanceof Rules
+                ? ((Rules) forwardRules).filterOnDimseRQ(cuid, dimse)
+                : select(forwardRules, cuid, dimse);
+    }
+
+    private static List<ForwardRule> select(List<ForwardRule> forwardRules, String cuid, Dimse dimse) {
+        List<ForwardRule> filterList = new ArrayList<ForwardRule>(forwardRules.size());
+        for (ForwardRule rule : forwardRules) {
+            if (rule.getDimse().isEmpty() && rule.getSopClasses().isEmpty()
+                    || rule.getSopClasses().contains(cuid) && rule.getDimse().isEmpty()
+                    || rule.getDimse().contains(dimse)
+                        && (rule.getSopClasses().isEmpty() || rule.getSopClasses().contains(cuid)))
+                filterList.add(rule);
+        }
+        // rules with DIMSE or SOP Class replace rules without
+        int n = filterList.size();
+        boolean[] removed = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (removed[i])
+                continue;
+
+            ForwardRule rule1 = filterList.get(i);
+            for (int j = i + 1; j < n; j++) {
+                if (removed[j])
+                    continue;
+
+                ForwardRule rule2 = filterList.get(j);
+                if (rule1.getDimse().isEmpty() && !rule2.getDimse().isEmpty()
+                        || rule1.getSopClasses().isEmpty() && !rule2.getSopClasses().isEmpty()) {
+                    removed[i] = true;
+                    break;
+                }
+                if (rule2.getDimse().isEmpty() && !rule1.getDimse().isEmpty()
+                        || rule2.getSopClasses().isEmpty() && !rule1.getSopClasses().isEmpty())
+                    removed[j] = true;
+            }
+        }
+        List<ForwardRule> returnList = new ArrayList<ForwardRule>(n);
+        for (int i = 0; i < n; i++)
+            if (!removed[i])
+                returnList.add(filterList.get(i));
+        return returnList;
+    }
+
+    /**
+     * Immutable list of forward rules with their results for DIMSE RQs.
+     */
+    public static final class Rules extends AbstractList<ForwardRule> implements RandomAccess {
+
+        private final ForwardRule[] rules;
+        private final HashSet<String> sopClasses = new HashSet<String>();
+        private final EnumSet<Dimse> dimse = EnumSet.noneOf(Dimse.class);
+        private final ConcurrentHashMap<String, AtomicReferenceArray<List<ForwardRule>>> bySopClass =
+                new ConcurrentHashMap<String, AtomicReferenceArray<List<ForwardRule>>>();
+
+        Rules(List<ForwardRule> rules) {
+            this.rules = rules.toArray(new ForwardRule[rules.size()]);
+            for (ForwardRule rule : rules) {
+                sopClasses.addAll(rule.getSopClasses());
+                dimse.addAll(rule.getDimse());
+            }
+        }
+
+        @Override
+        public ForwardRule get(int index) {
+            return rules[index];
+        }
+
+        @Override
+        public int size() {
+            return rules.length;
+        }
+
+        /**
+         * Returns the forward rules which apply to a DIMSE RQ. SOP Classes
+         * and DIMSE not referenced by any rule share one result.
+         */
+        public List<ForwardRule> filterOnDimseRQ(String cuid, Dimse dimse) {
+            String sopClass = cuid != null && sopClasses.contains(cuid) ? cuid : OTHER_SOP_CLASS;
+            AtomicReferenceArray<List<ForwardRule>> byDimse = bySopClass.get(sopClass);
+            if (byDimse == null) {
+                byDimse = new AtomicReferenceArray<List<ForwardRule>>(OTHER_DIMSE + 1);
+                AtomicReferenceArray<List<ForwardRule>> prev = bySopClass.putIfAbsent(sopClass, byDimse);
+                if (prev != null)
+                    byDimse = prev;
+            }
+            boolean otherDimse = dimse == null || !this.dimse.contains(dimse);
+            int index = otherDimse ? OTHER_DIMSE : dimse.ordinal();
+            List<ForwardRule> result = byDimse.get(index);
+            if (result == null) {
+                result = Collections.unmodifiableList(select(this, sopClass == OTHER_SOP_CLASS ? null : cuid,
+                        otherDimse ? null : dimse));
+                byDimse.set(index, result);
+            }
+            return result;
+        }
+    }
+}
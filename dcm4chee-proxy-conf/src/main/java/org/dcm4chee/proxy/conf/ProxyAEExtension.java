@@ -41,6 +41,7 @@ package org.dcm4chee.proxy.conf;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
@@ -57,6 +58,11 @@ import org.dcm4che3.net.TransferCapability.Role;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4chee.proxy.common.AuditDirectory;
 import org.dcm4chee.proxy.common.CMoveInfoObject;
+import org.dcm4chee.proxy.common.MappedBulkData;
+import org.dcm4chee.proxy.common.SpoolJournal;
+import org.dcm4chee.proxy.common.SpoolLayout;
+import org.dcm4chee.proxy.common.SpoolQueue;
+import org.dcm4chee.proxy.common.SpoolQuota;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -78,6 +84,7 @@ public class ProxyAEExtension extends AEExtension {
     public static final String FORWARD_RULES = "forward.rules";
     public static final String FORWARD_RULE = "forward.rule";
     public static final String FORWARD_CMOVE_INFO = "forward.cmove.info";
+    public static final String FORWARD_FAN_OUT = "forward.fan.out";
     public static final String CALLING_AET = "calling.aet";
     public static final String PIDS = "pids";
 
@@ -87,6 +94,7 @@ public class ProxyAEExtension extends AEExtension {
     private HashMap<String, ForwardOption> forwardOptions = new HashMap<String, ForwardOption>();
     private List<Retry> retries = new ArrayList<Retry>();
     private List<ForwardRule> forwardRules = new ArrayList<ForwardRule>();
+    private transient volatile ForwardRuleIndex forwardRuleIndex;
     private AttributeCoercions attributeCoercions = new AttributeCoercions();
     private String proxyPIXConsumerApplication;
     private String remotePIXManagerApplication;
@@ -94,6 +102,13 @@ public class ProxyAEExtension extends AEExtension {
     private String fallbackDestinationAET;
     private boolean mergeStgCmtMessagesUsingANDLogic;
     private CMoveInfoObject[] CMoveMessageID = new CMoveInfoObject[256];
+    private int spoolHighWatermark;
+    private int spoolLowWatermark;
+    private int spoolHighWatermarkObjects;
+    private int spoolLowWatermarkObjects;
+    private transient SpoolJournal spoolJournal;
+    private transient SpoolQueue spoolQueue;
+    private transient SpoolQuota spoolQuota;
 
     public boolean isAcceptDataOnFailedAssociation() {
         return acceptDataOnFailedAssociation;
@@ -104,9 +119,135 @@ public class ProxyAEExtension extends AEExtension {
     }
 
     public final void setSpoolDirectory(String spoolDirectoryString) {
+        if ((spoolJournal != null || spoolQueue != null) && !spoolDirectoryString.equals(spoolDirectory)) {
+            if (spoolJournal != null)
+                closeSpoolJournal();
+            if (spoolQueue != null)
+                spoolQueue.clear();
+        }
         this.spoolDirectory = spoolDirectoryString;
     }
 
+    public synchronized SpoolJournal getSpoolJournal() throws IOException {
+        if (spoolJournal == null)
+            spoolJournal = new SpoolJournal(getCStoreDirectoryPath());
+        return spoolJournal;
+    }
+
+    public synchronized SpoolQueue getSpoolQueue() {
+        if (spoolQueue == null)
+            spoolQueue = new SpoolQueue();
+        return spoolQueue;
+    }
+
+    /**
+     * Returns the size of the C-STORE spool in MB at which new data is
+     * refused, 0 if the size is not limited.
+     */
+    public int getSpoolHighWatermark() {
+        return spoolHighWatermark;
+    }
+
+    public void setSpoolHighWatermark(int spoolHighWatermark) {
+        if (spoolHighWatermark < 0)
+            throw new IllegalArgumentException("SpoolHighWatermark cannot be negative");
+        this.spoolHighWatermark = spoolHighWatermark;
+    }
+
+    /**
+     * Returns the size of the C-STORE spool in MB at which new data is
+     * accepted again, 0 if equal to the high watermark.
+     */
+    public int getSpoolLowWatermark() {
+        return spoolLowWatermark;
+    }
+
+    public void setSpoolLowWatermark(int spoolLowWatermark) {
+        if (spoolLowWatermark < 0)
+            throw new IllegalArgumentException("SpoolLowWatermark cannot be negative");
+        this.spoolLowWatermark = spoolLowWatermark;
+    }
+
+    public int getSpoolHighWatermarkObjects() {
+        return spoolHighWatermarkObjects;
+    }
+
+    public void setSpoolHighWatermarkObjects(int spoolHighWatermarkObjects) {
+        if (spoolHighWatermarkObjects < 0)
+            throw new IllegalArgumentException("SpoolHighWatermarkObjects cannot be negative");
+        this.spoolHighWatermarkObjects = spoolHighWatermarkObjects;
+    }
+
+    public int getSpoolLowWatermarkObjects() {
+        return spoolLowWatermarkObjects;
+    }
+
+    public void setSpoolLowWatermarkObjects(int spoolLowWatermarkObjects) {
+        if (spoolLowWatermarkObjects < 0)
+            throw new IllegalArgumentException("SpoolLowWatermarkObjects cannot be negative");
+        this.spoolLowWatermarkObjects = spoolLowWatermarkObjects;
+    }
+
+    private synchronized SpoolQuota getSpoolQuota() {
+        if (spoolQuota == null)
+            spoolQuota = new SpoolQuota(getApplicationEntity().getAETitle());
+        return spoolQuota;
+    }
+
+    /**
+     * Returns true if the C-STORE spool of the AE is above its quota.
+     */
+    public boolean isSpoolQuotaExceeded() throws IOException {
+        if (spoolHighWatermark == 0 && spoolHighWatermarkObjects == 0)
+            return false;
+
+        return getSpoolQuota().isExceeded(null, getSpoolJournal().getUsage(null), spoolHighWatermark,
+                spoolLowWatermark, spoolHighWatermarkObjects, spoolLowWatermarkObjects);
+    }
+
+    /**
+     * Returns true if the C-STORE spool directory of the destination is above
+     * the quota configured in its forward option.
+     */
+    public boolean isSpoolQuotaExceeded(String destinationAET) throws IOException {
+        ForwardOption fwdOption = forwardOptions.get(destinationAET);
+        if (fwdOption == null || fwdOption.getSpoolHighWatermark() == 0
+                && fwdOption.getSpoolHighWatermarkObjects() == 0)
+            return false;
+
+        return getSpoolQuota().isExceeded(destinationAET, getSpoolJournal().getUsage(destinationAET),
+                fwdOption.getSpoolHighWatermark(), fwdOption.getSpoolLowWatermark(),
+                fwdOption.getSpoolHighWatermarkObjects(), fwdOption.getSpoolLowWatermarkObjects());
+    }
+
+    /**
+     * Refuses new data with Out of Resources if the C-STORE spool of the AE or
+     * of one of the destinations is above its quota, or if the spool usage
+     * cannot be determined.
+     */
+    public void checkSpoolQuota(Collection<String> destinationAETs) throws DicomServiceException {
+        try {
+            if (isSpoolQuotaExceeded())
+                throw new DicomServiceException(Status.OutOfResources, "Spool quota exceeded");
+
+            for (String destinationAET : destinationAETs)
+                if (isSpoolQuotaExceeded(destinationAET))
+                    throw new DicomServiceException(Status.OutOfResources, "Spool quota for " + destinationAET
+                            + " exceeded");
+        } catch (DicomServiceException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new DicomServiceException(Status.OutOfResources, "Failed to check spool quota: " + e.getMessage());
+        }
+    }
+
+    public synchronized void closeSpoolJournal() {
+        if (spoolJournal != null) {
+            spoolJournal.close();
+            spoolJournal = null;
+        }
+    }
+
     public final String getSpoolDirectory() {
         return spoolDirectory;
     }
@@ -211,6 +352,16 @@ public class ProxyAEExtension extends AEExtension {
         return path;
     }
 
+    /**
+     * Returns the directory of the C-STORE spool directory for a file of the
+     * destination, see {@link SpoolLayout}.
+     */
+    public File getCStoreDirectoryPath(String calledAET, String fileName) throws IOException {
+        File path = SpoolLayout.getShardDirectory(new File(getCStoreDirectoryPath(), calledAET), fileName);
+        makeDirs(path);
+        return path;
+    }
+
     public static void makeDirs(File path) throws IOException {
         if (!path.mkdirs())
             if (!path.exists())
@@ -274,7 +425,20 @@ public class ProxyAEExtension extends AEExtension {
     }
 
     public void setForwardRules(List<ForwardRule> forwardingRules) {
+        ForwardRuleIndex index = new ForwardRuleIndex(forwardingRules);
         this.forwardRules = forwardingRules;
+        this.forwardRuleIndex = index;
+    }
+
+    /**
+     * Returns the forward rules compiled by {@link #setForwardRules(List)},
+     * rules modified in place afterwards are not reflected.
+     */
+    public ForwardRuleIndex getForwardRuleIndex() {
+        ForwardRuleIndex index = forwardRuleIndex;
+        if (index == null)
+            forwardRuleIndex = index = new ForwardRuleIndex(forwardRules);
+        return index;
     }
 
     @SuppressWarnings("unchecked")
@@ -351,11 +515,7 @@ public class ProxyAEExtension extends AEExtension {
     public boolean isAssociationFromDestinationAET(Association asAccepted) {
         ProxyAEExtension pae = (ProxyAEExtension) asAccepted.getApplicationEntity().getAEExtension(
                 ProxyAEExtension.class);
-        for (ForwardRule rule : pae.getForwardRules())
-            for (String destinationAET : rule.getDestinationAETitles())
-                if (asAccepted.getRemoteAET().equals(destinationAET))
-                    return true;
-        return false;
+        return pae.getForwardRuleIndex().isDestinationAET(asAccepted.getRemoteAET());
     }
 
     @Override
@@ -372,6 +532,10 @@ public class ProxyAEExtension extends AEExtension {
         setDeleteFailedDataWithoutRetryConfiguration(proxyAEE.deleteFailedDataWithoutRetryConfiguration);
         setFallbackDestinationAET(proxyAEE.fallbackDestinationAET);
         setMergeStgCmtMessagesUsingANDLogic(proxyAEE.mergeStgCmtMessagesUsingANDLogic);
+        setSpoolHighWatermark(proxyAEE.spoolHighWatermark);
+        setSpoolLowWatermark(proxyAEE.spoolLowWatermark);
+        setSpoolHighWatermarkObjects(proxyAEE.spoolHighWatermarkObjects);
+        setSpoolLowWatermarkObjects(proxyAEE.spoolLowWatermarkObjects);
         attributeCoercions.clear();
         for (AttributeCoercion ac : proxyAEE.getAttributeCoercions())
             addAttributeCoercion(ac);
@@ -387,7 +551,9 @@ public class ProxyAEExtension extends AEExtension {
         try {
             in = new DicomInputStream(file);
             in.setIncludeBulkData(IncludeBulkData.URI);
-            return in.readDataset(-1, -1);
+            Attributes attrs = in.readDataset(-1, -1);
+            mapBulkData(attrs);
+            return attrs;
         } catch (IOException e) {
             LOG.warn(as + ": Failed to decode dataset:", e);
             throw new DicomServiceException(Status.CannotUnderstand);
@@ -396,5 +562,14 @@ public class ProxyAEExtension extends AEExtension {
         }
     }
 
+    /**
+     * Lets bulk data of a spooled file above the configured threshold be
+     * written from a memory-mapped region of the file.
+     */
+    public void mapBulkData(Attributes attrs) {
+        MappedBulkData.map(attrs, getApplicationEntity().getDevice()
+                .getDeviceExtension(ProxyDeviceExtension.class).getMappedBulkDataThreshold());
+    }
+
 
 }
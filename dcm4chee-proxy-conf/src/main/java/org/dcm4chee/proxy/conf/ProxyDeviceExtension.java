@@ -38,16 +38,34 @@
 
 package org.dcm4chee.proxy.conf;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
 
 import org.dcm4che3.conf.api.hl7.HL7Configuration;
+import org.dcm4che3.data.Attributes;
 import org.dcm4che3.io.TemplatesCache;
 import org.dcm4che3.net.DeviceExtension;
 import org.dcm4che3.util.StringUtils;
+import org.dcm4chee.proxy.common.AssociationPool;
+import org.dcm4chee.proxy.common.BufferPool;
+import org.dcm4chee.proxy.common.ChannelOutputStream;
+import org.dcm4chee.proxy.common.CircuitBreaker;
+import org.dcm4chee.proxy.common.ForwardScheduler;
+import org.dcm4chee.proxy.common.GroupCommit;
+import org.dcm4chee.proxy.common.RuleSet;
+import org.dcm4chee.proxy.common.TemplateCoercer;
+import org.dcm4chee.proxy.common.TemplateRouter;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -63,42 +81,411 @@ public class ProxyDeviceExtension extends DeviceExtension {
 
 	public static final int DEFAULT_MAX_TIME_To_KEEP_PART_FILES = 3600;
 
+    public static final int DEFAULT_GROUP_COMMIT_WINDOW = 0;
+
+    public static final boolean DEFAULT_EVENT_DRIVEN_FORWARDING = true;
+
+    public static final int DEFAULT_MAX_FORWARD_TASKS_PER_DESTINATION = 1;
+
+    public static final int DEFAULT_PRIORITY_AGING_INTERVAL = 300;
+
+    public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+
+    public static final int DEFAULT_CIRCUIT_BREAKER_BACKOFF = 10;
+
+    public static final int DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF = 600;
+
+    public static final int DEFAULT_ASSOCIATION_IDLE_TIMEOUT = 30;
+
+    public static final int DEFAULT_SPOOL_BUFFER_SIZE = 256 * 1024;
+
+    public static final int DEFAULT_SPOOL_BUFFER_POOL_SIZE = 32;
+
+    public static final int DEFAULT_MAPPED_BULK_DATA_THRESHOLD = 1024 * 1024;
+
     private Integer schedulerInterval;
     private Integer cleanerInterval;
     private Integer maxTimeToKeepPartFilesInSeconds;
     private HL7Configuration dicomConf;
     private transient TemplatesCache templateCache;
+    private transient TemplateRouter templateRouter;
+    private transient TemplateCoercer templateCoercer;
+    private transient volatile ConcurrentHashMap<String, RuleSet> ruleSets;
     private int forwardThreads;
     private transient ThreadPoolExecutor fileForwardingExecutor;
     private int configurationStaleTimeout;
+    private int groupCommitWindow;
+    private transient GroupCommit groupCommit;
+    private boolean eventDrivenForwarding = DEFAULT_EVENT_DRIVEN_FORWARDING;
+    private int maxForwardTasksPerDestination = DEFAULT_MAX_FORWARD_TASKS_PER_DESTINATION;
+    private transient ForwardScheduler forwardScheduler;
+    private int priorityAgingInterval = DEFAULT_PRIORITY_AGING_INTERVAL;
+    private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+    private int circuitBreakerBackoff = DEFAULT_CIRCUIT_BREAKER_BACKOFF;
+    private int circuitBreakerMaxBackoff = DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF;
+    private transient HashMap<String, CircuitBreaker> circuitBreakers;
+    private int associationIdleTimeout = DEFAULT_ASSOCIATION_IDLE_TIMEOUT;
+    private transient AssociationPool associationPool;
+    private int spoolBufferSize = DEFAULT_SPOOL_BUFFER_SIZE;
+    private int spoolBufferPoolSize = DEFAULT_SPOOL_BUFFER_POOL_SIZE;
+    private transient BufferPool spoolBufferPool;
+    private int mappedBulkDataThreshold = DEFAULT_MAPPED_BULK_DATA_THRESHOLD;
 
-    public ThreadPoolExecutor getFileForwardingExecutor() {
+    public synchronized ThreadPoolExecutor getFileForwardingExecutor() {
         if (fileForwardingExecutor == null)
             fileForwardingExecutor = (ThreadPoolExecutor) Executors
                     .newFixedThreadPool(forwardThreads);
         return fileForwardingExecutor;
     }
 
+    /**
+     * Returns the scheduler which shares the forward threads between
+     * destinations.
+     */
+    public synchronized ForwardScheduler getForwardScheduler() {
+        if (forwardScheduler == null)
+            forwardScheduler = new ForwardScheduler(getFileForwardingExecutor(), forwardThreads,
+                    maxForwardTasksPerDestination);
+        return forwardScheduler;
+    }
+
     public int getForwardThreads() {
         return forwardThreads;
     }
 
-    public void setForwardThreads(int forwardThreads) {
+    public synchronized void setForwardThreads(int forwardThreads) {
         if (forwardThreads == 0)
             throw new IllegalArgumentException("ForwardThreads cannot be 0");
+        if (this.forwardThreads == forwardThreads)
+            return;
+
+        ThreadPoolExecutor executor = fileForwardingExecutor;
+        if (executor != null) {
+            // keep core <= maximum pool size in between
+            if (forwardThreads > this.forwardThreads) {
+                executor.setMaximumPoolSize(forwardThreads);
+                executor.setCorePoolSize(forwardThreads);
+            } else {
+                executor.setCorePoolSize(forwardThreads);
+                executor.setMaximumPoolSize(forwardThreads);
+            }
+        }
         this.forwardThreads = forwardThreads;
+        if (forwardScheduler != null)
+            forwardScheduler.setLimits(forwardThreads, maxForwardTasksPerDestination);
+    }
+
+    public int getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    public synchronized void setGroupCommitWindow(int groupCommitWindow) {
+        if (groupCommitWindow < 0)
+            throw new IllegalArgumentException("GroupCommitWindow cannot be negative");
+        this.groupCommitWindow = groupCommitWindow;
+        if (groupCommit != null)
+            groupCommit.setWindow(groupCommitWindow);
+    }
+
+    public synchronized GroupCommit getGroupCommit() {
+        if (groupCommit == null)
+            groupCommit = new GroupCommit(groupCommitWindow);
+        return groupCommit;
+    }
+
+    /**
+     * If enabled, spooled C-STORE data is forwarded as soon as it is queued,
+     * the scheduler only sends due retries and picks up what was missed.
+     */
+    public boolean isEventDrivenForwarding() {
+        return eventDrivenForwarding;
+    }
+
+    public void setEventDrivenForwarding(boolean eventDrivenForwarding) {
+        this.eventDrivenForwarding = eventDrivenForwarding;
+    }
+
+    public int getMaxForwardTasksPerDestination() {
+        return maxForwardTasksPerDestination;
+    }
+
+    public synchronized void setMaxForwardTasksPerDestination(int maxForwardTasksPerDestination) {
+        if (maxForwardTasksPerDestination < 1)
+            throw new IllegalArgumentException("MaxForwardTasksPerDestination must be greater than 0");
+        if (this.maxForwardTasksPerDestination == maxForwardTasksPerDestination)
+            return;
+
+        this.maxForwardTasksPerDestination = maxForwardTasksPerDestination;
+        if (forwardScheduler != null)
+            forwardScheduler.setLimits(forwardThreads, maxForwardTasksPerDestination);
+    }
+
+    /**
+     * Returns the interval in seconds after which spooled data waiting to be
+     * forwarded is treated as data of the next higher priority, 0 if the
+     * priority is not raised.
+     */
+    public int getPriorityAgingInterval() {
+        return priorityAgingInterval;
+    }
+
+    public void setPriorityAgingInterval(int priorityAgingInterval) {
+        if (priorityAgingInterval < 0)
+            throw new IllegalArgumentException("PriorityAgingInterval cannot be negative");
+        this.priorityAgingInterval = priorityAgingInterval;
+    }
+
+    /**
+     * Returns the number of consecutive connection failures after which a
+     * destination is probed with C-ECHO instead of forwarding data to it, 0
+     * if forwarding is never suspended.
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public synchronized void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        if (circuitBreakerThreshold < 0)
+            throw new IllegalArgumentException("CircuitBreakerThreshold cannot be negative");
+        if (this.circuitBreakerThreshold != circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            configureCircuitBreakers();
+        }
+    }
+
+    /**
+     * Returns the delay in seconds of the first probe of a destination,
+     * doubled for each further probe.
+     */
+    public int getCircuitBreakerBackoff() {
+        return circuitBreakerBackoff;
+    }
+
+    public synchronized void setCircuitBreakerBackoff(int circuitBreakerBackoff) {
+        if (circuitBreakerBackoff < 1)
+            throw new IllegalArgumentException("CircuitBreakerBackoff must be greater than 0");
+        if (this.circuitBreakerBackoff != circuitBreakerBackoff) {
+            this.circuitBreakerBackoff = circuitBreakerBackoff;
+            configureCircuitBreakers();
+        }
+    }
+
+    public int getCircuitBreakerMaxBackoff() {
+        return circuitBreakerMaxBackoff;
+    }
+
+    public synchronized void setCircuitBreakerMaxBackoff(int circuitBreakerMaxBackoff) {
+        if (circuitBreakerMaxBackoff < 1)
+            throw new IllegalArgumentException("CircuitBreakerMaxBackoff must be greater than 0");
+        if (this.circuitBreakerMaxBackoff != circuitBreakerMaxBackoff) {
+            this.circuitBreakerMaxBackoff = circuitBreakerMaxBackoff;
+            configureCircuitBreakers();
+        }
+    }
+
+    public synchronized CircuitBreaker getCircuitBreaker(String destination) {
+        if (circuitBreakers == null)
+            circuitBreakers = new HashMap<String, CircuitBreaker>();
+        CircuitBreaker breaker = circuitBreakers.get(destination);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(destination, circuitBreakerThreshold, circuitBreakerBackoff * 1000L,
+                    circuitBreakerMaxBackoff * 1000L);
+            circuitBreakers.put(destination, breaker);
+        }
+        return breaker;
+    }
+
+    public synchronized List<CircuitBreaker> getCircuitBreakers() {
+        return circuitBreakers == null ? new ArrayList<CircuitBreaker>(0) : new ArrayList<CircuitBreaker>(
+                circuitBreakers.values());
+    }
+
+    /**
+     * Applies changed parameters to the existing breakers, keeping their state
+     * and scheduled probes.
+     */
+    private synchronized void configureCircuitBreakers() {
+        if (circuitBreakers != null)
+            for (CircuitBreaker breaker : circuitBreakers.values())
+                breaker.configure(circuitBreakerThreshold, circuitBreakerBackoff * 1000L,
+                        circuitBreakerMaxBackoff * 1000L);
+    }
+
+    /**
+     * Returns the time in seconds an outbound association for scheduled
+     * forwarding is kept open for reuse, 0 if associations are released after
+     * use.
+     */
+    public int getAssociationIdleTimeout() {
+        return associationIdleTimeout;
+    }
+
+    public void setAssociationIdleTimeout(int associationIdleTimeout) {
+        if (associationIdleTimeout < 0)
+            throw new IllegalArgumentException("AssociationIdleTimeout cannot be negative");
+        AssociationPool pool;
+        synchronized (this) {
+            if (this.associationIdleTimeout == associationIdleTimeout)
+                return;
+
+            this.associationIdleTimeout = associationIdleTimeout;
+            pool = associationPool;
+        }
+        if (pool != null)
+            pool.setIdleTimeout(associationIdleTimeout * 1000L);
+    }
+
+    public synchronized AssociationPool getAssociationPool() {
+        if (associationPool == null)
+            associationPool = new AssociationPool(associationIdleTimeout * 1000L);
+        return associationPool;
+    }
+
+    /**
+     * Returns the size in bytes of the buffers used for writing spool files.
+     */
+    public int getSpoolBufferSize() {
+        return spoolBufferSize;
+    }
+
+    public synchronized void setSpoolBufferSize(int spoolBufferSize) {
+        if (spoolBufferSize <= 0)
+            throw new IllegalArgumentException("SpoolBufferSize must be positive");
+        if (this.spoolBufferSize != spoolBufferSize)
+            spoolBufferPool = null;
+        this.spoolBufferSize = spoolBufferSize;
+    }
+
+    /**
+     * Returns the maximal number of pooled direct buffers for writing spool
+     * files, 0 to allocate a heap buffer for each file.
+     */
+    public int getSpoolBufferPoolSize() {
+        return spoolBufferPoolSize;
+    }
+
+    public synchronized void setSpoolBufferPoolSize(int spoolBufferPoolSize) {
+        if (spoolBufferPoolSize < 0)
+            throw new IllegalArgumentException("SpoolBufferPoolSize cannot be negative");
+        if (this.spoolBufferPoolSize != spoolBufferPoolSize)
+            spoolBufferPool = null;
+        this.spoolBufferPoolSize = spoolBufferPoolSize;
+    }
+
+    public synchronized BufferPool getSpoolBufferPool() {
+        if (spoolBufferPool == null)
+            spoolBufferPool = new BufferPool(spoolBufferSize, spoolBufferPoolSize);
+        return spoolBufferPool;
+    }
+
+    /**
+     * Opens a spool file for writing through its file channel with a buffer
+     * of the spool buffer pool.
+     */
+    public OutputStream newSpoolOutputStream(File file) throws IOException {
+        return new ChannelOutputStream(file, getSpoolBufferPool());
+    }
+
+    /**
+     * Returns the minimal length in bytes of bulk data of spooled files which
+     * is forwarded from a memory-mapped region of the file, 0 if bulk data is
+     * never memory-mapped.
+     */
+    public int getMappedBulkDataThreshold() {
+        return mappedBulkDataThreshold;
+    }
+
+    public void setMappedBulkDataThreshold(int mappedBulkDataThreshold) {
+        if (mappedBulkDataThreshold < 0)
+            throw new IllegalArgumentException("MappedBulkDataThreshold cannot be negative");
+        this.mappedBulkDataThreshold = mappedBulkDataThreshold;
     }
 
     public void clearTemplatesCache() {
         TemplatesCache cache = templateCache;
         if (cache != null)
             cache.clear();
+        TemplateRouter router = templateRouter;
+        if (router != null)
+            router.clear();
+        TemplateCoercer coercer = templateCoercer;
+        if (coercer != null)
+            coercer.clear();
+        ConcurrentHashMap<String, RuleSet> rules = ruleSets;
+        if (rules != null)
+            rules.clear();
     }
 
     public Templates getTemplates(String uri) throws TransformerConfigurationException {
         if (templateCache == null)
             templateCache = new TemplatesCache();
-        return templateCache.get(StringUtils.replaceSystemProperties(uri).replace('\\', '/'));
+        return templateCache.get(toSystemId(uri));
+    }
+
+    private static String toSystemId(String uri) {
+        return StringUtils.replaceSystemProperties(uri).replace('\\', '/');
+    }
+
+    public synchronized TemplateRouter getTemplateRouter() {
+        if (templateRouter == null)
+            templateRouter = new TemplateRouter();
+        return templateRouter;
+    }
+
+    public synchronized TemplateCoercer getTemplateCoercer() {
+        if (templateCoercer == null)
+            templateCoercer = new TemplateCoercer();
+        return templateCoercer;
+    }
+
+    /**
+     * Returns the compiled rules of <code>uri</code> starting with
+     * {@link RuleSet#URI_PREFIX}.
+     */
+    public RuleSet getRuleSet(String uri) throws IOException {
+        ConcurrentHashMap<String, RuleSet> rules = ruleSets;
+        if (rules == null)
+            synchronized (this) {
+                if (ruleSets == null)
+                    ruleSets = new ConcurrentHashMap<String, RuleSet>();
+                rules = ruleSets;
+            }
+        RuleSet ruleSet = rules.get(uri);
+        if (ruleSet == null) {
+            ruleSet = RuleSet.load(toSystemId(uri.substring(RuleSet.URI_PREFIX.length())));
+            RuleSet prev = rules.putIfAbsent(uri, ruleSet);
+            if (prev != null)
+                ruleSet = prev;
+        }
+        return ruleSet;
+    }
+
+    /**
+     * Returns the destination AETs returned by the forward rule template or
+     * rule set <code>uri</code> for <code>data</code>.
+     */
+    public List<String> getDestinationAETs(String uri, Attributes data, String callingAET, String calledAET)
+            throws TransformerException, IOException {
+        if (RuleSet.isRuleSetURI(uri))
+            return getRuleSet(uri).route(data, callingAET, calledAET);
+
+        return getTemplateRouter().route(toSystemId(uri), getTemplates(uri), data, callingAET, calledAET);
+    }
+
+    /**
+     * Returns the attributes set by the attribute coercion template or rule
+     * set <code>uri</code> for <code>data</code>. The returned attributes may
+     * be shared with other callers and must not be modified.
+     */
+    public Attributes getCoercedAttributes(String uri, Attributes data, String callingAET, String calledAET)
+            throws TransformerException, IOException {
+        if (RuleSet.isRuleSetURI(uri)) {
+            Attributes modify = new Attributes();
+            getRuleSet(uri).coerce(data, callingAET, calledAET, modify);
+            return modify;
+        }
+
+        return getTemplateCoercer().coerce(toSystemId(uri), getTemplates(uri), data);
     }
 
     public ProxyDeviceExtension() {
@@ -143,8 +530,18 @@ public class ProxyDeviceExtension extends DeviceExtension {
         ProxyDeviceExtension proxyDevExt = (ProxyDeviceExtension) from;
         setForwardThreads(proxyDevExt.forwardThreads);
         setSchedulerInterval(proxyDevExt.schedulerInterval);
-        fileForwardingExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(forwardThreads);
+        setMaxForwardTasksPerDestination(proxyDevExt.maxForwardTasksPerDestination);
+        setPriorityAgingInterval(proxyDevExt.priorityAgingInterval);
+        setCircuitBreakerThreshold(proxyDevExt.circuitBreakerThreshold);
+        setCircuitBreakerBackoff(proxyDevExt.circuitBreakerBackoff);
+        setCircuitBreakerMaxBackoff(proxyDevExt.circuitBreakerMaxBackoff);
+        setAssociationIdleTimeout(proxyDevExt.associationIdleTimeout);
+        setSpoolBufferSize(proxyDevExt.spoolBufferSize);
+        setSpoolBufferPoolSize(proxyDevExt.spoolBufferPoolSize);
+        setMappedBulkDataThreshold(proxyDevExt.mappedBulkDataThreshold);
         setConfigurationStaleTimeout(proxyDevExt.configurationStaleTimeout);
+        setGroupCommitWindow(proxyDevExt.groupCommitWindow);
+        setEventDrivenForwarding(proxyDevExt.eventDrivenForwarding);
     }
 
 	public Integer getMaxTimeToKeepPartFilesInSeconds() {
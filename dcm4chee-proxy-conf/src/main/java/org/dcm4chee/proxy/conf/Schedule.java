@@ -41,6 +41,7 @@ package org.dcm4chee.proxy.conf;
 import java.io.Serializable;
 import java.util.BitSet;
 import java.util.Calendar;
+import java.util.GregorianCalendar;
 
 import org.dcm4che3.util.StringUtils;
 
@@ -59,14 +60,19 @@ public class Schedule implements Serializable {
     final BitSet days = new BitSet(7);
     final BitSet hours = new BitSet(24);
 
+    private transient volatile boolean now;
+    private transient volatile long nextTransition;
+
     public Schedule() {
         days.set(0, 7);
         hours.set(0, 24);
     }
 
     public void setDays(String dayOfWeek) {
-        if(dayOfWeek!=null)
+        if(dayOfWeek!=null) {
             set(days, dayOfWeek, DAYS);
+            nextTransition = 0;
+        }
     }
     
     public String getDays() {
@@ -74,17 +80,72 @@ public class Schedule implements Serializable {
     }
 
     public void setHours(String hour) {
-        if(hour!=null)
+        if(hour!=null) {
             set(hours, hour, HOURS);
+            nextTransition = 0;
+        }
     }
     
     public String getHours() {
         return toString(hours, HOURS);
     }
 
+    /**
+     * Returns if the schedule is active at the current time. The state is only
+     * recalculated at the next transition.
+     */
+    public boolean isNow() {
+        long time = System.currentTimeMillis();
+        if (time >= nextTransition)
+            update(time);
+        return now;
+    }
+
+    /**
+     * Returns the time in milliseconds the schedule is activated or
+     * deactivated next, <code>Long.MAX_VALUE</code> if it is always or never
+     * active.
+     */
+    public long getNextTransition() {
+        isNow();
+        return nextTransition;
+    }
+
+    private synchronized void update(long time) {
+        if (time < nextTransition)
+            return;
+
+        Calendar cal = new GregorianCalendar();
+        cal.setTimeInMillis(time);
+        boolean active = isNow(cal);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        long transition = Long.MAX_VALUE;
+        for (int i = 0; i < DAYS.length * HOURS.length; i++) {
+            cal.add(Calendar.HOUR_OF_DAY, 1);
+            if (isNow(cal) != active) {
+                transition = cal.getTimeInMillis();
+                break;
+            }
+        }
+        // readers check nextTransition before reading now
+        now = active;
+        nextTransition = transition;
+    }
+
     public boolean isNow(final Calendar now) {
-        return days.get(now.get(Calendar.DAY_OF_WEEK) - 1)
-                && hours.get(now.get(Calendar.HOUR_OF_DAY));
+        return contains(now.get(Calendar.DAY_OF_WEEK) - 1, now.get(Calendar.HOUR_OF_DAY));
+    }
+
+    /**
+     * @param dayOfWeek
+     *            0 (Sunday) to 6 (Saturday)
+     * @param hourOfDay
+     *            0 to 23
+     */
+    public boolean contains(int dayOfWeek, int hourOfDay) {
+        return days.get(dayOfWeek) && hours.get(hourOfDay);
     }
 
     private static void set(BitSet bs, String value, String[] a) {
@@ -131,8 +192,10 @@ public class Schedule implements Serializable {
                 }
                 else {
                     if (range == false) {
+                        // wrap around to a range starting with the first value
                         if (i == values.length - 1 && bs.get(0))
-                            sb.replace(0, values[0].length(), values[i]);
+                            sb.replace(0, values[0].length(),
+                                    bs.get(1) ? values[i] : values[i].concat("-").concat(values[0]));
                         else {
                             sb.append(",".concat(values[i]));
                             if (bs.get(i + 1))
@@ -86,6 +86,28 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         
         LdapUtils.storeNotNull(attrs, "dcmForwardThreads", proxyDev.getForwardThreads());
         LdapUtils.storeNotDef(attrs, "dcmProxyConfigurationStaleTimeout", proxyDev.getConfigurationStaleTimeout(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmGroupCommitWindow", proxyDev.getGroupCommitWindow(),
+                ProxyDeviceExtension.DEFAULT_GROUP_COMMIT_WINDOW);
+        LdapUtils.storeNotNull(attrs, "dcmEventDrivenForwarding", proxyDev.isEventDrivenForwarding());
+        LdapUtils.storeNotDef(attrs, "dcmMaxForwardTasksPerDestination",
+                proxyDev.getMaxForwardTasksPerDestination(),
+                ProxyDeviceExtension.DEFAULT_MAX_FORWARD_TASKS_PER_DESTINATION);
+        LdapUtils.storeNotDef(attrs, "dcmPriorityAgingInterval", proxyDev.getPriorityAgingInterval(),
+                ProxyDeviceExtension.DEFAULT_PRIORITY_AGING_INTERVAL);
+        LdapUtils.storeNotDef(attrs, "dcmCircuitBreakerThreshold", proxyDev.getCircuitBreakerThreshold(),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+        LdapUtils.storeNotDef(attrs, "dcmCircuitBreakerBackoff", proxyDev.getCircuitBreakerBackoff(),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_BACKOFF);
+        LdapUtils.storeNotDef(attrs, "dcmCircuitBreakerMaxBackoff", proxyDev.getCircuitBreakerMaxBackoff(),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF);
+        LdapUtils.storeNotDef(attrs, "dcmAssociationIdleTimeout", proxyDev.getAssociationIdleTimeout(),
+                ProxyDeviceExtension.DEFAULT_ASSOCIATION_IDLE_TIMEOUT);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolBufferSize", proxyDev.getSpoolBufferSize(),
+                ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_SIZE);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolBufferPoolSize", proxyDev.getSpoolBufferPoolSize(),
+                ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_POOL_SIZE);
+        LdapUtils.storeNotDef(attrs, "dcmMappedBulkDataThreshold", proxyDev.getMappedBulkDataThreshold(),
+                ProxyDeviceExtension.DEFAULT_MAPPED_BULK_DATA_THRESHOLD);
     }
 
     @Override
@@ -104,6 +126,10 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
                 proxyAEE.isDeleteFailedDataWithoutRetryConfiguration());
         LdapUtils.storeNotNull(attrs, "dcmDestinationAETitle", proxyAEE.getFallbackDestinationAET());
         LdapUtils.storeBoolean(attrs, "dcmMergeStgCmtMessagesUsingANDLogic", proxyAEE.isMergeStgCmtMessagesUsingANDLogic());
+        LdapUtils.storeNotDef(attrs, "dcmSpoolHighWatermark", proxyAEE.getSpoolHighWatermark(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolLowWatermark", proxyAEE.getSpoolLowWatermark(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolHighWatermarkObjects", proxyAEE.getSpoolHighWatermarkObjects(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolLowWatermarkObjects", proxyAEE.getSpoolLowWatermarkObjects(), 0);
     }
 
     @Override
@@ -122,6 +148,29 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         proxyDev.setForwardThreads(LdapUtils.intValue(attrs.get("dcmForwardThreads"),
                 ProxyDeviceExtension.DEFAULT_FORWARD_THREADS));
         proxyDev.setConfigurationStaleTimeout(LdapUtils.intValue(attrs.get("dcmProxyConfigurationStaleTimeout"), 0));
+        proxyDev.setGroupCommitWindow(LdapUtils.intValue(attrs.get("dcmGroupCommitWindow"),
+                ProxyDeviceExtension.DEFAULT_GROUP_COMMIT_WINDOW));
+        proxyDev.setEventDrivenForwarding(LdapUtils.booleanValue(attrs.get("dcmEventDrivenForwarding"),
+                ProxyDeviceExtension.DEFAULT_EVENT_DRIVEN_FORWARDING));
+        proxyDev.setMaxForwardTasksPerDestination(LdapUtils.intValue(
+                attrs.get("dcmMaxForwardTasksPerDestination"),
+                ProxyDeviceExtension.DEFAULT_MAX_FORWARD_TASKS_PER_DESTINATION));
+        proxyDev.setPriorityAgingInterval(LdapUtils.intValue(attrs.get("dcmPriorityAgingInterval"),
+                ProxyDeviceExtension.DEFAULT_PRIORITY_AGING_INTERVAL));
+        proxyDev.setCircuitBreakerThreshold(LdapUtils.intValue(attrs.get("dcmCircuitBreakerThreshold"),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_THRESHOLD));
+        proxyDev.setCircuitBreakerBackoff(LdapUtils.intValue(attrs.get("dcmCircuitBreakerBackoff"),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_BACKOFF));
+        proxyDev.setCircuitBreakerMaxBackoff(LdapUtils.intValue(attrs.get("dcmCircuitBreakerMaxBackoff"),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF));
+        proxyDev.setAssociationIdleTimeout(LdapUtils.intValue(attrs.get("dcmAssociationIdleTimeout"),
+                ProxyDeviceExtension.DEFAULT_ASSOCIATION_IDLE_TIMEOUT));
+        proxyDev.setSpoolBufferSize(LdapUtils.intValue(attrs.get("dcmSpoolBufferSize"),
+                ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_SIZE));
+        proxyDev.setSpoolBufferPoolSize(LdapUtils.intValue(attrs.get("dcmSpoolBufferPoolSize"),
+                ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_POOL_SIZE));
+        proxyDev.setMappedBulkDataThreshold(LdapUtils.intValue(attrs.get("dcmMappedBulkDataThreshold"),
+                ProxyDeviceExtension.DEFAULT_MAPPED_BULK_DATA_THRESHOLD));
     }
 
     @Override
@@ -142,6 +191,10 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         proxyAEE.setFallbackDestinationAET(LdapUtils.stringValue(attrs.get("dcmDestinationAETitle"), null));
         proxyAEE.setMergeStgCmtMessagesUsingANDLogic(LdapUtils.booleanValue(
                 attrs.get("dcmMergeStgCmtMessagesUsingANDLogic"), Boolean.FALSE));
+        proxyAEE.setSpoolHighWatermark(LdapUtils.intValue(attrs.get("dcmSpoolHighWatermark"), 0));
+        proxyAEE.setSpoolLowWatermark(LdapUtils.intValue(attrs.get("dcmSpoolLowWatermark"), 0));
+        proxyAEE.setSpoolHighWatermarkObjects(LdapUtils.intValue(attrs.get("dcmSpoolHighWatermarkObjects"), 0));
+        proxyAEE.setSpoolLowWatermarkObjects(LdapUtils.intValue(attrs.get("dcmSpoolLowWatermarkObjects"), 0));
     }
 
     @Override
@@ -208,6 +261,12 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
                 ForwardOption fwdOption = new ForwardOption();
                 fwdOption.setDescription(LdapUtils.stringValue(attrs.get("dicomDescription"), null));
                 fwdOption.setConvertEmf2Sf(LdapUtils.booleanValue(attrs.get("dcmConvertEmf2Sf"), false));
+                fwdOption.setMaxParallelAssociations(LdapUtils.intValue(attrs.get("dcmMaxParallelAssociations"),
+                        ForwardOption.DEFAULT_MAX_PARALLEL_ASSOCIATIONS));
+                fwdOption.setSpoolHighWatermark(LdapUtils.intValue(attrs.get("dcmSpoolHighWatermark"), 0));
+                fwdOption.setSpoolLowWatermark(LdapUtils.intValue(attrs.get("dcmSpoolLowWatermark"), 0));
+                fwdOption.setSpoolHighWatermarkObjects(LdapUtils.intValue(attrs.get("dcmSpoolHighWatermarkObjects"), 0));
+                fwdOption.setSpoolLowWatermarkObjects(LdapUtils.intValue(attrs.get("dcmSpoolLowWatermarkObjects"), 0));
                 Schedule schedule = new Schedule();
                 schedule.setDays(LdapUtils.stringValue(attrs.get("dcmScheduleDays"), null));
                 schedule.setHours(LdapUtils.stringValue(attrs.get("dcmScheduleHours"), null));
@@ -317,6 +376,12 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         LdapUtils.storeNotNull(attrs, "dcmScheduleHours", forwardOptionEntry.getValue().getSchedule().getHours());
         LdapUtils.storeNotNull(attrs, "dicomDescription", forwardOptionEntry.getValue().getDescription());
         LdapUtils.storeNotNull(attrs, "dcmConvertEmf2Sf", forwardOptionEntry.getValue().isConvertEmf2Sf());
+        LdapUtils.storeNotDef(attrs, "dcmMaxParallelAssociations", forwardOptionEntry.getValue()
+                .getMaxParallelAssociations(), ForwardOption.DEFAULT_MAX_PARALLEL_ASSOCIATIONS);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolHighWatermark", forwardOptionEntry.getValue().getSpoolHighWatermark(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolLowWatermark", forwardOptionEntry.getValue().getSpoolLowWatermark(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolHighWatermarkObjects", forwardOptionEntry.getValue().getSpoolHighWatermarkObjects(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmSpoolLowWatermarkObjects", forwardOptionEntry.getValue().getSpoolLowWatermarkObjects(), 0);
         LdapUtils.storeNotNull(attrs, "dcmDestinationAETitle", forwardOptionEntry.getKey());
         return attrs;
     }
@@ -356,6 +421,10 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
                 pb.getFallbackDestinationAET());
         LdapUtils.storeDiff(mods, "dcmMergeStgCmtMessagesUsingANDLogic", pa.isMergeStgCmtMessagesUsingANDLogic(),
                 pb.isMergeStgCmtMessagesUsingANDLogic());
+        LdapUtils.storeDiff(mods, "dcmSpoolHighWatermark", pa.getSpoolHighWatermark(), pb.getSpoolHighWatermark(), 0);
+        LdapUtils.storeDiff(mods, "dcmSpoolLowWatermark", pa.getSpoolLowWatermark(), pb.getSpoolLowWatermark(), 0);
+        LdapUtils.storeDiff(mods, "dcmSpoolHighWatermarkObjects", pa.getSpoolHighWatermarkObjects(), pb.getSpoolHighWatermarkObjects(), 0);
+        LdapUtils.storeDiff(mods, "dcmSpoolLowWatermarkObjects", pa.getSpoolLowWatermarkObjects(), pb.getSpoolLowWatermarkObjects(), 0);
     }
 
     @Override
@@ -372,6 +441,29 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         LdapUtils.storeDiff(mods, "dcmForwardThreads", pa.getForwardThreads(), pb.getForwardThreads());
         LdapUtils.storeDiff(mods, "dcmProxyConfigurationStaleTimeout", pa.getConfigurationStaleTimeout(),
                 pb.getConfigurationStaleTimeout(), 0);
+        LdapUtils.storeDiff(mods, "dcmGroupCommitWindow", pa.getGroupCommitWindow(), pb.getGroupCommitWindow(),
+                ProxyDeviceExtension.DEFAULT_GROUP_COMMIT_WINDOW);
+        LdapUtils.storeDiff(mods, "dcmEventDrivenForwarding", pa.isEventDrivenForwarding(),
+                pb.isEventDrivenForwarding());
+        LdapUtils.storeDiff(mods, "dcmMaxForwardTasksPerDestination", pa.getMaxForwardTasksPerDestination(),
+                pb.getMaxForwardTasksPerDestination(),
+                ProxyDeviceExtension.DEFAULT_MAX_FORWARD_TASKS_PER_DESTINATION);
+        LdapUtils.storeDiff(mods, "dcmPriorityAgingInterval", pa.getPriorityAgingInterval(),
+                pb.getPriorityAgingInterval(), ProxyDeviceExtension.DEFAULT_PRIORITY_AGING_INTERVAL);
+        LdapUtils.storeDiff(mods, "dcmCircuitBreakerThreshold", pa.getCircuitBreakerThreshold(),
+                pb.getCircuitBreakerThreshold(), ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+        LdapUtils.storeDiff(mods, "dcmCircuitBreakerBackoff", pa.getCircuitBreakerBackoff(),
+                pb.getCircuitBreakerBackoff(), ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_BACKOFF);
+        LdapUtils.storeDiff(mods, "dcmCircuitBreakerMaxBackoff", pa.getCircuitBreakerMaxBackoff(),
+                pb.getCircuitBreakerMaxBackoff(), ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF);
+        LdapUtils.storeDiff(mods, "dcmAssociationIdleTimeout", pa.getAssociationIdleTimeout(),
+                pb.getAssociationIdleTimeout(), ProxyDeviceExtension.DEFAULT_ASSOCIATION_IDLE_TIMEOUT);
+        LdapUtils.storeDiff(mods, "dcmSpoolBufferSize", pa.getSpoolBufferSize(),
+                pb.getSpoolBufferSize(), ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_SIZE);
+        LdapUtils.storeDiff(mods, "dcmSpoolBufferPoolSize", pa.getSpoolBufferPoolSize(),
+                pb.getSpoolBufferPoolSize(), ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_POOL_SIZE);
+        LdapUtils.storeDiff(mods, "dcmMappedBulkDataThreshold", pa.getMappedBulkDataThreshold(),
+                pb.getMappedBulkDataThreshold(), ProxyDeviceExtension.DEFAULT_MAPPED_BULK_DATA_THRESHOLD);
     }
 
     @Override
@@ -481,6 +573,12 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         LdapUtils.storeDiff(mods, "dcmScheduleHours", a.getSchedule().getHours(), b.getSchedule().getHours());
         LdapUtils.storeDiff(mods, "dicomDescription", a.getDescription(), b.getDescription());
         LdapUtils.storeDiff(mods, "dcmConvertEmf2Sf", a.isConvertEmf2Sf(), b.isConvertEmf2Sf());
+        LdapUtils.storeDiff(mods, "dcmMaxParallelAssociations", a.getMaxParallelAssociations(),
+                b.getMaxParallelAssociations(), ForwardOption.DEFAULT_MAX_PARALLEL_ASSOCIATIONS);
+        LdapUtils.storeDiff(mods, "dcmSpoolHighWatermark", a.getSpoolHighWatermark(), b.getSpoolHighWatermark(), 0);
+        LdapUtils.storeDiff(mods, "dcmSpoolLowWatermark", a.getSpoolLowWatermark(), b.getSpoolLowWatermark(), 0);
+        LdapUtils.storeDiff(mods, "dcmSpoolHighWatermarkObjects", a.getSpoolHighWatermarkObjects(), b.getSpoolHighWatermarkObjects(), 0);
+        LdapUtils.storeDiff(mods, "dcmSpoolLowWatermarkObjects", a.getSpoolLowWatermarkObjects(), b.getSpoolLowWatermarkObjects(), 0);
         return mods;
     }
 
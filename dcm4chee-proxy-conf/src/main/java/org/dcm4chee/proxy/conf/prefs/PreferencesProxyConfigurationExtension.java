@@ -84,6 +84,28 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeNotNull(prefs, "dcmForwardThreads", proxyDev.getForwardThreads());
         PreferencesUtils.storeNotDef(prefs, "dcmProxyConfigurationStaleTimeout",
                 proxyDev.getConfigurationStaleTimeout(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmGroupCommitWindow", proxyDev.getGroupCommitWindow(),
+                ProxyDeviceExtension.DEFAULT_GROUP_COMMIT_WINDOW);
+        PreferencesUtils.storeNotNull(prefs, "dcmEventDrivenForwarding", proxyDev.isEventDrivenForwarding());
+        PreferencesUtils.storeNotDef(prefs, "dcmMaxForwardTasksPerDestination",
+                proxyDev.getMaxForwardTasksPerDestination(),
+                ProxyDeviceExtension.DEFAULT_MAX_FORWARD_TASKS_PER_DESTINATION);
+        PreferencesUtils.storeNotDef(prefs, "dcmPriorityAgingInterval", proxyDev.getPriorityAgingInterval(),
+                ProxyDeviceExtension.DEFAULT_PRIORITY_AGING_INTERVAL);
+        PreferencesUtils.storeNotDef(prefs, "dcmCircuitBreakerThreshold", proxyDev.getCircuitBreakerThreshold(),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+        PreferencesUtils.storeNotDef(prefs, "dcmCircuitBreakerBackoff", proxyDev.getCircuitBreakerBackoff(),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_BACKOFF);
+        PreferencesUtils.storeNotDef(prefs, "dcmCircuitBreakerMaxBackoff", proxyDev.getCircuitBreakerMaxBackoff(),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF);
+        PreferencesUtils.storeNotDef(prefs, "dcmAssociationIdleTimeout", proxyDev.getAssociationIdleTimeout(),
+                ProxyDeviceExtension.DEFAULT_ASSOCIATION_IDLE_TIMEOUT);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolBufferSize", proxyDev.getSpoolBufferSize(),
+                ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_SIZE);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolBufferPoolSize", proxyDev.getSpoolBufferPoolSize(),
+                ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_POOL_SIZE);
+        PreferencesUtils.storeNotDef(prefs, "dcmMappedBulkDataThreshold", proxyDev.getMappedBulkDataThreshold(),
+                ProxyDeviceExtension.DEFAULT_MAPPED_BULK_DATA_THRESHOLD);
     }
 
     @Override
@@ -106,6 +128,10 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeNotNull(prefs, "dcmDestinationAETitle", proxyAEE.getFallbackDestinationAET());
         PreferencesUtils.storeNotNull(prefs, "dcmMergeStgCmtMessagesUsingANDLogic",
                 proxyAEE.isMergeStgCmtMessagesUsingANDLogic());
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolHighWatermark", proxyAEE.getSpoolHighWatermark(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolLowWatermark", proxyAEE.getSpoolLowWatermark(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolHighWatermarkObjects", proxyAEE.getSpoolHighWatermarkObjects(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolLowWatermarkObjects", proxyAEE.getSpoolLowWatermarkObjects(), 0);
     }
 
     @Override
@@ -123,6 +149,28 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
                 ProxyDeviceExtension.DEFAULT_MAX_TIME_To_KEEP_PART_FILES));
         proxyDev.setForwardThreads(prefs.getInt("dcmForwardThreads", ProxyDeviceExtension.DEFAULT_FORWARD_THREADS));
         proxyDev.setConfigurationStaleTimeout(prefs.getInt("dcmProxyConfigurationStaleTimeout", 0));
+        proxyDev.setGroupCommitWindow(prefs.getInt("dcmGroupCommitWindow",
+                ProxyDeviceExtension.DEFAULT_GROUP_COMMIT_WINDOW));
+        proxyDev.setEventDrivenForwarding(prefs.getBoolean("dcmEventDrivenForwarding",
+                ProxyDeviceExtension.DEFAULT_EVENT_DRIVEN_FORWARDING));
+        proxyDev.setMaxForwardTasksPerDestination(prefs.getInt("dcmMaxForwardTasksPerDestination",
+                ProxyDeviceExtension.DEFAULT_MAX_FORWARD_TASKS_PER_DESTINATION));
+        proxyDev.setPriorityAgingInterval(prefs.getInt("dcmPriorityAgingInterval",
+                ProxyDeviceExtension.DEFAULT_PRIORITY_AGING_INTERVAL));
+        proxyDev.setCircuitBreakerThreshold(prefs.getInt("dcmCircuitBreakerThreshold",
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_THRESHOLD));
+        proxyDev.setCircuitBreakerBackoff(prefs.getInt("dcmCircuitBreakerBackoff",
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_BACKOFF));
+        proxyDev.setCircuitBreakerMaxBackoff(prefs.getInt("dcmCircuitBreakerMaxBackoff",
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF));
+        proxyDev.setAssociationIdleTimeout(prefs.getInt("dcmAssociationIdleTimeout",
+                ProxyDeviceExtension.DEFAULT_ASSOCIATION_IDLE_TIMEOUT));
+        proxyDev.setSpoolBufferSize(prefs.getInt("dcmSpoolBufferSize",
+                ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_SIZE));
+        proxyDev.setSpoolBufferPoolSize(prefs.getInt("dcmSpoolBufferPoolSize",
+                ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_POOL_SIZE));
+        proxyDev.setMappedBulkDataThreshold(prefs.getInt("dcmMappedBulkDataThreshold",
+                ProxyDeviceExtension.DEFAULT_MAPPED_BULK_DATA_THRESHOLD));
     }
 
     @Override
@@ -141,6 +189,10 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
                 "dcmDeleteFailedDataWithoutRetryConfiguration", false));
         proxyAEE.setFallbackDestinationAET(prefs.get("dcmDestinationAETitle", null));
         proxyAEE.setMergeStgCmtMessagesUsingANDLogic(prefs.getBoolean("dcmMergeStgCmtMessagesUsingANDLogic", false));
+        proxyAEE.setSpoolHighWatermark(prefs.getInt("dcmSpoolHighWatermark", 0));
+        proxyAEE.setSpoolLowWatermark(prefs.getInt("dcmSpoolLowWatermark", 0));
+        proxyAEE.setSpoolHighWatermarkObjects(prefs.getInt("dcmSpoolHighWatermarkObjects", 0));
+        proxyAEE.setSpoolLowWatermarkObjects(prefs.getInt("dcmSpoolLowWatermarkObjects", 0));
     }
 
     @Override
@@ -200,6 +252,12 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
             ForwardOption fwdOption = new ForwardOption();
             fwdOption.setDescription(fwdOptionNode.get("dicomDescription", null));
             fwdOption.setConvertEmf2Sf(fwdOptionNode.getBoolean("dcmConvertEmf2Sf", false));
+            fwdOption.setMaxParallelAssociations(fwdOptionNode.getInt("dcmMaxParallelAssociations",
+                    ForwardOption.DEFAULT_MAX_PARALLEL_ASSOCIATIONS));
+            fwdOption.setSpoolHighWatermark(fwdOptionNode.getInt("dcmSpoolHighWatermark", 0));
+            fwdOption.setSpoolLowWatermark(fwdOptionNode.getInt("dcmSpoolLowWatermark", 0));
+            fwdOption.setSpoolHighWatermarkObjects(fwdOptionNode.getInt("dcmSpoolHighWatermarkObjects", 0));
+            fwdOption.setSpoolLowWatermarkObjects(fwdOptionNode.getInt("dcmSpoolLowWatermarkObjects", 0));
             Schedule schedule = new Schedule();
             schedule.setDays(fwdOptionNode.get("dcmScheduleDays", null));
             schedule.setHours(fwdOptionNode.get("dcmScheduleHours", null));
@@ -279,6 +337,12 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeNotNull(prefs, "dcmScheduleHours", fwdOptionEntry.getValue().getSchedule().getHours());
         PreferencesUtils.storeNotNull(prefs, "dicomDescription", fwdOptionEntry.getValue().getDescription());
         PreferencesUtils.storeNotNull(prefs, "dcmConvertEmf2Sf", fwdOptionEntry.getValue().isConvertEmf2Sf());
+        PreferencesUtils.storeNotDef(prefs, "dcmMaxParallelAssociations", fwdOptionEntry.getValue()
+                .getMaxParallelAssociations(), ForwardOption.DEFAULT_MAX_PARALLEL_ASSOCIATIONS);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolHighWatermark", fwdOptionEntry.getValue().getSpoolHighWatermark(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolLowWatermark", fwdOptionEntry.getValue().getSpoolLowWatermark(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolHighWatermarkObjects", fwdOptionEntry.getValue().getSpoolHighWatermarkObjects(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmSpoolLowWatermarkObjects", fwdOptionEntry.getValue().getSpoolLowWatermarkObjects(), 0);
         PreferencesUtils.storeNotNull(prefs, "dcmDestinationAETitle", fwdOptionEntry.getKey());
     }
 
@@ -316,6 +380,10 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
                 pb.getFallbackDestinationAET());
         PreferencesUtils.storeDiff(prefs, "dcmMergeStgCmtMessagesUsingANDLogic",
                 pa.isMergeStgCmtMessagesUsingANDLogic(), pb.isMergeStgCmtMessagesUsingANDLogic());
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolHighWatermark", pa.getSpoolHighWatermark(), pb.getSpoolHighWatermark(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolLowWatermark", pa.getSpoolLowWatermark(), pb.getSpoolLowWatermark(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolHighWatermarkObjects", pa.getSpoolHighWatermarkObjects(), pb.getSpoolHighWatermarkObjects(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolLowWatermarkObjects", pa.getSpoolLowWatermarkObjects(), pb.getSpoolLowWatermarkObjects(), 0);
     }
 
     @Override
@@ -332,6 +400,29 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeDiff(prefs, "dcmForwardThreads", pa.getForwardThreads(), pb.getForwardThreads());
         PreferencesUtils.storeDiff(prefs, "dcmProxyConfigurationStaleTimeout", pa.getConfigurationStaleTimeout(),
                 pb.getConfigurationStaleTimeout(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmGroupCommitWindow", pa.getGroupCommitWindow(),
+                pb.getGroupCommitWindow(), ProxyDeviceExtension.DEFAULT_GROUP_COMMIT_WINDOW);
+        PreferencesUtils.storeDiff(prefs, "dcmEventDrivenForwarding", pa.isEventDrivenForwarding(),
+                pb.isEventDrivenForwarding());
+        PreferencesUtils.storeDiff(prefs, "dcmMaxForwardTasksPerDestination", pa.getMaxForwardTasksPerDestination(),
+                pb.getMaxForwardTasksPerDestination(),
+                ProxyDeviceExtension.DEFAULT_MAX_FORWARD_TASKS_PER_DESTINATION);
+        PreferencesUtils.storeDiff(prefs, "dcmPriorityAgingInterval", pa.getPriorityAgingInterval(),
+                pb.getPriorityAgingInterval(), ProxyDeviceExtension.DEFAULT_PRIORITY_AGING_INTERVAL);
+        PreferencesUtils.storeDiff(prefs, "dcmCircuitBreakerThreshold", pa.getCircuitBreakerThreshold(),
+                pb.getCircuitBreakerThreshold(), ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+        PreferencesUtils.storeDiff(prefs, "dcmCircuitBreakerBackoff", pa.getCircuitBreakerBackoff(),
+                pb.getCircuitBreakerBackoff(), ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_BACKOFF);
+        PreferencesUtils.storeDiff(prefs, "dcmCircuitBreakerMaxBackoff", pa.getCircuitBreakerMaxBackoff(),
+                pb.getCircuitBreakerMaxBackoff(), ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF);
+        PreferencesUtils.storeDiff(prefs, "dcmAssociationIdleTimeout", pa.getAssociationIdleTimeout(),
+                pb.getAssociationIdleTimeout(), ProxyDeviceExtension.DEFAULT_ASSOCIATION_IDLE_TIMEOUT);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolBufferSize", pa.getSpoolBufferSize(),
+                pb.getSpoolBufferSize(), ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_SIZE);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolBufferPoolSize", pa.getSpoolBufferPoolSize(),
+                pb.getSpoolBufferPoolSize(), ProxyDeviceExtension.DEFAULT_SPOOL_BUFFER_POOL_SIZE);
+        PreferencesUtils.storeDiff(prefs, "dcmMappedBulkDataThreshold", pa.getMappedBulkDataThreshold(),
+                pb.getMappedBulkDataThreshold(), ProxyDeviceExtension.DEFAULT_MAPPED_BULK_DATA_THRESHOLD);
     }
 
     @Override
@@ -426,6 +517,12 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeDiff(prefs, "dcmScheduleHours", a.getSchedule().getHours(), b.getSchedule().getHours());
         PreferencesUtils.storeDiff(prefs, "dicomDescription", a.getDescription(), b.getDescription());
         PreferencesUtils.storeDiff(prefs, "dcmConvertEmf2Sf", a.isConvertEmf2Sf(), b.isConvertEmf2Sf());
+        PreferencesUtils.storeDiff(prefs, "dcmMaxParallelAssociations", a.getMaxParallelAssociations(),
+                b.getMaxParallelAssociations(), ForwardOption.DEFAULT_MAX_PARALLEL_ASSOCIATIONS);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolHighWatermark", a.getSpoolHighWatermark(), b.getSpoolHighWatermark(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolLowWatermark", a.getSpoolLowWatermark(), b.getSpoolLowWatermark(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolHighWatermarkObjects", a.getSpoolHighWatermarkObjects(), b.getSpoolHighWatermarkObjects(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolLowWatermarkObjects", a.getSpoolLowWatermarkObjects(), b.getSpoolLowWatermarkObjects(), 0);
     }
 
     private void mergeRetries(List<Retry> prevRetries, List<Retry> currRetries, Preferences parentNode)
@@ -0,0 +1,165 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class BufferPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        BufferPool pool = new BufferPool(16, 2);
+        ByteBuffer buf = pool.acquire();
+        Assert.assertTrue(buf.isDirect());
+        Assert.assertEquals(16, buf.capacity());
+        buf.put(new byte[10]).flip();
+        pool.release(buf);
+        Assert.assertEquals(0, pool.getInUse());
+
+        ByteBuffer reused = pool.acquire();
+        Assert.assertSame(buf, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(16, reused.limit());
+        Assert.assertEquals(1, pool.getAllocated());
+        Assert.assertEquals(2, pool.getAcquired());
+        Assert.assertEquals(0, pool.getMisses());
+    }
+
+    @Test
+    public void testHeapBufferIfAllInUse() {
+        BufferPool pool = new BufferPool(16, 2);
+        ByteBuffer buf1 = pool.acquire();
+        ByteBuffer buf2 = pool.acquire();
+        ByteBuffer heap = pool.acquire();
+        Assert.assertTrue(buf1.isDirect());
+        Assert.assertTrue(buf2.isDirect());
+        Assert.assertFalse(heap.isDirect());
+        Assert.assertEquals(16, heap.capacity());
+        Assert.assertEquals(2, pool.getAllocated());
+        Assert.assertEquals(3, pool.getInUse());
+        Assert.assertEquals(1, pool.getMisses());
+
+        pool.release(heap);
+        pool.release(buf1);
+        pool.release(buf2);
+        Assert.assertEquals(0, pool.getInUse());
+        Assert.assertEquals(3, pool.getMaxInUse());
+
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        Assert.assertTrue(a == buf1 || a == buf2);
+        Assert.assertTrue(b == buf1 || b == buf2);
+        Assert.assertNotSame(a, b);
+        Assert.assertEquals(2, pool.getAllocated());
+        Assert.assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testForeignBufferIsNotPooled() {
+        BufferPool pool = new BufferPool(16, 1);
+        pool.release(pool.acquire());
+        ByteBuffer buf = pool.acquire();
+        pool.release(ByteBuffer.allocateDirect(32));
+        pool.release(buf);
+        Assert.assertSame(buf, pool.acquire());
+        Assert.assertFalse(pool.acquire().isDirect());
+        Assert.assertEquals(1, pool.getAllocated());
+    }
+
+    @Test
+    public void testNoPooledBuffers() {
+        BufferPool pool = new BufferPool(16, 0);
+        ByteBuffer buf = pool.acquire();
+        Assert.assertFalse(buf.isDirect());
+        pool.release(buf);
+        Assert.assertNotSame(buf, pool.acquire());
+        Assert.assertEquals(0, pool.getAllocated());
+        Assert.assertEquals(2, pool.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBufferSize() {
+        new BufferPool(0, 1);
+    }
+
+    @Test
+    public void testChannelOutputStreamReturnsBuffer() throws IOException {
+        BufferPool pool = new BufferPool(16, 1);
+        File file = folder.newFile("spool.dcm");
+        byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        ChannelOutputStream out = new ChannelOutputStream(file, pool);
+        Assert.assertEquals(1, pool.getInUse());
+        out.write(data, 0, 20);
+        out.write(data[20]);
+        out.write(data, 21, 19);
+        out.close();
+        out.close();
+        Assert.assertEquals(0, pool.getInUse());
+        Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(file.toPath())));
+        try {
+            out.write(0);
+            Assert.fail("write after close should fail");
+        } catch (IOException e) {
+        }
+
+        out = new ChannelOutputStream(file, pool);
+        out.write(data, 0, 5);
+        out.close();
+        Assert.assertEquals(5, file.length());
+        Assert.assertEquals(1, pool.getAllocated());
+        Assert.assertEquals(0, pool.getMisses());
+    }
+}
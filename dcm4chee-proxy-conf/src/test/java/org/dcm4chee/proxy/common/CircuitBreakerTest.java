@@ -0,0 +1,90 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import org.dcm4chee.proxy.common.CircuitBreaker.State;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker("DEST", 2, 1000, 8000);
+        Assert.assertFalse(breaker.recordFailure("failed", 0));
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertTrue(breaker.recordFailure("failed", 0));
+        Assert.assertEquals(State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        long next = breaker.getNextProbeTime();
+        Assert.assertTrue(next >= 500 && next <= 1000);
+        Assert.assertFalse(breaker.startProbe(next - 1));
+        Assert.assertTrue(breaker.startProbe(next));
+        Assert.assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.recordSuccess();
+        Assert.assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testConfigureKeepsState() {
+        CircuitBreaker breaker = new CircuitBreaker("DEST", 1, 1000, 8000);
+        Assert.assertTrue(breaker.recordFailure("failed", 0));
+        long next = breaker.getNextProbeTime();
+        breaker.configure(3, 60000, 600000);
+        Assert.assertEquals(State.OPEN, breaker.getState());
+        Assert.assertEquals(next, breaker.getNextProbeTime());
+        Assert.assertTrue(breaker.startProbe(next));
+        breaker.probeFailed("failed", next);
+        long backoff = breaker.getNextProbeTime() - next;
+        Assert.assertTrue("backoff " + backoff, backoff >= 60000 && backoff <= 120000);
+    }
+
+    @Test
+    public void testDisableClosesBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker("DEST", 1, 1000, 8000);
+        Assert.assertTrue(breaker.recordFailure("failed", 0));
+        breaker.configure(0, 1000, 8000);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertFalse(breaker.recordFailure("failed", 0));
+        Assert.assertTrue(breaker.allowRequest());
+    }
+}
@@ -0,0 +1,256 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardSchedulerTest {
+
+    private ExecutorService pool;
+
+    /**
+     * Collects the started workers to run them in the test thread.
+     */
+    private static class ManualExecutor implements Executor {
+
+        final List<Runnable> workers = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            workers.add(command);
+        }
+
+        void runAll() {
+            while (!workers.isEmpty())
+                workers.remove(0).run();
+        }
+    }
+
+    /**
+     * Counts running tasks per destination and blocks until released.
+     */
+    private static class Tracker {
+
+        final Map<String, Integer> running = new HashMap<String, Integer>();
+        final Map<String, Integer> maxRunning = new HashMap<String, Integer>();
+        int total;
+        int maxTotal;
+
+        Runnable task(final String destination, final CountDownLatch started, final CountDownLatch release) {
+            return new Runnable() {
+
+                @Override
+                public void run() {
+                    enter(destination);
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        exit(destination);
+                    }
+                }
+            };
+        }
+
+        synchronized void enter(String destination) {
+            int n = get(running, destination) + 1;
+            running.put(destination, n);
+            maxRunning.put(destination, Math.max(n, get(maxRunning, destination)));
+            maxTotal = Math.max(maxTotal, ++total);
+        }
+
+        synchronized void exit(String destination) {
+            running.put(destination, get(running, destination) - 1);
+            total--;
+        }
+
+        synchronized int maxRunning(String destination) {
+            return get(maxRunning, destination);
+        }
+
+        private static int get(Map<String, Integer> map, String key) {
+            Integer value = map.get(key);
+            return value != null ? value : 0;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private static Runnable record(final List<String> order, final String destination) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                order.add(destination);
+            }
+        };
+    }
+
+    @Test
+    public void testStrideOrderByWeight() {
+        ManualExecutor executor = new ManualExecutor();
+        ForwardScheduler scheduler = new ForwardScheduler(executor, 1, 1);
+        List<String> order = new ArrayList<String>();
+        for (int i = 0; i < 20; i++)
+            scheduler.execute("A", null, 2, record(order, "A"));
+        for (int i = 0; i < 10; i++)
+            scheduler.execute("B", null, 1, record(order, "B"));
+        Assert.assertEquals(1, executor.workers.size());
+        executor.runAll();
+        Assert.assertEquals(30, order.size());
+        int a = 0;
+        for (int n = 1; n <= order.size(); n++) {
+            if (order.get(n - 1).equals("A"))
+                a++;
+            Assert.assertTrue("A ran " + a + " of first " + n + ": " + order, Math.abs(3 * a - 2 * n) <= 3);
+        }
+    }
+
+    @Test
+    public void testNewDestinationDoesNotCatchUp() {
+        ManualExecutor executor = new ManualExecutor();
+        final ForwardScheduler scheduler = new ForwardScheduler(executor, 1, 1);
+        final List<String> order = new ArrayList<String>();
+        for (int i = 0; i < 5; i++)
+            scheduler.execute("A", null, 1, record(order, "A"));
+        // queue B after A has run 5 tasks, while 5 more A tasks are queued
+        scheduler.execute("A", null, 1, new Runnable() {
+
+            @Override
+            public void run() {
+                order.add("A");
+                for (int i = 0; i < 5; i++)
+                    scheduler.execute("B", null, 1, record(order, "B"));
+            }
+        });
+        for (int i = 0; i < 5; i++)
+            scheduler.execute("A", null, 1, record(order, "A"));
+        executor.runAll();
+        Assert.assertEquals(16, order.size());
+        List<String> tail = order.subList(6, 12);
+        Assert.assertEquals("B must not monopolize the worker: " + order, 3, Collections.frequency(tail, "B"));
+    }
+
+    @Test
+    public void testDropsQueuedDuplicateKeys() {
+        ManualExecutor executor = new ManualExecutor();
+        ForwardScheduler scheduler = new ForwardScheduler(executor, 1, 1);
+        List<String> order = new ArrayList<String>();
+        Assert.assertTrue(scheduler.execute("A", "key", 1, record(order, "A")));
+        Assert.assertFalse(scheduler.execute("A", "key", 1, record(order, "A")));
+        Assert.assertEquals(1, scheduler.getQueueSize("A"));
+        executor.runAll();
+        Assert.assertEquals(1, order.size());
+        Assert.assertTrue(scheduler.execute("A", "key", 1, record(order, "A")));
+    }
+
+    @Test
+    public void testBoundsPerDestinationAndWorkers() throws Exception {
+        ForwardScheduler scheduler = new ForwardScheduler(pool, 3, 2);
+        Tracker tracker = new Tracker();
+        CountDownLatch releaseA = new CountDownLatch(1);
+        CountDownLatch startedA = new CountDownLatch(2);
+        for (int i = 0; i < 6; i++)
+            scheduler.execute("A", null, 1, tracker.task("A", startedA, releaseA));
+        Assert.assertTrue(startedA.await(5, TimeUnit.SECONDS));
+        // a slow destination does not occupy all workers
+        CountDownLatch startedB = new CountDownLatch(1);
+        scheduler.execute("B", null, 1, tracker.task("B", startedB, new CountDownLatch(0)));
+        Assert.assertTrue(startedB.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(2, scheduler.getRunning("A"));
+        releaseA.countDown();
+        waitForIdle(scheduler, "A");
+        Assert.assertEquals(2, tracker.maxRunning("A"));
+        Assert.assertTrue(tracker.maxTotal <= 3);
+    }
+
+    @Test
+    public void testSetLimitsKeepsQueuedTasks() throws Exception {
+        ForwardScheduler scheduler = new ForwardScheduler(pool, 4, 1);
+        Tracker tracker = new Tracker();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++)
+            scheduler.execute("A", null, 1, tracker.task("A", started, release));
+        Thread.sleep(100);
+        Assert.assertEquals(1, scheduler.getRunning("A"));
+        Assert.assertEquals(2, scheduler.getQueueSize("A"));
+        scheduler.setLimits(4, 3);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(3, scheduler.getRunning("A"));
+        release.countDown();
+        waitForIdle(scheduler, "A");
+        Assert.assertEquals(3, tracker.maxRunning("A"));
+    }
+
+    private static void waitForIdle(ForwardScheduler scheduler, String destination) throws InterruptedException {
+        for (int i = 0; i < 500 && (scheduler.getRunning(destination) > 0 || scheduler.getQueueSize(destination) > 0); i++)
+            Thread.sleep(10);
+        Assert.assertEquals(0, scheduler.getRunning(destination));
+        Assert.assertEquals(0, scheduler.getQueueSize(destination));
+    }
+}
@@ -0,0 +1,226 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class GroupCommitTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    private static class CountingGroupCommit extends GroupCommit {
+
+        final ConcurrentHashMap<File, AtomicInteger> forced = new ConcurrentHashMap<File, AtomicInteger>();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        volatile long forceMillis;
+
+        CountingGroupCommit(int window) {
+            super(window);
+        }
+
+        @Override
+        protected void force(File file) throws IOException {
+            int n = running.incrementAndGet();
+            while (maxRunning.get() < n)
+                maxRunning.compareAndSet(maxRunning.get(), n);
+            try {
+                AtomicInteger count = forced.putIfAbsent(file, new AtomicInteger(1));
+                if (count != null)
+                    count.incrementAndGet();
+                if (forceMillis > 0)
+                    Thread.sleep(forceMillis);
+                super.force(file);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        int forced(File file) {
+            AtomicInteger count = forced.get(file.getAbsoluteFile());
+            return count != null ? count.get() : 0;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    private File newFile(String name) throws IOException {
+        File file = new File(dir, name);
+        file.createNewFile();
+        return file;
+    }
+
+    @Test
+    public void testBatchesConcurrentRequests() throws Exception {
+        final CountingGroupCommit groupCommit = new CountingGroupCommit(500);
+        groupCommit.forceMillis = 50;
+        final File journal = newFile("journal");
+        final int n = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < n; i++) {
+            final File file = newFile("file" + i);
+            files.add(file);
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        groupCommit.sync(file, journal);
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        for (File file : files)
+            Assert.assertEquals(1, groupCommit.forced(file));
+        Assert.assertTrue("journal forced " + groupCommit.forced(journal) + " times",
+                groupCommit.forced(journal) < n);
+        Assert.assertTrue("files forced sequentially", groupCommit.maxRunning.get() > 1);
+    }
+
+    @Test
+    public void testFailureOnlyAffectsRequestsOfFile() throws Exception {
+        GroupCommit groupCommit = new GroupCommit(0);
+        File file = newFile("file");
+        File missing = new File(dir, "missing");
+        groupCommit.sync(file);
+        try {
+            groupCommit.sync(file, missing);
+            Assert.fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+        groupCommit.sync(file);
+    }
+
+    @Test
+    public void testInterruptedRequestIsRemoved() throws Exception {
+        final CountDownLatch forcing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final File blocking = newFile("blocking");
+        final CountingGroupCommit groupCommit = new CountingGroupCommit(0) {
+
+            @Override
+            protected void force(File file) throws IOException {
+                if (file.equals(blocking.getAbsoluteFile())) {
+                    forcing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                super.force(file);
+            }
+        };
+        Thread leader = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    groupCommit.sync(blocking);
+                } catch (IOException e) {
+                }
+            }
+        };
+        leader.start();
+        forcing.await();
+        final File abandoned = newFile("abandoned");
+        final IOException[] thrown = new IOException[1];
+        Thread follower = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    groupCommit.sync(abandoned);
+                } catch (IOException e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+        follower.start();
+        Thread.sleep(100);
+        follower.interrupt();
+        follower.join();
+        Assert.assertTrue(thrown[0] instanceof InterruptedIOException);
+        release.countDown();
+        leader.join();
+        File next = newFile("next");
+        groupCommit.sync(next);
+        Assert.assertEquals(1, groupCommit.forced(next));
+        Assert.assertEquals(0, groupCommit.forced(abandoned));
+    }
+}
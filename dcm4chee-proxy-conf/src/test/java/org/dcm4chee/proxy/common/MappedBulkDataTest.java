@@ -0,0 +1,152 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class MappedBulkDataTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("spool.dcm");
+        data = new byte[256];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        Files.write(file.toPath(), data);
+    }
+
+    private BulkData bulkData(long offset, long length) {
+        return new BulkData(null, file.toURI() + "?offset=" + offset + "&length=" + length, false);
+    }
+
+    private static byte[] write(Object value) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DicomOutputStream out = new DicomOutputStream(bout, UID.ExplicitVRLittleEndian);
+        ((BulkData) value).writeTo(out, VR.OW);
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    @Test
+    public void testMapWritesRegionOfFile() throws IOException {
+        Attributes attrs = new Attributes();
+        attrs.setValue(Tag.PixelData, VR.OW, bulkData(16, 64));
+        MappedBulkData.map(attrs, 64);
+        Object value = attrs.getValue(Tag.PixelData);
+        Assert.assertTrue(value instanceof MappedBulkData);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 16, 80), write(value)));
+
+        MappedBulkData.map(attrs, 64);
+        Assert.assertSame(value, attrs.getValue(Tag.PixelData));
+    }
+
+    @Test
+    public void testKeepBulkDataBelowThreshold() {
+        Attributes attrs = new Attributes();
+        BulkData small = bulkData(16, 62);
+        BulkData odd = bulkData(16, 129);
+        attrs.setValue(Tag.PixelData, VR.OW, small);
+        attrs.setValue(Tag.EncapsulatedDocument, VR.OB, odd);
+        MappedBulkData.map(attrs, 64);
+        Assert.assertSame(small, attrs.getValue(Tag.PixelData));
+        Assert.assertSame(odd, attrs.getValue(Tag.EncapsulatedDocument));
+
+        BulkData large = bulkData(0, 128);
+        attrs.setValue(Tag.PixelData, VR.OW, large);
+        MappedBulkData.map(attrs, 0);
+        Assert.assertSame(large, attrs.getValue(Tag.PixelData));
+    }
+
+    @Test
+    public void testKeepBulkDataWithoutOffset() {
+        Attributes attrs = new Attributes();
+        BulkData whole = new BulkData(null, file.toURI().toString(), false);
+        BulkData other = new BulkData(null, "http://localhost/bulkdata?offset=0&length=128", false);
+        attrs.setValue(Tag.PixelData, VR.OW, whole);
+        attrs.setValue(Tag.EncapsulatedDocument, VR.OB, other);
+        MappedBulkData.map(attrs, 64);
+        Assert.assertSame(whole, attrs.getValue(Tag.PixelData));
+        Assert.assertSame(other, attrs.getValue(Tag.EncapsulatedDocument));
+    }
+
+    @Test
+    public void testMapFragmentsAndNestedDatasets() throws IOException {
+        Attributes attrs = new Attributes();
+        Fragments fragments = attrs.newFragments(Tag.PixelData, VR.OB, 2);
+        fragments.add(new byte[0]);
+        fragments.add(bulkData(0, 128));
+        Attributes item = new Attributes();
+        item.setValue(Tag.PixelData, VR.OW, bulkData(128, 128));
+        attrs.newSequence(Tag.RequestAttributesSequence, 1).add(item);
+
+        MappedBulkData.map(attrs, 64);
+        Assert.assertTrue(fragments.get(0) instanceof byte[]);
+        Assert.assertTrue(fragments.get(1) instanceof MappedBulkData);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 0, 128), write(fragments.get(1))));
+        Object nested = item.getValue(Tag.PixelData);
+        Assert.assertTrue(nested instanceof MappedBulkData);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 128, 256), write(nested)));
+    }
+}
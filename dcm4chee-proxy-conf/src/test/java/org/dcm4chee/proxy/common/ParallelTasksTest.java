@@ -0,0 +1,150 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ParallelTasksTest {
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testParallelWithDefaultForwardLimits() throws Exception {
+        final int n = 4;
+        ProxyDeviceExtension proxyDev = new ProxyDeviceExtension();
+        proxyDev.setForwardThreads(ProxyDeviceExtension.DEFAULT_FORWARD_THREADS);
+        ForwardScheduler scheduler = proxyDev.getForwardScheduler();
+        Assert.assertEquals(1, scheduler.getMaxTasksPerDestination());
+        final CountDownLatch associations = new CountDownLatch(n);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final List<Runnable> shards = new ArrayList<Runnable>();
+        for (int i = 0; i < n; i++)
+            shards.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    associations.countDown();
+                    try {
+                        // holds the association until all are open
+                        if (associations.await(5, TimeUnit.SECONDS))
+                            concurrent.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.execute("DEST", null, n, new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    ParallelTasks.run(pool, shards);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        try {
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(n, concurrent.get());
+        } finally {
+            proxyDev.getFileForwardingExecutor().shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCallerRunsTasksNotStarted() throws Exception {
+        final List<Runnable> started = new ArrayList<Runnable>();
+        Executor idle = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                started.add(command);
+            }
+        };
+        final List<Integer> order = new ArrayList<Integer>();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < 3; i++) {
+            final int index = i;
+            tasks.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    order.add(index);
+                }
+            });
+        }
+        ParallelTasks.run(idle, tasks);
+        Assert.assertEquals(2, started.size());
+        Assert.assertEquals("[0, 1, 2]", order.toString());
+
+        // started too late by the executor
+        for (Runnable task : started)
+            task.run();
+        Assert.assertEquals(3, order.size());
+    }
+}
@@ -0,0 +1,97 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RetryRecordTest {
+
+    @Test
+    public void testEmpty() {
+        Properties prop = new Properties();
+        prop.setProperty("source-aet", "STORESCU");
+        RetryRecord record = RetryRecord.valueOf(prop);
+        Assert.assertTrue(record.isEmpty());
+        Assert.assertEquals(0, record.getAttempts());
+        record.storeTo(prop);
+        Assert.assertEquals(1, prop.size());
+        Assert.assertFalse(RetryRecord.removeFrom(prop));
+    }
+
+    @Test
+    public void testStoreAndLoad() {
+        RetryRecord record = new RetryRecord();
+        record.setAttempts(".conn", 2);
+        record.failed("a700", 1000L, 5000L);
+        record.failed("a700", 6000L, 16000L);
+        Properties prop = new Properties();
+        prop.setProperty("source-aet", "STORESCU");
+        record.storeTo(prop);
+
+        RetryRecord loaded = RetryRecord.valueOf(prop);
+        Assert.assertFalse(loaded.isEmpty());
+        Assert.assertEquals("a700", loaded.getLastError());
+        Assert.assertEquals(2, loaded.getAttempts());
+        Assert.assertEquals(2, loaded.getAttempts(".conn"));
+        Assert.assertEquals(16000L, loaded.getNextEligibleTime());
+        Assert.assertEquals(record.getHistory(), loaded.getHistory());
+        Assert.assertEquals("6000 a700", loaded.getHistory().get(1));
+
+        Assert.assertTrue(RetryRecord.removeFrom(prop));
+        Assert.assertEquals(1, prop.size());
+        Assert.assertTrue(RetryRecord.valueOf(prop).isEmpty());
+    }
+
+    @Test
+    public void testHistoryIsLimited() {
+        RetryRecord record = new RetryRecord();
+        for (int i = 0; i < 15; i++)
+            record.failed(".ase", i, i + 1);
+        Assert.assertEquals(15, record.getAttempts());
+        Assert.assertEquals(10, record.getHistory().size());
+        Assert.assertEquals("5 .ase", record.getHistory().get(0));
+        Assert.assertEquals("14 .ase", record.getHistory().get(9));
+    }
+}
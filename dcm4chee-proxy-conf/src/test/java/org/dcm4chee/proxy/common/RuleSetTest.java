@@ -0,0 +1,180 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RuleSetTest {
+
+    private static Attributes dataset(String modality, String sliceThickness) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.Modality, VR.CS, modality);
+        if (sliceThickness != null)
+            attrs.setString(Tag.SliceThickness, VR.DS, sliceThickness);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        attrs.setString(Tag.AccessionNumber, VR.SH, "ACC-4711");
+        Attributes item = new Attributes();
+        item.setString(Tag.ScheduledProcedureStepID, VR.SH, "SPS1");
+        attrs.newSequence(Tag.RequestAttributesSequence, 1).add(item);
+        return attrs;
+    }
+
+    private static List<String> route(String rules, Attributes data) throws IOException {
+        return RuleSet.compile("test", rules).route(data, "SCU", "PROXY");
+    }
+
+    private static boolean matches(String condition, Attributes data) throws IOException {
+        return !route("if " + condition + " then destination MATCH", data).isEmpty();
+    }
+
+    private static void assertParseError(String rules, String expected) {
+        try {
+            RuleSet.compile("test.rules", rules);
+            Assert.fail("should not compile: " + rules);
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith(expected));
+        }
+    }
+
+    @Test
+    public void testParseErrors() {
+        assertParseError("# comment\n\nelse destination A", "test.rules:3: else without preceding rule");
+        assertParseError("destination A\nif Modality = CT then\n", "test.rules:2: invalid action");
+        assertParseError("if NoSuchKeyword = CT then destination A", "test.rules:1: unknown attribute: NoSuchKeyword");
+        assertParseError("destination A\n  # comment\nif Modality ~ [ then destination B",
+                "test.rules:3: invalid regular expression");
+        assertParseError("if SliceThickness < thin then destination A", "test.rules:1: invalid number");
+        assertParseError("if Modality then destination A", "test.rules:1: invalid condition");
+        assertParseError("set NoSuchKeyword = X", "test.rules:1: unknown attribute");
+    }
+
+    @Test
+    public void testValueConditions() throws IOException {
+        Attributes data = dataset("CT", "2.5");
+        Assert.assertTrue(matches("Modality = CT", data));
+        Assert.assertTrue(matches("Modality = MR|CT", data));
+        Assert.assertFalse(matches("Modality = MR|US", data));
+        Assert.assertTrue(matches("Modality != MR|US", data));
+        Assert.assertFalse(matches("Modality != CT", data));
+        Assert.assertTrue(matches("00080060 = CT", data));
+        Assert.assertTrue(matches("SliceThickness < 8", data));
+        Assert.assertFalse(matches("SliceThickness > 8", data));
+        Assert.assertFalse(matches("SliceThickness < 8", dataset("CT", null)));
+        Assert.assertTrue(matches("SliceThickness absent", dataset("CT", null)));
+        Assert.assertTrue(matches("SliceThickness present", data));
+        Assert.assertTrue(matches("RequestAttributesSequence/ScheduledProcedureStepID = SPS1", data));
+        Assert.assertTrue(matches("$callingAET = SCU and $calledAET = PROXY", data));
+        Assert.assertFalse(matches("$callingAET = SCU and Modality = MR", data));
+    }
+
+    @Test
+    public void testRegexConditions() throws IOException {
+        Attributes data = dataset("CT", null);
+        Assert.assertTrue(matches("AccessionNumber ~ ACC-\\d+", data));
+        // the whole value must match
+        Assert.assertFalse(matches("AccessionNumber ~ \\d+", data));
+        Assert.assertFalse(matches("StudyDescription ~ .*", data));
+        Assert.assertTrue(matches("$callingAET ~ S.U", data));
+    }
+
+    @Test
+    public void testElseChaining() throws IOException {
+        String rules = "if Modality = CT and SliceThickness < 8 then destination THIN\n"
+                + "else if Modality = CT then destination THICK\n"
+                + "else destination OTHER\n"
+                + "if Modality = MR then destination MR\n"
+                + "else destination NOT-MR";
+        Assert.assertEquals(Arrays.asList("THIN", "NOT-MR"), route(rules, dataset("CT", "2")));
+        Assert.assertEquals(Arrays.asList("THICK", "NOT-MR"), route(rules, dataset("CT", "10")));
+        Assert.assertEquals(Arrays.asList("OTHER", "MR"), route(rules, dataset("MR", null)));
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        String dir = new File("src/main/config/conf").getAbsolutePath();
+        RuleSet slice = RuleSet.load(dir + "/dcm4chee-proxy-slice-thickness-destination-aet.rules");
+        Assert.assertEquals(Collections.singletonList("THIN-SLICE-AET"), slice.route(dataset("CT", "5"), null, null));
+        Assert.assertEquals(Collections.singletonList("THICK-SLICE-AET"), slice.route(dataset("CT", "8"), null, null));
+        Assert.assertEquals(Collections.singletonList("OTHER-AET"), slice.route(dataset("US", "5"), null, null));
+        RuleSet modality = RuleSet.load(dir + "/dcm4chee-proxy-destination-aet.rules");
+        Assert.assertEquals(Arrays.asList("AET1", "AET2"), modality.route(dataset("MR", null), null, null));
+        Assert.assertEquals(Collections.singletonList("AET3"), modality.route(dataset("CT", null), null, null));
+        // duplicate destinations are returned once
+        Assert.assertEquals(Collections.singletonList("A"),
+                route("destination A, A\nif Modality = CT then destination A", dataset("CT", null)));
+    }
+
+    @Test
+    public void testCoercion() throws IOException {
+        RuleSet rules = RuleSet.compile("test", "if PatientID absent then copy StudyInstanceUID to PatientID\n"
+                + "if PatientID absent then set IssuerOfPatientID = DCM4CHEE-PROXY\n"
+                + "set OtherPatientIDs = A\\B\n"
+                + "copy RequestAttributesSequence/ScheduledProcedureStepID to StudyDescription\n"
+                + "clear AccessionNumber\n"
+                + "if Modality = MR then set BodyPartExamined = HEAD");
+        Attributes data = dataset("CT", null);
+        Attributes original = new Attributes(data);
+        Attributes modify = new Attributes();
+        rules.coerce(data, "SCU", "PROXY", modify);
+        // conditions and copies refer to the original dataset
+        Assert.assertEquals(original, data);
+        Assert.assertEquals("1.2.3", modify.getString(Tag.PatientID));
+        Assert.assertEquals("DCM4CHEE-PROXY", modify.getString(Tag.IssuerOfPatientID));
+        Assert.assertArrayEquals(new String[] { "A", "B" }, modify.getStrings(Tag.OtherPatientIDs));
+        Assert.assertEquals("SPS1", modify.getString(Tag.StudyDescription));
+        Assert.assertTrue(modify.contains(Tag.AccessionNumber));
+        Assert.assertNull(modify.getString(Tag.AccessionNumber));
+        Assert.assertFalse(modify.contains(Tag.BodyPartExamined));
+        // routing ignores coercion actions
+        Assert.assertTrue(rules.route(data, null, null).isEmpty());
+    }
+}
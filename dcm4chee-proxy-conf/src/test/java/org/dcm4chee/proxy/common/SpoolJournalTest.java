@@ -0,0 +1,235 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File baseDir;
+    private SpoolJournal journal;
+
+    /**
+     * Holds back compactions until the test runs them.
+     */
+    private static class ManualExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.remove(0).run();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        baseDir = folder.getRoot();
+    }
+
+    @After
+    public void tearDown() {
+        if (journal != null)
+            journal.close();
+    }
+
+    private File spoolFile(String destination, String name) throws IOException {
+        File dir = new File(baseDir, destination);
+        dir.mkdirs();
+        File file = new File(dir, name);
+        Files.write(file.toPath(), new byte[10]);
+        return file;
+    }
+
+    private static Properties prop(String iuid) {
+        Properties prop = new Properties();
+        prop.setProperty("sop-instance-uid", iuid);
+        prop.setProperty("sop-class-uid", "1.2.840.10008.5.1.4.1.1.7");
+        return prop;
+    }
+
+    private SpoolJournal reopen() throws IOException {
+        journal.close();
+        journal = new SpoolJournal(baseDir);
+        return journal;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        journal = new SpoolJournal(baseDir);
+        File a = spoolFile("DEST", "1.dcm");
+        File b = spoolFile("DEST", "2.dcm");
+        journal.put(a, prop("1"));
+        journal.put(b, prop("2"));
+        journal.put(a, prop("1.1"));
+        Assert.assertTrue(journal.remove(b));
+        Assert.assertFalse(journal.remove(b));
+
+        reopen();
+        Assert.assertEquals(1, journal.size());
+        Assert.assertEquals(prop("1.1"), journal.get(a));
+        // the entry is kept when the file is renamed by its suffix
+        Assert.assertEquals(prop("1.1"), journal.get(new File(a.getParentFile(), "1.snd")));
+        Assert.assertNull(journal.get(b));
+        Assert.assertEquals(1, journal.getUsage("DEST").objects);
+        Assert.assertEquals(10, journal.getUsage(null).bytes);
+    }
+
+    @Test
+    public void testCompactionKeepsRecordsAppendedMeanwhile() throws Exception {
+        ManualExecutor compactor = new ManualExecutor();
+        journal = new SpoolJournal(baseDir, compactor);
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 1200; i++) {
+            File f = spoolFile("DEST", i + ".dcm");
+            files.add(f);
+            journal.put(f, prop(Integer.toString(i)));
+        }
+        for (int i = 0; compactor.tasks.isEmpty(); i++)
+            journal.remove(files.get(i));
+        long length = journal.getFile().length();
+
+        // appended while the snapshot is written
+        File added = spoolFile("DEST", "added.dcm");
+        journal.put(added, prop("added"));
+        journal.remove(files.get(files.size() - 1));
+        int expected = journal.size();
+
+        compactor.runAll();
+        journal.awaitCompaction();
+        Assert.assertTrue(journal.getFile().length() < length);
+        Assert.assertFalse(new File(baseDir, SpoolJournal.JOURNAL_FILE_NAME + ".tmp").exists());
+        // records after the swap go to the new file
+        File later = spoolFile("DEST", "later.dcm");
+        journal.put(later, prop("later"));
+
+        reopen();
+        Assert.assertEquals(expected + 1, journal.size());
+        Assert.assertEquals(prop("added"), journal.get(added));
+        Assert.assertEquals(prop("later"), journal.get(later));
+        Assert.assertFalse(journal.contains(files.get(files.size() - 1)));
+        Assert.assertEquals(prop("1100"), journal.get(files.get(1100)));
+    }
+
+    @Test
+    public void testCompactionAfterCloseIsDiscarded() throws Exception {
+        ManualExecutor compactor = new ManualExecutor();
+        journal = new SpoolJournal(baseDir, compactor);
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 1200; i++) {
+            File f = spoolFile("DEST", i + ".dcm");
+            files.add(f);
+            journal.put(f, prop(Integer.toString(i)));
+        }
+        for (int i = 0; compactor.tasks.isEmpty(); i++)
+            journal.remove(files.get(i));
+        int expected = journal.size();
+        journal.close();
+        compactor.runAll();
+
+        journal = new SpoolJournal(baseDir);
+        Assert.assertEquals(expected, journal.size());
+    }
+
+    @Test
+    public void testTruncatedRecord() throws Exception {
+        assertTornTail(new byte[] { 1, 0, 5, 'D', 'E' });
+    }
+
+    @Test
+    public void testInvalidUTF() throws Exception {
+        // PUT of a key which is not valid modified UTF-8
+        assertTornTail(new byte[] { 1, 0, 2, (byte) 0xC0, 0 });
+    }
+
+    @Test
+    public void testZeroFilledTail() throws Exception {
+        assertTornTail(new byte[512]);
+    }
+
+    private void assertTornTail(byte[] torn) throws Exception {
+        journal = new SpoolJournal(baseDir);
+        File a = spoolFile("DEST", "1.dcm");
+        journal.put(a, prop("1"));
+        journal.close();
+        File file = journal.getFile();
+        long length = file.length();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(torn);
+        } finally {
+            out.close();
+        }
+
+        journal = new SpoolJournal(baseDir);
+        Assert.assertEquals(length, file.length());
+        Assert.assertEquals(prop("1"), journal.get(a));
+        File b = spoolFile("DEST", "2.dcm");
+        journal.put(b, prop("2"));
+
+        reopen();
+        Assert.assertEquals(2, journal.size());
+        Assert.assertEquals(prop("2"), journal.get(b));
+    }
+}
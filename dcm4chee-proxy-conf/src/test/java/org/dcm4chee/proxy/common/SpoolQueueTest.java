@@ -0,0 +1,193 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolQueueTest {
+
+    private static final long AGING_TIME = 60000L;
+
+    private SpoolQueue queue;
+    private long base;
+
+    @Before
+    public void setUp() {
+        queue = new SpoolQueue();
+        // eligible in the future, so files age from their eligible time
+        base = System.currentTimeMillis() + 3600000L;
+    }
+
+    private static File file(String name) {
+        return new File("spool", name);
+    }
+
+    private static List<File> files(String... names) {
+        List<File> files = new ArrayList<File>(names.length);
+        for (String name : names)
+            files.add(file(name));
+        return files;
+    }
+
+    @Test
+    public void testPollsInOrderOfPriority() {
+        queue.add("AET", file("low"), base, SpoolQueue.PRIORITY_LOW);
+        queue.add("AET", file("medium"), base + 1);
+        queue.add("AET", file("high1"), base + 2, SpoolQueue.PRIORITY_HIGH);
+        queue.add("AET", file("high2"), base + 3, SpoolQueue.PRIORITY_HIGH);
+        Assert.assertEquals(4, queue.size("AET"));
+        Assert.assertEquals(files("high1", "high2", "medium", "low"), queue.pollReady("AET", base + 10));
+        Assert.assertEquals(0, queue.size());
+        Assert.assertTrue(queue.getDestinations().isEmpty());
+    }
+
+    @Test
+    public void testPollsOnlyEligibleFiles() {
+        queue.add("AET", file("later"), base + 100, SpoolQueue.PRIORITY_HIGH);
+        queue.add("AET", file("now"), base, SpoolQueue.PRIORITY_LOW);
+        Assert.assertEquals(base, queue.getNextEligibleTime("AET"));
+        Assert.assertTrue(queue.pollReady("AET", base).isEmpty());
+        Assert.assertEquals(files("now"), queue.pollReady("AET", base + 100));
+        Assert.assertEquals(base + 100, queue.getNextEligibleTime("AET"));
+        Assert.assertEquals(files("later"), queue.pollReady("AET", base + 101));
+        Assert.assertEquals(-1, queue.getNextEligibleTime("AET"));
+    }
+
+    @Test
+    public void testPollsUpToMaxFiles() {
+        for (int i = 0; i < 5; i++)
+            queue.add("AET", file("f" + i), base + i);
+        Assert.assertEquals(files("f0", "f1"), queue.pollReady("AET", base + 10, 0, 2));
+        Assert.assertEquals(files("f2", "f3", "f4"), queue.pollReady("AET", base + 10, 0, 10));
+    }
+
+    @Test
+    public void testAgingRaisesPriority() {
+        queue.add("AET", file("low"), base, SpoolQueue.PRIORITY_LOW);
+        queue.add("AET", file("medium"), base + AGING_TIME, SpoolQueue.PRIORITY_MEDIUM);
+        queue.add("AET", file("high"), base + 2 * AGING_TIME, SpoolQueue.PRIORITY_HIGH);
+        long now = base + 2 * AGING_TIME + 1;
+        // without aging, priority decides
+        Assert.assertEquals(file("high"), queue.pollReady("AET", now, 0, 1).get(0));
+        queue.add("AET", file("high"), base + 2 * AGING_TIME, SpoolQueue.PRIORITY_HIGH);
+        // low and medium are aged to high, the longest waiting file goes first
+        Assert.assertEquals(files("low", "medium", "high"), queue.pollReady("AET", now, AGING_TIME, 10));
+    }
+
+    @Test
+    public void testAgingIsPartial() {
+        queue.add("AET", file("low"), base, SpoolQueue.PRIORITY_LOW);
+        queue.add("AET", file("high"), base + AGING_TIME, SpoolQueue.PRIORITY_HIGH);
+        // one aging period raises low to medium only
+        Assert.assertEquals(files("high", "low"), queue.pollReady("AET", base + AGING_TIME + 1, AGING_TIME, 10));
+    }
+
+    @Test
+    public void testAddReplacesEntry() {
+        queue.add("AET1", file("f"), base, SpoolQueue.PRIORITY_LOW);
+        queue.add("AET2", file("f"), base + 5, SpoolQueue.PRIORITY_HIGH);
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(0, queue.size("AET1"));
+        Assert.assertEquals(Collections.singleton("AET2"), queue.getDestinations());
+        Assert.assertTrue(queue.pollReady("AET1", base + 10).isEmpty());
+        Assert.assertEquals(files("f"), queue.pollReady("AET2", base + 10));
+        Assert.assertFalse(queue.contains(file("f")));
+        Assert.assertFalse(queue.remove(file("f")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidPriority() {
+        queue.add("AET", file("f"), base, SpoolQueue.PRIORITY_LOW + 1);
+    }
+
+    @Test
+    public void testRecoveringDestinationIsNotPolled() {
+        Assert.assertFalse(queue.isLoaded());
+        queue.setRecovering(Arrays.asList("AET1", "AET2"));
+        Assert.assertTrue(queue.isLoaded());
+        Assert.assertTrue(queue.isRecovering());
+        queue.add("AET1", file("f1"), base);
+        queue.add("AET2", file("f2"), base);
+        queue.add("AET3", file("f3"), base);
+        Assert.assertTrue(queue.pollReady("AET1", base + 1).isEmpty());
+        Assert.assertEquals(files("f3"), queue.pollReady("AET3", base + 1));
+
+        queue.recovered("AET1");
+        Assert.assertTrue(queue.isRecovering());
+        Assert.assertEquals(files("f1"), queue.pollReady("AET1", base + 1));
+        Assert.assertTrue(queue.pollReady("AET2", base + 1).isEmpty());
+
+        queue.recovered("AET2");
+        Assert.assertFalse(queue.isRecovering());
+        Assert.assertEquals(files("f2"), queue.pollReady("AET2", base + 1));
+
+        queue.clear();
+        Assert.assertFalse(queue.isLoaded());
+    }
+
+    @Test
+    public void testListenerIsNotifiedOfReadyDestinations() {
+        final List<String> notified = new ArrayList<String>();
+        queue.setListener(new SpoolQueue.Listener() {
+
+            @Override
+            public void queued(String destination, long eligibleTime) {
+                notified.add(destination + "@" + (eligibleTime - base));
+            }
+        });
+        queue.add("AET1", file("f1"), base);
+        queue.add("AET2", file("f2"), base + 10);
+        Assert.assertEquals(Arrays.asList("AET1@0", "AET2@10"), notified);
+
+        notified.clear();
+        queue.notifyReady(base + 5);
+        Assert.assertEquals(Arrays.asList("AET1@0"), notified);
+    }
+}
@@ -0,0 +1,176 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.ContentHandlerAdapter;
+import org.dcm4che3.io.SAXWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class TemplateCoercerTest {
+
+    /**
+     * Coerces by transforming the whole dataset, as without caching.
+     */
+    private static Attributes coerce(Templates templates, Attributes data) throws Exception {
+        TransformerHandler th = ((SAXTransformerFactory) TransformerFactory.newInstance())
+                .newTransformerHandler(templates);
+        Attributes result = new Attributes();
+        th.setResult(new SAXResult(new ContentHandlerAdapter(result)));
+        SAXWriter w = new SAXWriter(th);
+        w.setIncludeKeyword(false);
+        w.write(data);
+        return result;
+    }
+
+    private static Attributes dataset(int i) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3." + i);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.4." + i / 4);
+        attrs.setString(Tag.PatientName, VR.PN, "Test^Patient");
+        attrs.setString(Tag.ReferringPhysicianName, VR.PN, "Referring^Physician");
+        if (i % 2 == 0)
+            attrs.setString(Tag.PatientID, VR.LO, "PID" + i / 4);
+        return attrs;
+    }
+
+    private static void assertCoercesAsUncached(TemplateCoercer coercer, String systemId) throws Exception {
+        Templates templates = TemplateRouterTest.compile(systemId);
+        for (int pass = 0; pass < 2; pass++)
+            for (int i = 0; i < 16; i++) {
+                Attributes data = dataset(i);
+                Assert.assertEquals(coerce(templates, data), coercer.coerce(systemId, templates, data));
+            }
+    }
+
+    @Test
+    public void testCachedResultsEqualUncached() throws Exception {
+        TemplateCoercer coercer = new TemplateCoercer();
+        assertCoercesAsUncached(coercer, TemplateRouterTest.systemId("dcm4chee-proxy-ensure-pid.xsl"));
+        // 4 studies with and without Patient ID
+        Assert.assertEquals(8, coercer.getMisses());
+        Assert.assertEquals(2 * 16 - 8, coercer.getHits());
+    }
+
+    @Test
+    public void testUndeclaredTemplateIsNotCached() throws Exception {
+        TemplateCoercer coercer = new TemplateCoercer();
+        assertCoercesAsUncached(coercer, TemplateRouterTest.systemId("dcm4chee-proxy-nullify-pn.xsl"));
+        Assert.assertEquals(0, coercer.getHits());
+        Assert.assertEquals(0, coercer.getMisses());
+    }
+
+    @Test
+    public void testDeclaredAttributesOnlyArePassed() throws Exception {
+        File template = TemplateRouterTest.writeTemplate("<?dcm4chee-proxy cache-attributes=\"PatientID\"?>",
+                "<NativeDicomModel><DicomAttribute tag=\"00100021\" vr=\"LO\"><Value number=\"1\">"
+                        + "<xsl:value-of select=\"count(DicomAttribute)\"/></Value></DicomAttribute>"
+                        + "</NativeDicomModel>");
+        String systemId = template.toURI().toString();
+        TemplateCoercer coercer = new TemplateCoercer();
+        Attributes result = coercer.coerce(systemId, TemplateRouterTest.compile(systemId), dataset(0));
+        Assert.assertEquals("1", result.getString(Tag.IssuerOfPatientID));
+    }
+
+    @Test
+    public void testMergeSharedKeepsDatasetAndCachedResult() throws Exception {
+        String systemId = TemplateRouterTest.systemId("dcm4chee-proxy-ensure-pid.xsl");
+        Templates templates = TemplateRouterTest.compile(systemId);
+        TemplateCoercer coercer = new TemplateCoercer();
+        Attributes data = dataset(1);
+        Attributes original = new Attributes(data);
+        Attributes modify = coercer.coerce(systemId, templates, data);
+        Attributes cached = new Attributes(modify);
+
+        Attributes result = TemplateCoercer.merge(data, modify, false);
+        Assert.assertNotSame(data, result);
+        Assert.assertEquals(original, data);
+        Assert.assertEquals("1.2.4.0", result.getString(Tag.PatientID));
+        Assert.assertEquals("DCM4CHEE-PROXY", result.getString(Tag.IssuerOfPatientID));
+        Assert.assertEquals(cached, modify);
+        // the next dataset of the study hits the cached result
+        Assert.assertSame(modify, coercer.coerce(systemId, templates, dataset(3)));
+        Assert.assertEquals(1, coercer.getHits());
+    }
+
+    @Test
+    public void testMergeInPlace() throws Exception {
+        String systemId = TemplateRouterTest.systemId("dcm4chee-proxy-ensure-pid.xsl");
+        Templates templates = TemplateRouterTest.compile(systemId);
+        TemplateCoercer coercer = new TemplateCoercer();
+        Attributes data = dataset(1);
+        Attributes modify = coercer.coerce(systemId, templates, data);
+        Attributes cached = new Attributes(modify);
+
+        Assert.assertSame(data, TemplateCoercer.merge(data, modify, true));
+        Assert.assertEquals("1.2.4.0", data.getString(Tag.PatientID));
+        Assert.assertEquals(cached, modify);
+
+        Attributes other = dataset(3);
+        Attributes result = TemplateCoercer.merge(other, coercer.coerce(systemId, templates, other), true);
+        Assert.assertSame(other, result);
+        Assert.assertEquals("1.2.4.0", other.getString(Tag.PatientID));
+        Assert.assertEquals(1, coercer.getMisses());
+        Assert.assertEquals(1, coercer.getHits());
+    }
+
+    @Test
+    public void testMergeNothing() throws Exception {
+        String systemId = TemplateRouterTest.systemId("dcm4chee-proxy-ensure-pid.xsl");
+        TemplateCoercer coercer = new TemplateCoercer();
+        Attributes data = dataset(0);
+        Attributes modify = coercer.coerce(systemId, TemplateRouterTest.compile(systemId), data);
+        Assert.assertTrue(modify.isEmpty());
+        Assert.assertSame(data, TemplateCoercer.merge(data, modify, false));
+    }
+}
@@ -0,0 +1,173 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamSource;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXWriter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class TemplateRouterTest {
+
+    static final String TEMPLATES_DIR = "src/main/config/conf/";
+
+    static String systemId(String template) {
+        return new File(TEMPLATES_DIR + template).toURI().toString();
+    }
+
+    static Templates compile(String systemId) throws Exception {
+        return TransformerFactory.newInstance().newTemplates(new StreamSource(systemId));
+    }
+
+    static File writeTemplate(String prolog, String body) throws IOException {
+        File file = File.createTempFile("template", ".xsl");
+        file.deleteOnExit();
+        String xsl = "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"1.0\">"
+                + prolog + "<xsl:template match=\"/NativeDicomModel\">" + body + "</xsl:template></xsl:stylesheet>";
+        Files.write(file.toPath(), xsl.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    static List<Attributes> datasets() {
+        List<Attributes> datasets = new ArrayList<Attributes>();
+        for (String modality : new String[] { "CT", "MR", "US" })
+            for (String sliceThickness : new String[] { "2", "10", null })
+                for (int i = 0; i < 3; i++) {
+                    Attributes attrs = new Attributes();
+                    attrs.setString(Tag.Modality, VR.CS, modality);
+                    if (sliceThickness != null)
+                        attrs.setString(Tag.SliceThickness, VR.DS, sliceThickness);
+                    attrs.setString(Tag.StationName, VR.SH, "STATION" + i);
+                    attrs.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3." + datasets.size());
+                    datasets.add(attrs);
+                }
+        return datasets;
+    }
+
+    /**
+     * Routes by transforming the whole dataset, as without caching.
+     */
+    private static List<String> route(Templates templates, Attributes data, String callingAET, String calledAET)
+            throws Exception {
+        TransformerHandler th = ((SAXTransformerFactory) TransformerFactory.newInstance())
+                .newTransformerHandler(templates);
+        th.getTransformer().setParameter(TemplateRouter.XSL_PARAMETER_CALLINGAET, callingAET);
+        th.getTransformer().setParameter(TemplateRouter.XSL_PARAMETER_CALLEDAET, calledAET);
+        final List<String> result = new ArrayList<String>();
+        th.setResult(new SAXResult(new DefaultHandler() {
+
+            @Override
+            public void startElement(String uri, String localName, String qName,
+                    org.xml.sax.Attributes attributes) throws SAXException {
+                if (qName.equals("Destination"))
+                    result.add(attributes.getValue("aet"));
+            }
+        }));
+        SAXWriter w = new SAXWriter(th);
+        w.setIncludeKeyword(true);
+        w.write(data);
+        return result;
+    }
+
+    private static void assertRoutesAsUncached(TemplateRouter router, String systemId) throws Exception {
+        Templates templates = compile(systemId);
+        for (int pass = 0; pass < 2; pass++)
+            for (Attributes data : datasets())
+                Assert.assertEquals(route(templates, data, "SCU", "PROXY"),
+                        router.route(systemId, templates, data, "SCU", "PROXY"));
+    }
+
+    @Test
+    public void testDeclaredAttributes() throws Exception {
+        Assert.assertArrayEquals(new int[] { Tag.Modality, Tag.SliceThickness },
+                TemplateRouter.cacheTags(systemId("dcm4chee-proxy-slice-thickness-destination-aet.xsl")));
+        Assert.assertArrayEquals(new int[] { Tag.Modality, Tag.SliceThickness },
+                TemplateRouter.cacheTags(writeTemplate("<?dcm4chee-proxy cache-attributes='00180050  Modality'?>",
+                        "").toURI().toString()));
+        Assert.assertNull(TemplateRouter.cacheTags(systemId("dcm4chee-proxy-nullify-pn.xsl")));
+        Assert.assertNull(TemplateRouter.cacheTags(writeTemplate(
+                "<?dcm4chee-proxy cache-attributes=\"Modality NoSuchKeyword\"?>", "").toURI().toString()));
+    }
+
+    @Test
+    public void testCachedRoutesEqualUncached() throws Exception {
+        TemplateRouter router = new TemplateRouter();
+        assertRoutesAsUncached(router, systemId("dcm4chee-proxy-slice-thickness-destination-aet.xsl"));
+        assertRoutesAsUncached(router, systemId("dcm4chee-proxy-destination-aet.xsl"));
+        // 9 combinations of modality and slice thickness, 3 modalities
+        Assert.assertEquals(9 + 3, router.getMisses());
+        Assert.assertEquals(2 * 2 * 27 - 12, router.getHits());
+    }
+
+    @Test
+    public void testUndeclaredTemplateIsNotCached() throws Exception {
+        // reads the Station Name, which a projection by the XPath references
+        // of the template would have missed
+        File template = writeTemplate("<xsl:param name=\"callingAET\"/>",
+                "<Result><xsl:variable name=\"ref\" select=\"DicomAttribute\"/>"
+                        + "<xsl:for-each select=\"$ref[@tag='00081010']\">"
+                        + "<Destination aet=\"{Value}\"/></xsl:for-each>"
+                        + "<Destination aet=\"{$callingAET}\"/></Result>");
+        TemplateRouter router = new TemplateRouter();
+        assertRoutesAsUncached(router, template.toURI().toString());
+        Assert.assertEquals(0, router.getHits());
+        Assert.assertEquals(0, router.getMisses());
+    }
+}
@@ -0,0 +1,133 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.conf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4chee.proxy.common.SpoolJournal;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ProxyAEExtensionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProxyAEExtension proxyAEE;
+
+    @Before
+    public void setUp() {
+        proxyAEE = new ProxyAEExtension();
+        proxyAEE.setSpoolDirectory(folder.getRoot().getPath());
+        new ApplicationEntity("PROXY").addAEExtension(proxyAEE);
+    }
+
+    @After
+    public void tearDown() {
+        proxyAEE.closeSpoolJournal();
+    }
+
+    private void spool(String destination, String name) throws IOException {
+        File dir = new File(proxyAEE.getCStoreDirectoryPath(), destination);
+        dir.mkdirs();
+        File file = new File(dir, name);
+        Files.write(file.toPath(), new byte[10]);
+        proxyAEE.getSpoolJournal().put(file, new Properties());
+    }
+
+    private void assertRefused(String destination) {
+        try {
+            proxyAEE.checkSpoolQuota(destination == null ? Collections.<String> emptyList()
+                    : Collections.singletonList(destination));
+            Assert.fail("spool quota check should refuse data");
+        } catch (DicomServiceException e) {
+            Assert.assertEquals(Status.OutOfResources, e.getStatus());
+        }
+    }
+
+    @Test
+    public void testSpoolQuotaOfAE() throws Exception {
+        proxyAEE.setSpoolHighWatermarkObjects(2);
+        proxyAEE.checkSpoolQuota(Collections.<String> emptyList());
+        spool("DEST", "1.dcm");
+        spool("DEST", "2.dcm");
+        assertRefused(null);
+    }
+
+    @Test
+    public void testSpoolQuotaOfDestination() throws Exception {
+        ForwardOption fwdOption = new ForwardOption();
+        fwdOption.setSpoolHighWatermarkObjects(1);
+        HashMap<String, ForwardOption> fwdOptions = new HashMap<String, ForwardOption>();
+        fwdOptions.put("DEST", fwdOption);
+        proxyAEE.setForwardOptions(fwdOptions);
+        spool("DEST", "1.dcm");
+        proxyAEE.checkSpoolQuota(Collections.singletonList("OTHER"));
+        assertRefused("DEST");
+    }
+
+    @Test
+    public void testRefuseIfUsageIsUnknown() throws Exception {
+        proxyAEE.setSpoolHighWatermark(100);
+        // the journal cannot be opened
+        new File(proxyAEE.getCStoreDirectoryPath(), SpoolJournal.JOURNAL_FILE_NAME).mkdirs();
+        assertRefused(null);
+    }
+
+    @Test
+    public void testNoQuotaDoesNotOpenJournal() throws Exception {
+        new File(proxyAEE.getCStoreDirectoryPath(), SpoolJournal.JOURNAL_FILE_NAME).mkdirs();
+        proxyAEE.checkSpoolQuota(Collections.singletonList("DEST"));
+    }
+}
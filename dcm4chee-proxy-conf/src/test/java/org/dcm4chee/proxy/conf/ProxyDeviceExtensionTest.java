@@ -0,0 +1,123 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.conf;
+
+import java.io.File;
+
+import org.dcm4chee.proxy.common.AssociationPool;
+import org.dcm4chee.proxy.common.CircuitBreaker;
+import org.dcm4chee.proxy.common.CircuitBreaker.State;
+import org.dcm4chee.proxy.common.ForwardScheduler;
+import org.dcm4chee.proxy.common.RuleSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ProxyDeviceExtensionTest {
+
+    @Test
+    public void testReconfigureKeepsCircuitBreakers() {
+        ProxyDeviceExtension ext = new ProxyDeviceExtension();
+        ext.setCircuitBreakerThreshold(1);
+        CircuitBreaker breaker = ext.getCircuitBreaker("DEST");
+        Assert.assertTrue(breaker.recordFailure("failed", 0));
+
+        ProxyDeviceExtension from = new ProxyDeviceExtension();
+        from.setCircuitBreakerThreshold(1);
+        ext.reconfigure(from);
+        Assert.assertSame(breaker, ext.getCircuitBreaker("DEST"));
+        Assert.assertEquals(State.OPEN, breaker.getState());
+
+        from.setCircuitBreakerThreshold(3);
+        from.setCircuitBreakerBackoff(20);
+        ext.reconfigure(from);
+        Assert.assertSame(breaker, ext.getCircuitBreaker("DEST"));
+        Assert.assertEquals(State.OPEN, breaker.getState());
+        Assert.assertEquals(1, ext.getCircuitBreakers().size());
+    }
+
+    @Test
+    public void testReconfigureKeepsAssociationPool() {
+        ProxyDeviceExtension ext = new ProxyDeviceExtension();
+        AssociationPool pool = ext.getAssociationPool();
+        ProxyDeviceExtension from = new ProxyDeviceExtension();
+        ext.reconfigure(from);
+        Assert.assertSame(pool, ext.getAssociationPool());
+        Assert.assertEquals(ProxyDeviceExtension.DEFAULT_ASSOCIATION_IDLE_TIMEOUT * 1000L, pool.getIdleTimeout());
+
+        from.setAssociationIdleTimeout(5);
+        ext.reconfigure(from);
+        Assert.assertSame(pool, ext.getAssociationPool());
+        Assert.assertEquals(5000L, pool.getIdleTimeout());
+    }
+
+    @Test
+    public void testReconfigureKeepsForwardScheduler() {
+        ProxyDeviceExtension ext = new ProxyDeviceExtension();
+        ext.setForwardThreads(2);
+        ext.setMaxForwardTasksPerDestination(1);
+        ForwardScheduler scheduler = ext.getForwardScheduler();
+
+        ProxyDeviceExtension from = new ProxyDeviceExtension();
+        from.setForwardThreads(2);
+        from.setMaxForwardTasksPerDestination(1);
+        ext.reconfigure(from);
+        Assert.assertSame(scheduler, ext.getForwardScheduler());
+
+        from.setForwardThreads(4);
+        from.setMaxForwardTasksPerDestination(3);
+        ext.reconfigure(from);
+        Assert.assertSame(scheduler, ext.getForwardScheduler());
+        Assert.assertEquals(4, scheduler.getMaxWorkers());
+        Assert.assertEquals(3, scheduler.getMaxTasksPerDestination());
+    }
+
+    @Test
+    public void testRuleSetIsCachedUntilCleared() throws Exception {
+        ProxyDeviceExtension ext = new ProxyDeviceExtension();
+        String uri = RuleSet.URI_PREFIX
+                + new File("src/main/config/conf/dcm4chee-proxy-destination-aet.rules").getAbsolutePath();
+        RuleSet ruleSet = ext.getRuleSet(uri);
+        Assert.assertSame(ruleSet, ext.getRuleSet(uri));
+        ext.clearTemplatesCache();
+        Assert.assertNotSame(ruleSet, ext.getRuleSet(uri));
+    }
+}
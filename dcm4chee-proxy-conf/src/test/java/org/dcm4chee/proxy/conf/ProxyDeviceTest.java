@@ -43,7 +43,9 @@ import java.io.OutputStream;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.EnumSet;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 
@@ -81,6 +83,7 @@ import org.dcm4che3.util.StringUtils;
 import org.dcm4chee.proxy.common.RetryObject;
 import org.dcm4chee.proxy.conf.ldap.LdapProxyConfigurationExtension;
 import org.dcm4chee.proxy.conf.prefs.PreferencesProxyConfigurationExtension;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -272,6 +275,110 @@ public class ProxyDeviceTest {
             export(System.getProperty("export"));
     }
 
+    @Test
+    public void testScheduleWrapsWeek() {
+        Schedule schedule = new Schedule();
+        schedule.setDays("Sat-Sun");
+        Assert.assertEquals("Sat-Sun", schedule.getDays());
+        Assert.assertTrue(schedule.contains(6, 12));
+        Assert.assertTrue(schedule.contains(0, 12));
+        for (int dayOfWeek = 1; dayOfWeek < 6; dayOfWeek++)
+            Assert.assertFalse(schedule.contains(dayOfWeek, 12));
+
+        schedule.setDays(schedule.getDays());
+        Assert.assertTrue(schedule.contains(0, 12));
+
+        schedule.setDays("Sat-Mon");
+        Assert.assertEquals("Sat-Mon", schedule.getDays());
+
+        schedule.setDays("Fri-Mon");
+        Assert.assertEquals("Sun-Mon,Fri-Sat", schedule.getDays());
+        Assert.assertTrue(schedule.contains(5, 0));
+        Assert.assertTrue(schedule.contains(6, 0));
+        Assert.assertTrue(schedule.contains(0, 0));
+        Assert.assertTrue(schedule.contains(1, 0));
+        Assert.assertFalse(schedule.contains(2, 0));
+        Assert.assertFalse(schedule.contains(4, 0));
+
+        // Saturday 23:00 to Sunday 00:00
+        Calendar cal = new GregorianCalendar(2014, Calendar.JANUARY, 11, 23, 59);
+        schedule.setDays("Sun");
+        Assert.assertFalse(schedule.isNow(cal));
+        cal.add(Calendar.MINUTE, 1);
+        Assert.assertTrue(schedule.isNow(cal));
+    }
+
+    @Test
+    public void testScheduleHourEdges() {
+        Schedule schedule = new Schedule();
+        schedule.setHours("9-17");
+        Assert.assertFalse(schedule.contains(3, 8));
+        Assert.assertTrue(schedule.contains(3, 9));
+        Assert.assertTrue(schedule.contains(3, 17));
+        Assert.assertFalse(schedule.contains(3, 18));
+
+        schedule.setHours("23-0");
+        Assert.assertEquals("23-0", schedule.getHours());
+
+        schedule.setHours("22-2");
+        Assert.assertEquals("0-2,22-23", schedule.getHours());
+        Assert.assertFalse(schedule.contains(3, 21));
+        for (int hourOfDay : new int[] { 22, 23, 0, 1, 2 })
+            Assert.assertTrue(schedule.contains(3, hourOfDay));
+        Assert.assertFalse(schedule.contains(3, 3));
+
+        schedule.setHours("0-23");
+        for (int hourOfDay = 0; hourOfDay < 24; hourOfDay++)
+            Assert.assertTrue(schedule.contains(3, hourOfDay));
+
+        Calendar cal = new GregorianCalendar(2014, Calendar.JANUARY, 8, 2, 59);
+        schedule.setHours("22-2");
+        Assert.assertTrue(schedule.isNow(cal));
+        cal.add(Calendar.MINUTE, 1);
+        Assert.assertFalse(schedule.isNow(cal));
+    }
+
+    @Test
+    public void testDefaultSchedule() {
+        Schedule schedule = new Schedule();
+        for (int dayOfWeek = 0; dayOfWeek < 7; dayOfWeek++)
+            for (int hourOfDay = 0; hourOfDay < 24; hourOfDay++)
+                Assert.assertTrue(schedule.contains(dayOfWeek, hourOfDay));
+        Assert.assertTrue(schedule.isNow());
+        Assert.assertEquals(Long.MAX_VALUE, schedule.getNextTransition());
+        Assert.assertTrue(new ForwardRule().getReceiveSchedule().isNow());
+    }
+
+    @Test
+    public void testScheduleNextTransition() {
+        Schedule schedule = new Schedule();
+        Calendar cal = new GregorianCalendar();
+        int hourOfDay = cal.get(Calendar.HOUR_OF_DAY);
+        schedule.setHours(Integer.toString(hourOfDay));
+        long now = System.currentTimeMillis();
+        long transition = schedule.getNextTransition();
+        if (!schedule.isNow())
+            return; // the hour passed meanwhile
+
+        cal.setTimeInMillis(transition);
+        Assert.assertTrue(transition > now);
+        Assert.assertTrue(transition <= now + 3600 * 1000L);
+        Assert.assertEquals((hourOfDay + 1) % 24, cal.get(Calendar.HOUR_OF_DAY));
+        Assert.assertEquals(0, cal.get(Calendar.MINUTE));
+
+        schedule.setDays("Sun");
+        schedule.setHours("0-23");
+        transition = schedule.getNextTransition();
+        cal.setTimeInMillis(transition);
+        Assert.assertTrue(transition > now);
+        Assert.assertEquals(schedule.isNow() ? Calendar.MONDAY : Calendar.SUNDAY, cal.get(Calendar.DAY_OF_WEEK));
+        Assert.assertEquals(0, cal.get(Calendar.HOUR_OF_DAY));
+
+        schedule.setDays("Sun-Sat");
+        Assert.assertTrue(schedule.isNow());
+        Assert.assertEquals(Long.MAX_VALUE, schedule.getNextTransition());
+    }
+
     private Device createARRDevice(String name, Protocol protocol, int port) {
         Device arrDevice = new Device(name);
         AuditRecordRepository arr = new AuditRecordRepository();
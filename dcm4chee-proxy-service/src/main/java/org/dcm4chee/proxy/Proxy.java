@@ -51,6 +51,7 @@ import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.dcm4che3.audit.AuditMessage;
 import org.dcm4che3.audit.AuditMessages;
@@ -77,6 +78,8 @@ import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.service.DicomServiceRegistry;
 import org.dcm4chee.proxy.audit.AuditLog;
+import org.dcm4chee.proxy.common.BufferPool;
+import org.dcm4chee.proxy.common.CircuitBreaker;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
@@ -89,6 +92,7 @@ import org.dcm4chee.proxy.dimse.Mpps;
 import org.dcm4chee.proxy.dimse.StgCmt;
 import org.dcm4chee.proxy.forward.Scheduler;
 import org.dcm4chee.proxy.pix.PIXConsumer;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -117,6 +121,7 @@ public class Proxy extends DeviceService implements ProxyMBean {
     private PIXConsumer pixConsumer;
     private static Scheduler scheduler;
     private static ProxyCleanUpScheduler cleanUPScheduler;
+    private SpoolRecovery spoolRecovery;
     private final HL7ApplicationCache hl7AppCache;
     private ApplicationEntityCache aeCache;
     private final CEcho cecho;
@@ -183,6 +188,8 @@ public class Proxy extends DeviceService implements ProxyMBean {
                 device.getDeviceExtension(AuditLogger.class)));
         cleanUPScheduler = new ProxyCleanUpScheduler(device);
         resetSpoolFiles("start-up");
+        spoolRecovery = new SpoolRecovery(device, "start-up", true);
+        spoolRecovery.start();
         super.start();
         scheduler.start();
         cleanUPScheduler.start();
@@ -198,13 +205,21 @@ public class Proxy extends DeviceService implements ProxyMBean {
         scheduler.stop();
         cleanUPScheduler.stop();
         super.stop();
+        spoolRecovery.stop();
         try {
             resetSpoolFiles("shut-down");
+            SpoolRecovery recovery = new SpoolRecovery(device, "shut-down", false);
+            recovery.start();
+            recovery.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted reseting spool files");
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             LOG.error("Error reseting spool file: {}", e.getMessage());
             if (LOG.isDebugEnabled())
                 e.printStackTrace();
         }
+        closeSpoolJournals();
         log(EventTypeCode.ApplicationStop);
     }
 
@@ -256,6 +271,38 @@ public class Proxy extends DeviceService implements ProxyMBean {
         return result.toString();
     }
 
+    public String getCircuitBreakers() {
+        StringBuilder result = new StringBuilder();
+        boolean separator = false;
+        result.append("{\n\"circuitBreakers\": [");
+        for (CircuitBreaker breaker : device.getDeviceExtension(ProxyDeviceExtension.class).getCircuitBreakers()) {
+            String lastError = breaker.getLastError();
+            result.append((separator ? "," : "") + "\n{\"destination\": \"" + breaker.getDestination() + "\",");
+            result.append("\"state\": \"" + breaker.getState() + "\",");
+            result.append("\"failures\": " + breaker.getFailures() + ",");
+            result.append("\"openedTime\": " + breaker.getOpenedTime() + ",");
+            result.append("\"nextProbeTime\": " + breaker.getNextProbeTime() + ",");
+            result.append("\"lastError\": \""
+                    + (lastError == null ? "" : lastError.replace('"', '\'').replace('\\', '/')) + "\"}");
+            separator = true;
+        }
+        result.append("\n]\n}");
+        return result.toString();
+    }
+
+    public String getSpoolBufferPool() {
+        BufferPool pool = device.getDeviceExtension(ProxyDeviceExtension.class).getSpoolBufferPool();
+        StringBuilder result = new StringBuilder();
+        result.append("{\n\"bufferSize\": " + pool.getBufferSize() + ",");
+        result.append("\n\"maxBuffers\": " + pool.getMaxBuffers() + ",");
+        result.append("\n\"allocated\": " + pool.getAllocated() + ",");
+        result.append("\n\"inUse\": " + pool.getInUse() + ",");
+        result.append("\n\"maxInUse\": " + pool.getMaxInUse() + ",");
+        result.append("\n\"acquired\": " + pool.getAcquired() + ",");
+        result.append("\n\"misses\": " + pool.getMisses() + "\n}");
+        return result.toString();
+    }
+
     private static int getRestartTimeout() {
         String timeoutString = System
                 .getProperty("org.dcm4chee.proxy.restart.timeout");
@@ -347,54 +394,35 @@ public class Proxy extends DeviceService implements ProxyMBean {
             if (proxyAEE != null) {
                 LOG.info("Reset spool files for {} on {}", ae.getAETitle(),
                         action);
-                // clear cstore spool dir
-                renameSndFiles(proxyAEE.getCStoreDirectoryPath(), action);
-                deletePartFiles(proxyAEE.getCStoreDirectoryPath(), action);
-                deleteTmpBulkFiles(proxyAEE.getCStoreDirectoryPath(), action);
-                deleteIncompleteDcmFiles(proxyAEE.getCStoreDirectoryPath(),
-                        action);
+                // the cstore spool dir is reset by the SpoolRecovery
                 // clear naction spool dir
                 for (File path : proxyAEE.getNactionDirectoryPath().listFiles()) {
                     renameSndFiles(path, action);
-                    deletePartFiles(path, action);
+                    deletePartFiles(proxyAEE, path, action);
                 }
                 // clear nevent spool dir
                 for (File path : proxyAEE.getNeventDirectoryPath().listFiles()) {
                     renameSndFiles(path, action);
-                    deletePartFiles(path, action);
+                    deletePartFiles(proxyAEE, path, action);
                 }
                 // clear ncreate spool dir
                 renameSndFiles(proxyAEE.getNCreateDirectoryPath(), action);
-                deletePartFiles(proxyAEE.getNCreateDirectoryPath(), action);
+                deletePartFiles(proxyAEE, proxyAEE.getNCreateDirectoryPath(),
+                        action);
                 // clear nset spool dir
                 renameSndFiles(proxyAEE.getNSetDirectoryPath(), action);
-                deletePartFiles(proxyAEE.getNSetDirectoryPath(), action);
+                deletePartFiles(proxyAEE, proxyAEE.getNSetDirectoryPath(),
+                        action);
             }
         }
     }
 
-    private void deleteIncompleteDcmFiles(File path, String action) {
-        String[] dirs = path.list(dirFilter());
-        for (String dir : dirs)
-            deleteIncompleteDcmFiles(new File(path, dir), action);
-
-        String[] dcmFiles = path.list(dcmFileFilter());
-        ArrayList<File> infoFiles = listFiles(infoFileFilter(), path);
-        for (String dcmFile : dcmFiles) {
-            File file = new File(path, dcmFile);
-            File infoFile = new File(file.getPath()
-                    .substring(0, file.getPath().length() - 3).concat("info"));
-            if (infoFiles.contains(infoFile))
-                continue;
-
-            if (file.delete())
-                LOG.info(
-                        "Delete incomplete dcm file {} (without info file) on {}",
-                        file.getPath(), action);
-            else
-                LOG.info(
-                        "Failed to delete incomplete dcm file {} (without info file) on {}",
-                        file.getPath(), action);
+    private void closeSpoolJournals() {
+        for (ApplicationEntity ae : device.getApplicationEntities()) {
+            ProxyAEExtension proxyAEE = ae
+                    .getAEExtension(ProxyAEExtension.class);
+            if (proxyAEE != null)
+                proxyAEE.closeSpoolJournal();
         }
     }
 
@@ -450,29 +478,12 @@ public class Proxy extends DeviceService implements ProxyMBean {
         };
     }
 
-    private FilenameFilter dcmFileFilter() {
-        return new FilenameFilter() {
-
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".dcm");
-            }
-        };
-    }
-
-    private FilenameFilter infoFileFilter() {
-        return new FilenameFilter() {
-
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".info");
-            }
-        };
-    }
-
-    private void deletePartFiles(File path, String action) {
+    private void deletePartFiles(ProxyAEExtension proxyAEE, File path,
+            String action) throws IOException {
         for (String partFileName : path.list(partFileFilter())) {
             File partFile = new File(path, partFileName);
+            if (InfoFileUtils.hasFileInfo(proxyAEE, partFile))
+                InfoFileUtils.deleteFileInfo(proxyAEE, partFile);
             if (partFile.delete())
                 LOG.info("Delete {} on {}", partFile.getPath(), action);
             else
@@ -480,16 +491,6 @@ public class Proxy extends DeviceService implements ProxyMBean {
                         action);
         }
     }
-    private void deleteTmpBulkFiles(File path, String action) {
-        for (String tmpBulkFileName : path.list(tmpBulkFileFilter())) {
-            File tmpBulkFile = new File(path, tmpBulkFileName);
-            if (tmpBulkFile.delete())
-                LOG.info("Delete {} on {}", tmpBulkFile.getPath(), action);
-            else
-                LOG.info("Failed to delete {} on {}", tmpBulkFile.getPath(),
-                        action);
-        }
-    }
     private FilenameFilter partFileFilter() {
         return new FilenameFilter() {
 
@@ -499,16 +500,6 @@ public class Proxy extends DeviceService implements ProxyMBean {
             }
         };
     }
-
-    private FilenameFilter tmpBulkFileFilter() {
-        return new FilenameFilter() {
-
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".tmpBulkData");
-            }
-        };
-    }
     
     private FilenameFilter dirFilter() {
         return new FilenameFilter() {
@@ -42,7 +42,6 @@ import java.io.IOException;
 import java.rmi.UnexpectedException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -113,6 +112,13 @@ public class ProxyAssociationHandler extends AssociationHandler {
         ProxyAEExtension proxyAEE = as.getApplicationEntity().getAEExtension(
                 ProxyAEExtension.class);
         filterForwardRulesOnNegotiationRQ(as, rq, proxyAEE);
+        if (!proxyAEE.isAssociationFromDestinationAET(as)
+                && proxyAEE.isSpoolQuotaExceeded()) {
+            LOG.warn("{}: spool quota exceeded, reject association", as);
+            throw new AAssociateRJ(AAssociateRJ.RESULT_REJECTED_TRANSIENT,
+                    AAssociateRJ.SOURCE_SERVICE_PROVIDER_PRES,
+                    AAssociateRJ.REASON_LOCAL_LIMIT_EXCEEDED);
+        }
         if (!proxyAEE.isAssociationFromDestinationAET(as)
                 && sendNow(as, proxyAEE)) {
             ForwardRule forwardRule = proxyAEE.getCurrentForwardRules(as)
@@ -391,22 +397,21 @@ public class ProxyAssociationHandler extends AssociationHandler {
     @Override
     protected void onClose(Association as) {
         super.onClose(as);
+        ArrayList<Association> asInvoked = new ArrayList<Association>();
         Object forwardAssociationProperty = as
                 .getProperty(ProxyAEExtension.FORWARD_ASSOCIATION);
-        if (forwardAssociationProperty == null)
-            return;
-
-        Association[] asInvoked;
-        if (forwardAssociationProperty instanceof Association) {
-            ArrayList<Association> list = new ArrayList<Association>(1);
-            list.add((Association) forwardAssociationProperty);
-            asInvoked = list.toArray(new Association[1]);
-        } else {
+        if (forwardAssociationProperty instanceof Association)
+            asInvoked.add((Association) forwardAssociationProperty);
+        else if (forwardAssociationProperty != null) {
             @SuppressWarnings("unchecked")
             HashMap<String, Association> fwdAssocs = (HashMap<String, Association>) forwardAssociationProperty;
-            asInvoked = fwdAssocs.values().toArray(
-                    new Association[fwdAssocs.size()]);
+            asInvoked.addAll(fwdAssocs.values());
         }
+        @SuppressWarnings("unchecked")
+        HashMap<String, Association> fanOut = (HashMap<String, Association>) as
+                .getProperty(ProxyAEExtension.FORWARD_FAN_OUT);
+        if (fanOut != null)
+            asInvoked.addAll(fanOut.values());
         for (Association assoc : asInvoked) {
             if (assoc != null && assoc.isRequestor())
                 try {
@@ -437,7 +442,7 @@ public class ProxyAssociationHandler extends AssociationHandler {
 
     private boolean forwardBasedOnTemplates(List<ForwardRule> forwardRules) {
         for (ForwardRule rule : forwardRules)
-            if (rule.getReceiveSchedule().isNow(new GregorianCalendar()))
+            if (rule.getReceiveSchedule().isNow())
                 if (rule.containsTemplateURI())
                     return true;
         return false;
@@ -452,7 +457,7 @@ public class ProxyAssociationHandler extends AssociationHandler {
 
         Schedule forwardAETSchedule = forwardOptions.get(destinationAET)
                 .getSchedule();
-        return forwardAETSchedule.isNow(new GregorianCalendar());
+        return forwardAETSchedule.isNow();
     }
 
     private AAssociateAC forwardAAssociateRQ(Association asAccepted,
@@ -51,6 +51,7 @@ import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Device;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.utils.SpoolQueueUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -85,6 +86,7 @@ public class ProxyCleanUpScheduler {
                                 if(!file.isDirectory() && file.getName().endsWith(".part"))
                                     deleteIfPossible(prxDevExt, file);
                             }
+                            SpoolQueueUtils.reconcile(prxAExt);
                         } catch (IOException e) {
                             LOG.error("Part File CleanUP :Failed to "
                                     + "get files in spool directory"
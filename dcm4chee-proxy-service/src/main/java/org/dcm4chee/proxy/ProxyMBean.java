@@ -80,4 +80,12 @@ public interface ProxyMBean {
     @GET
     @Path("getAutoConfigProgress")
     String getAutoConfigProgress() throws Exception;
+
+    @GET
+    @Path("getCircuitBreakers")
+    String getCircuitBreakers();
+
+    @GET
+    @Path("getSpoolBufferPool")
+    String getSpoolBufferPool();
 }
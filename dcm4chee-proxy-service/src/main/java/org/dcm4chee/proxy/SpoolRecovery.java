@@ -0,0 +1,273 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Device;
+import org.dcm4chee.proxy.common.SpoolLayout;
+import org.dcm4chee.proxy.common.SpoolQueue;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
+import org.dcm4chee.proxy.utils.SpoolQueueUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recovers the C-STORE spool directories of the proxy AEs after start-up or
+ * before shut-down, one task per destination directory on a pool of threads.
+ * Each destination directory is recovered on its own: .info files of previous
+ * versions are imported into the spool journal, .snd files get their previous
+ * name back, files of the flat layout are moved to their hash subdirectory
+ * and files left incomplete are deleted. Only files older than the start of
+ * the recovery are deleted, so data received meanwhile is not touched.
+ * <p>
+ * With <code>loadQueues</code>, the files of each directory are added to the
+ * spool queue of the AE as soon as the directory is recovered, and the
+ * destination is not polled before. All steps are idempotent, so a recovery
+ * interrupted by shut-down or crash simply resumes with the next start.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolRecovery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolRecovery.class);
+
+    // file systems with a timestamp resolution of up to 2s
+    private static final long TIMESTAMP_RESOLUTION = 2000L;
+
+    private final Device device;
+    private final String action;
+    private final boolean loadQueues;
+    private ExecutorService executor;
+
+    public SpoolRecovery(Device device, String action, boolean loadQueues) {
+        this.device = device;
+        this.action = action;
+        this.loadQueues = loadQueues;
+    }
+
+    /**
+     * Starts the recovery of all C-STORE spool directories and returns
+     * immediately.
+     */
+    public synchronized void start() throws IOException {
+        final long startTime = System.currentTimeMillis();
+        final long deleteBefore = startTime - TIMESTAMP_RESOLUTION;
+        executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        for (ApplicationEntity ae : device.getApplicationEntities()) {
+            final ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
+            if (proxyAEE == null)
+                continue;
+
+            File cstoreDir = proxyAEE.getCStoreDirectoryPath();
+            final List<File> dirs = new ArrayList<File>();
+            List<String> destinations = new ArrayList<String>();
+            File[] files = cstoreDir.listFiles();
+            if (files != null)
+                for (File file : files)
+                    if (file.isDirectory()) {
+                        dirs.add(file);
+                        destinations.add(file.getName());
+                    } else
+                        deleteIfIncomplete(proxyAEE, file, deleteBefore);
+
+            if (loadQueues) {
+                SpoolQueue queue = proxyAEE.getSpoolQueue();
+                queue.clear();
+                queue.setRecovering(destinations);
+            }
+            LOG.info("{}: recover {} spool directories on {}", new Object[] { ae.getAETitle(), dirs.size(),
+                    action });
+            final AtomicInteger pending = new AtomicInteger(dirs.size());
+            for (final File dir : dirs)
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        recover(proxyAEE, dir, deleteBefore);
+                        if (pending.decrementAndGet() == 0)
+                            LOG.info("{}: recovered {} spool directories on {} in {} ms", new Object[] {
+                                    proxyAEE.getApplicationEntity().getAETitle(), dirs.size(), action,
+                                    System.currentTimeMillis() - startTime });
+                    }
+                });
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the recovery to finish.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+        }
+        return executor == null || executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Cancels the recovery of directories which were not started yet and
+     * waits for the running ones.
+     */
+    public void stop() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+        }
+        if (executor == null)
+            return;
+
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recover(ProxyAEExtension proxyAEE, File dir, long deleteBefore) {
+        String calledAET = dir.getName();
+        try {
+            List<File> listed = new ArrayList<File>();
+            SpoolLayout.listFiles(dir, listed);
+            List<File> infoFiles = new ArrayList<File>();
+            List<File> files = new ArrayList<File>(listed.size());
+            for (File file : listed)
+                if (file.getName().endsWith(".info"))
+                    infoFiles.add(file);
+                else
+                    files.add(file.getName().endsWith(".snd") ? renameSndFile(file) : file);
+            InfoFileUtils.migrateInfoFiles(proxyAEE, infoFiles);
+
+            List<File> flatFiles = new ArrayList<File>();
+            List<File> spooled = new ArrayList<File>(files.size());
+            for (File file : files) {
+                if (deleteIfIncomplete(proxyAEE, file, deleteBefore))
+                    continue;
+
+                if (dir.equals(file.getParentFile()) && isSpoolFile(file.getName()))
+                    flatFiles.add(file);
+                else
+                    spooled.add(file);
+            }
+            SpoolQueueUtils.moveToShardDirectories(proxyAEE, flatFiles);
+            spooled.addAll(flatFiles);
+            if (loadQueues)
+                SpoolQueueUtils.enqueueAll(proxyAEE, calledAET, spooled);
+        } catch (Exception e) {
+            LOG.error("{}: failed to recover spool directory {}: {}", new Object[] {
+                    proxyAEE.getApplicationEntity().getAETitle(), dir, e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        } finally {
+            if (loadQueues) {
+                SpoolQueue queue = proxyAEE.getSpoolQueue();
+                queue.recovered(calledAET);
+                queue.notifyReady(System.currentTimeMillis());
+            }
+        }
+    }
+
+    private File renameSndFile(File sndFile) {
+        String name = sndFile.getName();
+        File dst = new File(sndFile.getParentFile(), name.substring(0, name.length() - 4));
+        if (sndFile.renameTo(dst)) {
+            LOG.info("Rename {} to {} on {}", new Object[] { sndFile, dst, action });
+            return dst;
+        }
+        LOG.info("Failed to rename {} to {} on {}", new Object[] { sndFile, dst, action });
+        return sndFile;
+    }
+
+    /*
+     * Deletes temporary files and .dcm files without file info, which were
+     * left by an interrupted transfer before the recovery started. The file
+     * info of a .dcm file is synced before its receipt is confirmed, so a
+     * .dcm file without file info was never confirmed.
+     */
+    private boolean deleteIfIncomplete(ProxyAEExtension proxyAEE, File file, long deleteBefore) {
+        String name = file.getName();
+        boolean part = name.endsWith(".part");
+        if (!part && !name.endsWith(".tmpBulkData") && !name.endsWith(".dcm") || !file.exists()
+                || file.lastModified() >= deleteBefore)
+            return false;
+
+        try {
+            if (part) {
+                if (InfoFileUtils.hasFileInfo(proxyAEE, file))
+                    InfoFileUtils.deleteFileInfo(proxyAEE, file);
+            } else if (name.endsWith(".dcm")) {
+                if (InfoFileUtils.hasFileInfo(proxyAEE, file))
+                    return false;
+
+                // renamed before its file info was stored for the new
+                // location, so the receipt was not confirmed
+                File received = new File(proxyAEE.getCStoreDirectoryPath(), name);
+                if (!received.equals(file) && InfoFileUtils.hasFileInfo(proxyAEE, received))
+                    InfoFileUtils.deleteFileInfo(proxyAEE, received);
+            }
+        } catch (IOException e) {
+            LOG.error("{}: failed to access file info of {}: {}", new Object[] {
+                    proxyAEE.getApplicationEntity().getAETitle(), file, e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            return false;
+        }
+        if (file.delete()) {
+            LOG.info("Delete incomplete file {} on {}", file, action);
+            return true;
+        }
+        LOG.info("Failed to delete incomplete file {} on {}", file, action);
+        return false;
+    }
+
+    private static boolean isSpoolFile(String name) {
+        return name.indexOf('.') > 0 && !name.endsWith(".part") && !name.endsWith(".tmpBulkData");
+    }
+}
@@ -38,21 +38,18 @@
 
 package org.dcm4chee.proxy.dimse;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.FileUtils;
 import org.dcm4che3.conf.api.ApplicationEntityCache;
@@ -73,7 +70,6 @@ import org.dcm4che3.net.DataWriter;
 import org.dcm4che3.net.DataWriterAdapter;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.DimseRSPHandler;
-import org.dcm4che3.net.InputStreamDataWriter;
 import org.dcm4che3.net.PDVInputStream;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.TransferCapability.Role;
@@ -89,11 +85,13 @@ import org.dcm4chee.proxy.common.RetryObject;
 import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.ForwardRuleUtils;
 import org.dcm4chee.proxy.utils.InfoFileUtils;
 import org.dcm4chee.proxy.utils.LogUtils;
+import org.dcm4chee.proxy.utils.SpoolQueueUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -106,6 +104,8 @@ public class CStore extends BasicCStoreSCP {
 
     protected static final Logger LOG = LoggerFactory.getLogger(CStore.class);
 
+    private static volatile boolean hardLinks = true;
+
     private ApplicationEntityCache aeCache;
 
     public CStore(ApplicationEntityCache aeCache, String... sopClasses) {
@@ -123,21 +123,36 @@ public class CStore extends BasicCStoreSCP {
                 .getAEExtension(ProxyAEExtension.class);
         Object forwardAssociationProperty = asAccepted
                 .getProperty(ProxyAEExtension.FORWARD_ASSOCIATION);
-        if (spoolRequest(asAccepted, dimse, rq, proxyAEE,
-                forwardAssociationProperty))
+        boolean spool = spoolRequest(asAccepted, dimse, rq, proxyAEE,
+                forwardAssociationProperty);
+        if (spool || proxyAEE.isAcceptDataOnFailedAssociation())
+            checkSpoolQuota(proxyAEE, asAccepted, rq);
+        if (spool)
             spool(proxyAEE, asAccepted, pc, dimse, rq, data, null);
-        else {
-            try {
-                forward(proxyAEE, asAccepted,
-                        (Association) forwardAssociationProperty, pc, rq,
-                        new InputStreamDataWriter(data), -1, null, null, null, true);
-            } catch (Exception e) {
-                LOG.error(asAccepted + ": error forwarding C-STORE-RQ: "
-                        + e.getMessage());
-                asAccepted.setProperty(ProxyAEExtension.FILE_SUFFIX,
-                        RetryObject.ConnectionException.getSuffix() + "0");
-                super.onDimseRQ(asAccepted, pc, dimse, rq, data);
-            }
+        else
+            relay(proxyAEE, asAccepted,
+                    (Association) forwardAssociationProperty, pc, dimse, rq,
+                    data);
+    }
+
+    /*
+     * Refuses the object with Out of Resources if the spool of the AE or of
+     * one of the destinations of the matching forward rules is above its
+     * quota, or if the spool usage cannot be determined.
+     */
+    private void checkSpoolQuota(ProxyAEExtension proxyAEE,
+            Association asAccepted, Attributes rq)
+            throws DicomServiceException {
+        List<String> destinationAETs = new ArrayList<String>();
+        for (ForwardRule rule : ForwardRuleUtils.filterForwardRulesOnDimseRQ(
+                proxyAEE.getCurrentForwardRules(asAccepted),
+                rq.getString(Tag.AffectedSOPClassUID), Dimse.C_STORE_RQ))
+            destinationAETs.addAll(rule.getDestinationAETitles());
+        try {
+            proxyAEE.checkSpoolQuota(destinationAETs);
+        } catch (DicomServiceException e) {
+            LOG.warn("{}: refuse C-STORE-RQ: {}", asAccepted, e.getMessage());
+            throw e;
         }
     }
 
@@ -145,7 +160,8 @@ public class CStore extends BasicCStoreSCP {
             Attributes rq, ProxyAEExtension proxyAEE,
             Object forwardAssociationProperty) {
         return forwardAssociationProperty == null
-                || proxyAEE.isAcceptDataOnFailedAssociation()
+                || asAccepted
+                        .getProperty(ProxyAEExtension.FORWARD_CMOVE_INFO) != null
                 || proxyAEE.getAttributeCoercions().findAttributeCoercion(
                         rq.getString(Tag.AffectedSOPClassUID), dimse, Role.SCU,
                         asAccepted.getRemoteAET()) != null
@@ -165,6 +181,172 @@ public class CStore extends BasicCStoreSCP {
                 || proxyAEE.isAssociationFromDestinationAET(asAccepted);
     }
 
+    /*
+     * Relays the data set from the accepted to the forward association while
+     * it is received. If data has to be accepted on a failed forward
+     * association, a write-ahead copy is written along, which is spooled for
+     * the destination if the relay fails and deleted otherwise.
+     */
+    private void relay(final ProxyAEExtension proxyAEE,
+            final Association asAccepted, final Association asInvoked,
+            final PresentationContext pc, Dimse dimse, final Attributes rq,
+            PDVInputStream data) throws IOException {
+        String cuid = rq.getString(Tag.AffectedSOPClassUID);
+        String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+        String tsuid = pc.getTransferSyntax();
+        final File writeAhead = proxyAEE.isAcceptDataOnFailedAssociation()
+                ? createSpoolFile(proxyAEE, asAccepted) : null;
+        DicomOutputStream out = null;
+        if (writeAhead != null) {
+            out = new DicomOutputStream(asAccepted.getDevice()
+                    .getDeviceExtension(ProxyDeviceExtension.class)
+                    .newSpoolOutputStream(writeAhead),
+                    UID.ExplicitVRLittleEndian);
+            out.writeFileMetaInformation(asAccepted.createFileMetaInformation(
+                    iuid, cuid, tsuid));
+        }
+        final RelayDataWriter writer = new RelayDataWriter(data, out);
+        // either the RSP handler or the caller responds to the C-STORE-RQ
+        final AtomicBoolean responded = new AtomicBoolean();
+        final int msgId = rq.getInt(Tag.MessageID, 0);
+        int newMsgId = msgId;
+        if (asAccepted.isRequestor())
+            newMsgId = asInvoked.nextMessageID();
+        DimseRSPHandler rspHandler = new DimseRSPHandler(newMsgId) {
+
+            @Override
+            public void onDimseRSP(Association as, Attributes cmd,
+                    Attributes data) {
+                super.onDimseRSP(as, cmd, data);
+                if (!responded.compareAndSet(false, true))
+                    return;
+
+                if (!as.isRequestor())
+                    cmd.setInt(Tag.MessageIDBeingRespondedTo, VR.US, msgId);
+
+                if (writeAhead != null
+                        && cmd.getInt(Tag.Status, -1) != Status.Success)
+                    spoolWriteAhead(proxyAEE, asAccepted, as, pc, rq,
+                            writeAhead, ".err");
+                else if (writeAhead != null)
+                    writeAhead.delete();
+                try {
+                    asAccepted.writeDimseRSP(pc, cmd, data);
+                } catch (IOException e) {
+                    LOG.error(as + ": Failed to forward C-STORE RSP: "
+                            + e.getMessage());
+                }
+            }
+
+            @Override
+            public void onClose(Association as) {
+                super.onClose(as);
+                // a relay interrupted while receiving is completed by the caller
+                if (writeAhead != null && !writer.isComplete()
+                        || !responded.compareAndSet(false, true))
+                    return;
+
+                Attributes cmd = Commands.mkCStoreRSP(rq,
+                        Status.UnableToProcess);
+                if (writeAhead != null
+                        && spoolWriteAhead(proxyAEE, asAccepted, as, pc, rq,
+                                writeAhead,
+                                RetryObject.ConnectionException.getSuffix()
+                                        + "0"))
+                    cmd = Commands.mkCStoreRSP(rq, Status.Success);
+                try {
+                    asAccepted.writeDimseRSP(pc, cmd);
+                } catch (IOException e) {
+                    LOG.error(as + ": Failed to forward C-STORE RSP: "
+                            + e.getMessage());
+                }
+            }
+        };
+        try {
+            asInvoked.cstore(cuid, iuid, rq.getInt(Tag.Priority, 0), writer,
+                    tsuid, rspHandler);
+        } catch (Exception e) {
+            LOG.error(asAccepted + ": error forwarding C-STORE-RQ: "
+                    + e.getMessage());
+            if (writeAhead == null) {
+                if (!responded.compareAndSet(false, true))
+                    return;
+
+                asAccepted.setProperty(ProxyAEExtension.FILE_SUFFIX,
+                        RetryObject.ConnectionException.getSuffix() + "0");
+                super.onDimseRQ(asAccepted, pc, dimse, rq, data);
+                return;
+            }
+            try {
+                writer.drain();
+            } catch (IOException ioe) {
+                LOG.error("{}: failed to write {}: {}", new Object[] {
+                        asAccepted, writeAhead, ioe.getMessage() });
+                SafeClose.close(out);
+                writeAhead.delete();
+                if (responded.compareAndSet(false, true))
+                    throw new DicomServiceException(Status.OutOfResources, ioe);
+                return;
+            }
+            if (!responded.compareAndSet(false, true))
+                return;
+
+            if (spoolWriteAhead(proxyAEE, asAccepted, asInvoked, pc, rq,
+                    writeAhead, RetryObject.ConnectionException.getSuffix() + "0"))
+                asAccepted.writeDimseRSP(pc,
+                        Commands.mkCStoreRSP(rq, Status.Success));
+            else
+                throw new DicomServiceException(Status.OutOfResources, e);
+        }
+    }
+
+    /*
+     * Spools the completed write-ahead copy of a relayed data set for the
+     * destination of the forward association.
+     */
+    private static boolean spoolWriteAhead(ProxyAEExtension proxyAEE,
+            Association asAccepted, Association asInvoked,
+            PresentationContext pc, Attributes rq, File writeAhead,
+            String suffix) {
+        String fileName = writeAhead.getName();
+        File dst = new File(proxyAEE.getCStoreDirectoryPath(
+                asInvoked.getCalledAET(), fileName), fileName.substring(0,
+                fileName.lastIndexOf('.')).concat(suffix));
+        try {
+            Properties prop = new Properties();
+            prop.setProperty("hostname", asAccepted.getConnection()
+                    .getHostname());
+            prop.setProperty("sop-instance-uid",
+                    rq.getString(Tag.AffectedSOPInstanceUID));
+            prop.setProperty("sop-class-uid",
+                    rq.getString(Tag.AffectedSOPClassUID));
+            prop.setProperty("transfer-syntax-uid", pc.getTransferSyntax());
+            prop.setProperty("source-aet", asAccepted.getCallingAET());
+            prop.setProperty("priority",
+                    Integer.toString(rq.getInt(Tag.Priority, 0)));
+            File journal = InfoFileUtils.storeFileInfo(proxyAEE, writeAhead,
+                    prop);
+            asAccepted.getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                    .getGroupCommit().sync(writeAhead, journal);
+            if (!writeAhead.renameTo(dst))
+                throw new IOException("failed to rename " + writeAhead + " to "
+                        + dst);
+            InfoFileUtils.moveFileInfo(proxyAEE, writeAhead, dst);
+            InfoFileUtils.syncFileInfo(proxyAEE);
+            SpoolQueueUtils.enqueue(proxyAEE, dst);
+            LOG.debug("{}: spooled write-ahead copy of relayed object to {}",
+                    asAccepted, dst);
+            return true;
+        } catch (Exception e) {
+            LOG.error("{}: error saving file {}: {}", new Object[] {
+                    asAccepted, writeAhead, e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            deleteFile(asAccepted, writeAhead);
+            return false;
+        }
+    }
+
     protected void spool(ProxyAEExtension proxyAEE, Association asAccepted,
             PresentationContext pc, Dimse dimse, Attributes cmd,
             PDVInputStream data, Attributes rsp) throws IOException {
@@ -197,7 +379,8 @@ public class CStore extends BasicCStoreSCP {
         }
     }
 
-    private static void deleteFile(final Association as, final File file) {
+    static void deleteFile(final Association as, final File file) {
+        deleteFileInfo(as, file);
         if(!file.delete()){
         // this scheduled delete is done to fix an issue with windows delete
         final int maxCycles = 100;
@@ -205,19 +388,11 @@ public class CStore extends BasicCStoreSCP {
 
                     @Override
                     public void run() {
-                        File info = new File(file.getParent(), file.getName()
-                                .substring(0, file.getName().indexOf('.'))
-                                + ".info");
                         boolean fileDeleted = false;
-                        boolean infoFileDeleted = false;
                         int cycle=0;
-                        while ((file.exists() || info.exists() ) && cycle <= maxCycles) {
+                        while (file.exists() && cycle <= maxCycles) {
                             cycle++;
-                            if (file.exists())
-                                fileDeleted = FileUtils.deleteQuietly(file);
-
-                            if(info.exists())
-                            infoFileDeleted = FileUtils.deleteQuietly(info);
+                            fileDeleted = FileUtils.deleteQuietly(file);
                             synchronized(this){
                             try {
                                 wait(1000);
@@ -230,23 +405,23 @@ public class CStore extends BasicCStoreSCP {
                             LOG.debug("{}: delete {}", as, file);
                         else
                             LOG.debug("{}: failed to delete {}", as, file);
-                        if (infoFileDeleted)
-                            LOG.debug("{}: delete {}", as, info);
-                        else
-                            LOG.debug("{}: failed to delete {}", as, info);
                     }
                 }, 500, TimeUnit.MILLISECONDS);
         }
         else
-        {
                 LOG.debug("{}: delete {}", as, file);
-                File info = new File(file.getParent(),file.getName().substring(0, file.getName().indexOf('.')) + ".info");
-                if (info.delete())
-                LOG.debug("{}: delete {}", as, info);
-                else
-                LOG.debug("{}: failed to delete {}", as, info);
-        }
+    }
 
+    private static void deleteFileInfo(Association as, File file) {
+        try {
+            InfoFileUtils.deleteFileInfo(as.getApplicationEntity()
+                    .getAEExtension(ProxyAEExtension.class), file);
+        } catch (IOException e) {
+            LOG.error("{}: failed to delete file info of {}: {}",
+                    new Object[] { as, file, e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
     }
 
     private Association getCMoveDestinationAS(ProxyAEExtension proxyAEE,
@@ -299,68 +474,53 @@ public class CStore extends BasicCStoreSCP {
         }
     }
 
+    /*
+     * Spools the received data set in a single pass: the header up to the
+     * pixel data is parsed from the PDV stream and coerced in memory, then
+     * written together with the file meta information, followed by the
+     * remaining (pixel) data which is copied through without being parsed.
+     * If the coercion sets attributes which belong after the pixel data, the
+     * whole data set is parsed and coerced instead.
+     */
     private Attributes processInputStream(ProxyAEExtension proxyAEE,
             Association as, PresentationContext pc, Attributes rq,
             PDVInputStream data, File file) throws FileNotFoundException,
             IOException {
         LOG.debug("{}: write {}", as, file);
-        // stream to write spool file
-        FileOutputStream fout = new FileOutputStream(file);
-        BufferedOutputStream bout = new BufferedOutputStream(fout);
-        DicomOutputStream out = new DicomOutputStream(bout,
-                UID.ExplicitVRLittleEndian);
-
         String cuid = rq.getString(Tag.AffectedSOPClassUID);
         String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
         String tsuid = pc.getTransferSyntax();
         Attributes fmi = as.createFileMetaInformation(iuid, cuid, tsuid);
-        // fix
-        // spool first
-        try {
-            if (data instanceof PDVInputStream) {
-                ((PDVInputStream) data).copyTo(out);
-            } else if (data != null) {
-                StreamUtils.copy(data, out);
-            }
-        } finally {
-            fout.flush();
-            fout.getFD().sync();
-            SafeClose.close(out);
-            SafeClose.close(bout);
-            SafeClose.close(fout);
-        }
-
-        // coerce second
-        DicomInputStream din = new DicomInputStream(file);
-        Attributes attrs = null;
-        try {
-            // include only an uri in the read dataset
-            din.setIncludeBulkData(IncludeBulkData.URI);
-
-            attrs = din.readDataset(-1, -1);
-        } finally {
-            SafeClose.close(din);
+        DicomInputStream din = new DicomInputStream(data, tsuid);
+        Attributes attrs = din.readDataset(-1, Tag.PixelData);
+        boolean pixelData = din.tag() == Tag.PixelData
+                && !attrs.contains(Tag.PixelData);
+        Attributes coerced = AttributeCoercionUtils.coerceDataset(proxyAEE,
+                as, Role.SCU, Dimse.C_STORE_RQ, attrs, rq, !pixelData);
+        if (pixelData && containsTagFrom(coerced, Tag.PixelData)) {
+            LOG.debug("{}: coercion sets attributes after the pixel data, "
+                    + "parse the whole data set", as);
+            din.readValue(din, attrs);
+            din.readAttributes(attrs, -1, -1);
+            pixelData = false;
+            coerced = AttributeCoercionUtils.coerceDataset(proxyAEE, as,
+                    Role.SCU, Dimse.C_STORE_RQ, attrs, rq, true);
         }
-        File tempFile = new File(file.getPath() + ".tmpBulkData");
-        fout = new FileOutputStream(tempFile);
-        bout = new BufferedOutputStream(fout);
-        out = new DicomOutputStream(bout, UID.ExplicitVRLittleEndian);
-        attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, as, Role.SCU,
-                Dimse.C_STORE_RQ, attrs, rq);
+        attrs = coerced;
+        DicomOutputStream out = new DicomOutputStream(as.getDevice()
+                .getDeviceExtension(ProxyDeviceExtension.class)
+                .newSpoolOutputStream(file), UID.ExplicitVRLittleEndian);
         try {
             out.writeDataset(fmi, attrs);
-            fout.flush();
-            fout.getFD().sync();
+            if (pixelData) {
+                out.writeHeader(Tag.PixelData, din.vr(), din.length());
+                StreamUtils.copy(din, out);
+            }
+            out.finish();
+            // SafeClose hides errors writing the last buffer
+            out.flush();
         } finally {
             SafeClose.close(out);
-            SafeClose.close(bout);
-            SafeClose.close(fout);
-        }
-        try {
-            FileUtils.deleteQuietly(file);
-            FileUtils.moveFile(tempFile, file);
-        } catch (IOException e) {
-            LOG.error("Exception moving temp file with coerced set to spool", e);
         }
         Properties prop = new Properties();
         prop.setProperty("hostname", as.getConnection().getHostname());
@@ -374,42 +534,30 @@ public class CStore extends BasicCStoreSCP {
         prop.setProperty("transfer-syntax-uid",
                 fmi.getString(Tag.TransferSyntaxUID));
         prop.setProperty("source-aet", as.getCallingAET());
-        String path = file.getPath();
-        File info = new File(path.substring(0, path.length() - 5) + ".info");
-        FileOutputStream infoOut = new FileOutputStream(info);
-        try {
-            prop.store(infoOut, null);
-            infoOut.flush();
-            infoOut.getFD().sync();
-        } finally {
-            infoOut.close();
-        }
+        prop.setProperty("priority", Integer.toString(rq.getInt(Tag.Priority, 0)));
+        File journal = InfoFileUtils.storeFileInfo(proxyAEE, file, prop);
+        as.getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getGroupCommit().sync(file, journal);
         attrs = null;
         return fmi;
     }
 
-    private void addFileInfo(String path, String key, String value)
+    private static boolean containsTagFrom(Attributes attrs, final int tag)
             throws IOException {
-        File info = new File(path.substring(0, path.length() - 5) + ".info");
-        Properties prop = new Properties();
-        FileInputStream inStream = null;
         try {
-            inStream = new FileInputStream(info);
-            prop.load(inStream);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            inStream.close();
-        }
-        prop.setProperty(key, value);
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(info);
-            prop.store(out, null);
+            // stops at the first attribute from the tag on
+            return !attrs.accept(new Attributes.Visitor() {
+
+                @Override
+                public boolean visit(Attributes attrs, int t, VR vr,
+                        Object value) {
+                    return (t & 0xFFFFFFFFL) < (tag & 0xFFFFFFFFL);
+                }
+            }, false);
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            out.close();
+            throw new IOException(e);
         }
     }
 
@@ -433,6 +581,9 @@ public class CStore extends BasicCStoreSCP {
                     forwardRules.get(0));
         else {
             List<String> prevDestinationAETs = new ArrayList<String>();
+            List<File> copies = new ArrayList<File>();
+            CStoreFanOut fanOut = new CStoreFanOut(proxyAEE, asAccepted, pc,
+                    rq, file);
             for (ForwardRule rule : forwardRules) {
                 List<String> destinationAETs = new ArrayList<String>();
                 if (rule.containsTemplateURI()) {
@@ -454,33 +605,91 @@ public class CStore extends BasicCStoreSCP {
                         LOG.info("{}: Please check configured forward rules for overlapping time with duplicate destination AETs");
                         continue;
                     }
+                    Association asInvoked = getFanOutAssociation(proxyAEE,
+                            asAccepted, rule, calledAET, rq);
+                    if (asInvoked != null) {
+                        fanOut.add(asInvoked, rule.getUseCallingAET());
+                        continue;
+                    }
                     if (rule.getUseCallingAET() != null)
-                        addFileInfo(file.getPath(), "use-calling-aet",
-                                rule.getUseCallingAET());
-                    createMappedFileCopy(proxyAEE, asAccepted, file, calledAET,
-                            ".dcm");
+                        InfoFileUtils.setFileInfoProperty(proxyAEE, file,
+                                "use-calling-aet", rule.getUseCallingAET());
+                    copies.add(createMappedFileCopy(proxyAEE, asAccepted,
+                            file, calledAET, ".dcm"));
                 }
                 prevDestinationAETs.addAll(destinationAETs);
             }
+            if (!copies.isEmpty())
+                InfoFileUtils.syncFileInfo(proxyAEE,
+                        copies.toArray(new File[copies.size()]));
+            if (!fanOut.isEmpty()) {
+                // returns the RSP when all destinations have been served
+                fanOut.start();
+                return;
+            }
             deleteFile(asAccepted, file);
             Attributes cmd = Commands.mkCStoreRSP(rq, Status.Success);
             asAccepted.writeDimseRSP(pc, cmd);
         }
     }
 
+    /*
+     * Returns the association to forward to the destination directly, or
+     * null if the object has to be spooled for the destination. Associations
+     * are kept open for the following objects of the accepted association.
+     */
+    private Association getFanOutAssociation(ProxyAEExtension proxyAEE,
+            Association asAccepted, ForwardRule rule, String calledAET,
+            Attributes rq) {
+        ForwardOption forwardOption = proxyAEE.getForwardOptions().get(
+                calledAET);
+        if (forwardOption != null
+                && !forwardOption.getSchedule().isNow()
+                || ForwardConnectionUtils.requiresMultiFrameConversion(
+                        proxyAEE, calledAET,
+                        rq.getString(Tag.AffectedSOPClassUID))
+                || !asAccepted.getDevice()
+                        .getDeviceExtension(ProxyDeviceExtension.class)
+                        .getCircuitBreaker(calledAET).allowRequest())
+            return null;
+
+        @SuppressWarnings("unchecked")
+        HashMap<String, Association> fwdAssocs = (HashMap<String, Association>) asAccepted
+                .getProperty(ProxyAEExtension.FORWARD_FAN_OUT);
+        if (fwdAssocs == null) {
+            fwdAssocs = new HashMap<String, Association>();
+            asAccepted.setProperty(ProxyAEExtension.FORWARD_FAN_OUT, fwdAssocs);
+        }
+        String callingAET = (rule.getUseCallingAET() == null) ? asAccepted
+                .getCallingAET() : rule.getUseCallingAET();
+        String key = callingAET + '\\' + calledAET;
+        Association asInvoked = fwdAssocs.get(key);
+        if (asInvoked != null && asInvoked.isReadyForDataTransfer())
+            return asInvoked;
+
+        asInvoked = newForwardAssociation(asAccepted, callingAET, calledAET,
+                ForwardConnectionUtils.copyOfMatchingAAssociateRQ(asAccepted),
+                proxyAEE, fwdAssocs, rule);
+        if (asInvoked != null)
+            fwdAssocs.put(key, asInvoked);
+        else
+            fwdAssocs.remove(key);
+        return asInvoked;
+    }
+
     private void processSingleForwardDestination(Association asAccepted,
             Object forwardAssociationProperty, PresentationContext pc,
             Attributes rq, File file, Attributes fmi,
             ProxyAEExtension proxyAEE, ForwardRule rule)
             throws DicomServiceException, IOException {
         if (rule.getUseCallingAET() != null)
-            addFileInfo(file.getPath(), "use-calling-aet",
-                    rule.getUseCallingAET());
+            InfoFileUtils.setFileInfoProperty(proxyAEE, file,
+                    "use-calling-aet", rule.getUseCallingAET());
         String calledAET = rule.getDestinationAETitles().get(0);
         ForwardOption forwardOption = proxyAEE.getForwardOptions().get(
                 calledAET);
         if (forwardOption == null
-                || forwardOption.getSchedule().isNow(new GregorianCalendar())) {
+                || forwardOption.getSchedule().isNow()) {
             String callingAET = (rule.getUseCallingAET() == null) ? asAccepted
                     .getCallingAET() : rule.getUseCallingAET();
             Association asInvoked = getSingleForwardDestination(asAccepted,
@@ -513,20 +722,17 @@ public class CStore extends BasicCStoreSCP {
             Association asAccepted, PresentationContext pc, Attributes rq,
             File file, String calledAET) throws IOException,
             DicomServiceException {
-        File dir = new File(proxyAEE.getCStoreDirectoryPath(), calledAET);
-        dir.mkdir();
         String fileName = file.getName();
-        File dst = new File(dir, fileName.substring(0,
+        File dst = new File(proxyAEE.getCStoreDirectoryPath(calledAET,
+                fileName), fileName.substring(0,
                 fileName.lastIndexOf('.')).concat(
                 (String) asAccepted.getProperty(ProxyAEExtension.FILE_SUFFIX)));
         LOG.debug("{}: rename {} to {}",
                 new Object[] { asAccepted, file.getPath(), dst.getPath() });
         if (file.renameTo(dst)) {
-            File infoFile = new File(proxyAEE.getCStoreDirectoryPath(), file
-                    .getName().substring(0, file.getName().lastIndexOf('.'))
-                    + ".info");
-            File infoDst = new File(dir, infoFile.getName());
-            infoFile.renameTo(infoDst);
+            InfoFileUtils.moveFileInfo(proxyAEE, file, dst);
+            InfoFileUtils.syncFileInfo(proxyAEE);
+            SpoolQueueUtils.enqueue(proxyAEE, dst);
             asAccepted.writeDimseRSP(pc,
                     Commands.mkCStoreRSP(rq, Status.Success));
         } else {
@@ -615,7 +821,7 @@ public class CStore extends BasicCStoreSCP {
         Attributes attrs = proxyAEE.parseAttributesWithLazyBulkData(asAccepted,
                 dataFile);
         attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, asInvoked,
-                Role.SCP, Dimse.C_STORE_RQ, attrs, rq);
+                Role.SCP, Dimse.C_STORE_RQ, attrs, rq, true);
         File logFile = null;
         try {
             if (proxyAEE.isEnableAuditLog()) {
@@ -632,7 +838,7 @@ public class CStore extends BasicCStoreSCP {
                         asInvoked.getRemoteAET(), prop, dataFile.length(), 0);
             }
             forward(proxyAEE, asAccepted, asInvoked, pc, rq,
-                    new DataWriterAdapter(attrs), -1, logFile, dataFile, null, false);
+                    new DataWriterAdapter(attrs), -1, logFile, dataFile, null);
         } catch (Exception e) {
             if (logFile != null)
                 logFile.delete();
@@ -671,6 +877,7 @@ public class CStore extends BasicCStoreSCP {
             try {
                 long t1 = System.currentTimeMillis();
                 Attributes attrs = extractor.extract(src, frameNumber);
+                proxyAEE.mapBulkData(attrs);
                 long t2 = System.currentTimeMillis();
                 t = t + t2 - t1;
                 forwardRq.setString(Tag.AffectedSOPInstanceUID, VR.UI,
@@ -692,7 +899,7 @@ public class CStore extends BasicCStoreSCP {
                 }
                 forward(proxyAEE, asAccepted, asInvoked, pc, forwardRq,
                         new DataWriterAdapter(attrs), frameNumber, logFile,
-                        dataFile, sourceUID, false);
+                        dataFile, sourceUID);
             } catch (Exception e) {
                 if (logFile != null)
                     logFile.delete();
@@ -723,31 +930,65 @@ public class CStore extends BasicCStoreSCP {
                     new Object[] { asAccepted, n, sourceUID, t / 1000F });
     }
 
-    protected static void createMappedFileCopy(ProxyAEExtension proxyAEE,
+    /*
+     * Spools a copy of the file for the destination and returns it. The
+     * caller has to sync the copy and its file info by
+     * InfoFileUtils.syncFileInfo before confirming the receipt.
+     */
+    protected static File createMappedFileCopy(ProxyAEExtension proxyAEE,
             Association as, File file, String calledAET, String suffix)
             throws IOException {
-        File dir = new File(proxyAEE.getCStoreDirectoryPath(), calledAET);
-        dir.mkdir();
-        File dst = new File(dir, file.getName()
-                .substring(0, file.getName().lastIndexOf('.')).concat(suffix));
+        return createMappedFileCopy(proxyAEE, as, file, calledAET, suffix,
+                InfoFileUtils.getFileInfoProperties(proxyAEE, file));
+    }
+
+    static File createMappedFileCopy(ProxyAEExtension proxyAEE,
+            Association as, File file, String calledAET, String suffix,
+            Properties prop) throws IOException {
+        String fileName = file.getName();
+        File dst = new File(proxyAEE.getCStoreDirectoryPath(calledAET,
+                fileName), fileName.substring(0, fileName.lastIndexOf('.'))
+                .concat(suffix));
+        linkOrCopy(as, file, dst);
+        InfoFileUtils.storeFileInfo(proxyAEE, dst, prop);
+        SpoolQueueUtils.enqueue(proxyAEE, dst);
+        return dst;
+    }
+
+    /*
+     * Spool copies for several destinations share the data of the spooled
+     * file by hard links where the file system supports them; the data is
+     * freed when the last destination has deleted its link. Otherwise the
+     * file is copied.
+     */
+    private static void linkOrCopy(Association as, File file, File dst)
+            throws IOException {
+        if (hardLinks) {
+            try {
+                Files.deleteIfExists(dst.toPath());
+                Files.createLink(dst.toPath(), file.toPath());
+                LOG.debug("{}: link {} to {}", new Object[] { as,
+                        file.getPath(), dst.getPath() });
+                return;
+            } catch (UnsupportedOperationException e) {
+                LOG.info("{}: hard links not supported, copy spool files",
+                        as);
+                hardLinks = false;
+            } catch (IOException e) {
+                LOG.debug("{}: failed to link {} to {}: {}", new Object[] {
+                        as, file.getPath(), dst.getPath(), e.getMessage() });
+            }
+        }
         LOG.debug("{}: copy {} to {}",
                 new Object[] { as, file.getPath(), dst.getPath() });
-
         FileUtils.copyFile(file, dst);
-
-        File infoFile = new File(proxyAEE.getCStoreDirectoryPath(), file
-                .getName().substring(0, file.getName().indexOf('.')) + ".info");
-        File infoDst = new File(dir, infoFile.getName());
-        LOG.debug("{}: copy {} to {}", new Object[] { as, infoFile.getPath(),
-                infoDst.getPath() });
-        FileUtils.copyFile(infoFile, infoDst);
     }
 
     private static void forward(final ProxyAEExtension proxyAEE,
             final Association asAccepted, Association asInvoked,
             final PresentationContext pc, final Attributes rq, DataWriter data,
             final int frame, final File logFile, final File dataFile,
-            final String sourceIUID, final boolean directly) throws IOException, InterruptedException {
+            final String sourceIUID) throws IOException, InterruptedException {
         final String tsuid = pc.getTransferSyntax();
         String cuid = rq.getString(Tag.AffectedSOPClassUID);
         String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
@@ -794,38 +1035,25 @@ public class CStore extends BasicCStoreSCP {
                             else if (cmd.getInt(Tag.Status, -1) != Status.Success) {
                                 // rename file to un expected error file
                                 try {
-                                    File baseDIR = new File(
-                                            proxyAEE.getCStoreDirectoryPath(),
-                                            calledAET);
-                                    if (!baseDIR.exists())
-                                        baseDIR.mkdir();
+                                    File baseDIR = proxyAEE
+                                            .getCStoreDirectoryPath(calledAET,
+                                                    dataFile.getName());
                                     File destination = new File(baseDIR,
                                             dataFile.getName().substring(
                                                     0,
                                                     dataFile.getName()
                                                             .lastIndexOf("."))
                                                     + ".err");
-                                    File infoFile = new File(
-                                            dataFile.getParent(),
-                                            dataFile.getName().substring(
-                                                    0,
-                                                    dataFile.getName()
-                                                            .lastIndexOf("."))
-                                                    + ".info");
-                                    File destinationInfo = new File(baseDIR,
-                                            dataFile.getName().substring(
-                                                    0,
-                                                    dataFile.getName()
-                                                            .lastIndexOf("."))
-                                                    + ".info");
-                                    if (dataFile.renameTo(destination)
-                                            && infoFile
-                                                    .renameTo(destinationInfo))
+                                    if (dataFile.renameTo(destination)) {
+                                        InfoFileUtils.moveFileInfo(proxyAEE,
+                                                dataFile, destination);
+                                        SpoolQueueUtils.enqueue(proxyAEE,
+                                                destination);
                                         LOG.debug("Error processing C-Store [ERR:"
                                                 + cmd.getInt(Tag.Status, -1)
                                                 + "] moved files to .err at"
                                                 + destination);
-                                    else
+                                    } else
                                         LOG.info("Error processing C-Store [ERR:"
                                                 + cmd.getInt(Tag.Status, -1)
                                                 + "] failed to move file to "
@@ -855,8 +1083,9 @@ public class CStore extends BasicCStoreSCP {
                     try {
                         String suffix = RetryObject.ConnectionException
                                 .getSuffix() + "0";
-                        createMappedFileCopy(proxyAEE, asAccepted, dataFile,
-                                calledAET, suffix);
+                        InfoFileUtils.syncFileInfo(proxyAEE,
+                                createMappedFileCopy(proxyAEE, asAccepted,
+                                        dataFile, calledAET, suffix));
                         cmd = Commands.mkCStoreRSP(rq, Status.Success);
                     } catch (Exception e) {
                         LOG.error("{}: error saving file {}: {}", new Object[] {
@@ -884,12 +1113,12 @@ public class CStore extends BasicCStoreSCP {
         if (info != null) {
             asInvoked.cstore(cuid, iuid, priority, info.getMoveOriginatorAET(),
                     info.getSourceMsgId(), data,
-                    directly ? tsuid : ForwardConnectionUtils.getMatchingTsuid(asInvoked, tsuid, cuid), rspHandler);
+                    ForwardConnectionUtils.getMatchingTsuid(asInvoked, tsuid, cuid), rspHandler);
         }
 
         else {
             asInvoked.cstore(cuid, iuid, priority, data,
-                    directly ? tsuid : ForwardConnectionUtils.getMatchingTsuid(asInvoked, tsuid, cuid), rspHandler);
+                    ForwardConnectionUtils.getMatchingTsuid(asInvoked, tsuid, cuid), rspHandler);
         }
 
     }
@@ -0,0 +1,237 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.dimse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.NoPresentationContextException;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability.Role;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4chee.proxy.common.AuditDirectory;
+import org.dcm4chee.proxy.common.RetryObject;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
+import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
+import org.dcm4chee.proxy.utils.LogUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forwards one received C-STORE object concurrently to several destinations.
+ * Each branch sends from the spooled file of the object over its own forward
+ * association; only branches which fail are copied to the spool directory of
+ * their destination. The C-STORE-RSP is returned and the spooled file is
+ * deleted when the last branch has completed.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+class CStoreFanOut {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(CStoreFanOut.class);
+
+    private final ProxyAEExtension proxyAEE;
+    private final Association asAccepted;
+    private final PresentationContext pc;
+    private final Attributes rq;
+    private final File file;
+    private final List<Branch> branches = new ArrayList<Branch>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    CStoreFanOut(ProxyAEExtension proxyAEE, Association asAccepted, PresentationContext pc, Attributes rq, File file) {
+        this.proxyAEE = proxyAEE;
+        this.asAccepted = asAccepted;
+        this.pc = pc;
+        this.rq = rq;
+        this.file = file;
+    }
+
+    /**
+     * Adds a branch to the destination of the forward association.
+     * 
+     * @param useCallingAET
+     *            calling AET to keep in the info of a spooled copy, or
+     *            <code>null</code>
+     */
+    void add(Association asInvoked, String useCallingAET) {
+        branches.add(new Branch(asInvoked, useCallingAET));
+    }
+
+    boolean isEmpty() {
+        return branches.isEmpty();
+    }
+
+    /**
+     * Starts sending on all branches, each on a thread of the device executor.
+     */
+    void start() {
+        pending.set(branches.size());
+        for (Branch branch : branches) {
+            try {
+                asAccepted.getDevice().execute(branch);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("{}: no thread available to forward to {}", asAccepted, branch.asInvoked.getCalledAET());
+                branch.complete(RetryObject.ConnectionException.getSuffix() + "0");
+            }
+        }
+    }
+
+    private void branchCompleted() {
+        if (pending.decrementAndGet() > 0)
+            return;
+
+        CStore.deleteFile(asAccepted, file);
+        int status = failed.get() ? Status.OutOfResources : Status.Success;
+        try {
+            asAccepted.writeDimseRSP(pc, Commands.mkCStoreRSP(rq, status));
+        } catch (IOException e) {
+            LOG.error(asAccepted + ": Failed to write C-STORE RSP: " + e.getMessage());
+        }
+    }
+
+    private final class Branch extends DimseRSPHandler implements Runnable {
+
+        final Association asInvoked;
+        final String useCallingAET;
+        final AtomicBoolean done = new AtomicBoolean();
+        File logFile;
+
+        Branch(Association asInvoked, String useCallingAET) {
+            super(asInvoked.nextMessageID());
+            this.asInvoked = asInvoked;
+            this.useCallingAET = useCallingAET;
+        }
+
+        @Override
+        public void run() {
+            String cuid = rq.getString(Tag.AffectedSOPClassUID);
+            String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+            try {
+                Attributes attrs = proxyAEE.parseAttributesWithLazyBulkData(asAccepted, file);
+                attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, asInvoked, Role.SCP, Dimse.C_STORE_RQ,
+                        attrs, rq, true);
+                if (proxyAEE.isEnableAuditLog()) {
+                    Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+                    String sourceAET = prop.getProperty("source-aet");
+                    LogUtils.createStartLogFile(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET,
+                            asInvoked.getRemoteAET(), asInvoked.getConnection().getHostname(), prop, 0);
+                    logFile = LogUtils.writeLogFile(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET,
+                            asInvoked.getRemoteAET(), prop, file.length(), 0);
+                }
+                asInvoked.cstore(cuid, iuid, rq.getInt(Tag.Priority, 0), new DataWriterAdapter(attrs),
+                        ForwardConnectionUtils.getMatchingTsuid(asInvoked, pc.getTransferSyntax(), cuid), this);
+            } catch (NoPresentationContextException e) {
+                LOG.error("{}: failed to forward {} to {}: {}", new Object[] { asAccepted, iuid,
+                        asInvoked.getCalledAET(), e.getMessage() });
+                complete(RetryObject.NoPresentationContextException.getSuffix() + "0");
+            } catch (Exception e) {
+                LOG.error("{}: failed to forward {} to {}: {}", new Object[] { asAccepted, iuid,
+                        asInvoked.getCalledAET(), e.getMessage() });
+                if (LOG.isDebugEnabled())
+                    e.printStackTrace();
+                complete(RetryObject.ConnectionException.getSuffix() + "0");
+            }
+        }
+
+        @Override
+        public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+            super.onDimseRSP(as, cmd, data);
+            int status = cmd.getInt(Tag.Status, -1);
+            if (status == Status.Success)
+                complete(null);
+            else {
+                LOG.info("{}: {} returned error status {}", new Object[] { asAccepted, as.getCalledAET(),
+                        Integer.toHexString(status) });
+                complete(".err");
+            }
+        }
+
+        @Override
+        public void onClose(Association as) {
+            super.onClose(as);
+            complete(RetryObject.ConnectionException.getSuffix() + "0");
+        }
+
+        /**
+         * Completes the branch, spooling a copy of the object for the
+         * destination if <code>suffix</code> is not <code>null</code>.
+         */
+        void complete(String suffix) {
+            if (!done.compareAndSet(false, true))
+                return;
+
+            if (suffix != null) {
+                if (logFile != null)
+                    logFile.delete();
+                try {
+                    Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+                    if (useCallingAET != null)
+                        prop.setProperty("use-calling-aet", useCallingAET);
+                    else
+                        prop.remove("use-calling-aet");
+                    InfoFileUtils.syncFileInfo(proxyAEE,
+                            CStore.createMappedFileCopy(proxyAEE, asAccepted, file, asInvoked.getCalledAET(), suffix, prop));
+                } catch (IOException e) {
+                    LOG.error("{}: failed to spool {} for {}: {}", new Object[] { asAccepted, file,
+                            asInvoked.getCalledAET(), e.getMessage() });
+                    if (LOG.isDebugEnabled())
+                        e.printStackTrace();
+                    failed.set(true);
+                }
+            }
+            branchCompleted();
+        }
+    }
+}
@@ -315,8 +315,10 @@ public class ForwardDimseRQ {
 
     private void coerceAndForward(ProxyAEExtension proxyAEE, Association fwdAssoc, Attributes attrs, boolean adjustPatientID)
             throws IOException, InterruptedException {
-        Attributes coercedData = new Attributes(AttributeCoercionUtils.coerceDataset(proxyAEE, fwdAssoc, Role.SCP, dimse, attrs, rq));
-        forwardDimseRQ(fwdAssoc, coercedData, adjustPatientID);
+        // attrs other than the received dataset are private copies per PatientID
+        Attributes coercedData = AttributeCoercionUtils.coerceDataset(proxyAEE, fwdAssoc, Role.SCP, dimse, attrs, rq,
+                attrs != data);
+        forwardDimseRQ(fwdAssoc, coercedData == data ? new Attributes(data) : coercedData, adjustPatientID);
     }
 
     private IDWithIssuer[] processPatientIDs(ProxyAEExtension proxyAEE, List<ForwardRule> fwdRules, Association fwdAssoc) {
@@ -92,6 +92,7 @@ import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.ForwardRuleUtils;
 import org.dcm4chee.proxy.utils.InfoFileUtils;
+import org.dcm4chee.proxy.utils.SpoolQueueUtils;
 import org.jboss.resteasy.util.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -232,7 +233,8 @@ public class Mpps extends AbstractDicomService {
         File doseSrFile = createFile(as, doseSrFmi, doseSrData, proxyAEE.getCStoreDirectoryPath(), calledAET, rule);
         LOG.info("{}: created Dose SR file {}", as, doseSrFile.getPath());
         as.setProperty(ProxyAEExtension.FILE_SUFFIX, ".dcm");
-        rename(as, doseSrFile);
+        SpoolQueueUtils.enqueue(proxyAEE,
+                SpoolQueueUtils.moveToShardDirectory(proxyAEE, rename(as, doseSrFile)));
         AuditMessage msg = createAuditMessage(
                 proxyAEE.getApplicationEntity(), 
                 timeStamp,
@@ -340,7 +342,8 @@ public class Mpps extends AbstractDicomService {
         DicomOutputStream out = null;
         try {
             LOG.debug("{}: create {}", new Object[] { as, file });
-            out = new DicomOutputStream(file);
+            out = new DicomOutputStream(as.getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                    .newSpoolOutputStream(file), UID.ExplicitVRLittleEndian);
             out.writeDataset(fmi, data);
         } catch (IOException e) {
             LOG.warn("{}: failed to create {}", new Object[] { as, file.getPath() });
@@ -361,7 +364,8 @@ public class Mpps extends AbstractDicomService {
         DicomOutputStream out = null;
         try {
             LOG.debug("{}: create {}", new Object[] { as, file });
-            out = new DicomOutputStream(file);
+            out = new DicomOutputStream(as.getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                    .newSpoolOutputStream(file), UID.ExplicitVRLittleEndian);
             out.writeDataset(fmi, data);
         } catch (IOException e) {
             LOG.warn("{}: failed to create {}", new Object[] { as, file.getPath() });
@@ -396,6 +400,7 @@ public class Mpps extends AbstractDicomService {
         } finally {
             infoOut.close();
         }
+        as.getDevice().getDeviceExtension(ProxyDeviceExtension.class).getGroupCommit().sync(file, info);
         return file;
     }
 
@@ -0,0 +1,119 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.dimse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.dcm4che3.net.DataWriter;
+import org.dcm4che3.net.PDVOutputStream;
+
+/**
+ * Relays the data set of a received C-STORE-RQ fragment by fragment to the
+ * forward association, without parsing or buffering the whole data set.
+ * Optionally each fragment is also written to a write-ahead copy, which can
+ * be completed by {@link #drain()} if the relay fails.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+class RelayDataWriter implements DataWriter {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // data is relayed on the reader thread of the accepted association
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final InputStream in;
+    private final OutputStream writeAhead;
+    private volatile boolean complete;
+
+    RelayDataWriter(InputStream in, OutputStream writeAhead) {
+        this.in = in;
+        this.writeAhead = writeAhead;
+    }
+
+    @Override
+    public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+        byte[] buf = BUFFER.get();
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) != -1) {
+            // write ahead first, so a failed relay does not lose the fragment
+            if (writeAhead != null)
+                writeAhead.write(buf, 0, n);
+            out.write(buf, 0, n);
+        }
+        // complete before the last fragment is sent, i.e. before the RSP
+        complete();
+    }
+
+    /**
+     * Reads the data not relayed yet into the write-ahead copy and closes it.
+     */
+    void drain() throws IOException {
+        if (complete || writeAhead == null)
+            return;
+
+        byte[] buf = BUFFER.get();
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) != -1)
+            writeAhead.write(buf, 0, n);
+        complete();
+    }
+
+    /**
+     * Returns true if the data set was read completely and the write-ahead
+     * copy, if any, is closed.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    private void complete() throws IOException {
+        if (writeAhead != null)
+            writeAhead.close();
+        complete = true;
+    }
+}
@@ -44,7 +44,7 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.util.GregorianCalendar;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
@@ -74,9 +74,11 @@ import org.dcm4che3.net.pdu.RoleSelection;
 import org.dcm4che3.net.service.AbstractDicomService;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4chee.proxy.common.RetryObject;
+import org.dcm4chee.proxy.common.SpoolLayout;
 import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.ForwardRuleUtils;
 import org.dcm4chee.proxy.utils.InfoFileUtils;
@@ -230,7 +232,7 @@ public class StgCmt extends AbstractDicomService {
                 .entrySet()) {
             if (calledAET.equals(entry.getKey())
                     && !entry.getValue().getSchedule()
-                            .isNow(new GregorianCalendar())) {
+                            .isNow()) {
                 LOG.debug(
                         "{}: store N-ACTION-RQ for scheduled forwarding to {}",
                         asAccepted, calledAET);
@@ -467,7 +469,8 @@ public class StgCmt extends AbstractDicomService {
         if (!dir.exists())
             return false;
 
-        String[] files = dir.list();
+        List<File> files = new ArrayList<File>();
+        SpoolLayout.listFiles(dir, files);
         Sequence referencedSOPSequence = eventInfo
                 .getSequence(Tag.ReferencedSOPSequence);
         Iterator<Attributes> it = referencedSOPSequence.iterator();
@@ -475,8 +478,8 @@ public class StgCmt extends AbstractDicomService {
             Attributes item = it.next();
             String referencedSOPInstanceUID = item
                     .getString(Tag.ReferencedSOPInstanceUID);
-            for (String file : files)
-                if (file.startsWith(referencedSOPInstanceUID))
+            for (File file : files)
+                if (file.getName().startsWith(referencedSOPInstanceUID))
                     return true;
         }
         return false;
@@ -775,7 +778,9 @@ public class StgCmt extends AbstractDicomService {
         File file = File.createTempFile("dcm", suffix, dir);
         DicomOutputStream stream = null;
         try {
-            stream = new DicomOutputStream(file);
+            stream = new DicomOutputStream(asAccepted.getDevice()
+                    .getDeviceExtension(ProxyDeviceExtension.class)
+                    .newSpoolOutputStream(file), UID.ExplicitVRLittleEndian);
             String iuid = UID.StorageCommitmentPushModelSOPInstance;
             String cuid = UID.StorageCommitmentPushModelSOPClass;
             String tsuid = UID.ExplicitVRLittleEndian;
@@ -819,7 +824,6 @@ public class StgCmt extends AbstractDicomService {
         try {
             LOG.debug("{}: create {}", asAccepted, info.getPath());
             prop.store(infoOut, null);
-            return file;
         } catch (Exception e) {
             LOG.error(asAccepted
                     + ": Failed to create transaction UID info-file: "
@@ -832,6 +836,9 @@ public class StgCmt extends AbstractDicomService {
         } finally {
             infoOut.close();
         }
+        asAccepted.getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getGroupCommit().sync(file, info);
+        return file;
     }
 
     /*
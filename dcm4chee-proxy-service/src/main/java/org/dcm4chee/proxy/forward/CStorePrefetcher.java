@@ -0,0 +1,169 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.File;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.dcm4che3.conf.api.AttributeCoercion;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.TransferCapability.Role;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
+import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the info, parses and coerces the files of a forward task ahead of
+ * sending on a helper thread, so the sending thread can keep the negotiated
+ * asynchronous operations window filled. Files are returned in task order;
+ * at most as many files as the window allows (bound by
+ * {@link #MAX_PREFETCH}) are held in memory.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+class CStorePrefetcher implements Runnable {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(CStorePrefetcher.class);
+
+    static final int MAX_PREFETCH = 16;
+
+    static class PrefetchedFile {
+        final File file;
+        Properties prop;
+        Attributes attrs;
+        boolean emf2sf;
+        Exception exception;
+
+        PrefetchedFile(File file) {
+            this.file = file;
+        }
+    }
+
+    private final ProxyAEExtension proxyAEE;
+    private final Association as;
+    private final List<File> files;
+    private final BlockingQueue<PrefetchedFile> queue;
+    private volatile boolean canceled;
+    private boolean started;
+    private int taken;
+
+    CStorePrefetcher(ProxyAEExtension proxyAEE, Association as, List<File> files) {
+        this.proxyAEE = proxyAEE;
+        this.as = as;
+        this.files = files;
+        int window = as.getMaxOpsInvoked();
+        this.queue = new ArrayBlockingQueue<PrefetchedFile>(window <= 0 || window > MAX_PREFETCH ? MAX_PREFETCH
+                : window);
+    }
+
+    /**
+     * Starts prefetching on the executor. If the executor rejects the task,
+     * files are prepared by {@link #take()} on the calling thread.
+     */
+    void start(Executor executor) {
+        try {
+            executor.execute(this);
+            started = true;
+        } catch (RejectedExecutionException e) {
+            LOG.warn("{}: prefetching rejected, prepare files on sending thread: {}", as, e.getMessage());
+        }
+    }
+
+    boolean hasNext() {
+        return taken < files.size();
+    }
+
+    PrefetchedFile take() throws InterruptedException {
+        if (!started)
+            return prefetch(files.get(taken++));
+
+        taken++;
+        return queue.take();
+    }
+
+    void cancel() {
+        canceled = true;
+        queue.clear();
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (File file : files) {
+                if (canceled)
+                    return;
+
+                queue.put(prefetch(file));
+            }
+        } catch (InterruptedException e) {
+            LOG.error("{}: interrupted prefetching files: {}", as, e.getMessage());
+        }
+    }
+
+    private PrefetchedFile prefetch(File file) {
+        PrefetchedFile pf = new PrefetchedFile(file);
+        try {
+            pf.prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+            String cuid = pf.prop.getProperty("sop-class-uid");
+            if (ForwardConnectionUtils.requiresMultiFrameConversion(proxyAEE, as.getCalledAET(), cuid))
+                pf.emf2sf = true;
+            else if (as.isReadyForDataTransfer()) {
+                Attributes attrs = proxyAEE.parseAttributesWithLazyBulkData(as, file);
+                AttributeCoercion ac = proxyAEE.getAttributeCoercion(as.getCalledAET(), cuid, Role.SCU,
+                        Dimse.C_STORE_RQ);
+                if (ac != null)
+                    attrs = AttributeCoercionUtils.coerceAttributes(as, proxyAEE, attrs, ac, true);
+                pf.attrs = attrs;
+            }
+        } catch (Exception e) {
+            pf.exception = e;
+        }
+        return pf;
+    }
+}
@@ -0,0 +1,176 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.conf.api.ApplicationEntityCache;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4chee.proxy.common.CircuitBreaker;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Probes the destination of an open {@link CircuitBreaker} with a single
+ * C-ECHO. Closes the breaker and resumes forwarding to the destination if the
+ * probe succeeds, otherwise schedules the next probe.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+class CircuitBreakerProbe implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakerProbe.class);
+
+    private final ApplicationEntityCache aeCache;
+    private final ProxyAEExtension proxyAEE;
+    private final CircuitBreaker breaker;
+
+    CircuitBreakerProbe(ApplicationEntityCache aeCache, ProxyAEExtension proxyAEE, CircuitBreaker breaker) {
+        this.aeCache = aeCache;
+        this.proxyAEE = proxyAEE;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Schedules the probe at the next probe time of the breaker. The probe
+     * runs on the executor of the device, so connecting to the destination
+     * does not hold up other tasks of the scheduled executor.
+     */
+    static void schedule(ApplicationEntityCache aeCache, final ProxyAEExtension proxyAEE,
+            final CircuitBreaker breaker) {
+        long delay = Math.max(0, breaker.getNextProbeTime() - System.currentTimeMillis());
+        final Device device = proxyAEE.getApplicationEntity().getDevice();
+        final CircuitBreakerProbe probe = new CircuitBreakerProbe(aeCache, proxyAEE, breaker);
+        try {
+            device.getScheduledExecutor().schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        device.getExecutor().execute(probe);
+                    } catch (RejectedExecutionException e) {
+                        LOG.warn("{}: failed to start C-ECHO probe of {}, probe on next scheduler run: {}",
+                                new Object[] { proxyAEE.getApplicationEntity().getAETitle(),
+                                        breaker.getDestination(), e.getMessage() });
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            LOG.info("{}: forwarding to {} suspended, probe with C-ECHO in {} ms", new Object[] {
+                    proxyAEE.getApplicationEntity().getAETitle(), breaker.getDestination(), delay });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("{}: failed to schedule C-ECHO probe of {}, probe on next scheduler run: {}", new Object[] {
+                    proxyAEE.getApplicationEntity().getAETitle(), breaker.getDestination(), e.getMessage() });
+        }
+    }
+
+    @Override
+    public void run() {
+        if (breaker.startProbe(System.currentTimeMillis()) && probe())
+            resumeForwarding();
+    }
+
+    /**
+     * Sends the C-ECHO to the destination of a breaker which was switched to
+     * half-open by the caller.
+     * 
+     * @return <code>true</code> if the breaker was closed
+     */
+    boolean probe() {
+        String destination = breaker.getDestination();
+        ApplicationEntity ae = proxyAEE.getApplicationEntity();
+        try {
+            AAssociateRQ rq = new AAssociateRQ();
+            rq.setCallingAET(ae.getAETitle());
+            rq.setCalledAET(destination);
+            rq.addPresentationContext(new PresentationContext(1, UID.VerificationSOPClass,
+                    UID.ImplicitVRLittleEndian));
+            Association as = ae.connect(aeCache.findApplicationEntity(destination), rq);
+            int status;
+            try {
+                DimseRSP rsp = as.cecho();
+                rsp.next();
+                status = rsp.getCommand().getInt(Tag.Status, -1);
+            } finally {
+                as.release();
+            }
+            if (status != Status.Success)
+                throw new DimseStatusException(status);
+
+            breaker.recordSuccess();
+            LOG.info("{}: C-ECHO probe of {} succeeded, resume forwarding", ae.getAETitle(), destination);
+            return true;
+        } catch (Exception e) {
+            breaker.probeFailed(e.getClass().getSimpleName() + ": " + e.getMessage(), System.currentTimeMillis());
+            LOG.info("{}: C-ECHO probe of {} failed: {}", new Object[] { ae.getAETitle(), destination,
+                    e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            schedule(aeCache, proxyAEE, breaker);
+            return false;
+        }
+    }
+
+    private void resumeForwarding() {
+        String destination = breaker.getDestination();
+        for (ApplicationEntity ae : proxyAEE.getApplicationEntity().getDevice().getApplicationEntities()) {
+            ProxyAEExtension ext = ae.getAEExtension(ProxyAEExtension.class);
+            if (ext != null && ext.getSpoolQueue().size(destination) > 0)
+                new ForwardFiles(aeCache).scheduleForwardCStore(ext, destination);
+        }
+    }
+
+    private static class DimseStatusException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        DimseStatusException(int status) {
+            super("C-ECHO-RSP with status " + Integer.toHexString(status) + 'H');
+        }
+    }
+}
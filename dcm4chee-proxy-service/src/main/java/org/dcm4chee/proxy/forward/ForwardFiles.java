@@ -45,23 +45,21 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.NoSuchFileException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.FileUtils;
 import org.dcm4che3.conf.api.ApplicationEntityCache;
-import org.dcm4che3.conf.api.AttributeCoercion;
 import org.dcm4che3.conf.api.ConfigurationException;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
@@ -77,12 +75,10 @@ import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.AssociationStateException;
 import org.dcm4che3.net.DataWriterAdapter;
-import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.DimseRSPHandler;
 import org.dcm4che3.net.IncompatibleConnectionException;
 import org.dcm4che3.net.NoPresentationContextException;
 import org.dcm4che3.net.Status;
-import org.dcm4che3.net.TransferCapability.Role;
 import org.dcm4che3.net.pdu.AAbort;
 import org.dcm4che3.net.pdu.AAssociateRJ;
 import org.dcm4che3.net.pdu.AAssociateRQ;
@@ -90,17 +86,24 @@ import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.pdu.RoleSelection;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4chee.proxy.Proxy;
+import org.dcm4chee.proxy.common.AssociationPool;
 import org.dcm4chee.proxy.common.AuditDirectory;
+import org.dcm4chee.proxy.common.CircuitBreaker;
+import org.dcm4chee.proxy.common.ForwardScheduler;
+import org.dcm4chee.proxy.common.ParallelTasks;
 import org.dcm4chee.proxy.common.RetryObject;
+import org.dcm4chee.proxy.common.RetryRecord;
+import org.dcm4chee.proxy.common.SpoolLayout;
+import org.dcm4chee.proxy.common.SpoolQueue;
 import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.dcm4chee.proxy.conf.Retry;
 import org.dcm4chee.proxy.dimse.StgCmt;
-import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.InfoFileUtils;
 import org.dcm4chee.proxy.utils.LogUtils;
+import org.dcm4chee.proxy.utils.SpoolQueueUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -108,11 +111,13 @@ import org.slf4j.LoggerFactory;
  * @author Michael Backhaus <michael.backaus@agfa.com>
  */
 public class ForwardFiles {
-    
-    private final Lock lock = new ReentrantLock();
 
     protected static final Logger LOG = LoggerFactory.getLogger(ForwardFiles.class);
 
+    // number of queued files taken at once, so data of higher priority which
+    // is queued during a backlog drain is sent with the next batch
+    private static final int MAX_CSTORE_BATCH_SIZE = 100;
+
     private ApplicationEntityCache aeCache;
 
     public ForwardFiles(ApplicationEntityCache aeCache) {
@@ -126,8 +131,7 @@ public class ForwardFiles {
             processCStore(proxyAEE, forwardOptions);
             processNAction(proxyAEE, forwardOptions);
             processNEventReport(proxyAEE, forwardOptions);
-            ((ProxyDeviceExtension) proxyAEE.getApplicationEntity().getDevice()
-                    .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(
+            getForwardScheduler(proxyAEE).execute(proxyAEE.getApplicationEntity().getAETitle(), "MPPS", 1,
                     new Runnable() {
 
                         @Override
@@ -169,7 +173,7 @@ public class ForwardFiles {
             } else
                 for (Entry<String, ForwardOption> entry : forwardOptions.entrySet()) {
                     boolean isMatchingAET = calledAET.equals(entry.getKey());
-                    if (isMatchingAET && entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
+                    if (isMatchingAET && entry.getValue().getSchedule().isNow()) {
                         LOG.debug("Found currently active forward schedule for {}, sending N-SET data now", calledAET);
                         startForwardScheduledMPPS(proxyAEE, files, calledAET, "nset");
                     } else if (isMatchingAET) {
@@ -196,7 +200,7 @@ public class ForwardFiles {
             } else
                 for (Entry<String, ForwardOption> entry : forwardOptions.entrySet()) {
                     boolean isMatchingAET = calledAET.equals(entry.getKey());
-                    if (isMatchingAET && entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
+                    if (isMatchingAET && entry.getValue().getSchedule().isNow()) {
                         LOG.debug("Found currently active forward schedule for {}, sending existing N-CREATE data now",
                                 calledAET);
                         startForwardScheduledMPPS(proxyAEE, files, calledAET, "ncreate");
@@ -231,7 +235,7 @@ public class ForwardFiles {
                 } else
                     for (Entry<String, ForwardOption> entry : forwardOptions.entrySet()) {
                         boolean isMatchingAET = calledAET.equals(entry.getKey());
-                        if (isMatchingAET && entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
+                        if (isMatchingAET && entry.getValue().getSchedule().isNow()) {
                             LOG.debug("Found currently active forward schedule for {}, sending existing N-ACTION data now",
                                     calledAET);
                             startForwardScheduledNAction(proxyAEE, calledAET, files);
@@ -345,7 +349,7 @@ public class ForwardFiles {
       if (mergedAttrs.getSequence(Tag.FailedSOPSequence)!=null && mergedAttrs.getSequence(Tag.FailedSOPSequence).size() == 0)
           mergedAttrs.remove(Tag.FailedSOPSequence);
       //referencessop sequence can be empty alongside failed ones or not empty so no check here 
-        storeMergedNEvent(mergedAttrs, prop, mergeDir);
+        storeMergedNEvent(proxyAEE, mergedAttrs, prop, mergeDir);
         // cleanup obsolete aet dirs and files
         for (int i = 0; i < aets.length; ++i) {
             String aet = aets[i];
@@ -461,13 +465,16 @@ public class ForwardFiles {
         return attrs;
     }
 
-    private void storeMergedNEvent(Attributes mergedAttrs, Properties prop, File mergeDir) throws IOException,
+    private void storeMergedNEvent(ProxyAEExtension proxyAEE, Attributes mergedAttrs, Properties prop,
+            File mergeDir) throws IOException,
             DicomServiceException, FileNotFoundException {
         File file;
         file = File.createTempFile("dcm", ".nevent", mergeDir);
         DicomOutputStream stream = null;
         try {
-            stream = new DicomOutputStream(file);
+            stream = new DicomOutputStream(proxyAEE.getApplicationEntity().getDevice()
+                    .getDeviceExtension(ProxyDeviceExtension.class).newSpoolOutputStream(file),
+                    UID.ExplicitVRLittleEndian);
             String iuid = UID.StorageCommitmentPushModelSOPInstance;
             String cuid = UID.StorageCommitmentPushModelSOPClass;
             String tsuid = UID.ExplicitVRLittleEndian;
@@ -503,33 +510,138 @@ public class ForwardFiles {
 
     private void processCStore(ProxyAEExtension proxyAEE, HashMap<String, ForwardOption> forwardOptions)
             throws IOException {
-        for (String calledAET : proxyAEE.getCStoreDirectoryPath().list(dirFilter())) {
-            File dir = new File(proxyAEE.getCStoreDirectoryPath(), calledAET);
-            File[] files = dir.listFiles(fileFilter(proxyAEE, calledAET));
-            if (files == null || files.length == 0)
-                continue;
+        SpoolQueue queue = proxyAEE.getSpoolQueue();
+        if (!queue.isLoaded())
+            SpoolQueueUtils.load(proxyAEE);
+        long now = System.currentTimeMillis();
+        for (String calledAET : queue.getDestinations())
+            if (queue.getNextEligibleTime(calledAET) < now)
+                scheduleForwardCStore(proxyAEE, calledAET);
+    }
 
-            LOG.debug("Processing schedule C-STORE data ...");
-            if (!forwardOptions.keySet().contains(calledAET)) {
-                // process destinations without forward schedule
-                LOG.debug("No forward schedule for {}, sending existing C-STORE data now", calledAET);
-                startForwardScheduledCStoreFiles(proxyAEE, calledAET, files);
-            } else
-                for (Entry<String, ForwardOption> entry : forwardOptions.entrySet()) {
-                    boolean isMatchingAET = calledAET.equals(entry.getKey());
-                    if (isMatchingAET && entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
-                        LOG.debug("Found currently active forward schedule for {}, sending existing C-STORE data now",
-                                calledAET);
-                        startForwardScheduledCStoreFiles(proxyAEE, calledAET, files);
-                    } else if (isMatchingAET) {
-                        LOG.debug("Found forward schedule for {}, but is inactive (days={}, hours={})", new Object[] {
-                                calledAET, entry.getValue().getSchedule().getDays(),
-                                entry.getValue().getSchedule().getHours() });
+    /**
+     * Queues forwarding of the C-STORE data of the destination in the
+     * {@link ForwardScheduler} of the device. The files are polled when the
+     * task runs, so it is not queued twice.
+     */
+    public void scheduleForwardCStore(final ProxyAEExtension proxyAEE, final String calledAET) {
+        String key = "C-STORE " + proxyAEE.getApplicationEntity().getAETitle();
+        getForwardScheduler(proxyAEE).execute(calledAET, key, getMaxParallelAssociations(proxyAEE, calledAET),
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        forwardCStore(proxyAEE, calledAET);
                     }
-                }
+                });
+    }
+
+    private static ForwardScheduler getForwardScheduler(ProxyAEExtension proxyAEE) {
+        return proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getForwardScheduler();
+    }
+
+    private static AssociationPool getAssociationPool(ProxyAEExtension proxyAEE) {
+        return proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getAssociationPool();
+    }
+
+    /**
+     * Forwards the queued C-STORE data of the destination which is ready to be
+     * sent within the calling thread.
+     */
+    public void forwardCStore(ProxyAEExtension proxyAEE, String calledAET) {
+        try {
+            if (!isForwardScheduleActive(proxyAEE.getForwardOptions(), calledAET)
+                    || !isDestinationAvailable(proxyAEE, calledAET))
+                return;
+
+            File[] files = pollCStoreFiles(proxyAEE, calledAET, System.currentTimeMillis());
+            if (files.length == 0)
+                return;
+
+            forwardScheduledCStoreFiles(proxyAEE, calledAET, files);
+            // send the next batch after other destinations had their turn
+            long next = proxyAEE.getSpoolQueue().getNextEligibleTime(calledAET);
+            if (next != -1 && next < System.currentTimeMillis())
+                scheduleForwardCStore(proxyAEE, calledAET);
+        } catch (IOException e) {
+            LOG.error("Error forwarding C-STORE data to {}: {}", calledAET, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns <code>false</code> while the circuit breaker of the destination
+     * is open, probing the destination if the probe is due.
+     */
+    private boolean isDestinationAvailable(ProxyAEExtension proxyAEE, String calledAET) {
+        CircuitBreaker breaker = getCircuitBreaker(proxyAEE, calledAET);
+        if (breaker.allowRequest())
+            return true;
+
+        if (breaker.startProbe(System.currentTimeMillis()))
+            return new CircuitBreakerProbe(aeCache, proxyAEE, breaker).probe();
+
+        LOG.debug("{} is unavailable, leave queued C-STORE data untouched: {}", calledAET, breaker);
+        return false;
+    }
+
+    private static CircuitBreaker getCircuitBreaker(ProxyAEExtension proxyAEE, String calledAET) {
+        return proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getCircuitBreaker(calledAET);
+    }
+
+    private void recordConnectFailure(ProxyAEExtension proxyAEE, String calledAET, Exception e) {
+        CircuitBreaker breaker = getCircuitBreaker(proxyAEE, calledAET);
+        if (breaker.recordFailure(e.getClass().getSimpleName() + ": " + e.getMessage(), System.currentTimeMillis())) {
+            LOG.warn("{}: {} consecutive connection failures to {}", new Object[] {
+                    proxyAEE.getApplicationEntity().getAETitle(), breaker.getFailures(), calledAET });
+            CircuitBreakerProbe.schedule(aeCache, proxyAEE, breaker);
         }
     }
 
+    private boolean isForwardScheduleActive(HashMap<String, ForwardOption> forwardOptions, String calledAET) {
+        ForwardOption forwardOption = forwardOptions.get(calledAET);
+        if (forwardOption == null) {
+            LOG.debug("No forward schedule for {}, sending existing C-STORE data now", calledAET);
+            return true;
+        }
+        if (forwardOption.getSchedule().isNow()) {
+            LOG.debug("Found currently active forward schedule for {}, sending existing C-STORE data now", calledAET);
+            return true;
+        }
+        LOG.debug("Found forward schedule for {}, but is inactive (days={}, hours={})", new Object[] { calledAET,
+                forwardOption.getSchedule().getDays(), forwardOption.getSchedule().getHours() });
+        return false;
+    }
+
+    private File[] pollCStoreFiles(ProxyAEExtension proxyAEE, String calledAET, long now) throws IOException {
+        FileFilter filter = fileFilter(proxyAEE, calledAET);
+        List<File> files = new ArrayList<File>();
+        long agingTime = proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getPriorityAgingInterval() * 1000L;
+        for (File file : proxyAEE.getSpoolQueue().pollReady(calledAET, now, agingTime, MAX_CSTORE_BATCH_SIZE)) {
+            if (!file.exists())
+                continue;
+
+            // the spool queue already applied the delay of .dcm files
+            if (file.getName().endsWith(".dcm") ? checkRetryRecord(proxyAEE, calledAET, file) : filter.accept(file))
+                files.add(file);
+            else if (file.exists())
+                // neither sent, moved nor deleted: check again on next scheduler run
+                SpoolQueueUtils.enqueue(proxyAEE, file, nextSchedulerRun(proxyAEE));
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    private long nextSchedulerRun(ProxyAEExtension proxyAEE) {
+        return System.currentTimeMillis()
+                + proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                        .getSchedulerInterval() * 1000L;
+    }
+
     private FileFilter fileFilter(final ProxyAEExtension proxyAEE, final String calledAET) {
         final long now = System.currentTimeMillis();
         return new FileFilter() {
@@ -554,11 +666,7 @@ public class ForwardFiles {
                     String suffix = path.substring(path.lastIndexOf('.'));
                     Retry matchingRetry = getMatchingRetry(proxyAEE, suffix);
                     if (matchingRetry == null)
-                        if (proxyAEE.isDeleteFailedDataWithoutRetryConfiguration())
-                            deleteFailedFile(proxyAEE, calledAET, file,
-                                    ": delete files without retry configuration is ENABLED", 0);
-                        else 
-                            moveToNoRetryPath(proxyAEE, calledAET, file, ": delete files without retry configuration is DISABLED");
+                        discardFileWithoutRetry(proxyAEE, calledAET, file);
                     else if (checkNumberOfRetries(proxyAEE, matchingRetry, suffix, file, calledAET)
                             && checkSendFileDelay(now, file, matchingRetry))
                         return true;
@@ -616,6 +724,37 @@ public class ForwardFiles {
                 moveToNoRetryPath(proxyAEE, calledAET, file, ": error parsing suffix");
                 return false;
             }
+        return checkNumberOfRetries(proxyAEE, retry, prevRetries, file, calledAET);
+    }
+
+    /**
+     * Checks the {@link RetryRecord} of a C-STORE spool file, which is ready
+     * to be sent again. Moves or deletes the file if no further attempt is
+     * configured for the last error.
+     */
+    private boolean checkRetryRecord(ProxyAEExtension proxyAEE, String calledAET, File file) throws IOException {
+        RetryRecord record = RetryRecord.valueOf(InfoFileUtils.getFileInfoProperties(proxyAEE, file));
+        if (record.isEmpty())
+            return true;
+
+        LOG.debug("Check {} of file {}", record, file.getPath());
+        Retry retry = getMatchingRetry(proxyAEE, record.getLastError());
+        if (retry == null) {
+            discardFileWithoutRetry(proxyAEE, calledAET, file);
+            return false;
+        }
+        return checkNumberOfRetries(proxyAEE, retry, record.getAttempts(), file, calledAET);
+    }
+
+    private void discardFileWithoutRetry(ProxyAEExtension proxyAEE, String calledAET, File file) throws IOException {
+        if (proxyAEE.isDeleteFailedDataWithoutRetryConfiguration())
+            deleteFailedFile(proxyAEE, calledAET, file, ": delete files without retry configuration is ENABLED", 0);
+        else
+            moveToNoRetryPath(proxyAEE, calledAET, file, ": delete files without retry configuration is DISABLED");
+    }
+
+    private boolean checkNumberOfRetries(ProxyAEExtension proxyAEE, Retry retry, int prevRetries, File file,
+            String calledAET) throws IOException {
         boolean send = prevRetries < retry.numberOfRetries;
         LOG.debug(">> send file again = {} (max number of retries for {} = {})",
                 new Object[] { send, retry.getRetryObject(), retry.numberOfRetries });
@@ -649,13 +788,13 @@ public class ForwardFiles {
                     new Object[] { file, dst, reason, proxyAEE.getFallbackDestinationAET() });
         else
             LOG.error("Failed to rename {} to {}", new Object[] { file, dst });
-        File infoFile = new File(file.getParent(), fileName.substring(0, fileName.indexOf('.')) + ".info");
-        File infoDst = new File(dstDir, fileName.substring(0, fileName.indexOf('.')) + ".info");
-        if (infoFile.renameTo(infoDst))
-            LOG.debug("Rename {} to {} {} and fallback AET is {}",
-                    new Object[] { infoFile, infoDst, reason, proxyAEE.getFallbackDestinationAET() });
-        else
-            LOG.error("Failed to rename {} to {}", new Object[] { infoFile, infoDst });
+        Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+        // attempts to the fallback AET start over
+        RetryRecord.removeFrom(prop);
+        InfoFileUtils.storeFileInfo(proxyAEE, dst, prop);
+        InfoFileUtils.syncFileInfo(proxyAEE);
+        InfoFileUtils.deleteFileInfo(proxyAEE, file);
+        SpoolQueueUtils.enqueue(proxyAEE, dst);
     }
 
     private File getMatchingNsetFile(ProxyAEExtension proxyAEE, String calledAET, File file) throws IOException {
@@ -708,20 +847,14 @@ public class ForwardFiles {
         File dstDir = new File(proxyAEE.getNoRetryPath().getPath() + subPath);
         dstDir.mkdirs();
         File dstFile = new File(dstDir, fileName);
-        if (file.renameTo(dstFile))
+        if (file.renameTo(dstFile)) {
             LOG.debug("Rename {} to {} {} and fallback AET is {}",
                     new Object[] { file, dstFile, reason, proxyAEE.getFallbackDestinationAET() });
-        else
+            InfoFileUtils.moveFileInfo(proxyAEE, file, dstFile);
+        } else
             LOG.error("Failed to rename {} to {}", new Object[] { file, dstFile });
-        File infoFile = new File(file.getParent(), file.getName().substring(0, file.getName().indexOf('.')) + ".info");
-        File infoDst = new File(dstDir, fileName.substring(0, fileName.indexOf('.')) + ".info");
-        if (infoFile.renameTo(infoDst))
-            LOG.debug("Rename {} to {} {} and fallback AET is {}",
-                    new Object[] { infoFile, infoDst, reason, proxyAEE.getFallbackDestinationAET() });
-        else
-            LOG.error("Failed to rename {} to {}", new Object[] { infoFile, infoDst });
         File parentDir = file.getParentFile();
-        if (parentDir.list().length == 0)
+        if (parentDir.list().length == 0 && !SpoolLayout.isShardDirectory(proxyAEE.getCStoreDirectoryPath(), parentDir))
             if (parentDir.delete())
                 LOG.debug("Delete empty dir {}", parentDir);
             else
@@ -746,12 +879,7 @@ public class ForwardFiles {
                 LOG.error("Failed to delete {}", file);
                 return;
             }
-            
-            File infoFile = new File(file.getParent(), file.getName().substring(0, file.getName().indexOf('.')) + ".info");
-            if (infoFile.delete())
-                LOG.debug("Delete {}", infoFile);
-            else
-                LOG.error("Failed to delete {}", infoFile);
+            InfoFileUtils.deleteFileInfo(proxyAEE, file);
         } catch (Exception e) {
             LOG.error("Failed to create log file: " + e.getMessage());
             if(LOG.isDebugEnabled())
@@ -773,11 +901,7 @@ public class ForwardFiles {
                         LOG.error("Failed to delete {}", nSetFile);
                         return;
                     }
-                    File infoFile = new File(nSetFile.getParent(),nSetFile.getName().substring(0, nSetFile.getName().indexOf('.')) + ".info");
-                    if (infoFile.delete())
-                        LOG.debug("Delete {}", infoFile);
-                    else
-                        LOG.error("Failed to delete {}", infoFile);
+                    InfoFileUtils.deleteFileInfo(proxyAEE, nSetFile);
                 }
             }
         }
@@ -825,7 +949,7 @@ public class ForwardFiles {
                         UID.ExplicitVRLittleEndian));
                 rq.setCallingAET(callingAET);
                 rq.setCalledAET(destinationAETitle);
-                Association as = proxyAEE.getApplicationEntity().connect(
+                Association as = getAssociationPool(proxyAEE).connect(proxyAEE.getApplicationEntity(),
                         aeCache.findApplicationEntity(destinationAETitle), rq);
                 try {
                     if (as.isReadyForDataTransfer()) {
@@ -839,7 +963,7 @@ public class ForwardFiles {
                     if (as != null) {
                         try {
                             as.waitForOutstandingRSP();
-                            as.release();
+                            getAssociationPool(proxyAEE).release(as);
                         } catch (InterruptedException e) {
                             LOG.error(as + ": unexpected exception: " + e.getMessage());
                             if(LOG.isDebugEnabled())
@@ -939,8 +1063,7 @@ public class ForwardFiles {
     private void startForwardScheduledNAction(final ProxyAEExtension proxyAEE, final String destinationAETitle,
             File[] files) {
         final File[] sendFiles = createSendFileList(files);
-        ((ProxyDeviceExtension) proxyAEE.getApplicationEntity().getDevice()
-                .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(new Runnable() {
+        getForwardScheduler(proxyAEE).execute(destinationAETitle, null, 1, new Runnable() {
 
             @Override
             public void run() {
@@ -958,13 +1081,13 @@ public class ForwardFiles {
     private void startForwardScheduledNEventReport(final ProxyAEExtension proxyAEE, File[] files) throws IOException {
         final File[] sendFiles = createSendFileList(files);
         final Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, files[0]);
-        ((ProxyDeviceExtension) proxyAEE.getApplicationEntity().getDevice()
-                .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(new Runnable() {
+        final String destinationAETitle = prop.getProperty("nevent-destination");
+        getForwardScheduler(proxyAEE).execute(destinationAETitle, null, 1, new Runnable() {
 
             @Override
             public void run() {
                 try {
-                    forwardScheduledNEventReport(proxyAEE, prop.getProperty("nevent-destination"), sendFiles);
+                    forwardScheduledNEventReport(proxyAEE, destinationAETitle, sendFiles);
                 } catch (IOException e) {
                     LOG.error("Error forwarding scheduled N-EVENT-REPORT-RQ: " + e.getMessage());
                     if (LOG.isDebugEnabled())
@@ -1064,7 +1187,8 @@ public class ForwardFiles {
                 rq.setCallingAET(callingAET);
                 LOG.info("Setting called AET to"+ calledAET);
                 rq.setCalledAET(calledAET);
-                Association asInvoked = proxyAEE.getApplicationEntity().connect(aeCache.findApplicationEntity(calledAET), rq);
+                Association asInvoked = getAssociationPool(proxyAEE).connect(proxyAEE.getApplicationEntity(),
+                        aeCache.findApplicationEntity(calledAET), rq);
                 try {
                     if (asInvoked.isReadyForDataTransfer()) {
                         forwardScheduledNEventReport(proxyAEE, asInvoked, file, prop, attrs);
@@ -1076,7 +1200,7 @@ public class ForwardFiles {
                     if (asInvoked != null) {
                         try {
                             asInvoked.waitForOutstandingRSP();
-                            asInvoked.release();
+                            getAssociationPool(proxyAEE).release(asInvoked);
                         } catch (InterruptedException e) {
                             LOG.error(asInvoked + ": unexpected exception: " + e.getMessage());
                             if(LOG.isDebugEnabled())
@@ -1113,14 +1237,15 @@ public class ForwardFiles {
         if (!dir.exists())
             return false;
 
-        String[] files = dir.list();
+        List<File> files = new ArrayList<File>();
+        SpoolLayout.listFiles(dir, files);
         Sequence referencedSOPSequence = eventInfo.getSequence(Tag.ReferencedSOPSequence);
         Iterator<Attributes> it = referencedSOPSequence.iterator();
         while (it.hasNext()) {
             Attributes item = it.next();
             String referencedSOPInstanceUID = item.getString(Tag.ReferencedSOPInstanceUID);
-            for (String file : files)
-                if (file.startsWith(referencedSOPInstanceUID))
+            for (File file : files)
+                if (file.getName().startsWith(referencedSOPInstanceUID))
                     return true;
         }
         return false;
@@ -1245,21 +1370,35 @@ public class ForwardFiles {
         as.neventReport(cuid, iuid, eventTypeId, attrs, tsuid, rspHandler);
     }
 
-    private void startForwardScheduledCStoreFiles(final ProxyAEExtension proxyAEE, final String calledAET,
-            final File[] files) {
-        ((ProxyDeviceExtension) proxyAEE.getApplicationEntity().getDevice()
-                .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(new Runnable() {
+    /*
+     * Sends the shards of the files on up to maxParallelAssociations
+     * associations. The calling thread holds the slot of the destination in
+     * the ForwardScheduler and sends the first shard; the others are sent by
+     * threads of the device executor, so they are not bound by the limits of
+     * the scheduler, which would leave the caller to send all shards with the
+     * default of one task per destination and one forward thread.
+     */
+    private void forwardScheduledCStoreFiles(final ProxyAEExtension proxyAEE, String calledAET, File[] files) {
+        int maxParallelAssociations = getMaxParallelAssociations(proxyAEE, calledAET);
+        List<HashMap<String, ForwardTask>> shards = scanFiles(proxyAEE, calledAET, files, maxParallelAssociations);
+        List<Runnable> shardTasks = new ArrayList<Runnable>(shards.size());
+        for (final HashMap<String, ForwardTask> shard : shards)
+            shardTasks.add(new Runnable() {
 
-            @Override
-            public void run() {
-                forwardScheduledCStoreFiles(proxyAEE, calledAET, files);
-            }
-        });
+                @Override
+                public void run() {
+                    processForwardTasks(proxyAEE, shard.values());
+                }
+            });
+        try {
+            ParallelTasks.run(proxyAEE.getApplicationEntity().getDevice().getExecutor(), shardTasks);
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while waiting for parallel associations to {}: {}", calledAET, e.getMessage());
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private void forwardScheduledCStoreFiles(ProxyAEExtension proxyAEE, String calledAET, File[] files) {
-        Collection<ForwardTask> forwardTasks = null;
-        forwardTasks = scanFiles(proxyAEE, calledAET, files);
+    private void processForwardTasks(ProxyAEExtension proxyAEE, Collection<ForwardTask> forwardTasks) {
         for (ForwardTask ft : forwardTasks)
             try {
                 processForwardTask(proxyAEE, ft);
@@ -1270,29 +1409,53 @@ public class ForwardFiles {
             }
     }
 
+    private int getMaxParallelAssociations(ProxyAEExtension proxyAEE, String calledAET) {
+        ForwardOption forwardOption = proxyAEE.getForwardOptions().get(calledAET);
+        return forwardOption != null ? forwardOption.getMaxParallelAssociations() : 1;
+    }
+
     private void processForwardTask(ProxyAEExtension proxyAEE, ForwardTask ft) throws IOException {
         AAssociateRQ rq = ft.getAAssociateRQ();
         Association asInvoked = null;
+        CStorePrefetcher prefetcher = null;
         Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, ft.getFiles().get(0));
+        CircuitBreaker breaker = getCircuitBreaker(proxyAEE, rq.getCalledAET());
+        if (!breaker.allowRequest()) {
+            // opened by another task meanwhile: put the files back unchanged
+            LOG.debug("{} is unavailable, return {} files to the queue", rq.getCalledAET(), ft.getFiles().size());
+            File[] sendFiles = ft.getFiles().toArray(new File[ft.getFiles().size()]);
+            resetSendFiles(sendFiles);
+            for (File file : sendFiles) {
+                String path = file.getPath();
+                requeue(proxyAEE, new File(path.substring(0, path.length() - 4)), 0);
+            }
+            return;
+        }
         try {
             if (proxyAEE.getForwardOptions().containsKey(rq.getCalledAET())
                     && proxyAEE.getForwardOptions().get(rq.getCalledAET()).isConvertEmf2Sf())
                 ForwardConnectionUtils.addReducedTS(rq);
-            asInvoked = proxyAEE.getApplicationEntity().connect(aeCache.findApplicationEntity(rq.getCalledAET()), rq);
-            for (File file : ft.getFiles()) {
-                prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+            asInvoked = getAssociationPool(proxyAEE).connect(proxyAEE.getApplicationEntity(),
+                    aeCache.findApplicationEntity(rq.getCalledAET()), rq);
+            breaker.recordSuccess();
+            prefetcher = new CStorePrefetcher(proxyAEE, asInvoked, ft.getFiles());
+            prefetcher.start(proxyAEE.getApplicationEntity().getDevice().getExecutor());
+            while (prefetcher.hasNext()) {
+                CStorePrefetcher.PrefetchedFile pf = prefetcher.take();
+                File file = pf.file;
+                if (pf.prop != null)
+                    prop = pf.prop;
                 try {
-                    String cuid = prop.getProperty("sop-class-uid");
-                    if (ForwardConnectionUtils.requiresMultiFrameConversion(proxyAEE, asInvoked.getCalledAET(), cuid))
+                    if (pf.exception != null)
+                        throw pf.exception;
+
+                    if (pf.emf2sf)
                         processEmf2Sf(proxyAEE, asInvoked, prop, file);
-                    else if (asInvoked.isReadyForDataTransfer()) {
-                        Attributes attrs = proxyAEE.parseAttributesWithLazyBulkData(asInvoked, file);
-                        AttributeCoercion ac = proxyAEE.getAttributeCoercion(asInvoked.getCalledAET(), cuid, Role.SCU,
-                                Dimse.C_STORE_RQ);
-                        if (ac != null)
-                            attrs = AttributeCoercionUtils.coerceAttributes(asInvoked, proxyAEE, attrs, ac);
-                        forwardScheduledCStoreFile(proxyAEE, asInvoked, new DataWriterAdapter(attrs), -1, file, prop, file.length());
-                    } else
+                    else if (pf.attrs != null && asInvoked.isReadyForDataTransfer())
+                        // returns as soon as the RQ is sent, blocks only while the async ops window is full
+                        forwardScheduledCStoreFile(proxyAEE, asInvoked, new DataWriterAdapter(pf.attrs), -1, file,
+                                prop, file.length());
+                    else
                         renameFile(proxyAEE, RetryObject.ConnectionException.getSuffix(), file, rq.getCalledAET(), prop);
                 } catch (NoPresentationContextException npc) {
                     handleForwardException(proxyAEE, asInvoked, file, npc,
@@ -1312,10 +1475,16 @@ public class ForwardFiles {
             handleProcessForwardTaskException(proxyAEE, rq, ft, ce, RetryObject.ConfigurationException.getSuffix(),
                     prop);
         } catch (AAssociateRJ rj) {
+            if (asInvoked == null)
+                recordConnectFailure(proxyAEE, rq.getCalledAET(), rj);
             handleProcessForwardTaskException(proxyAEE, rq, ft, rj, RetryObject.AAssociateRJ.getSuffix(), prop);
         } catch (AAbort aa) {
+            if (asInvoked == null)
+                recordConnectFailure(proxyAEE, rq.getCalledAET(), aa);
             handleProcessForwardTaskException(proxyAEE, rq, ft, aa, RetryObject.AAbort.getSuffix(), prop);
         } catch (IOException e) {
+            if (asInvoked == null)
+                recordConnectFailure(proxyAEE, rq.getCalledAET(), e);
             handleProcessForwardTaskException(proxyAEE, rq, ft, e, RetryObject.ConnectionException.getSuffix(), prop);
         } catch (InterruptedException e) {
             handleProcessForwardTaskException(proxyAEE, rq, ft, e, RetryObject.ConnectionException.getSuffix(), prop);
@@ -1326,10 +1495,12 @@ public class ForwardFiles {
             handleProcessForwardTaskException(proxyAEE, rq, ft, e, RetryObject.GeneralSecurityException.getSuffix(),
                     prop);
         } finally {
+            if (prefetcher != null)
+                prefetcher.cancel();
             if (asInvoked != null) {
                 try {
                     asInvoked.waitForOutstandingRSP();
-                    asInvoked.release();
+                    getAssociationPool(proxyAEE).release(asInvoked);
                 } catch (InterruptedException e) {
                     LOG.error(asInvoked + ": unexpected exception: " + e.getMessage());
                     if(LOG.isDebugEnabled())
@@ -1360,6 +1531,7 @@ public class ForwardFiles {
         for (int frameNumber = n - 1; frameNumber >= 0; --frameNumber) {
             long t1 = System.currentTimeMillis();
             Attributes attrs = extractor.extract(src, frameNumber);
+            proxyAEE.mapBulkData(attrs);
             long t2 = System.currentTimeMillis();
             t = t + t2 - t1;
             long length = attrs.calcLength(DicomEncodingOptions.DEFAULT, true);
@@ -1427,6 +1599,14 @@ public class ForwardFiles {
     }
 
     private Integer getPreviousRetries(ProxyAEExtension proxyAEE, File file) {
+        if (SpoolQueueUtils.isCStoreSpoolFile(proxyAEE, file))
+            try {
+                RetryRecord record = RetryRecord.valueOf(InfoFileUtils.getFileInfoProperties(proxyAEE, file));
+                if (!record.isEmpty())
+                    return record.getAttempts();
+            } catch (IOException e) {
+                LOG.debug("Failed to read retry record of {}: {}", file, e.getMessage());
+            }
         String suffix = file.getName().substring(file.getName().lastIndexOf('.'));
         Retry matchingRetry = getMatchingRetry(proxyAEE, suffix);
         if (matchingRetry != null) {
@@ -1443,64 +1623,70 @@ public class ForwardFiles {
         return 1;
     }
 
-    private Collection<ForwardTask> scanFiles(ProxyAEExtension proxyAEE,
-            String calledAET, File[] files) {
-        HashMap<String, ForwardTask> map = new HashMap<String, ForwardTask>(4);
+    /**
+     * Renames the files to .snd and groups them into forward tasks per calling
+     * AET, split into the given number of shards by Study Instance UID.
+     */
+    private List<HashMap<String, ForwardTask>> scanFiles(ProxyAEExtension proxyAEE,
+            String calledAET, File[] files, int numShards) {
+        List<HashMap<String, ForwardTask>> shards = new ArrayList<HashMap<String, ForwardTask>>(numShards);
+        for (int i = 0; i < numShards; i++)
+            shards.add(new LinkedHashMap<String, ForwardTask>(4));
         for (File file : files) {
+            String prevFilePath = file.getPath();
+            File snd = new File(prevFilePath + ".snd");
+            // the rename takes the file atomically, so concurrent tasks of the
+            // same destination never send it twice
             try {
-                if (lock.tryLock(100, TimeUnit.MILLISECONDS)) {
-                    try {
-                        if (file.exists()) {
-                            String prevFilePath = file.getPath();
-                            File snd = new File(prevFilePath + ".snd");
-                            try {
-                                Files.move(file.toPath(), snd.toPath(),
-                                        StandardCopyOption.REPLACE_EXISTING);
-                                LOG.debug("Successfully renamed {} to {}",
-                                        prevFilePath, snd.getPath());
-                                LOG.debug("Adding file {} to forward tasks ",
-                                        snd.getPath());
-                                addFileToFwdTaskMap(proxyAEE, calledAET, snd,
-                                        map);
-                                LOG.debug(
-                                        "Successfully added file {} to forward tasks , proceeding with scheduled send",
-                                        snd.getPath());
-                            } catch (Exception e) {
-                                LOG.error(
-                                        "Error moving {} to {}. Skip file for now and try again on next scheduler run. - {}",
-                                        prevFilePath, snd.getPath(), e);
-                                if (!file.exists() && snd.exists())
-                                    if (snd.renameTo(file))
-                                        LOG.debug("Rename {} to {}",
-                                                snd.getPath(), file.getPath());
-                                    else
-                                        LOG.debug("Error renaming {} to {}",
-                                                snd.getPath(), file.getPath());
-                                else if (snd.exists() && file.exists())
-                                    try {
-                                        Files.delete(snd.toPath());
-                                    } catch (Exception e1) {
-                                        LOG.error(
-                                                "Unable to delete file {} after failed rename from  {} to {}  - {}",
-                                                snd, prevFilePath,
-                                                snd.getPath(), e1);
-                                    }
-                            }
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
-                }
-            } catch (InterruptedException e) {
-                LOG.error("Error acquiring lock for file scan and rename {}", e);
+                Files.move(file.toPath(), snd.toPath());
+            } catch (NoSuchFileException e) {
+                LOG.debug("{} was taken by another task", prevFilePath);
+                continue;
+            } catch (FileAlreadyExistsException e) {
+                LOG.debug("{} is still being sent, try {} again on next scheduler run", snd.getPath(), prevFilePath);
+                requeue(proxyAEE, file, nextSchedulerRun(proxyAEE));
+                continue;
+            } catch (IOException e) {
+                LOG.error("Error moving {} to {}. Skip file for now and try again on next scheduler run. - {}",
+                        prevFilePath, snd.getPath(), e);
+                requeue(proxyAEE, file, nextSchedulerRun(proxyAEE));
+                continue;
+            }
+            LOG.debug("Successfully renamed {} to {}", prevFilePath, snd.getPath());
+            try {
+                addFileToFwdTaskMap(proxyAEE, calledAET, snd, shards);
+                LOG.debug("Successfully added file {} to forward tasks , proceeding with scheduled send",
+                        snd.getPath());
+            } catch (Exception e) {
+                LOG.error("Error adding {} to forward tasks. Skip file for now and try again on next scheduler run. - {}",
+                        snd.getPath(), e);
+                if (snd.renameTo(file)) {
+                    LOG.debug("Rename {} to {}", snd.getPath(), file.getPath());
+                    requeue(proxyAEE, file, nextSchedulerRun(proxyAEE));
+                } else
+                    LOG.debug("Error renaming {} to {}", snd.getPath(), file.getPath());
             }
         }
-        return map.values();
+        for (Iterator<HashMap<String, ForwardTask>> iter = shards.iterator(); iter.hasNext();)
+            if (iter.next().isEmpty() && shards.size() > 1)
+                iter.remove();
+        return shards;
     }
 
-    private void addFileToFwdTaskMap(ProxyAEExtension proxyAEE, String calledAET, File file, HashMap<String, ForwardTask> map)
-            throws IOException {
+    private void requeue(ProxyAEExtension proxyAEE, File file, long notBefore) {
+        try {
+            SpoolQueueUtils.enqueue(proxyAEE, file, notBefore);
+        } catch (IOException e) {
+            LOG.error("Failed to queue {}: {}", file, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    private void addFileToFwdTaskMap(ProxyAEExtension proxyAEE, String calledAET, File file,
+            List<HashMap<String, ForwardTask>> shards) throws IOException {
         Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+        HashMap<String, ForwardTask> map = shards.get(shardOf(prop, shards.size()));
         String callingAET = prop.containsKey("use-calling-aet") 
                 ? prop.getProperty("use-calling-aet") 
                 : prop.getProperty("source-aet");
@@ -1521,6 +1707,16 @@ public class ForwardFiles {
         forwardTask.addFile(file, cuid, tsuid);
     }
 
+    private static int shardOf(Properties prop, int numShards) {
+        if (numShards == 1)
+            return 0;
+
+        String uid = prop.containsKey("study-iuid") 
+                ? prop.getProperty("study-iuid")
+                : prop.getProperty("sop-instance-uid");
+        return uid != null ? (uid.hashCode() & Integer.MAX_VALUE) % numShards : 0;
+    }
+
     private static Attributes readFileMetaInformation(File file) throws IOException {
         DicomInputStream in = new DicomInputStream(file);
         try {
@@ -1548,6 +1744,11 @@ public class ForwardFiles {
     }
 
     private void renameFile(ProxyAEExtension proxyAEE, String suffix, File file, String calledAET, Properties prop) {
+        if (SpoolQueueUtils.isCStoreSpoolFile(proxyAEE, file)) {
+            recordFailedAttempt(proxyAEE, suffix, file, calledAET, prop);
+            return;
+        }
+
         File dst;
         String path = file.getPath();
         if (path.endsWith(".snd"))
@@ -1557,6 +1758,7 @@ public class ForwardFiles {
         if (file.renameTo(dst)) {
             dst.setLastModified(System.currentTimeMillis());
             LOG.debug("Rename {} to {}", new Object[] { file, dst });
+            requeue(proxyAEE, dst, 0);
             try {
                 writeFailedAuditLogMessage(proxyAEE, dst, null, calledAET, prop);
             } catch (IOException e) {
@@ -1569,6 +1771,69 @@ public class ForwardFiles {
         }
     }
 
+    /**
+     * Records the failed attempt in the {@link RetryRecord} of a C-STORE spool
+     * file and queues it for the next attempt. The file only gets its .dcm
+     * name back from .snd.
+     */
+    private void recordFailedAttempt(ProxyAEExtension proxyAEE, String error, File file, String calledAET,
+            Properties auditProp) {
+        String name = file.getName();
+        File dst = new File(file.getParent(), name.substring(0, name.indexOf('.')) + ".dcm");
+        try {
+            Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+            RetryRecord record = RetryRecord.valueOf(prop);
+            if (record.isEmpty())
+                setPreviousRetries(proxyAEE, record, name);
+            long now = System.currentTimeMillis();
+            Retry retry = getMatchingRetry(proxyAEE, error);
+            record.failed(error, now, retry != null ? now + retry.getDelay() * 1000L : now);
+            record.storeTo(prop);
+            InfoFileUtils.storeFileInfo(proxyAEE, file, prop);
+            LOG.debug("{}: {}", file, record);
+        } catch (IOException e) {
+            LOG.error("Failed to store retry record of {}: {}", file, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+        if (!dst.equals(file)) {
+            if (!file.renameTo(dst)) {
+                LOG.error("Failed to rename {} to {}", new Object[] { file, dst });
+                return;
+            }
+            LOG.debug("Rename {} to {}", new Object[] { file, dst });
+        }
+        requeue(proxyAEE, dst, 0);
+        try {
+            writeFailedAuditLogMessage(proxyAEE, dst, null, calledAET, auditProp);
+        } catch (IOException e) {
+            LOG.error("Failed to write audit log message");
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Takes over the retries encoded in the file name by previous versions,
+     * e.g. dcm123.conn2.aa1.
+     */
+    private void setPreviousRetries(ProxyAEExtension proxyAEE, RetryRecord record, String fileName) {
+        String[] suffixes = fileName.split("\\.");
+        for (int i = 1; i < suffixes.length; i++) {
+            Retry retry = getMatchingRetry(proxyAEE, '.' + suffixes[i]);
+            if (retry == null)
+                continue;
+
+            String retrySuffix = retry.getRetryObject().getSuffix();
+            String count = suffixes[i].substring(retrySuffix.length() - 1);
+            try {
+                record.setAttempts(retrySuffix, count.isEmpty() ? 0 : Integer.parseInt(count));
+            } catch (NumberFormatException e) {
+                LOG.debug("Error parsing number of retries in suffix of file {}", fileName);
+            }
+        }
+    }
+
     private File setFileSuffix(String path, String newSuffix) {
         int indexOfNewSuffix = path.lastIndexOf(newSuffix);
         if (indexOfNewSuffix == -1)
@@ -1597,19 +1862,29 @@ public class ForwardFiles {
             LOG.debug("{}: failed to delete {} - {}", as, file,e);
         }
 
-        File infoFile = new File(file.getParent(), file.getName().substring(0, file.getName().indexOf('.')) + ".info");
-        try{ 
-            Files.delete(infoFile.toPath());
-            LOG.debug("{}: delete {}", as, infoFile);
-        }
-        catch(Exception e) {
-            LOG.debug("{}: failed to delete {} - {}", as, infoFile,e);
+        try {
+            InfoFileUtils.deleteFileInfo(as.getApplicationEntity().getAEExtension(ProxyAEExtension.class), file);
+        } catch (IOException e) {
+            LOG.debug("{}: failed to delete file info of {} - {}", as, file, e);
         }
         File path = new File(file.getParent());
-        if (path!=null && path.list()!=null && path.list().length == 0)
+        if (path!=null && path.list()!=null && path.list().length == 0 && !isShardDirectory(as, path))
             path.delete();
     }
     
+    /*
+     * Hash subdirectories of the C-STORE spool are kept when empty, as other
+     * threads may be about to rename files into them.
+     */
+    private static boolean isShardDirectory(Association as, File dir) {
+        try {
+            return SpoolLayout.isShardDirectory(as.getApplicationEntity().getAEExtension(ProxyAEExtension.class)
+                    .getCStoreDirectoryPath(), dir);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     private static void deleteFile(File file) {
         try{
             Files.delete(file.toPath());
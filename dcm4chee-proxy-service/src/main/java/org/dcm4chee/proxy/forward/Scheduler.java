@@ -38,6 +38,11 @@
 
 package org.dcm4chee.proxy.forward;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -47,8 +52,13 @@ import org.dcm4che3.conf.api.ApplicationEntityCache;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Device;
 import org.dcm4chee.proxy.audit.AuditLog;
+import org.dcm4chee.proxy.common.SpoolQueue;
+import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.conf.Schedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -56,11 +66,15 @@ import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
  */
 public class Scheduler {
 
+    private static final Logger LOG = LoggerFactory.getLogger(Scheduler.class);
+
     private final Device device;
     private final AuditLog log;
     private ScheduledFuture<?> timer;
     private ApplicationEntityCache aeCache;
     private ScheduledExecutorService scheduledExecutor;
+    private final IdentityHashMap<Schedule, ScheduledFuture<?>> forwardSchedules =
+            new IdentityHashMap<Schedule, ScheduledFuture<?>>();
 
     public Scheduler(ApplicationEntityCache aeCache, Device device, AuditLog log) {
         this.aeCache = aeCache;
@@ -70,11 +84,17 @@ public class Scheduler {
     }
 
     public void start() {
+        registerDispatchers();
+        registerForwardSchedules();
         long period = device.getDeviceExtension(ProxyDeviceExtension.class).getSchedulerInterval();
         timer = scheduledExecutor.scheduleAtFixedRate(new Runnable() {
 
             @Override
             public void run() {
+                registerDispatchers();
+                registerForwardSchedules();
+                device.getDeviceExtension(ProxyDeviceExtension.class).getAssociationPool()
+                        .closeIdle(System.currentTimeMillis());
                 for (ApplicationEntity ae : device.getApplicationEntities()) {
                     if (ae.getAEExtension(ProxyAEExtension.class) != null) {
                         new ForwardFiles(aeCache).execute(ae);
@@ -90,5 +110,90 @@ public class Scheduler {
             timer.cancel(true);
             timer = null;
         }
+        synchronized (this) {
+            for (ScheduledFuture<?> transition : forwardSchedules.values())
+                if (transition != null)
+                    transition.cancel(false);
+            forwardSchedules.clear();
+        }
+        for (ApplicationEntity ae : device.getApplicationEntities()) {
+            ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
+            if (proxyAEE != null)
+                proxyAEE.getSpoolQueue().setListener(null);
+        }
+        device.getDeviceExtension(ProxyDeviceExtension.class).getAssociationPool().close();
+    }
+
+    private void registerDispatchers() {
+        for (ApplicationEntity ae : device.getApplicationEntities()) {
+            ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
+            if (proxyAEE == null)
+                continue;
+
+            SpoolQueue queue = proxyAEE.getSpoolQueue();
+            if (queue.getListener() == null) {
+                queue.setListener(new SpoolQueueDispatcher(aeCache, proxyAEE));
+                queue.notifyReady(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Watches the forward schedules of all destinations, so forwarding to a
+     * destination starts when its schedule is activated instead of on the next
+     * scheduler run. Schedules replaced by reconfiguration are dropped.
+     */
+    private synchronized void registerForwardSchedules() {
+        Set<Schedule> current = Collections.newSetFromMap(new IdentityHashMap<Schedule, Boolean>());
+        for (ApplicationEntity ae : device.getApplicationEntities()) {
+            ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
+            if (proxyAEE == null)
+                continue;
+
+            for (Map.Entry<String, ForwardOption> entry : proxyAEE.getForwardOptions().entrySet()) {
+                Schedule schedule = entry.getValue().getSchedule();
+                if (current.add(schedule) && !forwardSchedules.containsKey(schedule))
+                    scheduleTransition(ae, entry.getKey(), schedule);
+            }
+        }
+        for (Iterator<Map.Entry<Schedule, ScheduledFuture<?>>> iter = forwardSchedules.entrySet().iterator(); iter
+                .hasNext();) {
+            Map.Entry<Schedule, ScheduledFuture<?>> entry = iter.next();
+            if (!current.contains(entry.getKey())) {
+                if (entry.getValue() != null)
+                    entry.getValue().cancel(false);
+                iter.remove();
+            }
+        }
+    }
+
+    private synchronized void scheduleTransition(final ApplicationEntity ae, final String destination,
+            final Schedule schedule) {
+        long nextTransition = schedule.getNextTransition();
+        if (nextTransition == Long.MAX_VALUE) {
+            forwardSchedules.put(schedule, null);
+            return;
+        }
+
+        long delay = Math.max(0, nextTransition - System.currentTimeMillis());
+        forwardSchedules.put(schedule, scheduledExecutor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (Scheduler.this) {
+                    if (!forwardSchedules.containsKey(schedule))
+                        return;
+                }
+                if (schedule.isNow()) {
+                    LOG.info("{}: forward schedule for {} activated (days={}, hours={})", new Object[] {
+                            ae.getAETitle(), destination, schedule.getDays(), schedule.getHours() });
+                    new ForwardFiles(aeCache).execute(ae);
+                }
+                synchronized (Scheduler.this) {
+                    if (forwardSchedules.containsKey(schedule))
+                        scheduleTransition(ae, destination, schedule);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS));
     }
 }
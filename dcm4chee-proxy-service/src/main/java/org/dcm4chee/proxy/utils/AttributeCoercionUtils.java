@@ -43,12 +43,11 @@ import java.util.Arrays;
 
 import org.dcm4che3.conf.api.AttributeCoercion;
 import org.dcm4che3.data.Attributes;
-import org.dcm4che3.io.SAXTransformer;
-import org.dcm4che3.io.SAXWriter;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.TransferCapability.Role;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.common.TemplateCoercer;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,8 +62,20 @@ public class AttributeCoercionUtils {
 
     public static Attributes coerceDataset(ProxyAEExtension proxyAEE, Association as, Role role, Dimse dimse,
             Attributes attrs, Attributes cmd) throws IOException {
-        return coerceAttributes(proxyAEE, as.getRemoteAET(), cmd.getString(dimse.tagOfSOPClassUID()), role, dimse,
-                attrs, as);
+        return coerceDataset(proxyAEE, as, role, dimse, attrs, cmd, false);
+    }
+
+    /**
+     * @param inPlace
+     *            <code>true</code> if the coerced attributes may be set in
+     *            <code>attrs</code>, <code>false</code> if <code>attrs</code>
+     *            are shared and a coerced copy shall be returned
+     */
+    public static Attributes coerceDataset(ProxyAEExtension proxyAEE, Association as, Role role, Dimse dimse,
+            Attributes attrs, Attributes cmd, boolean inPlace) throws IOException {
+        AttributeCoercion ac = proxyAEE.getAttributeCoercion(as.getRemoteAET(),
+                cmd.getString(dimse.tagOfSOPClassUID()), role, dimse);
+        return (ac != null) ? coerceAttributes(as, proxyAEE, attrs, ac, inPlace) : attrs;
     }
 
     public static Attributes coerceAttributes(ProxyAEExtension proxyAEE, String aet, String cuid, Role role,
@@ -75,7 +86,16 @@ public class AttributeCoercionUtils {
 
     public static Attributes coerceAttributes(Object source, ProxyAEExtension proxyAEE, Attributes attrs,
             AttributeCoercion ac) {
-        Attributes tmp = new Attributes(attrs);
+        return coerceAttributes(source, proxyAEE, attrs, ac, false);
+    }
+
+    /**
+     * Returns <code>attrs</code> if the coercion does not set any attributes
+     * or <code>inPlace</code> is <code>true</code>, otherwise a coerced copy of
+     * <code>attrs</code>.
+     */
+    public static Attributes coerceAttributes(Object source, ProxyAEExtension proxyAEE, Attributes attrs,
+            AttributeCoercion ac, boolean inPlace) {
         LOG.debug("{}: Apply attribute coercion {} (dimse={}, role={}{}{})",
                 new Object[] {
                     source,
@@ -85,21 +105,24 @@ public class AttributeCoercionUtils {
                     ac.getAETitles().length == 0 ? "" : ", aet=" + Arrays.toString(ac.getAETitles()),
                     ac.getSOPClasses().length == 0 ? "" : ", sopClass=" + Arrays.toString(ac.getSOPClasses())
         });
-        Attributes modify = new Attributes();
+        Attributes modify;
         try {
             ProxyDeviceExtension proxyDevExt = proxyAEE.getApplicationEntity().getDevice()
                     .getDeviceExtension(ProxyDeviceExtension.class);
-            SAXWriter w = SAXTransformer.getSAXWriter(proxyDevExt.getTemplates(ac.getURI()), modify);
-            w.setIncludeKeyword(false);
-            w.write(tmp);
+            Association as = source instanceof Association ? (Association) source : null;
+            modify = proxyDevExt.getCoercedAttributes(ac.getURI(), attrs, as != null ? as.getCallingAET() : null,
+                    as != null ? as.getCalledAET() : null);
         } catch (Exception e) {
-            new IOException(e);
+            LOG.error("{}: Failed to apply attribute coercion {}: {}", new Object[] { source, ac.getURI(),
+                    e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            return attrs;
         }
         if (LOG.isDebugEnabled() && !modify.isEmpty())
             LOG.debug("{}: Attribute coercion result:{}{}",
                     new Object[] { source, proxyAEE.getNewline(), modify.toString(Integer.MAX_VALUE, 200) });
-        tmp.addAll(modify);
-        return tmp;
+        return TemplateCoercer.merge(attrs, modify, inPlace);
     }
 
 }
@@ -39,30 +39,19 @@
 package org.dcm4chee.proxy.utils;
 
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
-import java.util.Iterator;
 import java.util.List;
 
-import javax.xml.transform.Templates;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.sax.SAXResult;
-import javax.xml.transform.sax.SAXTransformerFactory;
-import javax.xml.transform.sax.TransformerHandler;
-
 import org.dcm4che3.conf.api.ConfigurationException;
 import org.dcm4che3.data.Attributes;
-import org.dcm4che3.io.SAXWriter;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4chee.proxy.conf.ForwardRule;
+import org.dcm4chee.proxy.conf.ForwardRuleIndex;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * @author Michael Backhaus <michael.backhaus@agfa.com>
@@ -72,9 +61,6 @@ public class ForwardRuleUtils {
 
     private static final Logger LOG = LoggerFactory.getLogger(ForwardRuleUtils.class);
 
-    private static final String XSL_PARAMETER_CALLINGAET = "callingAET";
-    private static final String XSL_PARAMETER_CALLEDAET = "calledAET";
-
     public static List<String> getDestinationAETsFromForwardRule(Association as, ForwardRule rule, Attributes data)
             throws ConfigurationException, DicomServiceException {
         ProxyAEExtension proxyAEE = as.getApplicationEntity().getAEExtension(ProxyAEExtension.class);
@@ -90,31 +76,12 @@ public class ForwardRuleUtils {
 
     public static List<String> getDestinationAETsFromTemplate(ProxyAEExtension proxyAEE, String uri, Attributes data, Association as)
             throws ConfigurationException {
-        final List<String> result = new ArrayList<String>();
+        List<String> result;
         try {
             ProxyDeviceExtension proxyDevExt = proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(
                     ProxyDeviceExtension.class);
-            Templates templates = proxyDevExt.getTemplates(uri);
-            SAXTransformerFactory transFac = (SAXTransformerFactory) TransformerFactory.newInstance();
-            TransformerHandler handler = transFac.newTransformerHandler(templates);
-            if (as != null) {
-                Transformer transformer = handler.getTransformer();
-                transformer.setParameter(XSL_PARAMETER_CALLINGAET, as.getCallingAET());
-                transformer.setParameter(XSL_PARAMETER_CALLEDAET, as.getCalledAET());
-            }
-            handler.setResult(new SAXResult(new DefaultHandler() {
-
-                @Override
-                public void startElement(String uri, String localName, String qName, org.xml.sax.Attributes attributes)
-                        throws SAXException {
-                    if (qName.equals("Destination")) {
-                        result.add(attributes.getValue("aet"));
-                    }
-                }
-
-            }));
-            SAXWriter saxWriter = new SAXWriter(handler);
-            saxWriter.write(data);
+            result = proxyDevExt.getDestinationAETs(uri, data, as != null ? as.getCallingAET() : null,
+                    as != null ? as.getCalledAET() : null);
         } catch (Exception e) {
             LOG.error("Error parsing template {}: {}", uri, e);
             throw new ConfigurationException(e.getMessage());
@@ -127,109 +94,17 @@ public class ForwardRuleUtils {
     }
 
     public static List<ForwardRule> filterForwardRulesByCallingAET(ProxyAEExtension proxyAEE, String callingAET) {
-        List<ForwardRule> filterList = new ArrayList<ForwardRule>();
-        for (ForwardRule rule : proxyAEE.getForwardRules()) {
-            List<String> callingAETs = rule.getCallingAETs();
-            if ((callingAETs.isEmpty() || callingAETs.contains(callingAET))
-                    && rule.getReceiveSchedule().isNow(new GregorianCalendar())) {
-                LOG.debug(
-                        "Filter by Calling AET: use forward rule \"{}\" based on i) Calling AET = {} and ii) receive schedule days = {}, hours = {}",
-                        new Object[] { rule.getCommonName(), 
-                                rule.getCallingAETs().isEmpty() ? "<EMPTY>" : rule.getCallingAETs(), 
-                                rule.getReceiveSchedule().getDays(),
-                                rule.getReceiveSchedule().getHours() });
-                filterList.add(rule);
-            }
-        }
-        List<ForwardRule> returnList = new ArrayList<ForwardRule>(filterList);
-        for (Iterator<ForwardRule> iterator = filterList.iterator(); iterator.hasNext();) {
-            ForwardRule rule = iterator.next();
-            for (ForwardRule fwr : filterList) {
-                if (!returnList.contains(fwr) || rule.getCommonName().equals(fwr.getCommonName()))
-                    continue;
-                if (rule.getCallingAETs().isEmpty()
-                        && !fwr.getCallingAETs().isEmpty()
-                        && fwr.getCallingAETs().contains(callingAET)) {
-                    LOG.debug(
-                            "Filter by Calling AET: remove forward rule \"{}\" with Calling AET = <EMPTY> due to rule \"{}\" with matching Calling AET = {}",
-                            new Object[] { rule.getCommonName(), fwr.getCommonName(), fwr.getCallingAETs() });
-                    returnList.remove(rule);
-                }
-            }
-        }
-        return returnList;
+        List<ForwardRule> rules = proxyAEE.getForwardRuleIndex().getForwardRules(callingAET);
+        LOG.debug("Filter by Calling AET: use forward rules {} for Calling AET = {}", rules, callingAET);
+        return rules;
     }
 
     public static List<ForwardRule> filterForwardRulesOnDimseRQ(List<ForwardRule> fwdRules, String cuid, Dimse dimse) {
-        List<ForwardRule> filterList = new ArrayList<ForwardRule>(fwdRules.size());
-        for (ForwardRule rule : fwdRules) {
-            if (rule.getDimse().isEmpty() && rule.getSopClasses().isEmpty()
-                    || rule.getSopClasses().contains(cuid) && rule.getDimse().isEmpty()
-                    || rule.getDimse().contains(dimse) 
-                        && (rule.getSopClasses().isEmpty() || rule.getSopClasses().contains(cuid))) {
-                LOG.debug(
-                        "Filter on DIMSE RQ: add forward rule \"{}\" based on DIMSE = \"{}\" and SOPClasses = \"{}\"",
-                        new Object[] { 
-                                rule.getCommonName(), 
-                                rule.getDimse().isEmpty() ? "<EMPTY>" : rule.getDimse(),
-                                rule.getSopClasses().isEmpty() ? "<EMPTY>" : rule.getSopClasses()});
-                filterList.add(rule);
-            }
-        }
-        List<ForwardRule> returnList = new ArrayList<ForwardRule>(filterList);
-        for (int i = 0; i < filterList.size(); i++) {
-            ForwardRule rule1 = filterList.get(i);
-            if (!returnList.contains(rule1))
-                continue;
-
-            for (int j = i + 1; j < filterList.size(); j++) {
-                ForwardRule rule2 = filterList.get(j);
-                if (!returnList.contains(rule2))
-                    continue;
-
-                if (rule1.getDimse().isEmpty() && !rule2.getDimse().isEmpty()) {
-                    LOG.debug(
-                            "Filter on DIMSE RQ: remove forward rule \"{}\" with DIMSE = <EMPTY> due to rule \"{}\" with DIMSE = \"{}\"",
-                            new Object[] {
-                                    rule1.getCommonName(),
-                                    rule2.getCommonName(),
-                                    rule2.getDimse()});
-                    returnList.remove(rule1);
-                    break;
-                }
-                if (rule1.getSopClasses().isEmpty() && !rule2.getSopClasses().isEmpty()) {
-                    LOG.debug(
-                            "Filter on DIMSE RQ: remove forward rule \"{}\" with SOP Class = <EMPTY> due to rule \"{}\" with SOP Class = \"{}\"",
-                            new Object[] {
-                                    rule1.getCommonName(),
-                                    rule2.getCommonName(),
-                                    rule2.getSopClasses()});
-                    returnList.remove(rule1);
-                    break;
-                }
-                if (rule2.getDimse().isEmpty() && !rule1.getDimse().isEmpty()) {
-                    LOG.debug(
-                            "Filter on DIMSE RQ: remove forward rule \"{}\" with DIMSE = <EMPTY> due to rule \"{}\" with DIMSE = \"{}\"",
-                            new Object[] {
-                                    rule2.getCommonName(),
-                                    rule1.getCommonName(),
-                                    rule1.getDimse()});
-                    returnList.remove(rule2);
-                    continue;
-                }
-                if (rule2.getSopClasses().isEmpty() && !rule1.getSopClasses().isEmpty()) {
-                    LOG.debug(
-                            "Filter on DIMSE RQ: remove forward rule \"{}\" with SOP Class = <EMPTY> due to rule \"{}\" with SOP Class = \"{}\"",
-                            new Object[] {
-                                    rule2.getCommonName(),
-                                    rule1.getCommonName(),
-                                    rule1.getSopClasses()});
-                    returnList.remove(rule2);
-                    continue;
-                }
-            }
-        }
-        return returnList;
+        List<ForwardRule> rules = ForwardRuleIndex.filterOnDimseRQ(fwdRules, cuid, dimse);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Filter on DIMSE RQ: use forward rules {} for DIMSE = \"{}\" and SOP Class = \"{}\"",
+                    new Object[] { rules, dimse, cuid });
+        return rules;
     }
 
 }
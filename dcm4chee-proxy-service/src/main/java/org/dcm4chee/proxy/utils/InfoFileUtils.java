@@ -42,14 +42,25 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
 
+import org.dcm4chee.proxy.common.SpoolJournal;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Access to the meta information of spooled files. Files in the C-STORE spool
+ * directory keep it in the {@link SpoolJournal} of the AE, all other spool
+ * files in a .info properties file next to them.
+ * 
  * @author Michael Backhaus <michael.backhaus@agfa.com>
  * 
  */
@@ -58,23 +69,17 @@ public class InfoFileUtils {
     private static final Logger LOG = LoggerFactory.getLogger(InfoFileUtils.class);
 
     public static Properties getFileInfoProperties(ProxyAEExtension proxyAEE, File file) throws IOException {
-        String[] fileList = file.getParentFile().list();
-        String infoFileName =null;
-        if(fileList.length >0)
-        {
-            for(String f:  fileList)
-            if(f.endsWith(".info") && file.getName().substring(0,(file.getName()).indexOf(".")).compareTo(f.substring(0,f.indexOf(".")))==0)
-            {
-                infoFileName = f;
-                break;
-                }
-        }
-        else
-        {
-            throw new FileNotFoundException("Unable to find information file");
+        SpoolJournal journal = proxyAEE.getSpoolJournal();
+        if (journal.covers(file)) {
+            Properties prop = journal.get(file);
+            if (prop != null)
+                return prop;
         }
-//        String infoFileName = file.getName().substring(0, file.getName().lastIndexOf('.')) + ".info";
-        return getPropertiesFromInfoFile(proxyAEE, file.getParent(), infoFileName);
+        File infoFile = getInfoFile(file);
+        if (!infoFile.exists())
+            throw new FileNotFoundException("Unable to find information for " + file);
+
+        return getPropertiesFromInfoFile(proxyAEE, infoFile.getParent(), infoFile.getName());
     }
 
     public static Properties getPropertiesFromInfoFile(ProxyAEExtension proxyAEE, String path, String infoFileName)
@@ -87,11 +92,178 @@ public class InfoFileUtils {
             inStream = new FileInputStream(infoFile);
             prop.load(inStream);
         } finally {
-            inStream.close();
+            if (inStream != null)
+                inStream.close();
         }
         return prop;
     }
 
+    public static boolean hasFileInfo(ProxyAEExtension proxyAEE, File file) throws IOException {
+        SpoolJournal journal = proxyAEE.getSpoolJournal();
+        return journal.covers(file) && journal.contains(file) || getInfoFile(file).exists();
+    }
+
+    /**
+     * Stores the meta information of a spool file and returns the file which
+     * has to be synced to make it durable.
+     */
+    public static File storeFileInfo(ProxyAEExtension proxyAEE, File file, Properties prop) throws IOException {
+        SpoolJournal journal = proxyAEE.getSpoolJournal();
+        if (journal.covers(file)) {
+            journal.put(file, prop);
+            return journal.getFile();
+        }
+        File infoFile = getInfoFile(file);
+        FileOutputStream out = new FileOutputStream(infoFile);
+        try {
+            prop.store(out, null);
+        } finally {
+            out.close();
+        }
+        return infoFile;
+    }
+
+    /**
+     * Makes the spool journal durable together with <code>files</code>, e.g.
+     * after the file info of a spooled file was stored for its final
+     * location and before its receipt is confirmed.
+     */
+    public static void syncFileInfo(ProxyAEExtension proxyAEE, File... files) throws IOException {
+        File[] sync = Arrays.copyOf(files, files.length + 1);
+        sync[files.length] = proxyAEE.getSpoolJournal().getFile();
+        proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getGroupCommit().sync(sync);
+    }
+
+    public static void setFileInfoProperty(ProxyAEExtension proxyAEE, File file, String key, String value)
+            throws IOException {
+        Properties prop = getFileInfoProperties(proxyAEE, file);
+        prop.setProperty(key, value);
+        storeFileInfo(proxyAEE, file, prop);
+    }
+
+    public static void copyFileInfo(ProxyAEExtension proxyAEE, File src, File dst) throws IOException {
+        storeFileInfo(proxyAEE, dst, getFileInfoProperties(proxyAEE, src));
+        LOG.debug("{}: copy file info of {} to {}", new Object[] { proxyAEE.getApplicationEntity().getAETitle(),
+                src, dst });
+    }
+
+    /**
+     * Stores the file info of <code>src</code> for <code>dst</code> before
+     * <code>src</code> is renamed to <code>dst</code>, accounting the size of
+     * <code>src</code> to the spool usage.
+     */
+    public static void copyFileInfoToRenameTarget(ProxyAEExtension proxyAEE, File src, File dst) throws IOException {
+        SpoolJournal journal = proxyAEE.getSpoolJournal();
+        if (!journal.covers(dst)) {
+            copyFileInfo(proxyAEE, src, dst);
+            return;
+        }
+        journal.put(dst, getFileInfoProperties(proxyAEE, src), src.length());
+        LOG.debug("{}: copy file info of {} to {}", new Object[] { proxyAEE.getApplicationEntity().getAETitle(),
+                src, dst });
+    }
+
+    public static void moveFileInfo(ProxyAEExtension proxyAEE, File src, File dst) throws IOException {
+        copyFileInfo(proxyAEE, src, dst);
+        deleteFileInfo(proxyAEE, src);
+    }
+
+    public static boolean deleteFileInfo(ProxyAEExtension proxyAEE, File file) throws IOException {
+        SpoolJournal journal = proxyAEE.getSpoolJournal();
+        boolean deleted = journal.covers(file) && journal.remove(file);
+        File infoFile = getInfoFile(file);
+        if (infoFile.exists())
+            deleted = infoFile.delete();
+        if (deleted)
+            LOG.debug("{}: delete file info of {}", proxyAEE.getApplicationEntity().getAETitle(), file);
+        else
+            LOG.debug("{}: failed to delete file info of {}", proxyAEE.getApplicationEntity().getAETitle(), file);
+        return deleted;
+    }
+
+    /**
+     * Imports .info files left in the C-STORE spool directory by previous
+     * versions into the spool journal and deletes them, once the journal is
+     * durable.
+     */
+    public static int migrateInfoFiles(ProxyAEExtension proxyAEE) throws IOException {
+        List<File> infoFiles = new ArrayList<File>();
+        collectInfoFiles(proxyAEE.getSpoolJournal().getBaseDirectory(), infoFiles);
+        return migrateInfoFiles(proxyAEE, infoFiles);
+    }
+
+    /**
+     * Imports the listed .info files of the C-STORE spool directory into the
+     * spool journal and deletes them, once the journal is durable.
+     */
+    public static int migrateInfoFiles(ProxyAEExtension proxyAEE, List<File> infoFiles) throws IOException {
+        if (infoFiles.isEmpty())
+            return 0;
+
+        SpoolJournal journal = proxyAEE.getSpoolJournal();
+        HashMap<File, HashMap<String, Long>> dirs = new HashMap<File, HashMap<String, Long>>();
+        for (File infoFile : infoFiles)
+            journal.put(infoFile, getPropertiesFromInfoFile(proxyAEE, infoFile.getParent(), infoFile.getName()),
+                    getDataFileLength(infoFile, dirs));
+        proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getGroupCommit().sync(journal.getFile());
+        for (File infoFile : infoFiles)
+            if (!infoFile.delete())
+                LOG.warn("{}: failed to delete migrated info file {}", proxyAEE.getApplicationEntity()
+                        .getAETitle(), infoFile);
+        LOG.info("{}: migrated {} info files to {}", new Object[] { proxyAEE.getApplicationEntity().getAETitle(),
+                infoFiles.size(), journal.getFile() });
+        return infoFiles.size();
+    }
+
+    /*
+     * Returns the size of the spool file of the .info file, listing each
+     * directory once.
+     */
+    private static long getDataFileLength(File infoFile, HashMap<File, HashMap<String, Long>> dirs) {
+        File dir = infoFile.getParentFile();
+        HashMap<String, Long> lengths = dirs.get(dir);
+        if (lengths == null) {
+            lengths = new HashMap<String, Long>();
+            File[] files = dir.listFiles();
+            if (files != null)
+                for (File f : files) {
+                    String name = f.getName();
+                    if (name.endsWith(".info") || !f.isFile())
+                        continue;
+
+                    int dot = name.indexOf('.');
+                    String baseName = dot < 0 ? name : name.substring(0, dot);
+                    Long length = lengths.get(baseName);
+                    if (length == null || length < f.length())
+                        lengths.put(baseName, f.length());
+                }
+            dirs.put(dir, lengths);
+        }
+        String name = infoFile.getName();
+        Long length = lengths.get(name.substring(0, name.length() - ".info".length()));
+        return length != null ? length : 0L;
+    }
+
+    private static void collectInfoFiles(File dir, List<File> infoFiles) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+            if (file.isDirectory())
+                collectInfoFiles(file, infoFiles);
+            else if (file.getName().endsWith(".info"))
+                infoFiles.add(file);
+    }
+
+    private static File getInfoFile(File file) {
+        String name = file.getName();
+        int dot = name.indexOf('.');
+        return new File(file.getParent(), (dot < 0 ? name : name.substring(0, dot)) + ".info");
+    }
+
     public static FileFilter infoFileFilter() {
         return new FileFilter() {
             
@@ -0,0 +1,319 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.dcm4chee.proxy.common.RetryRecord;
+import org.dcm4chee.proxy.common.SpoolLayout;
+import org.dcm4chee.proxy.common.SpoolQueue;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.conf.Retry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains the {@link SpoolQueue} of the C-STORE spool directory. Files are
+ * queued for the destination named by their destination directory, eligible after
+ * the scheduler interval (.dcm) or at the time of the next attempt of their
+ * {@link RetryRecord}. With event driven forwarding, .dcm files without retry
+ * record are eligible immediately. The priority of a file is taken from the
+ * DICOM priority stored in its file info.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ * 
+ */
+public class SpoolQueueUtils {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolQueueUtils.class);
+
+    /**
+     * Queues a file of the C-STORE spool directory. Files outside of it or
+     * currently being received or sent are ignored.
+     */
+    public static boolean enqueue(ProxyAEExtension proxyAEE, File file) throws IOException {
+        return enqueue(proxyAEE, file, 0);
+    }
+
+    /**
+     * Queues a file of the C-STORE spool directory, eligible not before
+     * <code>notBefore</code>.
+     */
+    public static boolean enqueue(ProxyAEExtension proxyAEE, File file, long notBefore) throws IOException {
+        File dir = SpoolLayout.getDestinationDirectory(proxyAEE.getCStoreDirectoryPath(), file);
+        if (dir == null || !isQueueable(file.getName()))
+            return false;
+
+        String calledAET = dir.getName();
+        add(proxyAEE, proxyAEE.getSpoolQueue(), calledAET, file, notBefore);
+        LOG.debug("{}: queued {} for {}", new Object[] { proxyAEE.getApplicationEntity().getAETitle(), file,
+                calledAET });
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the file is located in the C-STORE spool
+     * directory of a destination.
+     */
+    public static boolean isCStoreSpoolFile(ProxyAEExtension proxyAEE, File file) {
+        try {
+            return SpoolLayout.getDestinationDirectory(proxyAEE.getCStoreDirectoryPath(), file) != null;
+        } catch (IOException e) {
+            LOG.debug("{}: no C-STORE spool directory: {}", proxyAEE.getApplicationEntity().getAETitle(),
+                    e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Populates the queue from the C-STORE spool directory, replacing its
+     * current content. Files spooled with the flat layout of previous versions
+     * are moved to their hash subdirectory first.
+     */
+    public static int load(ProxyAEExtension proxyAEE) throws IOException {
+        SpoolQueue queue = proxyAEE.getSpoolQueue();
+        queue.clear();
+        migrateFlatLayout(proxyAEE);
+        File cstoreDir = proxyAEE.getCStoreDirectoryPath();
+        File[] dirs = cstoreDir.listFiles();
+        if (dirs != null)
+            for (File dir : dirs) {
+                if (!dir.isDirectory())
+                    continue;
+
+                List<File> files = new ArrayList<File>();
+                SpoolLayout.listFiles(dir, files);
+                enqueueAll(proxyAEE, dir.getName(), files);
+            }
+        queue.setLoaded(true);
+        LOG.info("{}: loaded {} spooled files from {}", new Object[] {
+                proxyAEE.getApplicationEntity().getAETitle(), queue.size(), cstoreDir });
+        return queue.size();
+    }
+
+    /**
+     * Queues the listed files of the spool directory of the destination,
+     * ignoring files currently being received or sent.
+     */
+    public static void enqueueAll(ProxyAEExtension proxyAEE, String calledAET, List<File> files) {
+        SpoolQueue queue = proxyAEE.getSpoolQueue();
+        for (File file : files)
+            if (isQueueable(file.getName()))
+                add(proxyAEE, queue, calledAET, file, 0);
+    }
+
+    /**
+     * Queues files of the C-STORE spool directory which are missing in the
+     * queue, e.g. after a failed rename.
+     */
+    public static int reconcile(ProxyAEExtension proxyAEE) throws IOException {
+        SpoolQueue queue = proxyAEE.getSpoolQueue();
+        if (queue.isRecovering())
+            return 0;
+
+        if (!queue.isLoaded())
+            return load(proxyAEE);
+
+        int count = 0;
+        File[] dirs = proxyAEE.getCStoreDirectoryPath().listFiles();
+        if (dirs != null)
+            for (File dir : dirs) {
+                if (!dir.isDirectory())
+                    continue;
+
+                List<File> files = new ArrayList<File>();
+                SpoolLayout.listFiles(dir, files);
+                for (File file : files) {
+                    if (isQueueable(file.getName()) && !queue.contains(file) && file.exists()) {
+                        add(proxyAEE, queue, dir.getName(), file, 0);
+                        count++;
+                    }
+                }
+            }
+        if (count > 0)
+            LOG.info("{}: queued {} spooled files missing in the spool queue", proxyAEE.getApplicationEntity()
+                    .getAETitle(), count);
+        return count;
+    }
+
+    /**
+     * Moves a file of the flat layout of previous versions to its hash
+     * subdirectory, together with its file info, and returns the moved file.
+     */
+    public static File moveToShardDirectory(ProxyAEExtension proxyAEE, File file) throws IOException {
+        List<File> files = new ArrayList<File>(1);
+        files.add(file);
+        moveToShardDirectories(proxyAEE, files);
+        return files.get(0);
+    }
+
+    /**
+     * Moves the files spooled by previous versions directly into the
+     * destination directories to their hash subdirectories.
+     */
+    public static int migrateFlatLayout(ProxyAEExtension proxyAEE) throws IOException {
+        List<File> files = new ArrayList<File>();
+        File[] dirs = proxyAEE.getCStoreDirectoryPath().listFiles();
+        if (dirs != null)
+            for (File dir : dirs) {
+                File[] list = dir.isDirectory() ? dir.listFiles() : null;
+                if (list != null)
+                    for (File file : list)
+                        if (file.isFile() && isQueueable(file.getName()))
+                            files.add(file);
+            }
+        if (files.isEmpty())
+            return 0;
+
+        int count = moveToShardDirectories(proxyAEE, files);
+        LOG.info("{}: moved {} spooled files to hash subdirectories", proxyAEE.getApplicationEntity()
+                .getAETitle(), count);
+        return count;
+    }
+
+    /**
+     * Moves the listed files which are located directly in their destination
+     * directory to their hash subdirectories. The file info is stored for the
+     * new location and made durable before the files are renamed, so a file
+     * never exists without its info, and removed for the previous location
+     * afterwards. Replaces each moved file in the list by its new location and
+     * returns the number of moved files.
+     */
+    public static int moveToShardDirectories(ProxyAEExtension proxyAEE, List<File> files) throws IOException {
+        File cstoreDir = proxyAEE.getCStoreDirectoryPath();
+        File[] dsts = new File[files.size()];
+        boolean flat = false;
+        for (int i = 0; i < dsts.length; i++) {
+            File file = files.get(i);
+            File dir = SpoolLayout.getDestinationDirectory(cstoreDir, file);
+            if (dir == null || !dir.equals(file.getAbsoluteFile().getParentFile()))
+                continue;
+
+            dsts[i] = new File(proxyAEE.getCStoreDirectoryPath(dir.getName(), file.getName()), file.getName());
+            if (InfoFileUtils.hasFileInfo(proxyAEE, file))
+                InfoFileUtils.copyFileInfoToRenameTarget(proxyAEE, file, dsts[i]);
+            flat = true;
+        }
+        if (!flat)
+            return 0;
+
+        proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getGroupCommit().sync(proxyAEE.getSpoolJournal().getFile());
+        int count = 0;
+        for (int i = 0; i < dsts.length; i++) {
+            if (dsts[i] == null)
+                continue;
+
+            File file = files.get(i);
+            if (!file.renameTo(dsts[i])) {
+                LOG.warn("{}: failed to rename {} to {}", new Object[] {
+                        proxyAEE.getApplicationEntity().getAETitle(), file, dsts[i] });
+                if (!dsts[i].exists())
+                    InfoFileUtils.deleteFileInfo(proxyAEE, dsts[i]);
+                continue;
+            }
+            if (InfoFileUtils.hasFileInfo(proxyAEE, file))
+                InfoFileUtils.deleteFileInfo(proxyAEE, file);
+            files.set(i, dsts[i]);
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean isQueueable(String name) {
+        return name.indexOf('.') > 0 && !name.endsWith(".part") && !name.endsWith(".snd")
+                && !name.endsWith(".info") && !name.endsWith(".tmpBulkData");
+    }
+
+    private static void add(ProxyAEExtension proxyAEE, SpoolQueue queue, String calledAET, File file,
+            long notBefore) {
+        Properties prop = null;
+        try {
+            prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+        } catch (IOException e) {
+            LOG.debug("{}: no file info of {}: {}", new Object[] { proxyAEE.getApplicationEntity().getAETitle(),
+                    file, e.getMessage() });
+        }
+        queue.add(calledAET, file, Math.max(getEligibleTime(proxyAEE, file, prop), notBefore),
+                getPriority(prop));
+    }
+
+    /**
+     * Returns the queue priority of a spooled file from the DICOM priority of
+     * the C-STORE-RQ it was received with.
+     */
+    private static int getPriority(Properties prop) {
+        String priority = prop != null ? prop.getProperty("priority") : null;
+        if ("1".equals(priority))
+            return SpoolQueue.PRIORITY_HIGH;
+        if ("2".equals(priority))
+            return SpoolQueue.PRIORITY_LOW;
+        return SpoolQueue.PRIORITY_MEDIUM;
+    }
+
+    private static long getEligibleTime(ProxyAEExtension proxyAEE, File file, Properties prop) {
+        String name = file.getName();
+        if (name.endsWith(".dcm")) {
+            if (prop != null) {
+                RetryRecord record = RetryRecord.valueOf(prop);
+                if (!record.isEmpty())
+                    return record.getNextEligibleTime();
+            }
+            ProxyDeviceExtension proxyDevExt = proxyAEE.getApplicationEntity().getDevice()
+                    .getDeviceExtension(ProxyDeviceExtension.class);
+            return proxyDevExt.isEventDrivenForwarding() ? 0
+                    : file.lastModified() + proxyDevExt.getSchedulerInterval();
+        }
+
+        // retry suffix in the file name of previous versions
+        String suffix = name.substring(name.lastIndexOf('.'));
+        for (Retry retry : proxyAEE.getRetries())
+            if (suffix.startsWith(retry.getRetryObject().getSuffix()))
+                return file.lastModified() + retry.getDelay() * 1000L;
+
+        // no retry configuration: let the scheduler delete or move it next run
+        return 0;
+    }
+
+}
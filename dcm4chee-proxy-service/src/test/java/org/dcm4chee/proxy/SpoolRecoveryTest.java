@@ -0,0 +1,199 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4chee.proxy.common.SpoolLayout;
+import org.dcm4chee.proxy.common.SpoolQueue;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolRecoveryTest {
+
+    private static final long OLD = 60000L;
+
+    @Rule
+    public TemporaryProxyAE temporaryProxyAE = new TemporaryProxyAE();
+
+    private ProxyAEExtension proxyAEE;
+    private File destinationDir;
+
+    @Before
+    public void setUp() throws IOException {
+        proxyAEE = temporaryProxyAE.getProxyAEExtension();
+        destinationDir = temporaryProxyAE.getDestinationDirectory("DEST");
+    }
+
+    private File spool(File dir, String name, boolean fileInfo, long age) throws IOException {
+        File file = temporaryProxyAE.spool(dir, name, fileInfo ? new Properties() : null);
+        if (age > 0)
+            file.setLastModified(System.currentTimeMillis() - age);
+        return file;
+    }
+
+    private File shardDir(String name) throws IOException {
+        return temporaryProxyAE.getShardDirectory("DEST", name);
+    }
+
+    private File sharded(String name) {
+        return new File(SpoolLayout.getShardDirectory(destinationDir, name), name);
+    }
+
+    private void recover(boolean loadQueues) throws Exception {
+        SpoolRecovery recovery = new SpoolRecovery(temporaryProxyAE.getDevice(), "test", loadQueues);
+        recovery.start();
+        Assert.assertTrue(recovery.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRenameSndFiles() throws Exception {
+        File snd = spool(shardDir("1.dcm"), "1.dcm.snd", true, OLD);
+        File flatSnd = spool(destinationDir, "2.dcm.snd", true, OLD);
+
+        recover(true);
+        Assert.assertFalse(snd.exists());
+        Assert.assertFalse(flatSnd.exists());
+        Assert.assertTrue(sharded("1.dcm").exists());
+        Assert.assertTrue(sharded("2.dcm").exists());
+        SpoolQueue queue = proxyAEE.getSpoolQueue();
+        Assert.assertFalse(queue.isRecovering());
+        Assert.assertTrue(queue.contains(sharded("1.dcm")));
+        Assert.assertTrue(queue.contains(sharded("2.dcm")));
+    }
+
+    @Test
+    public void testDeleteIncompleteFilesBeforeStart() throws Exception {
+        File oldPart = spool(shardDir("1.part"), "1.part", true, OLD);
+        File newPart = spool(shardDir("2.part"), "2.part", false, 0);
+        File oldWithoutInfo = spool(shardDir("3.dcm"), "3.dcm", false, OLD);
+        File newWithoutInfo = spool(shardDir("4.dcm"), "4.dcm", false, 0);
+        File oldWithInfo = spool(shardDir("5.dcm"), "5.dcm", true, OLD);
+        File oldBulkData = spool(destinationDir, "6.tmpBulkData", false, OLD);
+        File oldInCStoreDir = spool(proxyAEE.getCStoreDirectoryPath(), "7.part", false, OLD);
+
+        recover(false);
+        Assert.assertFalse(oldPart.exists());
+        Assert.assertFalse(InfoFileUtils.hasFileInfo(proxyAEE, oldPart));
+        Assert.assertTrue(newPart.exists());
+        Assert.assertFalse(oldWithoutInfo.exists());
+        Assert.assertTrue(newWithoutInfo.exists());
+        Assert.assertTrue(oldWithInfo.exists());
+        Assert.assertFalse(oldBulkData.exists());
+        Assert.assertFalse(oldInCStoreDir.exists());
+        Assert.assertFalse(proxyAEE.getSpoolQueue().isLoaded());
+    }
+
+    @Test
+    public void testDeleteFileWithFileInfoOfPartOnly() throws Exception {
+        // renamed into the destination directory, but the journal was only
+        // synced with the entry of the received .part file
+        File received = spool(proxyAEE.getCStoreDirectoryPath(), "1.part", true, OLD);
+        File renamed = new File(shardDir("1.dcm"), "1.dcm");
+        Assert.assertTrue(received.renameTo(renamed));
+        File oldPart = spool(proxyAEE.getCStoreDirectoryPath(), "2.part", true, OLD);
+
+        recover(true);
+        Assert.assertFalse(renamed.exists());
+        Assert.assertFalse(oldPart.exists());
+        Assert.assertFalse(InfoFileUtils.hasFileInfo(proxyAEE, received));
+        Assert.assertFalse(InfoFileUtils.hasFileInfo(proxyAEE, oldPart));
+        Assert.assertEquals(0, proxyAEE.getSpoolJournal().size());
+        Assert.assertEquals(0, proxyAEE.getSpoolJournal().getUsage(null).bytes);
+        Assert.assertFalse(proxyAEE.getSpoolQueue().contains(renamed));
+    }
+
+    private File storeInfoFile(File dir, String name) throws IOException {
+        Properties prop = new Properties();
+        prop.setProperty("source-aet", "STORESCU");
+        File infoFile = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(infoFile);
+        try {
+            prop.store(out, null);
+        } finally {
+            out.close();
+        }
+        return infoFile;
+    }
+
+    @Test
+    public void testMigrateInfoFiles() throws Exception {
+        File file = spool(destinationDir, "1.dcm", false, OLD);
+        File infoFile = storeInfoFile(destinationDir, "1.info");
+
+        recover(true);
+        Assert.assertFalse(infoFile.exists());
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals("STORESCU",
+                InfoFileUtils.getFileInfoProperties(proxyAEE, sharded("1.dcm")).getProperty("source-aet"));
+        Assert.assertTrue(proxyAEE.getSpoolQueue().contains(sharded("1.dcm")));
+
+        // recovering again changes nothing
+        recover(true);
+        Assert.assertTrue(sharded("1.dcm").exists());
+        Assert.assertTrue(InfoFileUtils.hasFileInfo(proxyAEE, sharded("1.dcm")));
+        Assert.assertEquals(1, proxyAEE.getSpoolQueue().size());
+    }
+
+    @Test
+    public void testUsageOfMigratedFiles() throws Exception {
+        temporaryProxyAE.spool(destinationDir, "1.dcm", 100, new Properties());
+        temporaryProxyAE.spool(destinationDir, "2.dcm", 200, null);
+        storeInfoFile(destinationDir, "2.info");
+        temporaryProxyAE.spool(shardDir("3.dcm"), "3.dcm", 300, null);
+        storeInfoFile(shardDir("3.dcm"), "3.info");
+
+        recover(true);
+        Assert.assertTrue(sharded("1.dcm").exists());
+        Assert.assertTrue(sharded("2.dcm").exists());
+        Assert.assertEquals(3, proxyAEE.getSpoolJournal().getUsage("DEST").objects);
+        Assert.assertEquals(600, proxyAEE.getSpoolJournal().getUsage("DEST").bytes);
+    }
+}
@@ -0,0 +1,122 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Device;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Proxy AE of a device with its spool directory in a temporary folder, which
+ * is deleted after the test.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class TemporaryProxyAE extends TemporaryFolder {
+
+    private Device device;
+    private ProxyAEExtension proxyAEE;
+
+    @Override
+    protected void before() throws Throwable {
+        super.before();
+        device = new Device("proxy");
+        device.addDeviceExtension(new ProxyDeviceExtension());
+        ApplicationEntity ae = new ApplicationEntity("PROXY");
+        proxyAEE = new ProxyAEExtension();
+        proxyAEE.setSpoolDirectory(newFolder("spool").getPath());
+        ae.addAEExtension(proxyAEE);
+        device.addApplicationEntity(ae);
+    }
+
+    @Override
+    protected void after() {
+        proxyAEE.closeSpoolJournal();
+        super.after();
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public ProxyAEExtension getProxyAEExtension() {
+        return proxyAEE;
+    }
+
+    /**
+     * Returns the C-STORE spool directory of the destination.
+     */
+    public File getDestinationDirectory(String calledAET) throws IOException {
+        File dir = new File(proxyAEE.getCStoreDirectoryPath(), calledAET);
+        ProxyAEExtension.makeDirs(dir);
+        return dir;
+    }
+
+    /**
+     * Returns the hash subdirectory of the C-STORE spool directory of the
+     * destination for the file name.
+     */
+    public File getShardDirectory(String calledAET, String fileName) throws IOException {
+        return proxyAEE.getCStoreDirectoryPath(calledAET, fileName);
+    }
+
+    /**
+     * Writes a spool file of <code>length</code> bytes, with file info if
+     * <code>prop</code> is not <code>null</code>.
+     */
+    public File spool(File dir, String name, int length, Properties prop) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), new byte[length]);
+        if (prop != null)
+            InfoFileUtils.storeFileInfo(proxyAEE, file, prop);
+        return file;
+    }
+
+    public File spool(File dir, String name, Properties prop) throws IOException {
+        return spool(dir, name, 10, prop);
+    }
+}
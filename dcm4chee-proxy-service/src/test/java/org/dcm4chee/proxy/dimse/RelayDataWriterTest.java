@@ -0,0 +1,163 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.dimse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.dcm4che3.net.PDVOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RelayDataWriterTest {
+
+    private static final String TSUID = "1.2.840.10008.1.2.1";
+
+    /**
+     * Collects the relayed bytes and fails after a number of bytes, like a
+     * forward association aborted while sending.
+     */
+    private static class ForwardStream extends PDVOutputStream {
+
+        final ByteArrayOutputStream relayed = new ByteArrayOutputStream();
+        final int failAfter;
+
+        ForwardStream(int failAfter) {
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (relayed.size() + len > failAfter)
+                throw new IOException("Association aborted");
+            relayed.write(b, off, len);
+        }
+
+        @Override
+        public void copyFrom(InputStream in, int len) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void copyFrom(InputStream in) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Write-ahead copy which records whether it was closed.
+     */
+    private static class WriteAhead extends ByteArrayOutputStream {
+
+        boolean closed;
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testRelayWritesAhead() throws Exception {
+        byte[] data = data(3 * RelayDataWriter.BUFFER_SIZE + 17);
+        WriteAhead writeAhead = new WriteAhead();
+        ForwardStream out = new ForwardStream(Integer.MAX_VALUE);
+        RelayDataWriter writer = new RelayDataWriter(new ByteArrayInputStream(data), writeAhead);
+        writer.writeTo(out, TSUID);
+        Assert.assertTrue(writer.isComplete());
+        Assert.assertTrue(writeAhead.closed);
+        Assert.assertArrayEquals(data, out.relayed.toByteArray());
+        Assert.assertArrayEquals(data, writeAhead.toByteArray());
+        // nothing left to drain after a complete relay
+        writer.drain();
+        Assert.assertEquals(data.length, writeAhead.size());
+    }
+
+    @Test
+    public void testDrainCompletesWriteAheadOnFailedRelay() throws Exception {
+        byte[] data = data(3 * RelayDataWriter.BUFFER_SIZE + 17);
+        WriteAhead writeAhead = new WriteAhead();
+        ForwardStream out = new ForwardStream(RelayDataWriter.BUFFER_SIZE + 1);
+        RelayDataWriter writer = new RelayDataWriter(new ByteArrayInputStream(data), writeAhead);
+        try {
+            writer.writeTo(out, TSUID);
+            Assert.fail("relay should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertFalse(writer.isComplete());
+        Assert.assertFalse(writeAhead.closed);
+        Assert.assertArrayEquals(Arrays.copyOf(data, RelayDataWriter.BUFFER_SIZE), out.relayed.toByteArray());
+
+        // the copy to spool for the destination holds the whole data set
+        writer.drain();
+        Assert.assertTrue(writer.isComplete());
+        Assert.assertTrue(writeAhead.closed);
+        Assert.assertArrayEquals(data, writeAhead.toByteArray());
+    }
+
+    @Test
+    public void testRelayWithoutWriteAhead() throws Exception {
+        byte[] data = data(RelayDataWriter.BUFFER_SIZE / 2);
+        ForwardStream out = new ForwardStream(Integer.MAX_VALUE);
+        RelayDataWriter writer = new RelayDataWriter(new ByteArrayInputStream(data), null);
+        writer.writeTo(out, TSUID);
+        Assert.assertTrue(writer.isComplete());
+        Assert.assertArrayEquals(data, out.relayed.toByteArray());
+        writer.drain();
+    }
+}
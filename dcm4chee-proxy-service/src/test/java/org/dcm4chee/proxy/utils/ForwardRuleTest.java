@@ -39,12 +39,15 @@
 package org.dcm4chee.proxy.utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
 
 import org.dcm4che3.data.UID;
 import org.dcm4che3.net.Dimse;
 import org.dcm4chee.proxy.conf.ForwardRule;
+import org.dcm4chee.proxy.conf.ForwardRuleIndex;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.Schedule;
 import org.junit.Assert;
@@ -107,6 +110,128 @@ public class ForwardRuleTest {
             assertRule2(result);
     }
 
+    /**
+     * Test method for
+     * {@link org.dcm4chee.proxy.conf.ForwardRuleIndex#getForwardRules(String, Calendar)}
+     * against the filtering of all forward rules for each hour of the week.
+     */
+    @Test
+    public void testForwardRuleIndexAgreesWithFilter() throws Exception {
+        List<ForwardRule> fwdRules = new ArrayList<>();
+        fwdRules.add(newRule("Weekend", "Sat-Sun", null, "STORESCU"));
+        fwdRules.add(newRule("Night", null, "22-2", "STORESCU", "MODALITY"));
+        fwdRules.add(newRule("Office", "Mon-Fri", "9-17"));
+        fwdRules.add(newRule("Always"));
+        fwdRules.add(newRule("Friday", "Fri-Mon", "23", "MODALITY"));
+        ProxyAEExtension proxyAEE = new ProxyAEExtension();
+        proxyAEE.setForwardRules(fwdRules);
+        ForwardRuleIndex index = proxyAEE.getForwardRuleIndex();
+
+        Calendar cal = new GregorianCalendar(2014, Calendar.JANUARY, 5); // Sunday
+        for (int hourOfWeek = 0; hourOfWeek < 7 * 24; hourOfWeek++) {
+            for (String callingAET : new String[] { "STORESCU", "MODALITY", "OTHERSCU" })
+                Assert.assertEquals(callingAET + " at " + cal.getTime(), filter(fwdRules, callingAET, cal),
+                        new ArrayList<>(index.getForwardRules(callingAET, cal)));
+            cal.add(Calendar.HOUR_OF_DAY, 1);
+        }
+    }
+
+    @Test
+    public void testForwardRuleIndexWrapsWeekAndDay() throws Exception {
+        ProxyAEExtension proxyAEE = new ProxyAEExtension();
+        proxyAEE.setForwardRules(Arrays.asList(
+                newRule("Weekend", "Sat-Sun", null, "STORESCU"),
+                newRule("Night", null, "22-2", "STORESCU"),
+                newRule("Always")));
+        ForwardRuleIndex index = proxyAEE.getForwardRuleIndex();
+
+        assertRules(index, "STORESCU", Calendar.SATURDAY, 0, "Weekend", "Night");
+        assertRules(index, "STORESCU", Calendar.SATURDAY, 3, "Weekend");
+        assertRules(index, "STORESCU", Calendar.SATURDAY, 23, "Weekend", "Night");
+        assertRules(index, "STORESCU", Calendar.SUNDAY, 0, "Weekend", "Night");
+        assertRules(index, "STORESCU", Calendar.SUNDAY, 12, "Weekend");
+        assertRules(index, "STORESCU", Calendar.SUNDAY, 23, "Weekend", "Night");
+        assertRules(index, "STORESCU", Calendar.MONDAY, 0, "Night");
+        assertRules(index, "STORESCU", Calendar.MONDAY, 2, "Night");
+        assertRules(index, "STORESCU", Calendar.MONDAY, 3, "Always");
+        assertRules(index, "STORESCU", Calendar.FRIDAY, 21, "Always");
+        assertRules(index, "STORESCU", Calendar.FRIDAY, 22, "Night");
+        assertRules(index, "OTHERSCU", Calendar.SUNDAY, 0, "Always");
+        assertRules(index, "OTHERSCU", Calendar.WEDNESDAY, 12, "Always");
+    }
+
+    @Test
+    public void testForwardRuleIndexAtCurrentTime() throws Exception {
+        List<ForwardRule> fwdRules = new ArrayList<>();
+        fwdRules.add(newRule("Weekend", "Sat-Sun", null, "STORESCU"));
+        fwdRules.add(newRule("Night", null, "22-2", "STORESCU"));
+        fwdRules.add(newRule("Office", "Mon-Fri", "9-17"));
+        ProxyAEExtension proxyAEE = new ProxyAEExtension();
+        proxyAEE.setForwardRules(fwdRules);
+        ForwardRuleIndex index = proxyAEE.getForwardRuleIndex();
+
+        Calendar before, after;
+        List<ForwardRule> result;
+        do {
+            before = new GregorianCalendar();
+            result = ForwardRuleUtils.filterForwardRulesByCallingAET(proxyAEE, "STORESCU");
+            after = new GregorianCalendar();
+        } while (before.get(Calendar.HOUR_OF_DAY) != after.get(Calendar.HOUR_OF_DAY));
+        Assert.assertEquals(filter(fwdRules, "STORESCU", before), new ArrayList<>(result));
+        Assert.assertSame(index.getForwardRules("STORESCU", before), result);
+    }
+
+    private static ForwardRule newRule(String commonName) {
+        return newRule(commonName, null, null);
+    }
+
+    private static ForwardRule newRule(String commonName, String days, String hours, String... callingAETs) {
+        ForwardRule rule = new ForwardRule();
+        rule.setCommonName(commonName);
+        rule.setDestinationURIs(Arrays.asList("aet:" + commonName.toUpperCase()));
+        rule.setCallingAETs(new ArrayList<>(Arrays.asList(callingAETs)));
+        if (days != null || hours != null) {
+            Schedule schedule = new Schedule();
+            schedule.setDays(days);
+            schedule.setHours(hours);
+            rule.setReceiveSchedule(schedule);
+        }
+        return rule;
+    }
+
+    private static void assertRules(ForwardRuleIndex index, String callingAET, int dayOfWeek, int hourOfDay,
+            String... commonNames) {
+        Calendar cal = new GregorianCalendar(2014, Calendar.JANUARY, 4 + dayOfWeek, hourOfDay, 30);
+        Assert.assertEquals(dayOfWeek, cal.get(Calendar.DAY_OF_WEEK));
+        List<String> result = new ArrayList<>();
+        for (ForwardRule rule : index.getForwardRules(callingAET, cal))
+            result.add(rule.getCommonName());
+        Assert.assertEquals(callingAET + " at " + cal.getTime(), Arrays.asList(commonNames), result);
+    }
+
+    /**
+     * Filters all forward rules like before they were indexed: rules with a
+     * matching Calling AET replace rules for any Calling AET.
+     */
+    private static List<ForwardRule> filter(List<ForwardRule> fwdRules, String callingAET, Calendar cal) {
+        List<ForwardRule> filterList = new ArrayList<>();
+        for (ForwardRule rule : fwdRules) {
+            List<String> callingAETs = rule.getCallingAETs();
+            if ((callingAETs.isEmpty() || callingAETs.contains(callingAET))
+                    && rule.getReceiveSchedule().isNow(cal))
+                filterList.add(rule);
+        }
+        List<ForwardRule> returnList = new ArrayList<>(filterList);
+        for (ForwardRule rule : filterList)
+            for (ForwardRule fwr : filterList) {
+                if (!returnList.contains(fwr) || rule.getCommonName().equals(fwr.getCommonName()))
+                    continue;
+                if (rule.getCallingAETs().isEmpty() && fwr.getCallingAETs().contains(callingAET))
+                    returnList.remove(rule);
+            }
+        return returnList;
+    }
+
     private void assertRule1(List<ForwardRule> result) {
         Assert.assertEquals(1, result.size());
         Assert.assertEquals("Rule1", result.get(0).getCommonName());
@@ -0,0 +1,192 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.dcm4chee.proxy.TemporaryProxyAE;
+import org.dcm4chee.proxy.common.RetryRecord;
+import org.dcm4chee.proxy.common.SpoolLayout;
+import org.dcm4chee.proxy.common.SpoolQueue;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolQueueUtilsTest {
+
+    @Rule
+    public TemporaryProxyAE temporaryProxyAE = new TemporaryProxyAE();
+
+    private ProxyAEExtension proxyAEE;
+    private File destinationDir;
+
+    @Before
+    public void setUp() throws IOException {
+        proxyAEE = temporaryProxyAE.getProxyAEExtension();
+        destinationDir = temporaryProxyAE.getDestinationDirectory("DEST");
+    }
+
+    private File spool(File dir, String name, boolean fileInfo) throws IOException {
+        Properties prop = null;
+        if (fileInfo) {
+            prop = new Properties();
+            prop.setProperty("source-aet", "STORESCU");
+        }
+        return temporaryProxyAE.spool(dir, name, prop);
+    }
+
+    private File sharded(String name) {
+        return new File(SpoolLayout.getShardDirectory(destinationDir, name), name);
+    }
+
+    @Test
+    public void testMigrateFlatLayout() throws Exception {
+        File withInfo = spool(destinationDir, "1.dcm", true);
+        File withoutInfo = spool(destinationDir, "2.dcm", false);
+        File part = spool(destinationDir, "3.part", false);
+
+        Assert.assertEquals(2, SpoolQueueUtils.migrateFlatLayout(proxyAEE));
+        Assert.assertFalse(withInfo.exists());
+        Assert.assertFalse(withoutInfo.exists());
+        Assert.assertTrue(part.exists());
+        Assert.assertTrue(sharded("1.dcm").exists());
+        Assert.assertTrue(sharded("2.dcm").exists());
+        Assert.assertFalse(InfoFileUtils.hasFileInfo(proxyAEE, withInfo));
+        Assert.assertEquals("STORESCU",
+                InfoFileUtils.getFileInfoProperties(proxyAEE, sharded("1.dcm")).getProperty("source-aet"));
+        Assert.assertFalse(InfoFileUtils.hasFileInfo(proxyAEE, sharded("2.dcm")));
+
+        // nothing left to migrate
+        Assert.assertEquals(0, SpoolQueueUtils.migrateFlatLayout(proxyAEE));
+        Assert.assertTrue(sharded("1.dcm").exists());
+        Assert.assertTrue(InfoFileUtils.hasFileInfo(proxyAEE, sharded("1.dcm")));
+    }
+
+    @Test
+    public void testUsageOfMigratedFiles() throws Exception {
+        Properties prop = new Properties();
+        temporaryProxyAE.spool(destinationDir, "1.dcm", 100, prop);
+        temporaryProxyAE.spool(destinationDir, "2.dcm", 200, prop);
+        Assert.assertEquals(300, proxyAEE.getSpoolJournal().getUsage("DEST").bytes);
+
+        Assert.assertEquals(2, SpoolQueueUtils.migrateFlatLayout(proxyAEE));
+        Assert.assertEquals(2, proxyAEE.getSpoolJournal().getUsage("DEST").objects);
+        Assert.assertEquals(300, proxyAEE.getSpoolJournal().getUsage("DEST").bytes);
+    }
+
+    @Test
+    public void testMoveToShardDirectoriesIgnoresShardedFiles() throws Exception {
+        File flat = spool(destinationDir, "1.dcm", true);
+        File shard = spool(proxyAEE.getCStoreDirectoryPath("DEST", "2.dcm"), "2.dcm", true);
+        List<File> files = new ArrayList<File>();
+        files.add(flat);
+        files.add(shard);
+
+        Assert.assertEquals(1, SpoolQueueUtils.moveToShardDirectories(proxyAEE, files));
+        Assert.assertEquals(sharded("1.dcm"), files.get(0));
+        Assert.assertSame(shard, files.get(1));
+        Assert.assertTrue(shard.exists());
+        Assert.assertTrue(InfoFileUtils.hasFileInfo(proxyAEE, shard));
+
+        Assert.assertEquals(0, SpoolQueueUtils.moveToShardDirectories(proxyAEE, files));
+        Assert.assertEquals(sharded("1.dcm"), SpoolQueueUtils.moveToShardDirectory(proxyAEE, files.get(0)));
+    }
+
+    @Test
+    public void testResumeInterruptedMove() throws Exception {
+        File flat = spool(destinationDir, "1.dcm", true);
+        // file info already stored for the new location, file not renamed
+        InfoFileUtils.copyFileInfo(proxyAEE, flat, new File(proxyAEE.getCStoreDirectoryPath("DEST", "1.dcm"),
+                "1.dcm"));
+
+        Assert.assertEquals(1, SpoolQueueUtils.migrateFlatLayout(proxyAEE));
+        Assert.assertTrue(sharded("1.dcm").exists());
+        Assert.assertTrue(InfoFileUtils.hasFileInfo(proxyAEE, sharded("1.dcm")));
+        Assert.assertFalse(InfoFileUtils.hasFileInfo(proxyAEE, flat));
+    }
+
+    @Test
+    public void testEnqueueAtNextRetry() throws Exception {
+        File retry = spool(proxyAEE.getCStoreDirectoryPath("DEST", "1.dcm"), "1.dcm", true);
+        long nextRetry = System.currentTimeMillis() + 60000L;
+        Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, retry);
+        RetryRecord record = new RetryRecord();
+        record.failed("a700", System.currentTimeMillis(), nextRetry);
+        record.storeTo(prop);
+        InfoFileUtils.storeFileInfo(proxyAEE, retry, prop);
+
+        Assert.assertTrue(SpoolQueueUtils.enqueue(proxyAEE, retry));
+        SpoolQueue queue = proxyAEE.getSpoolQueue();
+        Assert.assertEquals(nextRetry, queue.getNextEligibleTime("DEST"));
+        Assert.assertTrue(queue.pollReady("DEST", nextRetry).isEmpty());
+
+        // retry state removed, e.g. after a successful attempt
+        RetryRecord.removeFrom(prop);
+        InfoFileUtils.storeFileInfo(proxyAEE, retry, prop);
+        proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .setEventDrivenForwarding(true);
+        Assert.assertTrue(SpoolQueueUtils.enqueue(proxyAEE, retry));
+        Assert.assertEquals(0, queue.getNextEligibleTime("DEST"));
+        Assert.assertFalse(SpoolQueueUtils.enqueue(proxyAEE, new File(retry.getParentFile(), "1.dcm.snd")));
+    }
+
+    @Test
+    public void testLoadQueuesMigratedFiles() throws Exception {
+        spool(destinationDir, "1.dcm", true);
+        spool(proxyAEE.getCStoreDirectoryPath("DEST", "2.dcm"), "2.dcm", true);
+        spool(proxyAEE.getCStoreDirectoryPath("DEST", "3.dcm"), "3.dcm.snd", true);
+
+        Assert.assertEquals(2, SpoolQueueUtils.load(proxyAEE));
+        SpoolQueue queue = proxyAEE.getSpoolQueue();
+        Assert.assertTrue(queue.isLoaded());
+        Assert.assertTrue(queue.contains(sharded("1.dcm")));
+        Assert.assertTrue(queue.contains(sharded("2.dcm")));
+        Assert.assertEquals(0, SpoolQueueUtils.reconcile(proxyAEE));
+    }
+}
@@ -0,0 +1,164 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.proxy.test.performance;
+
+import java.io.File;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXTransformer;
+import org.dcm4che3.io.SAXWriter;
+import org.dcm4chee.proxy.common.TemplateCoercer;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the throughput of attribute coercion by a new {@link SAXWriter}
+ * per dataset with coercion by the {@link TemplateCoercer}. The measurement
+ * takes several seconds per template and only runs with
+ * <code>-Ddcm4chee-proxy.performance=true</code>; the results of both are
+ * compared by <code>TemplateCoercerTest</code>.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class TestAttributeCoercion {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TestAttributeCoercion.class);
+
+    private static final String TEMPLATES_DIR = "../dcm4chee-proxy-conf/src/main/config/conf/";
+    private static final long WARMUP_MILLIS = 2000;
+    private static final long MEASURE_MILLIS = 5000;
+    private static final int STUDIES = 10;
+    private static final int INSTANCES_PER_STUDY = 100;
+
+    private Attributes[] datasets;
+
+    private interface Coercion {
+        Attributes coerce(Attributes attrs) throws Exception;
+    }
+
+    @Before
+    public void init() {
+        Assume.assumeTrue(Boolean.getBoolean("dcm4chee-proxy.performance"));
+        datasets = new Attributes[STUDIES * INSTANCES_PER_STUDY];
+        for (int i = 0; i < datasets.length; i++) {
+            Attributes attrs = new Attributes();
+            attrs.setString(Tag.SOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.2");
+            attrs.setString(Tag.SOPInstanceUID, VR.UI, "1.2.40.0.13.1.1." + i);
+            attrs.setString(Tag.StudyDate, VR.DA, "20140101");
+            attrs.setString(Tag.Modality, VR.CS, "CT");
+            attrs.setString(Tag.InstitutionName, VR.LO, "Institution");
+            attrs.setString(Tag.ReferringPhysicianName, VR.PN, "Referring^Physician");
+            attrs.setString(Tag.StationName, VR.SH, "STATION");
+            attrs.setString(Tag.PatientName, VR.PN, "Test^Patient");
+            attrs.setString(Tag.PatientBirthDate, VR.DA, "19700101");
+            attrs.setString(Tag.PatientSex, VR.CS, "O");
+            attrs.setString(Tag.SliceThickness, VR.DS, "5");
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.40.0.13.1.2." + (i / INSTANCES_PER_STUDY));
+            attrs.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.40.0.13.1.3." + (i / INSTANCES_PER_STUDY));
+            attrs.setInt(Tag.InstanceNumber, VR.IS, i % INSTANCES_PER_STUDY + 1);
+            datasets[i] = attrs;
+        }
+    }
+
+    @Test
+    public void testEnsurePatientID() throws Exception {
+        compare("dcm4chee-proxy-ensure-pid.xsl");
+    }
+
+    @Test
+    public void testNullifyPersonNames() throws Exception {
+        compare("dcm4chee-proxy-nullify-pn.xsl");
+    }
+
+    private void compare(String template) throws Exception {
+        final String systemId = new File(TEMPLATES_DIR + template).toURI().toString();
+        final Templates compiled = TransformerFactory.newInstance().newTemplates(new StreamSource(systemId));
+        final TemplateCoercer coercer = new TemplateCoercer();
+        Coercion saxWriter = new Coercion() {
+
+            @Override
+            public Attributes coerce(Attributes attrs) throws Exception {
+                Attributes tmp = new Attributes(attrs);
+                Attributes modify = new Attributes();
+                SAXWriter w = SAXTransformer.getSAXWriter(compiled, modify);
+                w.setIncludeKeyword(false);
+                w.write(tmp);
+                tmp.addAll(modify);
+                return tmp;
+            }
+        };
+        Coercion templateCoercer = new Coercion() {
+
+            @Override
+            public Attributes coerce(Attributes attrs) throws Exception {
+                return TemplateCoercer.merge(attrs, coercer.coerce(systemId, compiled, attrs), false);
+            }
+        };
+        double before = measure(saxWriter);
+        double after = measure(templateCoercer);
+        LOG.info("{}: {} coercions/s with SAXWriter, {} coercions/s with TemplateCoercer ({} hits, {} misses)",
+                new Object[] { template, (long) before, (long) after, coercer.getHits(), coercer.getMisses() });
+    }
+
+    private double measure(Coercion coercion) throws Exception {
+        run(coercion, WARMUP_MILLIS);
+        return run(coercion, MEASURE_MILLIS);
+    }
+
+    private double run(Coercion coercion, long millis) throws Exception {
+        long start = System.nanoTime();
+        long end = start + millis * 1000000L;
+        long count = 0;
+        long now;
+        do {
+            for (Attributes attrs : datasets)
+                coercion.coerce(attrs);
+            count += datasets.length;
+        } while ((now = System.nanoTime()) < end);
+        return count * 1e9 / (now - start);
+    }
+}